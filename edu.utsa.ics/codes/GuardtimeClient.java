@@ -28,6 +28,7 @@ import org.apache.http.message.BasicNameValuePair;
  **/
 public class GuardtimeClient {
 	private static String url = "http://localhost:8080/test";
+	private static String verifyUrl = "http://localhost:8080/verify";
 	private static String filename = "/data/sample";
 
 	public static void main(String[] args) {
@@ -74,23 +75,23 @@ public class GuardtimeClient {
 
 	public static void clientHttpPostVerify(){
 		HttpClient client = new DefaultHttpClient();
-		HttpPost httppost = new HttpPost(url);
+		HttpPost httppost = new HttpPost(verifyUrl);
 
 		try {
 			FileBody data = new FileBody(new File(System.getProperty("user.dir"), filename));
-			FileBody gtts = new FileBody(new File(System.getProperty("user.dir"), filename));
+			FileBody gtts = new FileBody(new File(System.getProperty("user.dir"), filename + ".gtts"));
 //			StringBody comment = new StringBody("Filename: " + filename);
 
 			MultipartEntity reqEntity = new MultipartEntity();
-			reqEntity.addPart("data", data);
 			reqEntity.addPart("gtts", gtts);
+			reqEntity.addPart("data", data);
 //			reqEntity.addPart("comment", comment);
 			httppost.setEntity(reqEntity);
 
 			HttpResponse response = client.execute(httppost);
 			BufferedReader rd = new BufferedReader(new InputStreamReader(response.getEntity().getContent()));
 			String line = "";
-			System.out.println("Timestamp received: \n");
+			System.out.println("Verification result: \n");
 			while ((line = rd.readLine()) != null) {
 				System.out.println(line);
 			}
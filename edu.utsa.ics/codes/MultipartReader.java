@@ -0,0 +1,282 @@
+package codes;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Streaming reader for {@code multipart/form-data} request bodies.
+ *
+ * Parts are returned one at a time, and the body of each part is an input
+ * stream that ends at the next boundary, so large parts can be processed
+ * without holding them in memory. Moving to the next part skips whatever is
+ * left of the current one.
+ */
+public class MultipartReader {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_HEADER_SIZE = 8192;
+
+    private final InputStream in;
+    private final byte[] delimiter;
+    private final byte[] buf;
+    private int pos;
+    private int limit;
+    private boolean eof;
+    private boolean finished;
+    private Part current;
+
+    /**
+     * One part of the body.
+     */
+    public class Part {
+        private final Map<String, String> headers;
+        private final InputStream body;
+        private boolean done;
+
+        Part(Map<String, String> headers) {
+            this.headers = headers;
+            this.body = new InputStream() {
+                public int read() throws IOException {
+                    byte[] b = new byte[1];
+                    int n = read(b, 0, 1);
+                    return (n < 0) ? -1 : (b[0] & 0xff);
+                }
+
+                public int read(byte[] b, int off, int len) throws IOException {
+                    return readBody(Part.this, b, off, len);
+                }
+            };
+        }
+
+        /**
+         * Returns the value of the given header, or {@code null}.
+         *
+         * @param name header name, in any case.
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        /**
+         * Returns the form field name of the part, or {@code null}.
+         */
+        public String getName() {
+            return getParameter(getHeader("Content-Disposition"), "name");
+        }
+
+        /**
+         * Returns the body of the part.
+         */
+        public InputStream getBody() {
+            return body;
+        }
+    }
+
+    /**
+     * Returns the boundary given in a {@code multipart/form-data} content
+     * type, or {@code null} if the content type is not that.
+     */
+    public static String getBoundary(String contentType) {
+        if (contentType == null || !contentType.trim().toLowerCase().startsWith("multipart/form-data")) {
+            return null;
+        }
+        return getParameter(contentType, "boundary");
+    }
+
+    /**
+     * Returns the value of the given parameter of a header value such as
+     * {@code form-data; name="data"}, or {@code null}.
+     */
+    static String getParameter(String header, String name) {
+        if (header == null) {
+            return null;
+        }
+        String[] params = header.split(";");
+        for (int i = 1; i < params.length; ++i) {
+            String param = params[i].trim();
+            int eq = param.indexOf('=');
+            if (eq > 0 && param.substring(0, eq).trim().equalsIgnoreCase(name)) {
+                String value = param.substring(eq + 1).trim();
+                if (value.length() >= 2 && value.startsWith("\"") && value.endsWith("\"")) {
+                    value = value.substring(1, value.length() - 1);
+                }
+                return value;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Creates a reader.
+     *
+     * @param in the request body.
+     * @param boundary the boundary from the content type.
+     */
+    public MultipartReader(InputStream in, String boundary) {
+        if (boundary == null || boundary.length() == 0 || boundary.length() > 70) {
+            throw new IllegalArgumentException("invalid boundary: " + boundary);
+        }
+        this.in = in;
+        this.delimiter = ("\r\n--" + boundary).getBytes();
+        this.buf = new byte[BUFFER_SIZE];
+        // The first boundary is not preceded by a line break; put one in, so
+        // that all boundaries look the same
+        this.buf[0] = '\r';
+        this.buf[1] = '\n';
+        this.pos = 0;
+        this.limit = 2;
+    }
+
+    /**
+     * Moves to the next part.
+     *
+     * @return the next part, or {@code null} if there are no more.
+     * @throws IOException if the body is not valid multipart data.
+     */
+    public Part nextPart() throws IOException {
+        if (finished) {
+            return null;
+        }
+        if (current == null) {
+            // Skip the preamble
+            current = new Part(null);
+        }
+        byte[] skip = new byte[BUFFER_SIZE];
+        while (readBody(current, skip, 0, skip.length) >= 0) {
+            // Skipping the rest of the part
+        }
+
+        // After the boundary: "--" for the end, or the line break
+        ensure(2);
+        if (limit - pos >= 2 && buf[pos] == '-' && buf[pos + 1] == '-') {
+            finished = true;
+            return null;
+        }
+        String line = readLine();
+        if (line.trim().length() != 0) {
+            throw new IOException("Malformed multipart boundary");
+        }
+
+        Map<String, String> headers = new HashMap<String, String>();
+        int size = 0;
+        while (true) {
+            line = readLine();
+            size += line.length();
+            if (size > MAX_HEADER_SIZE) {
+                throw new IOException("Multipart headers too long");
+            }
+            if (line.length() == 0) {
+                break;
+            }
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(), line.substring(colon + 1).trim());
+            }
+        }
+        current = new Part(headers);
+        return current;
+    }
+
+    /**
+     * Reads from the body of the given part, up to the next boundary.
+     */
+    private int readBody(Part part, byte[] b, int off, int len) throws IOException {
+        if (part != current || part.done) {
+            return -1;
+        }
+        while (true) {
+            ensure(delimiter.length);
+            int found = indexOf(delimiter, pos, limit);
+            int available;
+            if (found >= 0) {
+                available = found - pos;
+            } else if (eof) {
+                throw new IOException("Unexpected end of multipart data");
+            } else {
+                // Keep back the bytes that could start a boundary
+                available = limit - pos - (delimiter.length - 1);
+            }
+            if (available > 0) {
+                int n = Math.min(len, available);
+                System.arraycopy(buf, pos, b, off, n);
+                pos += n;
+                return n;
+            }
+            if (found == pos) {
+                pos += delimiter.length;
+                part.done = true;
+                return -1;
+            }
+            fill();
+        }
+    }
+
+    /**
+     * Reads a line ending in CRLF from the buffer.
+     */
+    private String readLine() throws IOException {
+        StringBuilder sb = new StringBuilder();
+        while (true) {
+            ensure(2);
+            if (limit - pos < 2) {
+                throw new IOException("Unexpected end of multipart data");
+            }
+            if (buf[pos] == '\r' && buf[pos + 1] == '\n') {
+                pos += 2;
+                return sb.toString();
+            }
+            sb.append((char) (buf[pos++] & 0xff));
+            if (sb.length() > MAX_HEADER_SIZE) {
+                throw new IOException("Multipart header line too long");
+            }
+        }
+    }
+
+    /**
+     * Makes sure the buffer has at least the given number of bytes, unless
+     * the input ends.
+     */
+    private void ensure(int n) throws IOException {
+        while (limit - pos < n && !eof) {
+            fill();
+        }
+    }
+
+    /**
+     * Moves the unread bytes to the start of the buffer and reads more.
+     */
+    private void fill() throws IOException {
+        if (pos > 0) {
+            System.arraycopy(buf, pos, buf, 0, limit - pos);
+            limit -= pos;
+            pos = 0;
+        }
+        if (limit == buf.length) {
+            return;
+        }
+        int n = in.read(buf, limit, buf.length - limit);
+        if (n < 0) {
+            eof = true;
+        } else {
+            limit += n;
+        }
+    }
+
+    private int indexOf(byte[] pattern, int from, int to) {
+        byte first = pattern[0];
+        for (int i = from; i <= to - pattern.length; ++i) {
+            if (buf[i] != first) {
+                continue;
+            }
+            int j = 1;
+            while (j < pattern.length && buf[i + j] == pattern[j]) {
+                ++j;
+            }
+            if (j == pattern.length) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,123 @@
+package codes;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.guardtime.transport.SimpleHttpStamper;
+import com.guardtime.tsp.GTPublicationsFile;
+import com.guardtime.tsp.GTVerificationResult;
+
+/**
+ * Keeps a copy of the publications file for the verification requests.
+ *
+ * The file is downloaded once at start and then again at a fixed interval.
+ * A downloaded file replaces the current one only after its signature has
+ * been verified, so the verifiers always see a trusted file, and they never
+ * wait for a download or a signature check. If a refresh fails, the previous
+ * file is kept.
+ */
+public class PublicationsFileCache {
+    private final URL url;
+    private final String keyStorePath;
+    private final long interval;
+    private volatile GTPublicationsFile current;
+    private ScheduledExecutorService scheduler;
+
+    /**
+     * Creates a cache.
+     *
+     * @param url URL of the publications file.
+     * @param keyStorePath key store to verify the file signature against,
+     *            or {@code null} for the default key store of the JRE.
+     * @param interval refresh interval, in milliseconds.
+     */
+    public PublicationsFileCache(URL url, String keyStorePath, long interval) {
+        if (interval <= 0) {
+            throw new IllegalArgumentException("invalid refresh interval: " + interval);
+        }
+        this.url = url;
+        this.keyStorePath = keyStorePath;
+        this.interval = interval;
+    }
+
+    /**
+     * Loads the file for the first time and schedules the refreshes. A
+     * failed first load is reported, but does not stop the cache; the file
+     * will be tried again at the next refresh.
+     */
+    public synchronized void start() {
+        if (scheduler != null) {
+            return;
+        }
+        try {
+            refresh();
+        } catch (IOException e) {
+            System.err.println("Could not load publications file: " + e.getMessage());
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "publications-refresh");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                try {
+                    refresh();
+                } catch (IOException e) {
+                    System.err.println("Could not refresh publications file: " + e.getMessage());
+                } catch (RuntimeException e) {
+                    // Keep the refreshes going
+                    e.printStackTrace();
+                }
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Stops the refreshes.
+     */
+    public synchronized void stop() {
+        if (scheduler != null) {
+            scheduler.shutdownNow();
+            scheduler = null;
+        }
+    }
+
+    /**
+     * Returns the current publications file, with its signature verified.
+     *
+     * @return the file, or {@code null} if none has been loaded yet.
+     */
+    public GTPublicationsFile get() {
+        return current;
+    }
+
+    /**
+     * Downloads the file and, if its signature is valid, makes it the
+     * current one.
+     *
+     * @throws IOException if the file can not be downloaded, or its
+     *             signature is not valid.
+     */
+    public void refresh() throws IOException {
+        GTPublicationsFile file;
+        try {
+            file = SimpleHttpStamper.getPublicationsFile(url);
+        } catch (IllegalArgumentException e) {
+            throw new IOException("invalid publications file: " + e.getMessage());
+        }
+        GTVerificationResult result = (keyStorePath == null) ? file.verifySignature()
+                : file.verifySignature(keyStorePath);
+        if (!result.isValid()) {
+            throw new IOException("publications file signature is not valid (error code "
+                    + result.getErrorCode() + ")");
+        }
+        current = file;
+    }
+}
@@ -1,142 +1,584 @@
-package codes;
-
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileOutputStream;
-import java.io.FileWriter;
-import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.net.InetSocketAddress;
-import java.net.URLDecoder;
-import java.util.Locale;
-
-import org.apache.commons.io.IOUtils;
-import org.apache.http.HttpEntity;
-import org.apache.http.HttpEntityEnclosingRequest;
-import org.apache.http.HttpException;
-import org.apache.http.HttpRequest;
-import org.apache.http.HttpResponse;
-import org.apache.http.HttpStatus;
-import org.apache.http.MethodNotSupportedException;
-import org.apache.http.entity.ContentType;
-import org.apache.http.entity.FileEntity;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.protocol.HttpContext;
-import org.apache.http.util.EntityUtils;
-
-
-import com.guardtime.transport.SimpleHttpStamper;
-import com.guardtime.tsp.GTDataHash;
-import com.guardtime.tsp.GTException;
-import com.guardtime.tsp.GTHashAlgorithm;
-import com.guardtime.tsp.GTTimestamp;
-import com.sun.net.httpserver.HttpExchange;
-import com.sun.net.httpserver.HttpHandler;
-import com.sun.net.httpserver.HttpServer;
-
-public class SimpleHTTPServer {
-
-    public static void main(String[] args) throws Exception {
-        HttpServer server = HttpServer.create(new InetSocketAddress(8080), 0);
-//        server.createContext("/test", new MyHandler());
-        server.createContext("/test", new MyHandler());
-        server.setExecutor(null); // creates a default executor
-        server.start();
-    }
-
-    static class MyHandler implements HttpHandler {
-        public void handle(HttpExchange t) throws IOException {
-        	File file = new File (System.getProperty("user.dir"), "/data/temp.txt");
-        	FileWriter fw = new FileWriter(file.getAbsoluteFile());
-        	BufferedWriter bw = new BufferedWriter(fw);
-            InputStream dataInFile = t.getRequestBody();
-            
-                       
-            String content = IOUtils.toString(dataInFile, "UTF-8");
-            System.out.println(content);
-            bw.write(content);
-            
-            GTDataHash dataHash = new GTDataHash(GTHashAlgorithm.DEFAULT);
-    		dataHash.update(dataInFile).close();
-    		dataInFile.close();
-
-    		// Get timestamp
-    		try {
-				GTTimestamp ts = SimpleHttpStamper.create(dataHash, "http://stamper.guardtime.net/gt-signingservice");
-	            t.sendResponseHeaders(200,0);
-	            OutputStream os = t.getResponseBody();
-	            os.write(ts.getEncoded());
-	            os.close();
-			} catch (GTException e) {
-				// TODO Auto-generated catch block
-				e.printStackTrace();
-			}			bw.close();
-        }
-    }
-    
-    static class HttpFileHandler implements HttpHandler  {
-
-        private final String docRoot;
-
-        public HttpFileHandler(final String docRoot) {
-            super();
-            this.docRoot = docRoot;
-        }
-
-        public void handle(
-                final HttpRequest request,
-                final HttpResponse response,
-                final HttpContext context) throws HttpException, IOException {
-
-            String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
-            if (!method.equals("GET") && !method.equals("HEAD") && !method.equals("POST")) {
-                throw new MethodNotSupportedException(method + " method not supported");
-            }
-            String target = request.getRequestLine().getUri();
-
-            if (request instanceof HttpEntityEnclosingRequest) {
-                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
-                byte[] entityContent = EntityUtils.toByteArray(entity);
-                System.out.println("Incoming entity content (bytes): " + entityContent.length);
-            }
-
-            final File file = new File(this.docRoot, URLDecoder.decode(target, "UTF-8"));
-            if (!file.exists()) {
-
-                response.setStatusCode(HttpStatus.SC_NOT_FOUND);
-                StringEntity entity = new StringEntity(
-                        "<html><body><h1>File" + file.getPath() +
-                        " not found</h1></body></html>",
-                        ContentType.create("text/html", "UTF-8"));
-                response.setEntity(entity);
-                System.out.println("File " + file.getPath() + " not found");
-
-            } else if (!file.canRead() || file.isDirectory()) {
-
-                response.setStatusCode(HttpStatus.SC_FORBIDDEN);
-                StringEntity entity = new StringEntity(
-                        "<html><body><h1>Access denied</h1></body></html>",
-                        ContentType.create("text/html", "UTF-8"));
-                response.setEntity(entity);
-                System.out.println("Cannot read file " + file.getPath());
-
-            } else {
-
-                response.setStatusCode(HttpStatus.SC_OK);
-                FileEntity body = new FileEntity(file, ContentType.create("text/html"));
-                response.setEntity(body);
-                System.out.println("Serving file " + file.getPath());
-            }
-        }
-
-		@Override
-		public void handle(HttpExchange arg0) throws IOException {
-			// TODO Auto-generated method stub
-			
-		}
-
-    }
-
+package codes;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.net.URLDecoder;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.TimeZone;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpEntityEnclosingRequest;
+import org.apache.http.HttpException;
+import org.apache.http.HttpRequest;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.MethodNotSupportedException;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.FileEntity;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.protocol.HttpContext;
+import org.apache.http.util.EntityUtils;
+
+
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.GTHashTree;
+import com.guardtime.tsp.GTPublicationsFile;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.tsp.GTVerificationResult;
+import com.guardtime.util.Base64;
+import com.guardtime.util.Counter;
+import com.guardtime.util.Histogram;
+import com.guardtime.util.Metrics;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Stamping server: answers every POST to {@code /test} with the DER encoded
+ * GuardTime timestamp of the request body.
+ *
+ * The body is hashed while it is received, in fixed size chunks, and is never
+ * stored. Hashes that arrive close together are stamped in batches by a
+ * {@link StampBatcher}, with one upstream request per batch. When a request
+ * was stamped as part of a batch, the timestamp is for the root of the batch
+ * hash tree, and the {@value #CHAIN_HEADER} response header carries the
+ * Base64 encoded hash chain from the data hash to the root; see
+ * {@link com.guardtime.tsp.GTHashTree#getRootHash(GTDataHash, byte[], GTHashAlgorithm)}.
+ * Requests are handled on a fixed pool of worker threads with a bounded
+ * queue. When the queue is full, the server stops taking new requests until
+ * there is room again, so a burst of uploads can not exhaust the memory or
+ * the threads of the process.
+ *
+ * POSTs to {@code /verify} verify a timestamp against its document; see
+ * {@link VerifyHandler}. GETs to {@code /metrics} return the metrics of the
+ * server and the SDK in the Prometheus text format.
+ *
+ * Usage: SimpleHTTPServer [port [stamper URL [threads [queue size [batch window
+ * [publications file URL [key store]]]]]]]
+ */
+public class SimpleHTTPServer {
+    private static final String STAMPER_URL = "http://stamper.guardtime.net/gt-signingservice";
+    private static final int BUFFER_SIZE = 8192;
+    private static final long STAMPING_TIMEOUT = 30000;
+    private static final int MAX_BATCH = 4096;
+    private static final int TARGET_BATCH = 64;
+    private static final int MAX_BATCHES_IN_FLIGHT = 4;
+    private static final String PUBLICATIONS_URL = "http://verify.guardtime.com/gt-controlpublications.bin";
+    private static final long PUBLICATIONS_REFRESH = 60 * 60 * 1000;
+
+    /** Response header with the hash chain of a batched timestamp. */
+    public static final String CHAIN_HEADER = "X-GT-Aggregation-Chain";
+
+    public static void main(String[] args) throws Exception {
+        int port = args.length > 0 ? Integer.parseInt(args[0]) : 8080;
+        URL stamperUrl = new URL(args.length > 1 ? args[1] : STAMPER_URL);
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 4 * Runtime.getRuntime().availableProcessors();
+        int queueSize = args.length > 3 ? Integer.parseInt(args[3]) : 4 * threads;
+        long window = args.length > 4 ? Long.parseLong(args[4]) : 10;
+        URL publicationsUrl = new URL(args.length > 5 ? args[5] : PUBLICATIONS_URL);
+        String keyStore = args.length > 6 ? args[6] : null;
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(port), 0);
+        StampBatcher batcher = new StampBatcher(stamperUrl, STAMPING_TIMEOUT, window,
+                MAX_BATCH, TARGET_BATCH, MAX_BATCHES_IN_FLIGHT);
+        server.createContext("/test", new InstrumentedHandler("stamp", new StampHandler(batcher)));
+        PublicationsFileCache publications = new PublicationsFileCache(publicationsUrl, keyStore, PUBLICATIONS_REFRESH);
+        publications.start();
+        ExecutorService verifiers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "verifier-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        server.createContext("/verify", new InstrumentedHandler("verify", new VerifyHandler(publications, verifiers)));
+        server.createContext("/metrics", new MetricsHandler());
+        server.setExecutor(createExecutor(threads, queueSize));
+        server.start();
+    }
+
+    /**
+     * Creates the executor for the request handlers. The executor has a
+     * fixed number of threads and a bounded queue; when the queue is full,
+     * the submitting thread (the server's dispatcher) waits for room.
+     */
+    static ThreadPoolExecutor createExecutor(int threads, int queueSize) {
+        final BlockingQueue<Runnable> queue = new ArrayBlockingQueue<Runnable>(queueSize);
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+                    private final AtomicInteger count = new AtomicInteger();
+
+                    public Thread newThread(Runnable r) {
+                        Thread t = new Thread(r, "stamp-handler-" + count.incrementAndGet());
+                        t.setDaemon(true);
+                        return t;
+                    }
+                });
+        executor.setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                if (executor.isShutdown()) {
+                    throw new RejectedExecutionException("server stopped");
+                }
+                try {
+                    queue.put(r);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new RejectedExecutionException("interrupted");
+                }
+            }
+        });
+        return executor;
+    }
+
+    /**
+     * Counts the requests, server errors and latency of the wrapped handler.
+     */
+    static class InstrumentedHandler implements HttpHandler {
+        private final HttpHandler handler;
+        private final Counter requests;
+        private final Counter errors;
+        private final Histogram latency;
+
+        public InstrumentedHandler(String endpoint, HttpHandler handler) {
+            this.handler = handler;
+            this.requests = Metrics.counter("gt_server_requests_total",
+                    "Requests to the stamping server.", "endpoint", endpoint);
+            this.errors = Metrics.counter("gt_server_errors_total",
+                    "Requests to the stamping server answered with a 5xx status.", "endpoint", endpoint);
+            this.latency = Metrics.histogram("gt_server_request_seconds",
+                    "Duration of requests to the stamping server.", "endpoint", endpoint);
+        }
+
+        public void handle(HttpExchange t) throws IOException {
+            long start = System.nanoTime();
+            requests.increment();
+            try {
+                handler.handle(t);
+            } finally {
+                latency.observeSince(start);
+                if (t.getResponseCode() < 0 || t.getResponseCode() >= 500) {
+                    errors.increment();
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns all metrics in the Prometheus text format.
+     */
+    static class MetricsHandler implements HttpHandler {
+        public void handle(HttpExchange t) throws IOException {
+            try {
+                if (!"GET".equalsIgnoreCase(t.getRequestMethod())) {
+                    t.getResponseHeaders().set("Allow", "GET");
+                    sendError(t, 405, "Method not allowed");
+                    return;
+                }
+                t.getResponseHeaders().set("Content-Type", Metrics.CONTENT_TYPE);
+                t.sendResponseHeaders(200, 0);
+                Writer out = new OutputStreamWriter(t.getResponseBody(), "UTF-8");
+                Metrics.write(out);
+                out.close();
+            } finally {
+                t.close();
+            }
+        }
+    }
+
+    /**
+     * Stamps the request body and returns the timestamp.
+     */
+    static class StampHandler implements HttpHandler {
+        private final StampBatcher batcher;
+
+        public StampHandler(StampBatcher batcher) {
+            this.batcher = batcher;
+        }
+
+        public void handle(HttpExchange t) throws IOException {
+            try {
+                if (!"POST".equalsIgnoreCase(t.getRequestMethod())) {
+                    t.getResponseHeaders().set("Allow", "POST");
+                    sendError(t, 405, "Method not allowed");
+                    return;
+                }
+
+                // Hash the body as it arrives
+                GTDataHash dataHash = new GTDataHash(GTHashAlgorithm.DEFAULT);
+                InputStream in = t.getRequestBody();
+                byte[] buf = new byte[BUFFER_SIZE];
+                int n;
+                while ((n = in.read(buf)) != -1) {
+                    dataHash.update(buf, 0, n);
+                }
+                in.close();
+                dataHash.close();
+
+                StampBatcher.Ticket ticket = batcher.submit(dataHash);
+                byte[] timestamp;
+                try {
+                    timestamp = ticket.getTimestamp(batcher.getMaxWait());
+                } catch (SocketTimeoutException e) {
+                    sendError(t, 504, "Stamping service timed out");
+                    return;
+                } catch (GTException e) {
+                    sendError(t, 502, "Stamping service error: " + e.getMessage());
+                    return;
+                } catch (IOException e) {
+                    sendError(t, 503, "Stamping service unavailable: " + e.getMessage());
+                    return;
+                }
+
+                if (ticket.getChain() != null) {
+                    t.getResponseHeaders().set(CHAIN_HEADER, Base64.encode(ticket.getChain()));
+                }
+                t.getResponseHeaders().set("Content-Type", "application/octet-stream");
+                t.sendResponseHeaders(200, timestamp.length);
+                OutputStream os = t.getResponseBody();
+                os.write(timestamp);
+                os.close();
+            } finally {
+                t.close();
+            }
+        }
+    }
+
+    /**
+     * Verifies a timestamp against the data it was issued for.
+     *
+     * The request is {@code multipart/form-data} with the parts {@code data}
+     * (the document), {@code gtts} (the DER encoded timestamp) and, for a
+     * timestamp from a batch, {@code chain} (the Base64 encoded hash chain
+     * from the {@value #CHAIN_HEADER} header). The document is hashed as it
+     * is received and is never stored. If the timestamp part comes first, the
+     * document is hashed with the algorithm of the timestamp; otherwise it is
+     * hashed with the default algorithm, which is also what the stamping
+     * handler uses.
+     *
+     * The verification itself, which checks signatures and hash chains, runs
+     * on a separate pool sized to the number of processors, so that uploads
+     * in progress do not compete with it for the CPU. The timestamp is
+     * checked against the publications file from a
+     * {@link PublicationsFileCache}. The response is a JSON object with the
+     * status and error codes of the {@link GTVerificationResult} and the
+     * names of the bits set in them.
+     */
+    static class VerifyHandler implements HttpHandler {
+        private static final int MAX_TIMESTAMP_SIZE = 64 * 1024;
+        private static final int MAX_CHAIN_SIZE = 64 * 1024;
+
+        private static final int[] STATUS_BITS = {
+            GTVerificationResult.PUBLIC_KEY_SIGNATURE_PRESENT,
+            GTVerificationResult.PUBLICATION_REFERENCE_PRESENT,
+            GTVerificationResult.DATA_HASH_CHECKED,
+            GTVerificationResult.PUBLICATION_CHECKED,
+            GTVerificationResult.PUBFILE_SIGNATURE_VERIFIED,
+        };
+        private static final String[] STATUS_NAMES = {
+            "PUBLIC_KEY_SIGNATURE_PRESENT",
+            "PUBLICATION_REFERENCE_PRESENT",
+            "DATA_HASH_CHECKED",
+            "PUBLICATION_CHECKED",
+            "PUBFILE_SIGNATURE_VERIFIED",
+        };
+        private static final int[] ERROR_BITS = {
+            GTVerificationResult.SYNTACTIC_CHECK_FAILURE,
+            GTVerificationResult.HASHCHAIN_VERIFICATION_FAILURE,
+            GTVerificationResult.PUBLIC_KEY_SIGNATURE_FAILURE,
+            GTVerificationResult.PUBLIC_KEY_FAILURE,
+            GTVerificationResult.WRONG_DOCUMENT_FAILURE,
+            GTVerificationResult.PUBLICATION_FAILURE,
+            GTVerificationResult.CERTIFICATE_FAILURE,
+            GTVerificationResult.TECH_FAILURE,
+            GTVerificationResult.PUBFILE_SIGNATURE_FAILURE,
+        };
+        private static final String[] ERROR_NAMES = {
+            "SYNTACTIC_CHECK_FAILURE",
+            "HASHCHAIN_VERIFICATION_FAILURE",
+            "PUBLIC_KEY_SIGNATURE_FAILURE",
+            "PUBLIC_KEY_FAILURE",
+            "WRONG_DOCUMENT_FAILURE",
+            "PUBLICATION_FAILURE",
+            "CERTIFICATE_FAILURE",
+            "TECH_FAILURE",
+            "PUBFILE_SIGNATURE_FAILURE",
+        };
+
+        private final PublicationsFileCache publications;
+        private final ExecutorService verifiers;
+
+        public VerifyHandler(PublicationsFileCache publications, ExecutorService verifiers) {
+            this.publications = publications;
+            this.verifiers = verifiers;
+        }
+
+        public void handle(HttpExchange t) throws IOException {
+            try {
+                if (!"POST".equalsIgnoreCase(t.getRequestMethod())) {
+                    t.getResponseHeaders().set("Allow", "POST");
+                    sendError(t, 405, "Method not allowed");
+                    return;
+                }
+                String boundary = MultipartReader.getBoundary(t.getRequestHeaders().getFirst("Content-Type"));
+                if (boundary == null) {
+                    sendError(t, 415, "Expected multipart/form-data");
+                    return;
+                }
+
+                GTTimestamp timestamp = null;
+                GTDataHash dataHash = null;
+                byte[] chain = null;
+                try {
+                    MultipartReader reader = new MultipartReader(t.getRequestBody(), boundary);
+                    MultipartReader.Part part;
+                    while ((part = reader.nextPart()) != null) {
+                        String name = part.getName();
+                        if ("data".equals(name)) {
+                            GTHashAlgorithm algorithm = (timestamp != null && chain == null)
+                                    ? timestamp.getHashAlgorithm() : GTHashAlgorithm.DEFAULT;
+                            dataHash = hash(part.getBody(), algorithm);
+                        } else if ("gtts".equals(name)) {
+                            timestamp = GTTimestamp.getInstance(readPart(part.getBody(), MAX_TIMESTAMP_SIZE));
+                        } else if ("chain".equals(name)) {
+                            String text = new String(readPart(part.getBody(), MAX_CHAIN_SIZE), "US-ASCII").trim();
+                            chain = Base64.decode(text);
+                        }
+                    }
+                } catch (IllegalArgumentException e) {
+                    sendError(t, 400, "Invalid request: " + e.getMessage());
+                    return;
+                } catch (GTException e) {
+                    sendError(t, 400, "Invalid timestamp: " + e.getMessage());
+                    return;
+                } catch (IOException e) {
+                    sendError(t, 400, "Invalid request: " + e.getMessage());
+                    return;
+                }
+                if (dataHash == null || timestamp == null) {
+                    sendError(t, 400, "Both data and gtts parts are required");
+                    return;
+                }
+                if (chain == null && dataHash.getHashAlgorithm() != timestamp.getHashAlgorithm()) {
+                    sendError(t, 400, "Timestamp uses " + timestamp.getHashAlgorithm().getName()
+                            + "; send the gtts part before the data part");
+                    return;
+                }
+
+                GTPublicationsFile publicationsFile = publications.get();
+                if (publicationsFile == null) {
+                    sendError(t, 503, "Publications file not available");
+                    return;
+                }
+
+                GTVerificationResult result;
+                try {
+                    result = verifiers.submit(new Verification(timestamp, dataHash, chain, publicationsFile)).get();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    sendError(t, 503, "Interrupted");
+                    return;
+                } catch (ExecutionException e) {
+                    if (e.getCause() instanceof IllegalArgumentException) {
+                        sendError(t, 400, "Invalid hash chain: " + e.getCause().getMessage());
+                    } else {
+                        sendError(t, 500, "Verification failed: " + e.getCause());
+                    }
+                    return;
+                }
+
+                StringBuilder json = new StringBuilder();
+                json.append("{\"valid\":").append(result.isValid());
+                json.append(",\"statusCode\":").append(result.getStatusCode());
+                json.append(",\"status\":");
+                appendNames(json, result.getStatusCode(), STATUS_BITS, STATUS_NAMES);
+                json.append(",\"errorCode\":").append(result.getErrorCode());
+                json.append(",\"errors\":");
+                appendNames(json, result.getErrorCode(), ERROR_BITS, ERROR_NAMES);
+                json.append(",\"extended\":").append(timestamp.isExtended());
+                json.append(",\"aggregated\":").append(chain != null);
+                json.append(",\"registeredTime\":");
+                Date registered = timestamp.getRegisteredTime();
+                if (registered == null) {
+                    json.append("null");
+                } else {
+                    SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+                    format.setTimeZone(TimeZone.getTimeZone("UTC"));
+                    json.append('"').append(format.format(registered)).append('"');
+                }
+                json.append("}\n");
+
+                byte[] body = json.toString().getBytes("UTF-8");
+                t.getResponseHeaders().set("Content-Type", "application/json");
+                t.sendResponseHeaders(200, body.length);
+                OutputStream os = t.getResponseBody();
+                os.write(body);
+                os.close();
+            } finally {
+                t.close();
+            }
+        }
+
+        private static GTDataHash hash(InputStream in, GTHashAlgorithm algorithm) throws IOException {
+            GTDataHash dataHash = new GTDataHash(algorithm);
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                dataHash.update(buf, 0, n);
+            }
+            return dataHash.close();
+        }
+
+        private static byte[] readPart(InputStream in, int maxSize) throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[BUFFER_SIZE];
+            int n;
+            while ((n = in.read(buf)) != -1) {
+                if (out.size() + n > maxSize) {
+                    throw new IOException("part too large");
+                }
+                out.write(buf, 0, n);
+            }
+            return out.toByteArray();
+        }
+
+        private static void appendNames(StringBuilder json, int code, int[] bits, String[] names) {
+            json.append('[');
+            boolean first = true;
+            for (int i = 0; i < bits.length; ++i) {
+                if ((code & bits[i]) != 0) {
+                    if (!first) {
+                        json.append(',');
+                    }
+                    json.append('"').append(names[i]).append('"');
+                    first = false;
+                }
+            }
+            json.append(']');
+        }
+    }
+
+    /**
+     * Verification of one timestamp, run on the verifier pool.
+     */
+    static class Verification implements Callable<GTVerificationResult> {
+        private final GTTimestamp timestamp;
+        private final GTDataHash dataHash;
+        private final byte[] chain;
+        private final GTPublicationsFile publicationsFile;
+
+        Verification(GTTimestamp timestamp, GTDataHash dataHash, byte[] chain, GTPublicationsFile publicationsFile) {
+            this.timestamp = timestamp;
+            this.dataHash = dataHash;
+            this.chain = chain;
+            this.publicationsFile = publicationsFile;
+        }
+
+        public GTVerificationResult call() {
+            GTDataHash hash = dataHash;
+            if (chain != null) {
+                hash = GTHashTree.getRootHash(dataHash, chain, timestamp.getHashAlgorithm());
+            }
+            return timestamp.verify(hash, publicationsFile);
+        }
+    }
+
+    static void sendError(HttpExchange t, int status, String message) throws IOException {
+        byte[] body = (message + "\n").getBytes("UTF-8");
+        t.getResponseHeaders().set("Content-Type", "text/plain; charset=UTF-8");
+        t.sendResponseHeaders(status, body.length);
+        OutputStream os = t.getResponseBody();
+        os.write(body);
+        os.close();
+    }
+    
+    static class HttpFileHandler implements HttpHandler  {
+
+        private final String docRoot;
+
+        public HttpFileHandler(final String docRoot) {
+            super();
+            this.docRoot = docRoot;
+        }
+
+        public void handle(
+                final HttpRequest request,
+                final HttpResponse response,
+                final HttpContext context) throws HttpException, IOException {
+
+            String method = request.getRequestLine().getMethod().toUpperCase(Locale.ENGLISH);
+            if (!method.equals("GET") && !method.equals("HEAD") && !method.equals("POST")) {
+                throw new MethodNotSupportedException(method + " method not supported");
+            }
+            String target = request.getRequestLine().getUri();
+
+            if (request instanceof HttpEntityEnclosingRequest) {
+                HttpEntity entity = ((HttpEntityEnclosingRequest) request).getEntity();
+                byte[] entityContent = EntityUtils.toByteArray(entity);
+                System.out.println("Incoming entity content (bytes): " + entityContent.length);
+            }
+
+            final File file = new File(this.docRoot, URLDecoder.decode(target, "UTF-8"));
+            if (!file.exists()) {
+
+                response.setStatusCode(HttpStatus.SC_NOT_FOUND);
+                StringEntity entity = new StringEntity(
+                        "<html><body><h1>File" + file.getPath() +
+                        " not found</h1></body></html>",
+                        ContentType.create("text/html", "UTF-8"));
+                response.setEntity(entity);
+                System.out.println("File " + file.getPath() + " not found");
+
+            } else if (!file.canRead() || file.isDirectory()) {
+
+                response.setStatusCode(HttpStatus.SC_FORBIDDEN);
+                StringEntity entity = new StringEntity(
+                        "<html><body><h1>Access denied</h1></body></html>",
+                        ContentType.create("text/html", "UTF-8"));
+                response.setEntity(entity);
+                System.out.println("Cannot read file " + file.getPath());
+
+            } else {
+
+                response.setStatusCode(HttpStatus.SC_OK);
+                FileEntity body = new FileEntity(file, ContentType.create("text/html"));
+                response.setEntity(body);
+                System.out.println("Serving file " + file.getPath());
+            }
+        }
+
+		@Override
+		public void handle(HttpExchange arg0) throws IOException {
+			// TODO Auto-generated method stub
+			
+		}
+
+    }
+
 }
\ No newline at end of file
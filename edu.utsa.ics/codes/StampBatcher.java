@@ -0,0 +1,357 @@
+package codes;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.guardtime.transport.HttpStamper;
+import com.guardtime.transport.ResponseHandler;
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.GTHashTree;
+import com.guardtime.tsp.GTTimestampResponse;
+
+/**
+ * Collects data hashes that arrive close together into batches, and stamps
+ * each batch with a single upstream request.
+ *
+ * A batch of several hashes is stamped by the root of a {@link GTHashTree}
+ * built over them, and every hash gets the root timestamp together with the
+ * hash chain from its leaf to the root. A batch of one hash is stamped as is
+ * and gets a plain timestamp.
+ *
+ * A batch is sent when its window has passed, when it is full, or at once
+ * when the load is light. The window adapts to the arrival rate of the
+ * hashes: when fewer than two hashes are expected within the maximum window,
+ * batching would only add latency and the window is zero; otherwise the
+ * window is the time it takes to collect the target batch size, capped at the
+ * maximum window. At most a fixed number of batches are upstream at a time;
+ * while they are, new hashes keep collecting into the next batch.
+ */
+public class StampBatcher {
+    // Weight of the newest inter-arrival time in the average
+    private static final double INTERVAL_WEIGHT = 0.05;
+
+    private final URL stamperUrl;
+    private final long timeout;
+    private final long maxWindow;
+    private final int maxBatch;
+    private final int targetBatch;
+    private final int maxInFlight;
+    // Waits for the upstream responses
+    private final ExecutorService receivers;
+
+    // Hashes waiting for the current batch to be sent
+    private List<Ticket> batch = new ArrayList<Ticket>();
+    // When the current batch is due, in System.nanoTime() units
+    private long deadline;
+    // Number of batches upstream
+    private int inFlight;
+    // Average time between arrivals, in nanoseconds
+    private double interval;
+    private long lastArrival;
+    private boolean stopped;
+
+    // Statistics
+    private long batchCount;
+    private long hashCount;
+
+    /**
+     * Result of stamping a data hash.
+     */
+    public static class Ticket {
+        private final GTDataHash dataHash;
+        private final CountDownLatch done = new CountDownLatch(1);
+        private byte[] timestamp;
+        private byte[] chain;
+        // IOException if the service could not be reached, GTException if
+        // it answered with an error or an invalid response
+        private Exception error;
+
+        Ticket(GTDataHash dataHash) {
+            this.dataHash = dataHash;
+        }
+
+        /**
+         * Waits for the timestamp.
+         *
+         * @param timeout maximum time to wait, in milliseconds; this should
+         *            allow for the batch window on top of the upstream
+         *            timeout, see {@link StampBatcher#getMaxWait()}.
+         * @return the encoded timestamp; it is for the data hash itself if
+         *         {@link #getChain()} returns {@code null}, otherwise for the
+         *         root hash computed from the data hash and the chain.
+         * @throws SocketTimeoutException if stamping did not finish in time.
+         * @throws IOException if the stamping service could not be reached.
+         * @throws GTException if the stamping service returned an error or an
+         *             invalid response.
+         */
+        public byte[] getTimestamp(long timeout) throws IOException, GTException {
+            try {
+                if (!done.await(timeout, TimeUnit.MILLISECONDS)) {
+                    throw new SocketTimeoutException("Stamping timed out");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted");
+            }
+            if (error instanceof GTException) {
+                throw (GTException) error;
+            } else if (error != null) {
+                throw (IOException) error;
+            }
+            return timestamp;
+        }
+
+        /**
+         * Returns the hash chain from the data hash to the root hash that was
+         * stamped, or {@code null} if the data hash was stamped as is. Valid
+         * after {@link #getTimestamp(long)} has returned.
+         */
+        public byte[] getChain() {
+            return chain;
+        }
+
+        void complete(byte[] timestamp, byte[] chain) {
+            this.timestamp = timestamp;
+            this.chain = chain;
+            done.countDown();
+        }
+
+        void fail(Exception error) {
+            this.error = error;
+            done.countDown();
+        }
+    }
+
+    /**
+     * Creates a batcher and starts its thread.
+     *
+     * @param stamperUrl signing service URL.
+     * @param timeout upstream transaction timeout, in milliseconds.
+     * @param maxWindow maximum time a hash waits for its batch to be sent, in
+     *            milliseconds.
+     * @param maxBatch maximum number of hashes in a batch.
+     * @param targetBatch batch size that is worth waiting for under load.
+     * @param maxInFlight maximum number of batches upstream at a time.
+     */
+    public StampBatcher(URL stamperUrl, long timeout, long maxWindow, int maxBatch, int targetBatch, int maxInFlight) {
+        if (maxWindow < 0 || maxBatch < 1 || targetBatch < 1 || maxInFlight < 1) {
+            throw new IllegalArgumentException("invalid batch limits");
+        }
+        this.stamperUrl = stamperUrl;
+        this.timeout = timeout;
+        this.maxWindow = TimeUnit.MILLISECONDS.toNanos(maxWindow);
+        this.maxBatch = maxBatch;
+        this.targetBatch = Math.min(targetBatch, maxBatch);
+        this.maxInFlight = maxInFlight;
+        this.interval = Double.MAX_VALUE;
+        this.lastArrival = System.nanoTime();
+        this.receivers = Executors.newFixedThreadPool(maxInFlight, new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "StampBatcher-receiver");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        Thread t = new Thread(new Runnable() {
+            public void run() {
+                dispatch();
+            }
+        }, "StampBatcher");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Adds a data hash to the next batch.
+     *
+     * @param dataHash data hash to stamp.
+     * @return ticket to wait for the timestamp with.
+     */
+    public synchronized Ticket submit(GTDataHash dataHash) {
+        Ticket ticket = new Ticket(dataHash);
+        if (stopped) {
+            ticket.fail(new IOException("Batcher stopped"));
+            return ticket;
+        }
+        long now = System.nanoTime();
+        long last = Math.max(now - lastArrival, 1);
+        interval = (interval == Double.MAX_VALUE) ? last : (1 - INTERVAL_WEIGHT) * interval + INTERVAL_WEIGHT * last;
+        lastArrival = now;
+
+        batch.add(ticket);
+        if (batch.size() == 1) {
+            deadline = now + getWindow();
+            notifyAll();
+        } else if (batch.size() >= maxBatch) {
+            notifyAll();
+        }
+        return ticket;
+    }
+
+    /**
+     * Returns the current batch window, in nanoseconds.
+     */
+    public synchronized long getWindow() {
+        if (maxWindow < 2 * interval) {
+            return 0;
+        }
+        return Math.min(maxWindow, (long) (targetBatch * interval));
+    }
+
+    /**
+     * Returns how long a ticket may have to wait for its timestamp: the
+     * maximum batch window plus the upstream timeout.
+     *
+     * @return maximum wait, in milliseconds.
+     */
+    public long getMaxWait() {
+        return TimeUnit.NANOSECONDS.toMillis(maxWindow) + timeout;
+    }
+
+    /**
+     * Returns the number of batches sent.
+     */
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * Returns the number of hashes sent in batches.
+     */
+    public synchronized long getHashCount() {
+        return hashCount;
+    }
+
+    /**
+     * Stops the batcher. Hashes not yet sent fail.
+     */
+    public synchronized void stop() {
+        stopped = true;
+        for (Ticket ticket : batch) {
+            ticket.fail(new IOException("Batcher stopped"));
+        }
+        batch = new ArrayList<Ticket>();
+        receivers.shutdown();
+        notifyAll();
+    }
+
+    /**
+     * Sends the batches as they become due.
+     */
+    private void dispatch() {
+        while (true) {
+            List<Ticket> due;
+            synchronized (this) {
+                while (true) {
+                    if (stopped) {
+                        return;
+                    }
+                    long wait = 0;
+                    if (!batch.isEmpty() && inFlight < maxInFlight) {
+                        wait = deadline - System.nanoTime();
+                        if (wait <= 0 || batch.size() >= maxBatch) {
+                            break;
+                        }
+                    }
+                    try {
+                        if (wait > 0) {
+                            TimeUnit.NANOSECONDS.timedWait(this, wait);
+                        } else {
+                            wait();
+                        }
+                    } catch (InterruptedException e) {
+                        // Nothing here
+                    }
+                }
+                if (batch.size() > maxBatch) {
+                    due = new ArrayList<Ticket>(batch.subList(0, maxBatch));
+                    batch = new ArrayList<Ticket>(batch.subList(maxBatch, batch.size()));
+                    deadline = System.nanoTime();
+                } else {
+                    due = batch;
+                    batch = new ArrayList<Ticket>();
+                }
+                ++inFlight;
+                ++batchCount;
+                hashCount += due.size();
+            }
+            send(due);
+        }
+    }
+
+    /**
+     * Stamps the given batch and hands out the results.
+     */
+    private void send(final List<Ticket> due) {
+        final GTHashTree tree;
+        final ResponseHandler handler;
+        try {
+            GTDataHash[] dataHashes = new GTDataHash[due.size()];
+            for (int i = 0; i < dataHashes.length; ++i) {
+                dataHashes[i] = due.get(i).dataHash;
+            }
+            tree = (dataHashes.length > 1) ? new GTHashTree(GTHashAlgorithm.DEFAULT, dataHashes) : null;
+            GTDataHash stamped = (tree == null) ? dataHashes[0] : tree.getRootHash();
+            handler = HttpStamper.getInstance().addTimestampRequest(stamped, stamperUrl, timeout);
+        } catch (IOException e) {
+            finish(due, null, null, e);
+            return;
+        } catch (RuntimeException e) {
+            // Must not kill the dispatcher thread
+            finish(due, null, null, new IOException("Stamping failed: " + e, e));
+            return;
+        }
+
+        // Wait for the response off the dispatcher thread, so that the next
+        // batches can go out in the meantime
+        try {
+            receivers.execute(new Runnable() {
+                public void run() {
+                    try {
+                        GTTimestampResponse response = HttpStamper.receiveTimestampResponse(handler, 0);
+                        int statusCode = response.getStatusCode();
+                        if (statusCode != 0 && statusCode != 1) {
+                            throw new GTException("service returned error " + response.getFailCode() + ": "
+                                    + response.getFailMessage());
+                        }
+                        finish(due, tree, response.getTimestamp().getEncoded(), null);
+                    } catch (GTException e) {
+                        finish(due, null, null, e);
+                    } catch (IOException e) {
+                        finish(due, null, null, e);
+                    } catch (RuntimeException e) {
+                        // A malformed response, most likely
+                        finish(due, null, null, new GTException("invalid response: " + e, e));
+                    }
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            finish(due, null, null, new IOException("Batcher stopped"));
+        }
+    }
+
+    private void finish(List<Ticket> due, GTHashTree tree, byte[] timestamp, Exception error) {
+        synchronized (this) {
+            --inFlight;
+            notifyAll();
+        }
+        for (int i = 0; i < due.size(); ++i) {
+            if (error != null) {
+                due.get(i).fail(error);
+            } else {
+                due.get(i).complete(timestamp, tree == null ? null : tree.getChain(i));
+            }
+        }
+    }
+}
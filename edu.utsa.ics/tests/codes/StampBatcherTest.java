@@ -0,0 +1,158 @@
+package tests.codes;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+
+import junit.framework.TestCase;
+
+import tests.transport.LocalGateway;
+
+import codes.StampBatcher;
+
+import com.guardtime.transport.SimpleHttpStamper;
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.GTHashTree;
+import com.guardtime.tsp.GTPublicationsFile;
+import com.guardtime.tsp.GTTimestamp;
+
+/**
+ * {@link StampBatcher} tests, against a {@link LocalGateway}.
+ */
+public class StampBatcherTest extends TestCase {
+    private static final long TIMEOUT = 10000;
+
+    private LocalGateway gateway;
+    private File trustStore;
+    private StampBatcher batcher;
+
+    protected void setUp() throws Exception {
+        gateway = new LocalGateway();
+        gateway.setRoundTime(50);
+        trustStore = File.createTempFile("gateway", ".jks");
+        gateway.writeTrustStore(trustStore);
+    }
+
+    protected void tearDown() throws IOException {
+        if (batcher != null) {
+            batcher.stop();
+        }
+        gateway.close();
+        trustStore.delete();
+    }
+
+    /**
+     * Tests that hashes arriving while a batch is upstream are sent together
+     * in the next batch.
+     */
+    public void testBatching() throws Exception {
+        batcher = new StampBatcher(gateway.getSigningUrl(), TIMEOUT, 100, 100, 8, 1);
+        GTDataHash[] hashes = getHashes(20);
+        StampBatcher.Ticket[] tickets = new StampBatcher.Ticket[hashes.length];
+        for (int i = 0; i < hashes.length; ++i) {
+            tickets[i] = batcher.submit(hashes[i]);
+        }
+        int chained = 0;
+        for (int i = 0; i < tickets.length; ++i) {
+            assertNotNull(tickets[i].getTimestamp(batcher.getMaxWait()));
+            if (tickets[i].getChain() != null) {
+                ++chained;
+            }
+        }
+        assertEquals(hashes.length, batcher.getHashCount());
+        assertTrue(batcher.getBatchCount() < hashes.length);
+        assertTrue(chained > 1);
+        assertEquals(batcher.getBatchCount(), gateway.getSignedCount());
+    }
+
+    /**
+     * Tests that every hash verifies against its timestamp through its hash
+     * chain, and only its own hash does.
+     */
+    public void testChains() throws Exception {
+        batcher = new StampBatcher(gateway.getSigningUrl(), TIMEOUT, 100, 100, 8, 1);
+        GTDataHash[] hashes = getHashes(12);
+        StampBatcher.Ticket[] tickets = new StampBatcher.Ticket[hashes.length];
+        for (int i = 0; i < hashes.length; ++i) {
+            tickets[i] = batcher.submit(hashes[i]);
+        }
+
+        GTPublicationsFile publicationsFile = null;
+        for (int i = 0; i < tickets.length; ++i) {
+            GTTimestamp timestamp = GTTimestamp.getInstance(tickets[i].getTimestamp(batcher.getMaxWait()));
+            if (publicationsFile == null) {
+                publicationsFile = SimpleHttpStamper.getPublicationsFile(gateway.getPublicationsUrl());
+                assertTrue(publicationsFile.verifySignature(trustStore.getPath()).isValid());
+            }
+            byte[] chain = tickets[i].getChain();
+            assertTrue(timestamp.verify(getRootHash(hashes[i], chain), publicationsFile).isValid());
+            GTDataHash other = hashes[(i + 1) % hashes.length];
+            assertFalse(timestamp.verify(getRootHash(other, chain), publicationsFile).isValid());
+        }
+    }
+
+    /**
+     * Tests that service errors and transport errors reach the tickets as
+     * different exceptions, and that the batcher keeps working after them.
+     */
+    public void testErrors() throws Exception {
+        batcher = new StampBatcher(gateway.getSigningUrl(), TIMEOUT, 100, 100, 8, 1);
+        gateway.setErrorRate(1);
+        try {
+            batcher.submit(getHashes(1)[0]).getTimestamp(batcher.getMaxWait());
+            fail("service error not reported");
+        } catch (GTException e) {
+            // No timestamp response in the body
+        }
+
+        gateway.setErrorRate(0);
+        gateway.setDropRate(1);
+        try {
+            batcher.submit(getHashes(1)[0]).getTimestamp(batcher.getMaxWait());
+            fail("dropped request not reported");
+        } catch (IOException e) {
+            // Expected
+        }
+
+        gateway.setDropRate(0);
+        assertNotNull(batcher.submit(getHashes(1)[0]).getTimestamp(batcher.getMaxWait()));
+    }
+
+    /**
+     * Tests that a batch that can not even be sent fails its tickets without
+     * stopping the batcher.
+     */
+    public void testSendFailure() throws Exception {
+        batcher = new StampBatcher(gateway.getSigningUrl(), TIMEOUT, 0, 100, 8, 1);
+        GTDataHash broken = new GTDataHash(GTHashAlgorithm.DEFAULT) {
+            public byte[] getHashedMessage() {
+                throw new IllegalStateException("broken hash");
+            }
+        }.close();
+        try {
+            batcher.submit(broken).getTimestamp(batcher.getMaxWait());
+            fail("broken hash accepted");
+        } catch (IOException e) {
+            assertFalse(e instanceof SocketTimeoutException);
+        }
+        assertNotNull(batcher.submit(getHashes(1)[0]).getTimestamp(batcher.getMaxWait()));
+        assertEquals(2, batcher.getBatchCount());
+    }
+
+    private static GTDataHash[] getHashes(int n) {
+        GTDataHash[] hashes = new GTDataHash[n];
+        for (int i = 0; i < n; ++i) {
+            hashes[i] = new GTDataHash(GTHashAlgorithm.DEFAULT).update(("hash " + i + " " + System.nanoTime()).getBytes()).close();
+        }
+        return hashes;
+    }
+
+    private static GTDataHash getRootHash(GTDataHash dataHash, byte[] chain) {
+        if (chain == null) {
+            return dataHash;
+        }
+        return GTHashTree.getRootHash(dataHash, chain, GTHashAlgorithm.DEFAULT);
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.util.Base32;
+
+
+
+/**
+ * Benchmarks of {@link Base32}, on the publication of the extended sample
+ * timestamp {@code data.txt.gtts2}.
+ */
+public class Base32Benchmarks {
+	/**
+	 * Returns the encoding and decoding benchmarks.
+	 *
+	 * @param dataDir directory of the sample timestamps.
+	 */
+	public static List getBenchmarks(File dataDir)
+	throws IOException {
+		String publication;
+		try {
+			GTTimestamp timestamp = GTTimestamp.getInstance(BenchmarkRunner.readFile(new File(dataDir, "data.txt.gtts2")));
+			publication = timestamp.getProperty(GTTimestamp.PUBLICATION);
+		} catch (GTException e) {
+			throw new IOException("invalid sample timestamp: " + e.getMessage());
+		}
+		final byte[] bytes = Base32.decode(publication);
+		final String encoded = publication;
+
+		List res = new ArrayList();
+		res.add(new Benchmark("Base32.encode") {
+			public Object run() {
+				return Base32.encode(bytes);
+			}
+		});
+		res.add(new Benchmark("Base32.encodeWithDashes") {
+			public Object run() {
+				return Base32.encodeWithDashes(bytes);
+			}
+		});
+		res.add(new Benchmark("Base32.decode") {
+			public Object run() {
+				return Base32.decode(encoded);
+			}
+		});
+		return res;
+	}
+}
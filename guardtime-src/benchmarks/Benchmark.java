@@ -0,0 +1,112 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+
+
+/**
+ * A benchmarked operation.
+ * <p>
+ * The runner calls {@link #setUp()} once and then {@link #run()} over and over
+ * again, in timed iterations. Everything that is not part of the measured
+ * operation, such as reading sample files, belongs in {@code setUp()}.
+ *
+ * @see BenchmarkRunner
+ */
+public abstract class Benchmark {
+	private final String name;
+	private final Map params;
+
+
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param name the benchmark name; benchmarks differing only in their
+	 * 			parameters share the name.
+	 */
+	protected Benchmark(String name) {
+		this.name = name;
+		this.params = new LinkedHashMap();
+	}
+
+	/**
+	 * Returns the benchmark name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the benchmark parameters, in the order they were added.
+	 */
+	public Map getParams() {
+		return params;
+	}
+
+	/**
+	 * Adds a parameter to the benchmark description.
+	 *
+	 * @param key parameter name.
+	 * @param value parameter value.
+	 *
+	 * @return this benchmark.
+	 */
+	public Benchmark param(String key, Object value) {
+		params.put(key, String.valueOf(value));
+		return this;
+	}
+
+	/**
+	 * Returns the benchmark name with its parameters, as used in reports and
+	 * when matching results with a baseline.
+	 */
+	public String getId() {
+		return getId(name, params);
+	}
+
+	/**
+	 * Returns the benchmark name with the given parameters.
+	 */
+	static String getId(String name, Map params) {
+		return (params.isEmpty() ? name : name + params);
+	}
+
+	/**
+	 * Prepares the benchmark state. Called once before the iterations.
+	 */
+	public void setUp()
+	throws Exception {
+	}
+
+	/**
+	 * Performs the measured operation once.
+	 *
+	 * @return the result of the operation; the runner consumes it so that
+	 * 			the computation can not be optimized away.
+	 */
+	public abstract Object run()
+	throws Exception;
+}
@@ -0,0 +1,462 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.guardtime.tsp.TspBenchmarks;
+import com.guardtime.util.Util;
+
+
+
+/**
+ * Runs the SDK benchmarks.
+ * <p>
+ * Each benchmark is run in a single thread: first for a number of warmup
+ * iterations whose results are discarded, then for a number of measured
+ * iterations. Every iteration runs the operation for a fixed time and reports
+ * the throughput in operations per second and the memory allocated by the
+ * benchmark thread per operation. The score is the mean over the measured
+ * iterations, with the half-width of its 99.9% confidence interval as the
+ * error.
+ * <p>
+ * Results can be written as JSON in the format of JMH result files, so the
+ * usual JMH result viewers can read them. A result file kept from an earlier
+ * run can be given as the baseline; the runner then reports the change of
+ * every benchmark and exits with status {@code 1} if any of them got slower,
+ * or started to allocate more, by more than the threshold.
+ * <pre>
+ * java benchmarks.BenchmarkRunner [options] [filter]
+ *
+ *   -wi n       warmup iterations (default 5)
+ *   -i n        measured iterations (default 10)
+ *   -r ms       iteration time (default 1000)
+ *   -d dir      sample data directory (default examples/utilities)
+ *   -o file     write results to file
+ *   -b file     compare results with baseline file
+ *   -t percent  regression threshold (default 10)
+ *   filter      run only benchmarks whose name contains filter
+ * </pre>
+ */
+public class BenchmarkRunner {
+	private static final String THROUGHPUT_UNIT = "ops/s";
+	private static final String ALLOCATION_UNIT = "B/op";
+	private static final String ALLOCATION_METRIC = "gc.alloc.rate.norm";
+
+	// Student's t quantiles for the two-sided 99.9% interval, by degrees of freedom
+	private static final double[] T_QUANTILES = {
+		636.619, 31.599, 12.924, 8.610, 6.869, 5.959, 5.408, 5.041, 4.781, 4.587,
+		4.437, 4.318, 4.221, 4.140, 4.073, 4.015, 3.965, 3.922, 3.883, 3.850,
+		3.819, 3.792, 3.768, 3.745, 3.725, 3.707, 3.690, 3.674, 3.659, 3.646,
+	};
+	private static final double Z_QUANTILE = 3.291;
+
+	private int warmupIterations;
+	private int iterations;
+	private long iterationTime;
+	private final ThreadMXBean threads;
+
+	// Results of the measured operations are stored here so that the
+	// compiler can not drop them as dead code
+	private Object sink;
+	private volatile Object publishedSink;
+
+
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param warmupIterations number of warmup iterations.
+	 * @param iterations number of measured iterations.
+	 * @param iterationTime iteration time, in milliseconds.
+	 */
+	public BenchmarkRunner(int warmupIterations, int iterations, long iterationTime) {
+		if (warmupIterations < 0 || iterations < 2 || iterationTime <= 0) {
+			throw new IllegalArgumentException("invalid iteration settings");
+		}
+		this.warmupIterations = warmupIterations;
+		this.iterations = iterations;
+		this.iterationTime = iterationTime;
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean
+				&& ((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			((com.sun.management.ThreadMXBean) bean).setThreadAllocatedMemoryEnabled(true);
+			threads = bean;
+		} else {
+			threads = null;
+		}
+	}
+
+	/**
+	 * Returns all the SDK benchmarks.
+	 *
+	 * @param dataDir directory of the sample files.
+	 */
+	public static List getBenchmarks(File dataDir)
+	throws IOException {
+		List res = new ArrayList();
+		res.addAll(DataHashBenchmarks.getBenchmarks());
+		res.addAll(TspBenchmarks.getBenchmarks(dataDir));
+		res.addAll(TimestampBenchmarks.getBenchmarks(dataDir));
+		res.addAll(PublicationsFileBenchmarks.getBenchmarks(dataDir));
+		res.addAll(Base32Benchmarks.getBenchmarks(dataDir));
+		return res;
+	}
+
+	/**
+	 * Reads the given file.
+	 */
+	public static byte[] readFile(File file)
+	throws IOException {
+		InputStream in = new FileInputStream(file);
+		try {
+			return Util.readAll(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	public static void main(String[] args)
+	throws Exception {
+		int warmupIterations = 5;
+		int iterations = 10;
+		long iterationTime = 1000;
+		File dataDir = new File("examples/utilities");
+		File output = null;
+		File baseline = null;
+		double threshold = 10;
+		String filter = "";
+		for (int i = 0; i < args.length; ++i) {
+			String arg = args[i];
+			if (arg.startsWith("-") && i + 1 >= args.length) {
+				usage();
+				return;
+			}
+			if (arg.equals("-wi")) {
+				warmupIterations = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-i")) {
+				iterations = Integer.parseInt(args[++i]);
+			} else if (arg.equals("-r")) {
+				iterationTime = Long.parseLong(args[++i]);
+			} else if (arg.equals("-d")) {
+				dataDir = new File(args[++i]);
+			} else if (arg.equals("-o")) {
+				output = new File(args[++i]);
+			} else if (arg.equals("-b")) {
+				baseline = new File(args[++i]);
+			} else if (arg.equals("-t")) {
+				threshold = Double.parseDouble(args[++i]);
+			} else if (arg.startsWith("-")) {
+				usage();
+				return;
+			} else {
+				filter = arg;
+			}
+		}
+
+		BenchmarkRunner runner = new BenchmarkRunner(warmupIterations, iterations, iterationTime);
+		List results = new ArrayList();
+		for (Iterator i = getBenchmarks(dataDir).iterator(); i.hasNext(); ) {
+			Benchmark benchmark = (Benchmark) i.next();
+			if (benchmark.getId().indexOf(filter) < 0) {
+				continue;
+			}
+			Map result = runner.run(benchmark);
+			results.add(result);
+			System.out.println(format(result));
+		}
+
+		if (output != null) {
+			StringBuffer sb = new StringBuffer();
+			Json.write(sb, results, 0);
+			sb.append('\n');
+			OutputStream out = new FileOutputStream(output);
+			try {
+				out.write(sb.toString().getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		}
+
+		if (baseline != null) {
+			List base = (List) Json.parse(new String(readFile(baseline), "UTF-8"));
+			if (compare(results, base, threshold / 100) > 0) {
+				System.exit(1);
+			}
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java benchmarks.BenchmarkRunner [-wi n] [-i n] [-r ms] [-d dir] [-o file] [-b file] [-t percent] [filter]");
+	}
+
+
+
+	/**
+	 * Runs the given benchmark.
+	 *
+	 * @return the result, in the JMH result file structure.
+	 */
+	public Map run(Benchmark benchmark)
+	throws Exception {
+		benchmark.setUp();
+
+		// Run the operation in batches that take about a millisecond, so that
+		// reading the clock does not add to the measured time
+		int batch = 1;
+		while (batch < (1 << 20)) {
+			long start = System.nanoTime();
+			runBatch(benchmark, batch);
+			if (System.nanoTime() - start >= 1000000) {
+				break;
+			}
+			batch *= 2;
+		}
+
+		for (int i = 0; i < warmupIterations; ++i) {
+			runIteration(benchmark, batch);
+		}
+		double[] throughput = new double[iterations];
+		double[] allocation = new double[iterations];
+		for (int i = 0; i < iterations; ++i) {
+			double[] res = runIteration(benchmark, batch);
+			throughput[i] = res[0];
+			allocation[i] = res[1];
+		}
+
+		Map result = new LinkedHashMap();
+		result.put("benchmark", benchmark.getName());
+		result.put("mode", "thrpt");
+		result.put("threads", new Integer(1));
+		result.put("forks", new Integer(1));
+		result.put("jdkVersion", System.getProperty("java.version"));
+		result.put("vmName", System.getProperty("java.vm.name"));
+		result.put("warmupIterations", new Integer(warmupIterations));
+		result.put("warmupTime", iterationTime + " ms");
+		result.put("measurementIterations", new Integer(iterations));
+		result.put("measurementTime", iterationTime + " ms");
+		if (!benchmark.getParams().isEmpty()) {
+			result.put("params", benchmark.getParams());
+		}
+		result.put("primaryMetric", getMetric(throughput, THROUGHPUT_UNIT));
+		Map secondary = new LinkedHashMap();
+		if (threads != null) {
+			secondary.put(ALLOCATION_METRIC, getMetric(allocation, ALLOCATION_UNIT));
+		}
+		result.put("secondaryMetrics", secondary);
+		return result;
+	}
+
+	private void runBatch(Benchmark benchmark, int batch)
+	throws Exception {
+		for (int i = 0; i < batch; ++i) {
+			sink = benchmark.run();
+		}
+		publishedSink = sink;
+	}
+
+	/**
+	 * Runs one iteration.
+	 *
+	 * @return throughput in operations per second, and bytes allocated per
+	 * 			operation.
+	 */
+	private double[] runIteration(Benchmark benchmark, int batch)
+	throws Exception {
+		long thread = Thread.currentThread().getId();
+		long allocated = getAllocatedBytes(thread);
+		long start = System.nanoTime();
+		long end = start + iterationTime * 1000000;
+		long ops = 0;
+		long now;
+		do {
+			runBatch(benchmark, batch);
+			ops += batch;
+			now = System.nanoTime();
+		} while (now < end);
+		allocated = getAllocatedBytes(thread) - allocated;
+		return new double[] { ops * 1e9 / (now - start), (double) allocated / ops };
+	}
+
+	private long getAllocatedBytes(long thread) {
+		if (threads == null) {
+			return 0;
+		}
+		return ((com.sun.management.ThreadMXBean) threads).getThreadAllocatedBytes(thread);
+	}
+
+	/**
+	 * Returns the score, error and raw data of the given samples.
+	 */
+	private static Map getMetric(double[] samples, String unit) {
+		int n = samples.length;
+		double mean = 0;
+		for (int i = 0; i < n; ++i) {
+			mean += samples[i];
+		}
+		mean /= n;
+		double variance = 0;
+		for (int i = 0; i < n; ++i) {
+			variance += (samples[i] - mean) * (samples[i] - mean);
+		}
+		variance /= (n - 1);
+		double t = (n - 1 <= T_QUANTILES.length ? T_QUANTILES[n - 2] : Z_QUANTILE);
+		double error = t * Math.sqrt(variance / n);
+
+		List raw = new ArrayList();
+		for (int i = 0; i < n; ++i) {
+			raw.add(new Double(samples[i]));
+		}
+		List confidence = new ArrayList();
+		confidence.add(new Double(mean - error));
+		confidence.add(new Double(mean + error));
+		List rawData = new ArrayList();
+		rawData.add(raw);
+
+		Map metric = new LinkedHashMap();
+		metric.put("score", new Double(mean));
+		metric.put("scoreError", new Double(error));
+		metric.put("scoreConfidence", confidence);
+		metric.put("scoreUnit", unit);
+		metric.put("rawData", rawData);
+		return metric;
+	}
+
+
+
+	/**
+	 * Formats a result as a report line.
+	 */
+	private static String format(Map result) {
+		Map primary = (Map) result.get("primaryMetric");
+		Map allocation = (Map) ((Map) result.get("secondaryMetrics")).get(ALLOCATION_METRIC);
+		StringBuffer sb = new StringBuffer();
+		sb.append(pad(getId(result), 60));
+		sb.append(pad(format(getDouble(primary, "score")), 14, true));
+		sb.append(" +- ").append(pad(format(getDouble(primary, "scoreError")), 10, false));
+		sb.append(' ').append(THROUGHPUT_UNIT);
+		if (allocation != null) {
+			sb.append(pad(format(getDouble(allocation, "score")), 12, true));
+			sb.append(' ').append(ALLOCATION_UNIT);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Compares the results with the baseline and reports the changes.
+	 *
+	 * @return the number of regressions.
+	 */
+	private static int compare(List results, List baseline, double threshold) {
+		Map base = new HashMap();
+		for (Iterator i = baseline.iterator(); i.hasNext(); ) {
+			Map result = (Map) i.next();
+			base.put(getId(result), result);
+		}
+
+		System.out.println();
+		System.out.println("Change against baseline:");
+		int regressions = 0;
+		for (Iterator i = results.iterator(); i.hasNext(); ) {
+			Map result = (Map) i.next();
+			String id = getId(result);
+			Map old = (Map) base.get(id);
+			if (old == null) {
+				System.out.println(pad(id, 60) + "  (not in baseline)");
+				continue;
+			}
+
+			// Slower by more than the threshold, beyond the error margins
+			Map primary = (Map) result.get("primaryMetric");
+			Map oldPrimary = (Map) old.get("primaryMetric");
+			double score = getDouble(primary, "score");
+			double oldScore = getDouble(oldPrimary, "score");
+			double error = getDouble(primary, "scoreError") + getDouble(oldPrimary, "scoreError");
+			double change = (score - oldScore) / oldScore;
+			boolean slower = (change < -threshold && score + error < oldScore);
+
+			// Allocating more by more than the threshold and a few bytes
+			boolean fatter = false;
+			Map allocation = (Map) ((Map) result.get("secondaryMetrics")).get(ALLOCATION_METRIC);
+			Map oldAllocation = (Map) ((Map) old.get("secondaryMetrics")).get(ALLOCATION_METRIC);
+			String allocationChange = "";
+			if (allocation != null && oldAllocation != null) {
+				double bytes = getDouble(allocation, "score");
+				double oldBytes = getDouble(oldAllocation, "score");
+				fatter = (bytes > oldBytes * (1 + threshold) + 16);
+				allocationChange = "  " + format(oldBytes) + " -> " + format(bytes) + " " + ALLOCATION_UNIT;
+			}
+
+			StringBuffer sb = new StringBuffer();
+			sb.append(pad(id, 60));
+			sb.append(pad((change >= 0 ? "+" : "") + format(change * 100) + "%", 10, true));
+			sb.append(allocationChange);
+			if (slower || fatter) {
+				sb.append("  REGRESSION");
+				++regressions;
+			}
+			System.out.println(sb);
+		}
+		return regressions;
+	}
+
+	private static String getId(Map result) {
+		Map params = (Map) result.get("params");
+		return Benchmark.getId((String) result.get("benchmark"), (params == null ? new HashMap() : params));
+	}
+
+	private static double getDouble(Map map, String key) {
+		return ((Number) map.get(key)).doubleValue();
+	}
+
+	private static String format(double value) {
+		if (Math.abs(value) >= 100) {
+			return String.valueOf(Math.round(value));
+		}
+		return String.valueOf(Math.round(value * 100) / 100.0);
+	}
+
+	private static String pad(String s, int width) {
+		return pad(s, width, false);
+	}
+
+	private static String pad(String s, int width, boolean left) {
+		StringBuffer sb = new StringBuffer();
+		for (int i = s.length(); i < width; ++i) {
+			sb.append(' ');
+		}
+		return (left ? sb + s : s + sb);
+	}
+}
@@ -0,0 +1,85 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTHashAlgorithm;
+
+
+
+/**
+ * Benchmarks of {@link GTDataHash}.
+ */
+public class DataHashBenchmarks {
+	private static final GTHashAlgorithm[] ALGORITHMS = {
+		GTHashAlgorithm.SHA1,
+		GTHashAlgorithm.SHA256,
+		GTHashAlgorithm.SHA512,
+		GTHashAlgorithm.RIPEMD160,
+	};
+
+	private static final int[] SIZES = { 64, 1024, 65536 };
+
+
+
+	/**
+	 * Returns the benchmarks of hashing a buffer in one update, for each
+	 * algorithm and buffer size.
+	 */
+	public static List getBenchmarks() {
+		List res = new ArrayList();
+		for (int i = 0; i < ALGORITHMS.length; ++i) {
+			for (int j = 0; j < SIZES.length; ++j) {
+				res.add(new Update(ALGORITHMS[i], SIZES[j]));
+			}
+		}
+		return res;
+	}
+
+
+
+	/**
+	 * Hashes a buffer: new hash object, one update, and close.
+	 */
+	private static class Update
+	extends Benchmark {
+		private final GTHashAlgorithm algorithm;
+		private final byte[] data;
+
+		Update(GTHashAlgorithm algorithm, int size) {
+			super("GTDataHash.update");
+			param("algorithm", algorithm.getName());
+			param("size", new Integer(size));
+			this.algorithm = algorithm;
+			this.data = new byte[size];
+			new Random(size).nextBytes(data);
+		}
+
+		public Object run() {
+			return new GTDataHash(algorithm).update(data).close();
+		}
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+
+
+/**
+ * Minimal JSON writer and reader for benchmark results.
+ * <p>
+ * Objects are represented as {@code Map}s, arrays as {@code List}s, numbers
+ * as {@code Double}s, and strings, booleans and {@code null} as themselves.
+ */
+class Json {
+	private final String text;
+	private int pos;
+
+
+
+	private Json(String text) {
+		this.text = text;
+		this.pos = 0;
+	}
+
+	/**
+	 * Parses the given JSON text.
+	 *
+	 * @throws IllegalArgumentException if the text is not valid JSON.
+	 */
+	static Object parse(String text) {
+		Json json = new Json(text);
+		Object res = json.readValue();
+		json.skipSpace();
+		if (json.pos != text.length()) {
+			throw json.error();
+		}
+		return res;
+	}
+
+	/**
+	 * Appends the JSON form of the given value, indented by the given depth.
+	 */
+	static void write(StringBuffer sb, Object value, int depth) {
+		if (value == null) {
+			sb.append("null");
+		} else if (value instanceof Map) {
+			Map map = (Map) value;
+			sb.append('{');
+			for (Iterator i = map.entrySet().iterator(); i.hasNext(); ) {
+				Map.Entry entry = (Map.Entry) i.next();
+				newLine(sb, depth + 1);
+				writeString(sb, entry.getKey().toString());
+				sb.append(": ");
+				write(sb, entry.getValue(), depth + 1);
+				if (i.hasNext()) {
+					sb.append(',');
+				}
+			}
+			if (!map.isEmpty()) {
+				newLine(sb, depth);
+			}
+			sb.append('}');
+		} else if (value instanceof List) {
+			List list = (List) value;
+			sb.append('[');
+			for (int i = 0; i < list.size(); ++i) {
+				newLine(sb, depth + 1);
+				write(sb, list.get(i), depth + 1);
+				if (i + 1 < list.size()) {
+					sb.append(',');
+				}
+			}
+			if (!list.isEmpty()) {
+				newLine(sb, depth);
+			}
+			sb.append(']');
+		} else if (value instanceof Number || value instanceof Boolean) {
+			sb.append(value);
+		} else {
+			writeString(sb, value.toString());
+		}
+	}
+
+	private static void newLine(StringBuffer sb, int depth) {
+		sb.append('\n');
+		for (int i = 0; i < depth; ++i) {
+			sb.append("    ");
+		}
+	}
+
+	private static void writeString(StringBuffer sb, String s) {
+		sb.append('"');
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '"' || c == '\\') {
+				sb.append('\\').append(c);
+			} else if (c < 0x20) {
+				String hex = Integer.toHexString(c);
+				sb.append("\\u0000".substring(0, 6 - hex.length())).append(hex);
+			} else {
+				sb.append(c);
+			}
+		}
+		sb.append('"');
+	}
+
+
+
+	private Object readValue() {
+		skipSpace();
+		if (pos >= text.length()) {
+			throw error();
+		}
+		char c = text.charAt(pos);
+		if (c == '{') {
+			Map map = new LinkedHashMap();
+			++pos;
+			if (!consume('}')) {
+				do {
+					skipSpace();
+					String key = readString();
+					skipSpace();
+					expect(':');
+					map.put(key, readValue());
+					skipSpace();
+				} while (consume(','));
+				expect('}');
+			}
+			return map;
+		} else if (c == '[') {
+			List list = new ArrayList();
+			++pos;
+			if (!consume(']')) {
+				do {
+					list.add(readValue());
+					skipSpace();
+				} while (consume(','));
+				expect(']');
+			}
+			return list;
+		} else if (c == '"') {
+			return readString();
+		} else if (text.startsWith("true", pos)) {
+			pos += 4;
+			return Boolean.TRUE;
+		} else if (text.startsWith("false", pos)) {
+			pos += 5;
+			return Boolean.FALSE;
+		} else if (text.startsWith("null", pos)) {
+			pos += 4;
+			return null;
+		}
+
+		int start = pos;
+		while (pos < text.length() && "+-.0123456789eE".indexOf(text.charAt(pos)) >= 0) {
+			++pos;
+		}
+		try {
+			return Double.valueOf(text.substring(start, pos));
+		} catch (NumberFormatException e) {
+			pos = start;
+			throw error();
+		}
+	}
+
+	private String readString() {
+		expect('"');
+		StringBuffer sb = new StringBuffer();
+		while (true) {
+			if (pos >= text.length()) {
+				throw error();
+			}
+			char c = text.charAt(pos++);
+			if (c == '"') {
+				return sb.toString();
+			} else if (c != '\\') {
+				sb.append(c);
+				continue;
+			}
+			if (pos >= text.length()) {
+				throw error();
+			}
+			c = text.charAt(pos++);
+			switch (c) {
+			case 'b': sb.append('\b'); break;
+			case 'f': sb.append('\f'); break;
+			case 'n': sb.append('\n'); break;
+			case 'r': sb.append('\r'); break;
+			case 't': sb.append('\t'); break;
+			case 'u':
+				if (pos + 4 > text.length()) {
+					throw error();
+				}
+				sb.append((char) Integer.parseInt(text.substring(pos, pos + 4), 16));
+				pos += 4;
+				break;
+			default:
+				sb.append(c);
+			}
+		}
+	}
+
+	private void skipSpace() {
+		while (pos < text.length() && Character.isWhitespace(text.charAt(pos))) {
+			++pos;
+		}
+	}
+
+	private boolean consume(char c) {
+		skipSpace();
+		if (pos < text.length() && text.charAt(pos) == c) {
+			++pos;
+			return true;
+		}
+		return false;
+	}
+
+	private void expect(char c) {
+		if (!consume(c)) {
+			throw error();
+		}
+	}
+
+	private IllegalArgumentException error() {
+		return new IllegalArgumentException("invalid JSON at position " + pos);
+	}
+}
@@ -0,0 +1,174 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+
+
+/**
+ * Latency histogram with a fixed relative precision, in the manner of
+ * HdrHistogram.
+ * <p>
+ * Values are recorded in microseconds. Values below 2048 get a bucket each;
+ * above that, every power of two range is split into 1024 buckets, so a value
+ * read back from the histogram is within 0.1% of the recorded one. Recording
+ * takes constant time and does not lock, so the histogram can be shared by
+ * the threads generating the load.
+ */
+class LatencyHistogram {
+	private static final int SUB_BUCKET_BITS = 11;
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+	private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+	// Largest trackable value is about 12 days
+	private static final int MAX_BITS = 40;
+	private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+
+	private final AtomicLongArray counts;
+	private final AtomicLong count;
+	private final AtomicLong total;
+	private final AtomicLong max;
+
+
+
+	/**
+	 * Default constructor.
+	 */
+	LatencyHistogram() {
+		counts = new AtomicLongArray(getIndex(MAX_VALUE) + 1);
+		count = new AtomicLong();
+		total = new AtomicLong();
+		max = new AtomicLong();
+	}
+
+	/**
+	 * Records the given value.
+	 *
+	 * @param value value, in microseconds; negative values are recorded as
+	 * 			{@code 0}.
+	 */
+	void record(long value) {
+		value = Math.min(Math.max(value, 0), MAX_VALUE);
+		counts.incrementAndGet(getIndex(value));
+		count.incrementAndGet();
+		total.addAndGet(value);
+		long m;
+		while (value > (m = max.get()) && !max.compareAndSet(m, value)) {
+			// Retry with the new maximum
+		}
+	}
+
+	/**
+	 * Returns the number of recorded values.
+	 */
+	long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * Returns the largest recorded value.
+	 */
+	long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * Returns the mean of the recorded values.
+	 */
+	double getMean() {
+		long n = count.get();
+		return (n == 0) ? 0 : (double) total.get() / n;
+	}
+
+	/**
+	 * Returns the value at the given percentile: the smallest value that is
+	 * not exceeded by the given share of the recorded values.
+	 *
+	 * @param percentile percentile, from {@code 0} to {@code 100}.
+	 */
+	long getValueAtPercentile(double percentile) {
+		long n = count.get();
+		if (n == 0) {
+			return 0;
+		}
+		long target = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+		long seen = 0;
+		for (int i = 0; i < counts.length(); ++i) {
+			seen += counts.get(i);
+			if (seen >= target) {
+				return Math.min(getHighestValue(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	/**
+	 * Returns the summary of the histogram for the results, with the values
+	 * in milliseconds.
+	 */
+	Map toMap() {
+		Map res = new LinkedHashMap();
+		res.put("count", new Long(getCount()));
+		res.put("mean", toMillis(getMean()));
+		res.put("p50", toMillis(getValueAtPercentile(50)));
+		res.put("p90", toMillis(getValueAtPercentile(90)));
+		res.put("p99", toMillis(getValueAtPercentile(99)));
+		res.put("p999", toMillis(getValueAtPercentile(99.9)));
+		res.put("max", toMillis(getMax()));
+		return res;
+	}
+
+
+
+	private static Double toMillis(double micros) {
+		return new Double(Math.round(micros) / 1000.0);
+	}
+
+	/**
+	 * Returns the index of the bucket of the given value.
+	 */
+	private static int getIndex(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		// Shift that brings the value to the upper half of the sub-buckets
+		int shift = (63 - Long.numberOfLeadingZeros(value)) - (SUB_BUCKET_BITS - 1);
+		return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) ((value >> shift) - HALF_SUB_BUCKETS);
+	}
+
+	/**
+	 * Returns the largest value that falls into the bucket with the given
+	 * index.
+	 */
+	private static long getHighestValue(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = (index - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+		long subBucket = (index - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+		return ((subBucket + 1) << shift) - 1;
+	}
+}
@@ -0,0 +1,615 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.StringTokenizer;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.guardtime.transport.HttpClient;
+import com.guardtime.transport.HttpStamper;
+import com.guardtime.transport.ResponseHandler;
+import com.guardtime.transport.SimpleHttpStamper;
+import com.guardtime.tsp.GTCertTokenResponse;
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.GTPublicationsFile;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.tsp.GTTimestampResponse;
+import com.guardtime.tsp.GTVerificationResult;
+
+
+
+/**
+ * Generates stamping, extension and verification load against a GuardTime
+ * gateway and reports throughput and latencies.
+ * <p>
+ * A number of worker threads send requests through {@link HttpStamper}, each
+ * waiting for the response to its request before sending the next one. The
+ * workers cycle through the selected operations:
+ * <ul>
+ * <li>{@code stamp} creates a timestamp for a random data hash;
+ * <li>{@code extend} extends the sample timestamp;
+ * <li>{@code verify} downloads the publications file and verifies the sample
+ * timestamp against it.
+ * </ul>
+ * The sample timestamp is read from a file, or created at startup if none is
+ * given. After the warmup, the load runs for the given time or until the given
+ * number of requests is done. The latencies of the successful operations are
+ * reported per phase, from the phase times recorded by {@link ResponseHandler}:
+ * <ul>
+ * <li>{@code connect}: until the connection was established, including the
+ * host name lookup and the wait for admission;
+ * <li>{@code send}: until the request was sent, including the TLS handshake;
+ * <li>{@code firstByte}: until the first byte of the response arrived;
+ * <li>{@code receive}: until the rest of the response arrived;
+ * <li>{@code parse}: parsing the response, and verifying for {@code verify};
+ * <li>{@code total}: the whole operation.
+ * </ul>
+ * Results can be written as JSON, to compare runs with different transport
+ * settings or versions.
+ * <pre>
+ * java benchmarks.LoadGenerator [options]
+ *
+ *   -s url      signing service URL
+ *   -x url      extending service URL
+ *   -p url      publications file URL
+ *   -op list    operations, comma separated (default: those with a URL)
+ *   -c n        concurrent workers (default 8)
+ *   -w s        warmup time, in seconds (default 5)
+ *   -d s        measurement time, in seconds (default 30)
+ *   -n count    measure this many operations instead of a fixed time
+ *   -t ms       transaction timeout (default 10000)
+ *   -ts file    sample timestamp (default: created with the signing service)
+ *   -k file     key store to verify the publications file with
+ *   -http2      send requests over HTTP/2
+ *   -noretry    disable retries and circuit breakers
+ *   -o file     write results to file
+ * </pre>
+ */
+public class LoadGenerator {
+	private static final String STAMP = "stamp";
+	private static final String EXTEND = "extend";
+	private static final String VERIFY = "verify";
+
+	private static final String[] PHASES = {
+		"connect", "send", "firstByte", "receive", "parse", "total",
+	};
+
+	private final HttpStamper stamper;
+	private final URL signingUrl;
+	private final URL extendingUrl;
+	private final URL publicationsUrl;
+	private final String keyStore;
+	private final String[] operations;
+	private final long timeout;
+
+	// Maps operation name to its Stats
+	private final Map stats;
+
+	private byte[] timestamp;
+
+	// Whether results are recorded, and when or after how many operations
+	// the load stops
+	private volatile boolean recording;
+	private volatile long stopTime;
+	private final AtomicLong remaining;
+
+
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param signingUrl signing service URL, or {@code null}.
+	 * @param extendingUrl extending service URL, or {@code null}.
+	 * @param publicationsUrl publications file URL, or {@code null}.
+	 * @param keyStore key store for the publications file signature, or
+	 * 			{@code null} for the default one.
+	 * @param operations operations to run.
+	 * @param timeout transaction timeout, in milliseconds.
+	 */
+	public LoadGenerator(URL signingUrl, URL extendingUrl, URL publicationsUrl,
+			String keyStore, String[] operations, long timeout)
+	throws IOException {
+		this.stamper = HttpStamper.getInstance();
+		this.signingUrl = signingUrl;
+		this.extendingUrl = extendingUrl;
+		this.publicationsUrl = publicationsUrl;
+		this.keyStore = keyStore;
+		this.operations = operations;
+		this.timeout = timeout;
+		this.stats = new LinkedHashMap();
+		for (int i = 0; i < operations.length; ++i) {
+			URL url = getUrl(operations[i]);
+			if (url == null) {
+				throw new IllegalArgumentException("no URL for operation: " + operations[i]);
+			}
+			stats.put(operations[i], new Stats());
+		}
+		this.remaining = new AtomicLong();
+	}
+
+	/**
+	 * Returns the stamper used to send the requests, to adjust its settings.
+	 */
+	public HttpStamper getStamper() {
+		return stamper;
+	}
+
+	/**
+	 * Sets the sample timestamp to extend and verify.
+	 *
+	 * @param timestamp encoded timestamp.
+	 */
+	public void setTimestamp(byte[] timestamp) {
+		this.timestamp = timestamp;
+	}
+
+	/**
+	 * Runs the load.
+	 *
+	 * @param concurrency number of workers.
+	 * @param warmup warmup time, in milliseconds.
+	 * @param duration measurement time, in milliseconds; ignored if
+	 * 			{@code count} is set.
+	 * @param count number of operations to measure, or {@code 0} to measure
+	 * 			for {@code duration}.
+	 *
+	 * @return the results.
+	 */
+	public Map run(int concurrency, long warmup, long duration, long count)
+	throws GTException, IOException, InterruptedException {
+		if (timestamp == null && (stats.containsKey(EXTEND) || stats.containsKey(VERIFY))) {
+			if (signingUrl == null) {
+				throw new IllegalArgumentException("no sample timestamp and no signing service to create it");
+			}
+			GTDataHash dataHash = new GTDataHash(GTHashAlgorithm.DEFAULT).update("sample".getBytes()).close();
+			timestamp = SimpleHttpStamper.create(dataHash, signingUrl).getEncoded();
+		}
+
+		recording = false;
+		stopTime = Long.MAX_VALUE;
+		remaining.set(count > 0 ? count : Long.MAX_VALUE);
+		Thread[] workers = new Thread[concurrency];
+		for (int i = 0; i < concurrency; ++i) {
+			workers[i] = new Thread(new Worker(i), "LoadGenerator-" + i);
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+
+		Thread.sleep(warmup);
+		long start = System.nanoTime();
+		if (count <= 0) {
+			stopTime = System.currentTimeMillis() + duration;
+		}
+		recording = true;
+		for (int i = 0; i < concurrency; ++i) {
+			workers[i].join();
+		}
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		Map res = new LinkedHashMap();
+		Map config = new LinkedHashMap();
+		config.put("concurrency", new Integer(concurrency));
+		config.put("warmup", new Double(warmup / 1000.0));
+		if (count > 0) {
+			config.put("count", new Long(count));
+		} else {
+			config.put("duration", new Double(duration / 1000.0));
+		}
+		config.put("timeout", new Long(timeout));
+		config.put("http2", Boolean.valueOf(stamper.isHttp2Enabled()));
+		config.put("retry", Boolean.valueOf(stamper.getRetryPolicy() != null));
+		res.put("config", config);
+		res.put("elapsed", new Double(elapsed));
+
+		List results = new ArrayList();
+		for (Iterator i = stats.entrySet().iterator(); i.hasNext(); ) {
+			Map.Entry entry = (Map.Entry) i.next();
+			Stats s = (Stats) entry.getValue();
+			Map result = new LinkedHashMap();
+			result.put("operation", entry.getKey());
+			result.put("url", getUrl((String) entry.getKey()).toString());
+			result.put("completed", new Long(s.completed.get()));
+			result.put("errors", new Long(s.errors.get()));
+			result.put("throughput", new Double(s.completed.get() / elapsed));
+			Map phases = new LinkedHashMap();
+			for (int j = 0; j < PHASES.length; ++j) {
+				phases.put(PHASES[j], s.phases[j].toMap());
+			}
+			result.put("latency", phases);
+			synchronized (s.errorMessages) {
+				result.put("errorMessages", new TreeMap(s.errorMessages));
+			}
+			results.add(result);
+		}
+		res.put("results", results);
+		return res;
+	}
+
+
+
+	/**
+	 * Runs the load generator from the command line.
+	 */
+	public static void main(String[] args)
+	throws Exception {
+		URL signingUrl = null;
+		URL extendingUrl = null;
+		URL publicationsUrl = null;
+		String operationList = null;
+		int concurrency = 8;
+		long warmup = 5000;
+		long duration = 30000;
+		long count = 0;
+		long timeout = 10000;
+		File timestampFile = null;
+		String keyStore = null;
+		boolean http2 = false;
+		boolean retry = true;
+		File output = null;
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				String arg = args[i];
+				if (arg.equals("-http2")) {
+					http2 = true;
+				} else if (arg.equals("-noretry")) {
+					retry = false;
+				} else if (i + 1 >= args.length) {
+					usage();
+					return;
+				} else if (arg.equals("-s")) {
+					signingUrl = new URL(args[++i]);
+				} else if (arg.equals("-x")) {
+					extendingUrl = new URL(args[++i]);
+				} else if (arg.equals("-p")) {
+					publicationsUrl = new URL(args[++i]);
+				} else if (arg.equals("-op")) {
+					operationList = args[++i];
+				} else if (arg.equals("-c")) {
+					concurrency = Integer.parseInt(args[++i]);
+				} else if (arg.equals("-w")) {
+					warmup = (long) (Double.parseDouble(args[++i]) * 1000);
+				} else if (arg.equals("-d")) {
+					duration = (long) (Double.parseDouble(args[++i]) * 1000);
+				} else if (arg.equals("-n")) {
+					count = Long.parseLong(args[++i]);
+				} else if (arg.equals("-t")) {
+					timeout = Long.parseLong(args[++i]);
+				} else if (arg.equals("-ts")) {
+					timestampFile = new File(args[++i]);
+				} else if (arg.equals("-k")) {
+					keyStore = args[++i];
+				} else if (arg.equals("-o")) {
+					output = new File(args[++i]);
+				} else {
+					usage();
+					return;
+				}
+			}
+		} catch (MalformedURLException e) {
+			System.err.println("Invalid URL: " + e.getMessage());
+			return;
+		} catch (NumberFormatException e) {
+			System.err.println("Invalid number: " + e.getMessage());
+			return;
+		}
+
+		List operations = new ArrayList();
+		if (operationList != null) {
+			StringTokenizer st = new StringTokenizer(operationList, ",");
+			while (st.hasMoreTokens()) {
+				operations.add(st.nextToken().trim());
+			}
+		} else {
+			if (signingUrl != null) {
+				operations.add(STAMP);
+			}
+			if (extendingUrl != null) {
+				operations.add(EXTEND);
+			}
+			if (publicationsUrl != null) {
+				operations.add(VERIFY);
+			}
+		}
+		if (operations.isEmpty() || concurrency < 1) {
+			usage();
+			return;
+		}
+
+		LoadGenerator generator;
+		try {
+			generator = new LoadGenerator(signingUrl, extendingUrl, publicationsUrl, keyStore,
+					(String[]) operations.toArray(new String[operations.size()]), timeout);
+		} catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			return;
+		}
+		generator.getStamper().setHttp2Enabled(http2);
+		if (!retry) {
+			generator.getStamper().setRetryPolicy(null);
+			generator.getStamper().setCircuitBreakerEnabled(false);
+		}
+		if (timestampFile != null) {
+			generator.setTimestamp(BenchmarkRunner.readFile(timestampFile));
+		}
+
+		Map results = generator.run(concurrency, warmup, duration, count);
+		System.out.print(format(results));
+
+		if (output != null) {
+			StringBuffer sb = new StringBuffer();
+			Json.write(sb, results, 0);
+			sb.append('\n');
+			OutputStream out = new FileOutputStream(output);
+			try {
+				out.write(sb.toString().getBytes("UTF-8"));
+			} finally {
+				out.close();
+			}
+		}
+	}
+
+	private static void usage() {
+		System.out.println("Usage: java benchmarks.LoadGenerator [-s url] [-x url] [-p url] [-op list] [-c n] [-w s] [-d s] [-n count]");
+		System.out.println("           [-t ms] [-ts file] [-k file] [-http2] [-noretry] [-o file]");
+	}
+
+	/**
+	 * Formats the results as a table.
+	 */
+	private static String format(Map results) {
+		StringBuffer sb = new StringBuffer();
+		List list = (List) results.get("results");
+		for (int i = 0; i < list.size(); ++i) {
+			Map result = (Map) list.get(i);
+			sb.append(result.get("operation")).append(' ').append(result.get("url")).append('\n');
+			sb.append("  completed ").append(result.get("completed"));
+			sb.append(", errors ").append(result.get("errors"));
+			sb.append(", ").append(Math.round(((Double) result.get("throughput")).doubleValue() * 10) / 10.0).append(" ops/s\n");
+			sb.append("  phase (ms)       p50        p99       p999        max\n");
+			Map phases = (Map) result.get("latency");
+			for (int j = 0; j < PHASES.length; ++j) {
+				Map phase = (Map) phases.get(PHASES[j]);
+				if (((Long) phase.get("count")).longValue() == 0) {
+					continue;
+				}
+				sb.append("  ").append(pad(PHASES[j], 10));
+				sb.append(pad(phase.get("p50"), 11));
+				sb.append(pad(phase.get("p99"), 11));
+				sb.append(pad(phase.get("p999"), 11));
+				sb.append(pad(phase.get("max"), 11)).append('\n');
+			}
+			Map errors = (Map) result.get("errorMessages");
+			for (Iterator j = errors.entrySet().iterator(); j.hasNext(); ) {
+				Map.Entry entry = (Map.Entry) j.next();
+				sb.append("  ").append(entry.getValue()).append(" x ").append(entry.getKey()).append('\n');
+			}
+		}
+		return sb.toString();
+	}
+
+	private static String pad(Object value, int width) {
+		String s = String.valueOf(value);
+		StringBuffer sb = new StringBuffer();
+		for (int i = s.length(); i < width; ++i) {
+			sb.append(' ');
+		}
+		return sb.append(s).toString();
+	}
+
+
+
+	/**
+	 * Returns the service URL of the given operation.
+	 */
+	private URL getUrl(String operation) {
+		if (operation.equals(STAMP)) {
+			return signingUrl;
+		} else if (operation.equals(EXTEND)) {
+			return extendingUrl;
+		} else if (operation.equals(VERIFY)) {
+			return publicationsUrl;
+		}
+		throw new IllegalArgumentException("unknown operation: " + operation);
+	}
+
+	/**
+	 * Checks whether the worker should stop, and if not, claims the next
+	 * operation.
+	 */
+	private boolean isDone() {
+		if (!recording) {
+			return false;
+		}
+		if (System.currentTimeMillis() >= stopTime) {
+			return true;
+		}
+		return remaining.getAndDecrement() <= 0;
+	}
+
+	/**
+	 * Runs the given operation, recording its results if requested.
+	 */
+	private void runOperation(String operation, Random random, boolean record) {
+		Stats s = (Stats) stats.get(operation);
+		ResponseHandler handler = null;
+		try {
+			long start;
+			long received;
+			if (operation.equals(STAMP)) {
+				byte[] data = new byte[32];
+				random.nextBytes(data);
+				GTDataHash dataHash = new GTDataHash(GTHashAlgorithm.DEFAULT).update(data).close();
+				start = System.nanoTime();
+				handler = stamper.addTimestampRequest(dataHash, signingUrl, timeout);
+				byte[] response = handler.receiveResponse(0);
+				received = System.nanoTime();
+				GTTimestampResponse res = GTTimestampResponse.getInstance(HttpClient.getResponseContents(response));
+				checkStatus(res.getStatusCode(), res.getFailCode(), res.getFailMessage());
+				res.getTimestamp();
+			} else if (operation.equals(EXTEND)) {
+				GTTimestamp ts = GTTimestamp.getInstance(timestamp);
+				start = System.nanoTime();
+				handler = stamper.addExtensionRequest(ts, extendingUrl, timeout);
+				byte[] response = handler.receiveResponse(0);
+				received = System.nanoTime();
+				GTCertTokenResponse res = GTCertTokenResponse.getInstance(HttpClient.getResponseContents(response));
+				checkStatus(res.getStatusCode(), res.getFailCode(), res.getFailMessage());
+				ts.extend(res);
+			} else {
+				GTTimestamp ts = GTTimestamp.getInstance(timestamp);
+				start = System.nanoTime();
+				handler = stamper.addPublicationFileRequest(publicationsUrl, timeout);
+				byte[] response = handler.receiveResponse(0);
+				received = System.nanoTime();
+				GTPublicationsFile publicationsFile = GTPublicationsFile.getInstance(HttpClient.getResponseContents(response));
+				// The result is cached, so verify() below does not check again
+				GTVerificationResult result = (keyStore == null) ?
+						publicationsFile.verifySignature() : publicationsFile.verifySignature(keyStore);
+				if (result.isValid()) {
+					result = ts.verify(ts.getDataHash(), publicationsFile);
+				}
+				if (!result.isValid()) {
+					throw new GTException("verification failed, error code " + result.getErrorCode());
+				}
+			}
+			long end = System.nanoTime();
+			if (record) {
+				s.completed.incrementAndGet();
+				s.record(handler, start, received, end);
+			}
+		} catch (Exception e) {
+			if (record) {
+				s.errors.incrementAndGet();
+				s.recordError(e);
+			}
+		}
+	}
+
+	/**
+	 * Fails with the service error, if the response status is not granted.
+	 */
+	private static void checkStatus(int statusCode, int failCode, String failMessage)
+	throws GTException {
+		if (statusCode != 0 && statusCode != 1) {
+			throw new GTException("service returned error " + failCode + ": " + failMessage);
+		}
+	}
+
+
+
+	/**
+	 * Load generating thread.
+	 */
+	private class Worker
+	implements Runnable {
+		private final int index;
+		private final Random random;
+
+		public Worker(int index) {
+			this.index = index;
+			this.random = new Random(index);
+		}
+
+		public void run() {
+			// Start at different operations, to mix them from the start
+			int next = index;
+			while (true) {
+				boolean record = recording;
+				if (isDone()) {
+					return;
+				}
+				runOperation(operations[next % operations.length], random, record);
+				++next;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Results of an operation.
+	 */
+	private static class Stats {
+		final AtomicLong completed = new AtomicLong();
+		final AtomicLong errors = new AtomicLong();
+		final LatencyHistogram[] phases;
+		// Maps error message to its count
+		final Map errorMessages = Collections.synchronizedMap(new HashMap());
+
+		Stats() {
+			phases = new LatencyHistogram[PHASES.length];
+			for (int i = 0; i < phases.length; ++i) {
+				phases[i] = new LatencyHistogram();
+			}
+		}
+
+		/**
+		 * Records the phase latencies of a successful operation.
+		 *
+		 * @param handler response handler of the operation.
+		 * @param start when the operation started.
+		 * @param received when the response was received.
+		 * @param end when the operation ended.
+		 */
+		void record(ResponseHandler handler, long start, long received, long end) {
+			long[] times = {
+				handler.getStartTime(), handler.getConnectTime(), handler.getSendTime(),
+				handler.getFirstByteTime(), handler.getEndTime(),
+			};
+			for (int i = 0; i + 1 < times.length; ++i) {
+				if (times[i] >= 0 && times[i + 1] >= 0) {
+					phases[i].record((times[i + 1] - times[i]) / 1000);
+				}
+			}
+			phases[4].record((end - received) / 1000);
+			phases[5].record((end - start) / 1000);
+		}
+
+		/**
+		 * Counts the given error by its message.
+		 */
+		void recordError(Exception e) {
+			String message = e.getClass().getName() + ": " + e.getMessage();
+			synchronized (errorMessages) {
+				Long n = (Long) errorMessages.get(message);
+				errorMessages.put(message, new Long(n == null ? 1 : n.longValue() + 1));
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.guardtime.asn1.ContentInfo;
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.GTPublicationsFile;
+import com.guardtime.util.Util;
+
+
+
+/**
+ * Benchmarks of {@link GTPublicationsFile} lookups.
+ * <p>
+ * Uses a generated file the size of a few years of daily publications, whose
+ * last public key is the one of the signed sample timestamp
+ * {@code data.txt.gtts1}. The file is not signed, as the lookups do not check
+ * the signature.
+ */
+public class PublicationsFileBenchmarks {
+	private static final int PUBLICATION_COUNT = 4096;
+	private static final int KEY_COUNT = 8;
+	// 2007-01-01 00:00:00 UTC
+	private static final long FIRST_PUBLICATION = 1167609600;
+	private static final long DAY = 86400;
+
+
+
+	/**
+	 * Returns the lookup benchmarks.
+	 *
+	 * @param dataDir directory of the sample timestamps.
+	 */
+	public static List getBenchmarks(File dataDir)
+	throws IOException {
+		byte[] timestamp = BenchmarkRunner.readFile(new File(dataDir, "data.txt.gtts1"));
+		PublicKey publicKey;
+		try {
+			publicKey = ContentInfo.getInstance(new ByteArrayInputStream(timestamp)).getContent().getCertificate().getPublicKey();
+		} catch (Exception e) {
+			throw new IOException("invalid sample timestamp: " + e.getMessage());
+		}
+		final GTPublicationsFile publicationsFile = GTPublicationsFile.getInstance(getPublicationsFile(publicKey));
+		final long publicationId = FIRST_PUBLICATION + (PUBLICATION_COUNT / 2) * DAY;
+		final String publication = publicationsFile.getPublication(publicationId);
+		final PublicKey key = publicKey;
+
+		List res = new ArrayList();
+		res.add(new Benchmark("GTPublicationsFile.getPublication") {
+			public Object run() {
+				return publicationsFile.getPublication(publicationId);
+			}
+		});
+		res.add(new Benchmark("GTPublicationsFile.contains") {
+			public Object run() {
+				return Boolean.valueOf(publicationsFile.contains(publication));
+			}
+		}.param("arg", "publication"));
+		res.add(new Benchmark("GTPublicationsFile.contains") {
+			public Object run() {
+				return Boolean.valueOf(publicationsFile.contains(key));
+			}
+		}.param("arg", "publicKey"));
+		return res;
+	}
+
+	/**
+	 * Generates the publications file contents.
+	 */
+	private static byte[] getPublicationsFile(PublicKey publicKey)
+	throws IOException {
+		GTHashAlgorithm alg = GTHashAlgorithm.SHA256;
+		int cellSize = 8 + 1 + alg.getHashLength();
+		int keyBlockBegin = 36 + cellSize * PUBLICATION_COUNT;
+		int referencesBegin = keyBlockBegin + cellSize * KEY_COUNT;
+		Random random = new Random(PUBLICATION_COUNT);
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(Util.toByteArray((short) 1)); // version
+		out.write(Util.toByteArray(FIRST_PUBLICATION + PUBLICATION_COUNT * DAY)); // creation time
+		out.write(Util.toByteArray(36));
+		out.write(Util.toByteArray((short) cellSize));
+		out.write(Util.toByteArray(PUBLICATION_COUNT));
+		out.write(Util.toByteArray(keyBlockBegin));
+		out.write(Util.toByteArray((short) cellSize));
+		out.write(Util.toByteArray((short) KEY_COUNT));
+		out.write(Util.toByteArray(referencesBegin));
+		out.write(Util.toByteArray(referencesBegin + 2));
+		for (int i = 0; i < PUBLICATION_COUNT; ++i) {
+			out.write(Util.toByteArray(FIRST_PUBLICATION + i * DAY));
+			out.write(getRandomImprint(alg, random));
+		}
+		for (int i = 0; i < KEY_COUNT; ++i) {
+			out.write(Util.toByteArray(FIRST_PUBLICATION + i * 365 * DAY));
+			if (i == KEY_COUNT - 1) {
+				out.write(new GTDataHash(alg).update(publicKey.getEncoded()).toDataImprint());
+			} else {
+				out.write(getRandomImprint(alg, random));
+			}
+		}
+		out.write(Util.toByteArray((short) 0)); // no publication references
+		out.write(0); // empty signature block
+		return out.toByteArray();
+	}
+
+	private static byte[] getRandomImprint(GTHashAlgorithm alg, Random random) {
+		byte[] hash = new byte[alg.getHashLength()];
+		random.nextBytes(hash);
+		return GTDataHash.getInstance(alg, hash).toDataImprint();
+	}
+}
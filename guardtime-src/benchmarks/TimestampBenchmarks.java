@@ -0,0 +1,74 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.guardtime.tsp.GTTimestamp;
+
+
+
+/**
+ * Benchmarks of {@link GTTimestamp} parsing.
+ * <p>
+ * Uses the sample timestamps {@code data.txt.gtts1} (signed) and
+ * {@code data.txt.gtts2} (extended).
+ */
+public class TimestampBenchmarks {
+	/**
+	 * Returns the timestamp parsing benchmarks.
+	 *
+	 * @param dataDir directory of the sample timestamps.
+	 */
+	public static List getBenchmarks(File dataDir)
+	throws IOException {
+		List res = new ArrayList();
+		res.add(new GetInstance(BenchmarkRunner.readFile(new File(dataDir, "data.txt.gtts1")), "signed"));
+		res.add(new GetInstance(BenchmarkRunner.readFile(new File(dataDir, "data.txt.gtts2")), "extended"));
+		return res;
+	}
+
+
+
+	/**
+	 * Parses a timestamp, including the property extraction done by the
+	 * constructor.
+	 */
+	private static class GetInstance
+	extends Benchmark {
+		private final byte[] timestamp;
+
+		GetInstance(byte[] timestamp, String sample) {
+			super("GTTimestamp.getInstance");
+			param("sample", sample);
+			this.timestamp = timestamp;
+		}
+
+		public Object run()
+		throws Exception {
+			return GTTimestamp.getInstance(timestamp);
+		}
+	}
+}
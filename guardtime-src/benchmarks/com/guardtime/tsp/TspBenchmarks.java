@@ -0,0 +1,145 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.tsp;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.security.PublicKey;
+import java.util.ArrayList;
+import java.util.List;
+
+import benchmarks.Benchmark;
+import benchmarks.BenchmarkRunner;
+
+import com.guardtime.asn1.ContentInfo;
+import com.guardtime.asn1.SignerInfo;
+import com.guardtime.asn1.TimeSignature;
+
+
+
+/**
+ * Benchmarks of the package-private verification code: {@link HashChain} and
+ * {@link Verifier}.
+ * <p>
+ * Uses the sample timestamps {@code data.txt.gtts1} (signed) and
+ * {@code data.txt.gtts2} (extended).
+ */
+public class TspBenchmarks {
+	/**
+	 * Returns the hash chain and verification benchmarks.
+	 *
+	 * @param dataDir directory of the sample timestamps.
+	 */
+	public static List getBenchmarks(File dataDir)
+	throws IOException {
+		byte[] signed = BenchmarkRunner.readFile(new File(dataDir, "data.txt.gtts1"));
+		byte[] extended = BenchmarkRunner.readFile(new File(dataDir, "data.txt.gtts2"));
+
+		List res = new ArrayList();
+		res.add(new ComputeOutput(extended, true));
+		res.add(new ComputeOutput(extended, false));
+		res.add(new Verify(signed, "signed"));
+		res.add(new Verify(extended, "extended"));
+		return res;
+	}
+
+
+
+	/**
+	 * Computes the output of the location or history chain of a timestamp.
+	 */
+	private static class ComputeOutput
+	extends Benchmark {
+		private final byte[] timestamp;
+		private final boolean location;
+		private HashChain chain;
+		private byte[] input;
+
+		ComputeOutput(byte[] timestamp, boolean location) {
+			super("HashChain.computeOutput");
+			param("chain", (location ? "location" : "history"));
+			this.timestamp = timestamp;
+			this.location = location;
+		}
+
+		public void setUp()
+		throws Exception {
+			// Same inputs as in verification
+			SignerInfo signerInfo = ContentInfo.getInstance(new ByteArrayInputStream(timestamp)).getContent().getSignerInfo();
+			TimeSignature signature = signerInfo.getSignature();
+			GTHashAlgorithm digestAlg = GTHashAlgorithm.getByOid(signerInfo.getDigestAlgorithm());
+			input = new GTDataHash(digestAlg).update(signerInfo.getEncodedSignedAttrs()).toDataImprint();
+			HashChain locationChain = HashChain.getLocationInstance(signature.getLocation());
+			if (location) {
+				chain = locationChain;
+			} else {
+				chain = HashChain.getHistoryInstance(signature.getHistory());
+				input = locationChain.computeOutput(input);
+			}
+		}
+
+		public Object run() {
+			return chain.computeOutput(input);
+		}
+	}
+
+	/**
+	 * Verifies a timestamp: the signed one with the public key from its
+	 * certificate, the extended one with its publication.
+	 */
+	private static class Verify
+	extends Benchmark {
+		private final byte[] timestamp;
+		private ContentInfo contentInfo;
+		private GTDataHash dataHash;
+		private String publication;
+		private PublicKey publicKey;
+
+		Verify(byte[] timestamp, String sample) {
+			super("Verifier.verify");
+			param("sample", sample);
+			this.timestamp = timestamp;
+		}
+
+		public void setUp()
+		throws Exception {
+			GTTimestamp ts = GTTimestamp.getInstance(timestamp);
+			contentInfo = ContentInfo.getInstance(new ByteArrayInputStream(timestamp));
+			dataHash = ts.getDataHash();
+			if (ts.isExtended()) {
+				publication = ts.getProperty(GTTimestamp.PUBLICATION);
+			} else {
+				publicKey = contentInfo.getContent().getCertificate().getPublicKey();
+			}
+
+			// Make sure the benchmark measures a successful verification
+			if (!Verifier.verify(contentInfo, dataHash, publication, publicKey).isValid()) {
+				throw new IllegalStateException("sample timestamp does not verify");
+			}
+		}
+
+		public Object run() {
+			return Verifier.verify(contentInfo, dataHash, publication, publicKey);
+		}
+	}
+}
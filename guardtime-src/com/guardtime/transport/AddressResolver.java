@@ -0,0 +1,469 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+
+/**
+ * Caching host name resolver used by {@link SocketClient}.
+ * <p>
+ * Looking up a host name with {@code InetAddress} blocks the calling thread
+ * until the name service answers, and the JVM-wide address cache gives no
+ * control over how long the answers are kept. This resolver keeps its own
+ * cache with separate time-to-live values for successful and failed lookups:
+ * <ul>
+ * <li>successful lookups are kept for {@link #getTtl()} milliseconds; after
+ * that, the stale addresses are still served while a fresh lookup is done in
+ * the background; if that lookup fails, the stale addresses are kept and the
+ * lookup is tried again after {@link #getNegativeTtl()} milliseconds;
+ * <li>failed lookups are kept for {@link #getNegativeTtl()} milliseconds, so
+ * that requests to an unknown host fail fast instead of each waiting for the
+ * name service to time out.
+ * </ul>
+ * Lookups that can not be answered from the cache are done on daemon worker
+ * threads owned by the resolver, so callers using
+ * {@link #lookup(String, Callback)} never block on the name service.
+ * <p>
+ * When a host has several addresses, each lookup returns all of them, rotated
+ * by one position compared to the previous lookup. Callers should try the
+ * addresses in the returned order: this spreads the load over the addresses in
+ * a round-robin manner and gives the rest of the list as failover candidates.
+ *
+ * @since 0.4
+ */
+public class AddressResolver {
+	/**
+	 * The default time-to-live for successful lookups, in milliseconds.
+	 */
+	public static final long DEFAULT_TTL = 60000;
+
+	/**
+	 * The default time-to-live for failed lookups, in milliseconds.
+	 */
+	public static final long DEFAULT_NEGATIVE_TTL = 5000;
+
+	/**
+	 * The maximum number of concurrent background lookups.
+	 */
+	private static final int MAX_WORKERS = 4;
+
+	// Maps a host name to its cache Entry
+	private final Map cache;
+
+	// Lookup jobs waiting for a worker thread
+	private final LinkedList jobs;
+
+	// Number of worker threads started and number of idle ones
+	private int workers;
+	private int idleWorkers;
+
+	private long ttl;
+	private long negativeTtl;
+
+
+
+	/**
+	 * Callback interface for asynchronous lookups.
+	 *
+	 * @see AddressResolver#lookup(String, Callback)
+	 */
+	public interface Callback {
+		/**
+		 * Called when the host name has been resolved.
+		 *
+		 * @param addresses addresses of the host, in the order they should
+		 * 			be tried; never empty.
+		 */
+		public void resolved(InetAddress[] addresses);
+
+		/**
+		 * Called when the host name could not be resolved.
+		 *
+		 * @param error the lookup error.
+		 */
+		public void failed(UnknownHostException error);
+	}
+
+
+
+	/**
+	 * Default constructor.
+	 * <p>
+	 * Creates a resolver with {@link #DEFAULT_TTL} and
+	 * {@link #DEFAULT_NEGATIVE_TTL}.
+	 */
+	public AddressResolver() {
+		this(DEFAULT_TTL, DEFAULT_NEGATIVE_TTL);
+	}
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param ttl time-to-live for successful lookups, in milliseconds.
+	 * @param negativeTtl time-to-live for failed lookups, in milliseconds.
+	 */
+	public AddressResolver(long ttl, long negativeTtl) {
+		setTtl(ttl);
+		setNegativeTtl(negativeTtl);
+		cache = new HashMap();
+		jobs = new LinkedList();
+		workers = 0;
+		idleWorkers = 0;
+	}
+
+	/**
+	 * Returns the time-to-live for successful lookups.
+	 *
+	 * @return time-to-live, in milliseconds.
+	 */
+	public synchronized long getTtl() {
+		return ttl;
+	}
+
+	/**
+	 * Sets the time-to-live for successful lookups. Already cached entries
+	 * keep their original expiration time.
+	 *
+	 * @param ttl time-to-live, in milliseconds; {@code 0} disables caching.
+	 */
+	public synchronized void setTtl(long ttl) {
+		if (ttl < 0) {
+			throw new IllegalArgumentException("invalid TTL: " + ttl);
+		}
+		this.ttl = ttl;
+	}
+
+	/**
+	 * Returns the time-to-live for failed lookups.
+	 *
+	 * @return time-to-live, in milliseconds.
+	 */
+	public synchronized long getNegativeTtl() {
+		return negativeTtl;
+	}
+
+	/**
+	 * Sets the time-to-live for failed lookups. Already cached entries keep
+	 * their original expiration time.
+	 *
+	 * @param negativeTtl time-to-live, in milliseconds; {@code 0} disables
+	 * 			caching of failures.
+	 */
+	public synchronized void setNegativeTtl(long negativeTtl) {
+		if (negativeTtl < 0) {
+			throw new IllegalArgumentException("invalid negative TTL: " + negativeTtl);
+		}
+		this.negativeTtl = negativeTtl;
+	}
+
+
+
+	/**
+	 * Resolves the given host name, blocking if the answer is not cached.
+	 * <p>
+	 * If the cached answer has expired, the stale addresses are returned
+	 * right away and a fresh lookup is started in the background.
+	 *
+	 * @param host host name or textual IP address.
+	 *
+	 * @return addresses of the host, in the order they should be tried.
+	 *
+	 * @throws UnknownHostException if the host name can not be resolved.
+	 */
+	public InetAddress[] lookup(String host)
+	throws UnknownHostException {
+		InetAddress[] addresses = lookupCached(host);
+		if (addresses != null) {
+			return addresses;
+		}
+		return resolve(host);
+	}
+
+	/**
+	 * Resolves the given host name without blocking the caller.
+	 * <p>
+	 * If the answer is cached, the callback is invoked before this method
+	 * returns, on the calling thread. Otherwise the lookup is done on one of
+	 * the resolver's worker threads and the callback is invoked there.
+	 *
+	 * @param host host name or textual IP address.
+	 * @param callback the callback to receive the result.
+	 */
+	public void lookup(final String host, final Callback callback) {
+		if (host == null || callback == null) {
+			throw new IllegalArgumentException("invalid lookup: null");
+		}
+
+		InetAddress[] addresses;
+		try {
+			addresses = lookupCached(host);
+		} catch (UnknownHostException e) {
+			callback.failed(e);
+			return;
+		}
+		if (addresses != null) {
+			callback.resolved(addresses);
+			return;
+		}
+
+		submit(new Runnable() {
+			public void run() {
+				InetAddress[] addresses;
+				try {
+					addresses = resolve(host);
+				} catch (UnknownHostException e) {
+					callback.failed(e);
+					return;
+				}
+				callback.resolved(addresses);
+			}
+		});
+	}
+
+	/**
+	 * Removes the given host name from the cache.
+	 *
+	 * @param host host name.
+	 */
+	public synchronized void invalidate(String host) {
+		cache.remove(host);
+	}
+
+	/**
+	 * Removes all host names from the cache.
+	 */
+	public synchronized void clear() {
+		cache.clear();
+	}
+
+
+
+	/**
+	 * Looks up the given host name in the cache.
+	 *
+	 * @param host host name.
+	 *
+	 * @return addresses of the host in round-robin order, or {@code null} if
+	 * 			the host is not in the cache.
+	 *
+	 * @throws UnknownHostException if a failed lookup of the host is cached.
+	 */
+	private InetAddress[] lookupCached(final String host)
+	throws UnknownHostException {
+		Entry entry;
+		boolean refresh = false;
+		synchronized (this) {
+			entry = (Entry) cache.get(host);
+			if (entry == null) {
+				return null;
+			}
+			long now = System.currentTimeMillis();
+			if (entry.addresses == null) {
+				if (entry.expires <= now) {
+					// Failures are not served stale
+					cache.remove(host);
+					return null;
+				}
+			} else if (entry.expires <= now && !entry.refreshing) {
+				entry.refreshing = true;
+				refresh = true;
+			}
+		}
+
+		if (refresh) {
+			submit(new Runnable() {
+				public void run() {
+					try {
+						resolve(host);
+					} catch (UnknownHostException e) {
+						// The stale addresses were kept by resolve()
+					}
+				}
+			});
+		}
+
+		return entry.next();
+	}
+
+	/**
+	 * Queries the name service for the given host name and caches the answer.
+	 *
+	 * @param host host name.
+	 *
+	 * @return addresses of the host in round-robin order.
+	 *
+	 * @throws UnknownHostException if the host name can not be resolved.
+	 */
+	private InetAddress[] resolve(String host)
+	throws UnknownHostException {
+		InetAddress[] addresses;
+		try {
+			addresses = query(host);
+		} catch (UnknownHostException e) {
+			synchronized (this) {
+				Entry stale = (Entry) cache.get(host);
+				if (stale != null && stale.addresses != null) {
+					// Failed refresh: keep serving the stale addresses
+					stale.refreshing = false;
+					stale.expires = System.currentTimeMillis() + negativeTtl;
+				} else if (negativeTtl > 0) {
+					cache.put(host, new Entry(null, e, System.currentTimeMillis() + negativeTtl));
+				} else {
+					cache.remove(host);
+				}
+			}
+			throw e;
+		}
+
+		Entry entry = new Entry(addresses, null, System.currentTimeMillis() + ttl);
+		synchronized (this) {
+			if (ttl > 0) {
+				cache.put(host, entry);
+			} else {
+				cache.remove(host);
+			}
+		}
+		return entry.next();
+	}
+
+	/**
+	 * Queries the name service for the addresses of the given host. Called
+	 * on a worker thread for background lookups.
+	 * <p>
+	 * This implementation uses {@code InetAddress.getAllByName(String)};
+	 * subclasses may override it to use another name service.
+	 *
+	 * @param host host name or textual IP address.
+	 *
+	 * @return addresses of the host; never empty.
+	 *
+	 * @throws UnknownHostException if the host name can not be resolved.
+	 */
+	protected InetAddress[] query(String host)
+	throws UnknownHostException {
+		return InetAddress.getAllByName(host);
+	}
+
+	/**
+	 * Hands the given lookup job to a worker thread, starting a new worker if
+	 * none is idle and the limit has not been reached.
+	 *
+	 * @param job the job to run.
+	 */
+	private synchronized void submit(Runnable job) {
+		jobs.addLast(job);
+		if (idleWorkers > 0) {
+			notify();
+		} else if (workers < MAX_WORKERS) {
+			++workers;
+			Thread t = new Thread(new Worker(), "AddressResolver");
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+
+
+	/**
+	 * Worker thread doing the background lookups.
+	 */
+	private class Worker
+	implements Runnable {
+		public void run() {
+			while (true) {
+				Runnable job;
+				synchronized (AddressResolver.this) {
+					while (jobs.isEmpty()) {
+						++idleWorkers;
+						try {
+							AddressResolver.this.wait();
+						} catch (InterruptedException e) {
+							// Nothing here
+						} finally {
+							--idleWorkers;
+						}
+					}
+					job = (Runnable) jobs.removeFirst();
+				}
+				try {
+					job.run();
+				} catch (RuntimeException e) {
+					// We don't have anyone to report this to...
+					e.printStackTrace();
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Cached lookup result.
+	 */
+	private static class Entry {
+		// Resolved addresses; null for a failed lookup
+		final InetAddress[] addresses;
+		// The lookup error for a failed lookup
+		final UnknownHostException error;
+		long expires;
+		// Whether a background refresh is in progress
+		boolean refreshing;
+		// Round-robin position
+		private int position;
+
+		Entry(InetAddress[] addresses, UnknownHostException error, long expires) {
+			this.addresses = addresses;
+			this.error = error;
+			this.expires = expires;
+			this.refreshing = false;
+			this.position = 0;
+		}
+
+		/**
+		 * Returns the addresses rotated to the next round-robin position.
+		 *
+		 * @throws UnknownHostException if this entry is a failed lookup.
+		 */
+		synchronized InetAddress[] next()
+		throws UnknownHostException {
+			if (addresses == null) {
+				// Fresh exception, so the stack trace points to the caller
+				UnknownHostException e = new UnknownHostException(error.getMessage());
+				e.initCause(error);
+				throw e;
+			}
+			int n = addresses.length;
+			InetAddress[] res = new InetAddress[n];
+			for (int i = 0; i < n; ++i) {
+				res[i] = addresses[(position + i) % n];
+			}
+			position = (position + 1) % n;
+			return res;
+		}
+	}
+}
@@ -0,0 +1,361 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.guardtime.asn1.Asn1FormatException;
+import com.guardtime.asn1.CertTokenResponse;
+import com.guardtime.tsp.GTCertTokenResponse;
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.util.Log;
+import com.guardtime.util.Util;
+
+
+
+/**
+ * Local store of extension service responses.
+ * <p>
+ * An extension request carries nothing but the history identifier of the
+ * timestamp, that is the second of the GuardTime calendar the timestamp
+ * was registered in, and the service answers with the calendar hash chain
+ * from that second to its latest publication. All timestamps registered in
+ * the same second are therefore extended with the same response. The mirror
+ * keeps the responses it has seen, indexed by history identifier and
+ * publication identifier, and extends further timestamps of the same
+ * second locally; only timestamps of seconds not seen before cost a network
+ * call.
+ * <p>
+ * A response is only stored after it has successfully extended a
+ * timestamp, and a stored response that fails to extend a timestamp is
+ * replaced with a fresh one from the service. The extended timestamps still
+ * have to be verified, just like the ones extended over the network.
+ * <p>
+ * The responses are kept in an append-only file, so the mirror survives
+ * restarts; only the index is held in memory. When several responses are
+ * stored for one second, the one with the latest publication is used.
+ *
+ * @see ExtensionScheduler#setCalendarMirror(CalendarMirror)
+ *
+ * @since 0.4
+ */
+public class CalendarMirror {
+	// File layout: magic, then records of history ID, publication ID,
+	// response length, CRC32 of the response and the DER-encoded response
+	private static final int MAGIC = 0x47544331; // "GTC1"
+	private static final int RECORD_HEADER = 24;
+
+	private final RandomAccessFile file;
+	// Maps history ID to the Location of the response with the latest
+	// publication
+	private final Map index;
+	private long hitCount;
+	private long missCount;
+
+
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Opens the mirror stored in the given file, creating the file if
+	 * needed.
+	 *
+	 * @param file the file the responses are stored in.
+	 *
+	 * @throws IOException if the file can not be read or is not a mirror
+	 * 			file.
+	 */
+	public CalendarMirror(File file)
+	throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("invalid file: null");
+		}
+		this.file = new RandomAccessFile(file, "rw");
+		index = new HashMap();
+		try {
+			load();
+		} catch (IOException e) {
+			this.file.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Returns the number of calendar seconds with a stored response.
+	 *
+	 * @return number of history identifiers in the mirror.
+	 */
+	public synchronized int size() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the latest publication identifier stored for the given
+	 * history identifier.
+	 *
+	 * @param historyId history identifier, in seconds since 1970-01-01
+	 * 			00:00:00 UTC.
+	 *
+	 * @return publication identifier, or {@code -1} if no response is stored
+	 * 			for the history identifier.
+	 */
+	public synchronized long getPublicationId(long historyId) {
+		Location location = (Location) index.get(new Long(historyId));
+		return (location == null) ? -1 : location.publicationId;
+	}
+
+	/**
+	 * Returns the number of timestamps extended from the mirror.
+	 *
+	 * @return hit count.
+	 */
+	public synchronized long getHitCount() {
+		return hitCount;
+	}
+
+	/**
+	 * Returns the number of timestamps that had to be extended over the
+	 * network.
+	 *
+	 * @return miss count.
+	 */
+	public synchronized long getMissCount() {
+		return missCount;
+	}
+
+
+
+	/**
+	 * Extends the given timestamp, from the mirror if possible and using
+	 * the extension service at the given URL otherwise.
+	 *
+	 * @param timestamp timestamp to be extended.
+	 * @param verifierUrl extension service URL.
+	 *
+	 * @return the extended timestamp.
+	 *
+	 * @throws GTException if timestamp extension fails.
+	 * @throws IOException if transport error occurs.
+	 *
+	 * @see SimpleHttpStamper#extend(GTTimestamp, URL)
+	 */
+	public GTTimestamp extend(GTTimestamp timestamp, URL verifierUrl)
+	throws GTException, IOException {
+		if (extendLocally(timestamp)) {
+			return timestamp;
+		}
+
+		HttpStamper stamper = HttpStamper.getInstance();
+		ResponseHandler handler = stamper.addExtensionRequest(timestamp, verifierUrl, 0);
+		byte[] response = Util.readAll(HttpClient.getResponseContents(handler.receiveSharedResponse(0)));
+		GTCertTokenResponse certTokenResponse = GTCertTokenResponse.getInstance(response);
+		int statusCode = certTokenResponse.getStatusCode();
+		if (statusCode != 0 && statusCode != 1) {
+			throw new GTException("service returned error " + certTokenResponse.getFailCode() + ": " + certTokenResponse.getFailMessage());
+		}
+		timestamp.extend(certTokenResponse);
+		store(timestamp, response);
+		return timestamp;
+	}
+
+	/**
+	 * Extends the given timestamp with a stored response, if there is one.
+	 *
+	 * @param timestamp timestamp to be extended.
+	 *
+	 * @return {@code true} if the timestamp was extended; {@code false} if
+	 * 			it has to be extended over the network.
+	 *
+	 * @throws IOException if the mirror file can not be read.
+	 */
+	public boolean extendLocally(GTTimestamp timestamp)
+	throws IOException {
+		long historyId = getHistoryId(timestamp);
+		byte[] response;
+		synchronized (this) {
+			Location location = (Location) index.get(new Long(historyId));
+			if (location == null) {
+				++missCount;
+				return false;
+			}
+			response = read(location);
+		}
+
+		try {
+			timestamp.extend(GTCertTokenResponse.getInstance(response));
+		} catch (GTException e) {
+			Log.warning("Stored extension response for {} rejected: {}", new Long(historyId), e.getMessage());
+			synchronized (this) {
+				index.remove(new Long(historyId));
+				++missCount;
+			}
+			return false;
+		}
+		synchronized (this) {
+			++hitCount;
+		}
+		return true;
+	}
+
+	/**
+	 * Closes the mirror file.
+	 *
+	 * @throws IOException if the file can not be closed.
+	 */
+	public synchronized void close()
+	throws IOException {
+		file.close();
+	}
+
+
+
+	/**
+	 * Stores the extension service response that has extended the given
+	 * timestamp.
+	 *
+	 * @param timestamp the timestamp, extended with the response.
+	 * @param response DER-encoded extension service response.
+	 *
+	 * @throws IOException if the response can not be written.
+	 */
+	void store(GTTimestamp timestamp, byte[] response)
+	throws IOException {
+		long historyId = getHistoryId(timestamp);
+		long publicationId;
+		try {
+			CertTokenResponse certTokenResponse = CertTokenResponse.getInstance(new ByteArrayInputStream(response));
+			publicationId = certTokenResponse.getToken().getPublishedData().getPublicationId().longValue();
+		} catch (Asn1FormatException e) {
+			// Already parsed once when extending the timestamp
+			throw new IllegalArgumentException("invalid extension response: " + e.getMessage());
+		}
+
+		synchronized (this) {
+			Location location = (Location) index.get(new Long(historyId));
+			if (location != null && location.publicationId >= publicationId) {
+				return;
+			}
+			long offset = file.length();
+			file.seek(offset);
+			file.writeLong(historyId);
+			file.writeLong(publicationId);
+			file.writeInt(response.length);
+			file.writeInt(checksum(response));
+			file.write(response);
+			index.put(new Long(historyId), new Location(publicationId, offset + RECORD_HEADER, response.length));
+		}
+	}
+
+	/**
+	 * Reads the index from the mirror file. A record cut short by a crash is
+	 * dropped from the end of the file.
+	 */
+	private void load()
+	throws IOException {
+		long length = file.length();
+		if (length == 0) {
+			file.writeInt(MAGIC);
+			return;
+		}
+		if (length < 4 || file.readInt() != MAGIC) {
+			throw new IOException("Not a calendar mirror file");
+		}
+
+		long offset = 4;
+		while (offset + RECORD_HEADER <= length) {
+			file.seek(offset);
+			long historyId = file.readLong();
+			long publicationId = file.readLong();
+			int size = file.readInt();
+			int checksum = file.readInt();
+			if (size < 0 || offset + RECORD_HEADER + size > length) {
+				break;
+			}
+			Location location = new Location(publicationId, offset + RECORD_HEADER, size);
+			if (checksum(read(location)) != checksum) {
+				break;
+			}
+			Location previous = (Location) index.get(new Long(historyId));
+			if (previous == null || previous.publicationId < publicationId) {
+				index.put(new Long(historyId), location);
+			}
+			offset += RECORD_HEADER + size;
+		}
+		if (offset < length) {
+			Log.warning("Calendar mirror truncated at {}", new Long(offset));
+			file.setLength(offset);
+		}
+	}
+
+	/**
+	 * Reads a stored response. Must be called with the lock held.
+	 */
+	private byte[] read(Location location)
+	throws IOException {
+		byte[] response = new byte[location.length];
+		file.seek(location.offset);
+		file.readFully(response);
+		return response;
+	}
+
+	/**
+	 * Returns the history identifier of the given timestamp. This is the
+	 * value sent in its extension request, and also its registration time.
+	 */
+	private static long getHistoryId(GTTimestamp timestamp) {
+		return timestamp.getRegisteredTime().getTime() / 1000;
+	}
+
+	/**
+	 * Computes the checksum of a stored response.
+	 */
+	private static int checksum(byte[] response) {
+		CRC32 crc = new CRC32();
+		crc.update(response);
+		return (int) crc.getValue();
+	}
+
+
+
+	/**
+	 * Position of a stored response in the mirror file.
+	 */
+	private static class Location {
+		final long publicationId;
+		final long offset;
+		final int length;
+
+		Location(long publicationId, long offset, int length) {
+			this.publicationId = publicationId;
+			this.offset = offset;
+			this.length = length;
+		}
+	}
+}
@@ -0,0 +1,202 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+
+
+/**
+ * Stops sending requests to a service that keeps failing.
+ * <p>
+ * The breaker starts {@link #CLOSED}, letting all requests through. After
+ * {@link #getFailureThreshold()} consecutive failures it goes
+ * {@link #OPEN}, and requests fail at once without touching the network.
+ * After {@link #getOpenTime()} it goes {@link #HALF_OPEN} and lets a single
+ * probe request through: if the probe succeeds, the breaker closes again,
+ * otherwise it stays open for another period.
+ * <p>
+ * A request counts as failed when it ends with an I/O error or the service
+ * answers with a server error (HTTP status 5xx).
+ *
+ * @see HttpStamper#getCircuitBreaker(java.net.URL)
+ *
+ * @since 0.4
+ */
+public class CircuitBreaker {
+	/**
+	 * State where requests are let through.
+	 */
+	public static final int CLOSED = 0;
+
+	/**
+	 * State where requests fail without being sent.
+	 */
+	public static final int OPEN = 1;
+
+	/**
+	 * State where a probe request is let through to check whether the
+	 * service has recovered.
+	 */
+	public static final int HALF_OPEN = 2;
+
+	/**
+	 * The default number of consecutive failures that opens the breaker.
+	 */
+	public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+
+	/**
+	 * The default time the breaker stays open, in milliseconds.
+	 */
+	public static final long DEFAULT_OPEN_TIME = 10000;
+
+	private final int failureThreshold;
+	private final long openTime;
+	private int state;
+	private int failures;
+	private long openUntil;
+	private boolean probing;
+
+
+
+	/**
+	 * Default constructor.
+	 * <p>
+	 * Creates a breaker with {@link #DEFAULT_FAILURE_THRESHOLD} and
+	 * {@link #DEFAULT_OPEN_TIME}.
+	 */
+	public CircuitBreaker() {
+		this(DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_TIME);
+	}
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param failureThreshold number of consecutive failures that opens the
+	 * 			breaker.
+	 * @param openTime time the breaker stays open before a probe, in
+	 * 			milliseconds.
+	 */
+	public CircuitBreaker(int failureThreshold, long openTime) {
+		if (failureThreshold < 1) {
+			throw new IllegalArgumentException("invalid failure threshold: " + failureThreshold);
+		}
+		if (openTime < 0) {
+			throw new IllegalArgumentException("invalid open time: " + openTime);
+		}
+		this.failureThreshold = failureThreshold;
+		this.openTime = openTime;
+		this.state = CLOSED;
+	}
+
+	/**
+	 * Returns the number of consecutive failures that opens the breaker.
+	 *
+	 * @return failure threshold.
+	 */
+	public int getFailureThreshold() {
+		return failureThreshold;
+	}
+
+	/**
+	 * Returns the time the breaker stays open before a probe.
+	 *
+	 * @return open time, in milliseconds.
+	 */
+	public long getOpenTime() {
+		return openTime;
+	}
+
+	/**
+	 * Returns the state of the breaker.
+	 *
+	 * @return {@link #CLOSED}, {@link #OPEN} or {@link #HALF_OPEN}.
+	 */
+	public synchronized int getState() {
+		if (state == OPEN && System.currentTimeMillis() >= openUntil) {
+			return HALF_OPEN;
+		}
+		return state;
+	}
+
+	/**
+	 * Returns the number of consecutive failures.
+	 *
+	 * @return failure count since the last success.
+	 */
+	public synchronized int getFailureCount() {
+		return failures;
+	}
+
+	/**
+	 * Checks whether a request may be sent. If this returns {@code true},
+	 * the outcome of the request must be reported with
+	 * {@link #recordSuccess()}, {@link #recordFailure()} or
+	 * {@link #recordAbandoned()}.
+	 *
+	 * @return {@code true} if the request may be sent.
+	 */
+	public synchronized boolean allowRequest() {
+		if (state == CLOSED) {
+			return true;
+		}
+		if (state == OPEN) {
+			if (System.currentTimeMillis() < openUntil) {
+				return false;
+			}
+			state = HALF_OPEN;
+		}
+		if (probing) {
+			return false;
+		}
+		probing = true;
+		return true;
+	}
+
+	/**
+	 * Records a successful request, closing the breaker.
+	 */
+	public synchronized void recordSuccess() {
+		state = CLOSED;
+		failures = 0;
+		probing = false;
+	}
+
+	/**
+	 * Records a failed request, opening the breaker if the failure threshold
+	 * has been reached or the probe failed.
+	 */
+	public synchronized void recordFailure() {
+		++failures;
+		if (state == HALF_OPEN || failures >= failureThreshold) {
+			state = OPEN;
+			openUntil = System.currentTimeMillis() + openTime;
+		}
+		probing = false;
+	}
+
+	/**
+	 * Records a request that ended without telling anything about the
+	 * service, such as a canceled one.
+	 */
+	public synchronized void recordAbandoned() {
+		probing = false;
+	}
+}
@@ -0,0 +1,622 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+import com.guardtime.tsp.GTCertTokenResponse;
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTPublicationsFile;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.util.Log;
+import com.guardtime.util.Util;
+
+
+
+/**
+ * Extends timestamps as soon as a publication covers them.
+ * <p>
+ * A timestamp can only be extended after a publication newer than the
+ * timestamp has been made; before that, the extension service answers
+ * with error 100 ("timestamp too new"). Instead of trying and failing, the
+ * scheduler keeps the timestamps handed to {@link #schedule(GTTimestamp,
+ * Callback)} ordered by registration time, and watches the publications
+ * file for new publications. When one appears, exactly the timestamps it
+ * covers are released and sent to the extension service, at most
+ * {@link #getMaxInFlight()} at a time.
+ * <p>
+ * The publications file is downloaded every {@link #getPollInterval()}
+ * milliseconds. A publications file obtained by other means can be handed
+ * over with {@link #setPublicationsFile(GTPublicationsFile)}. The file is
+ * only used to decide when to try extending, so its signature is not
+ * checked here; the extended timestamps still have to be verified.
+ * <p>
+ * Should the extension service still answer "timestamp too new", for
+ * example because it has not caught up with the publications file, the
+ * timestamp is tried again at the next poll.
+ * <p>
+ * With a {@link CalendarMirror} set, released timestamps are extended from
+ * the mirror when possible, and the responses of the extension service are
+ * stored in the mirror for further timestamps of the same second.
+ *
+ * @see SimpleHttpStamper#extend(GTTimestamp, URL)
+ *
+ * @since 0.4
+ */
+public class ExtensionScheduler {
+	/**
+	 * The default interval between publications file downloads, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_POLL_INTERVAL = 3600000;
+
+	/**
+	 * The default maximum number of extension requests sent at the same
+	 * time.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+	/**
+	 * The default timeout of extension requests, in milliseconds.
+	 */
+	public static final long DEFAULT_REQUEST_TIMEOUT = 30000;
+
+	/**
+	 * Extension service error: no publication covers the timestamp yet.
+	 */
+	private static final int TIMESTAMP_TOO_NEW = 100;
+
+	private final URL verifierUrl;
+	private final URL publicationsFileUrl;
+
+	// Timestamps waiting for a publication, oldest first
+	private final PriorityQueue waiting;
+	// Timestamps covered by a publication, waiting to be sent
+	private final LinkedList ready;
+	// Timestamps to try again at the next poll
+	private final List deferred;
+
+	// Last publication time, in seconds; -1 if not known yet
+	private long lastPublication;
+	private long pollInterval;
+	private long nextPoll;
+	private int maxInFlight;
+	private long requestTimeout;
+	private CalendarMirror calendarMirror;
+	private int inFlight;
+	private long extendedCount;
+	private long failedCount;
+	private boolean closed;
+
+	private final Thread worker;
+
+
+
+	/**
+	 * Callback interface for the outcome of extensions.
+	 * <p>
+	 * Methods are called on the transport or scheduler threads, so they
+	 * should return quickly.
+	 */
+	public interface Callback {
+		/**
+		 * Called when the timestamp has been extended.
+		 *
+		 * @param timestamp the timestamp, now extended.
+		 */
+		public void extended(GTTimestamp timestamp);
+
+		/**
+		 * Called when the timestamp could not be extended.
+		 *
+		 * @param timestamp the timestamp.
+		 * @param error {@code GTException} if the extension service refused
+		 * 			the request or the response was invalid,
+		 * 			{@code IOException} if the service could not be reached
+		 * 			or the scheduler was closed.
+		 */
+		public void failed(GTTimestamp timestamp, Exception error);
+	}
+
+
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param verifierUrl extension service URL.
+	 * @param publicationsFileUrl publications file URL, or {@code null} if
+	 * 			publications files will be set with
+	 * 			{@link #setPublicationsFile(GTPublicationsFile)}.
+	 */
+	public ExtensionScheduler(URL verifierUrl, URL publicationsFileUrl) {
+		if (verifierUrl == null) {
+			throw new IllegalArgumentException("invalid verifier URL: null");
+		}
+		this.verifierUrl = verifierUrl;
+		this.publicationsFileUrl = publicationsFileUrl;
+		waiting = new PriorityQueue(64, new Comparator() {
+			public int compare(Object o1, Object o2) {
+				long t1 = ((Task) o1).registered;
+				long t2 = ((Task) o2).registered;
+				return (t1 < t2) ? -1 : ((t1 == t2) ? 0 : 1);
+			}
+		});
+		ready = new LinkedList();
+		deferred = new ArrayList();
+		lastPublication = -1;
+		pollInterval = DEFAULT_POLL_INTERVAL;
+		nextPoll = 0;
+		maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+		requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+		worker = new Thread(new Runnable() {
+			public void run() {
+				work();
+			}
+		}, "ExtensionScheduler");
+		worker.setDaemon(true);
+		worker.start();
+	}
+
+	/**
+	 * Returns the interval between publications file downloads.
+	 *
+	 * @return poll interval, in milliseconds.
+	 */
+	public synchronized long getPollInterval() {
+		return pollInterval;
+	}
+
+	/**
+	 * Sets the interval between publications file downloads. The next
+	 * download is rescheduled accordingly.
+	 *
+	 * @param pollInterval poll interval, in milliseconds.
+	 */
+	public synchronized void setPollInterval(long pollInterval) {
+		if (pollInterval <= 0) {
+			throw new IllegalArgumentException("invalid poll interval: " + pollInterval);
+		}
+		nextPoll += pollInterval - this.pollInterval;
+		this.pollInterval = pollInterval;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the maximum number of extension requests sent at the same
+	 * time.
+	 *
+	 * @return maximum number of requests in flight.
+	 */
+	public synchronized int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Sets the maximum number of extension requests sent at the same time.
+	 *
+	 * @param maxInFlight maximum number of requests in flight.
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("invalid maximum in flight: " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the timeout of extension requests.
+	 *
+	 * @return timeout, in milliseconds.
+	 */
+	public synchronized long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * Sets the timeout of extension requests.
+	 *
+	 * @param requestTimeout timeout, in milliseconds; {@code 0} means no
+	 * 			timeout.
+	 */
+	public synchronized void setRequestTimeout(long requestTimeout) {
+		if (requestTimeout < 0) {
+			throw new IllegalArgumentException("invalid request timeout: " + requestTimeout);
+		}
+		this.requestTimeout = requestTimeout;
+	}
+
+	/**
+	 * Returns the calendar mirror used to extend timestamps locally.
+	 *
+	 * @return calendar mirror, or {@code null} if not set.
+	 */
+	public synchronized CalendarMirror getCalendarMirror() {
+		return calendarMirror;
+	}
+
+	/**
+	 * Sets the calendar mirror used to extend timestamps locally.
+	 *
+	 * @param calendarMirror calendar mirror, or {@code null} to extend all
+	 * 			timestamps over the network.
+	 */
+	public synchronized void setCalendarMirror(CalendarMirror calendarMirror) {
+		this.calendarMirror = calendarMirror;
+	}
+
+	/**
+	 * Returns the time of the last known publication.
+	 *
+	 * @return last publication time, or {@code null} if no publications
+	 * 			file has been loaded yet.
+	 */
+	public synchronized Date getLastPublicationTime() {
+		return (lastPublication < 0) ? null : new Date(lastPublication * 1000);
+	}
+
+	/**
+	 * Returns the number of timestamps not extended yet, including the ones
+	 * being extended.
+	 *
+	 * @return number of pending timestamps.
+	 */
+	public synchronized int getPendingCount() {
+		return waiting.size() + ready.size() + deferred.size() + inFlight;
+	}
+
+	/**
+	 * Returns the number of timestamps extended.
+	 *
+	 * @return extended count.
+	 */
+	public synchronized long getExtendedCount() {
+		return extendedCount;
+	}
+
+	/**
+	 * Returns the number of timestamps that could not be extended.
+	 *
+	 * @return failed count.
+	 */
+	public synchronized long getFailedCount() {
+		return failedCount;
+	}
+
+
+
+	/**
+	 * Schedules the given timestamp for extension.
+	 * <p>
+	 * If the last known publication covers the timestamp already, it is
+	 * sent to the extension service right away; otherwise it waits for the
+	 * next publication. Already extended timestamps are reported to the
+	 * callback before this method returns.
+	 *
+	 * @param timestamp timestamp to extend.
+	 * @param callback the callback to receive the outcome.
+	 *
+	 * @throws IOException if the scheduler has been closed.
+	 */
+	public void schedule(GTTimestamp timestamp, Callback callback)
+	throws IOException {
+		if (timestamp == null || callback == null) {
+			throw new IllegalArgumentException("invalid extension: null");
+		}
+		if (timestamp.isExtended()) {
+			callback.extended(timestamp);
+			return;
+		}
+		synchronized (this) {
+			if (closed) {
+				throw new IOException("Extension scheduler closed");
+			}
+			waiting.add(new Task(timestamp, callback));
+			release();
+		}
+	}
+
+	/**
+	 * Hands over a publications file obtained by other means. Timestamps
+	 * covered by its last publication are released for extension, including
+	 * those the service found too new for an earlier publication.
+	 *
+	 * @param publicationsFile publications file.
+	 */
+	public void setPublicationsFile(GTPublicationsFile publicationsFile) {
+		if (publicationsFile == null) {
+			throw new IllegalArgumentException("invalid publications file: null");
+		}
+		long time = publicationsFile.getLastPublicationTime().getTime() / 1000;
+		synchronized (this) {
+			if (time > lastPublication) {
+				Log.debug("New publication: {}", publicationsFile.getLastPublicationTime());
+				lastPublication = time;
+				// Without a publications file URL there is no poll to
+				// give the deferred timestamps another chance
+				waiting.addAll(deferred);
+				deferred.clear();
+				release();
+			}
+		}
+	}
+
+	/**
+	 * Stops the scheduler. Timestamps not extended yet are reported to their
+	 * callbacks as failed with an {@code IOException}.
+	 */
+	public void close() {
+		List tasks = new ArrayList();
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			tasks.addAll(waiting);
+			tasks.addAll(ready);
+			tasks.addAll(deferred);
+			waiting.clear();
+			ready.clear();
+			deferred.clear();
+			failedCount += tasks.size();
+			notifyAll();
+		}
+		for (int i = 0; i < tasks.size(); i++) {
+			Task task = (Task) tasks.get(i);
+			task.failed(new IOException("Extension scheduler closed"));
+		}
+	}
+
+
+
+	/**
+	 * Moves the timestamps covered by the last publication to the ready
+	 * queue. Must be called with the lock held.
+	 */
+	private void release() {
+		int count = 0;
+		while (!waiting.isEmpty() && ((Task) waiting.peek()).registered <= lastPublication) {
+			ready.addLast(waiting.poll());
+			++count;
+		}
+		if (count > 0) {
+			Log.debug("Released {} timestamps for extension", new Integer(count));
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Body of the scheduler thread: downloads the publications file when
+	 * due and sends the ready timestamps.
+	 */
+	private void work() {
+		HttpStamper stamper;
+		try {
+			stamper = HttpStamper.getInstance();
+		} catch (IOException e) {
+			Log.error("Cannot start extension scheduler: {}", e.getMessage());
+			return;
+		}
+
+		while (true) {
+			final Task task;
+			long timeout;
+			CalendarMirror mirror;
+			synchronized (this) {
+				while (true) {
+					if (closed) {
+						return;
+					}
+					long now = System.currentTimeMillis();
+					if (publicationsFileUrl != null && now >= nextPoll) {
+						nextPoll = now + pollInterval;
+						task = null;
+						break;
+					}
+					if (!ready.isEmpty() && inFlight < maxInFlight) {
+						task = (Task) ready.removeFirst();
+						++inFlight;
+						break;
+					}
+					long wait = (publicationsFileUrl == null) ? 0 : nextPoll - now;
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						// Nothing here
+					}
+				}
+				timeout = requestTimeout;
+				mirror = calendarMirror;
+			}
+
+			if (task == null) {
+				poll(stamper, timeout);
+				continue;
+			}
+
+			if (mirror != null) {
+				try {
+					if (mirror.extendLocally(task.timestamp)) {
+						finish(task, null);
+						continue;
+					}
+				} catch (IOException e) {
+					Log.warning("Cannot read calendar mirror: {}", e.getMessage());
+				}
+			}
+
+			ResponseHandler handler;
+			try {
+				handler = stamper.addExtensionRequest(task.timestamp, verifierUrl, timeout);
+			} catch (IOException e) {
+				finish(task, e);
+				continue;
+			}
+			handler.setListener(new ResponseHandler.Listener() {
+				public void done(ResponseHandler handler) {
+					complete(task, handler);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Downloads the publications file and releases the timestamps covered by
+	 * a new publication. Timestamps deferred by "timestamp too new" answers
+	 * are given another chance.
+	 */
+	private void poll(HttpStamper stamper, long timeout) {
+		synchronized (this) {
+			waiting.addAll(deferred);
+			deferred.clear();
+		}
+
+		GTPublicationsFile publicationsFile = null;
+		try {
+			ResponseHandler handler = stamper.addPublicationFileRequest(publicationsFileUrl, timeout);
+			byte[] response = handler.receiveSharedResponse(0);
+			if (HttpClient.getStatusCode(response) != 200) {
+				throw new IOException("HTTP error " + HttpClient.getStatusCode(response));
+			}
+			publicationsFile = GTPublicationsFile.getInstance(HttpClient.getResponseContents(response));
+		} catch (IOException e) {
+			Log.warning("Cannot download publications file: {}", e.getMessage());
+		} catch (IllegalArgumentException e) {
+			Log.warning("Invalid publications file: {}", e.getMessage());
+		}
+
+		if (publicationsFile != null) {
+			setPublicationsFile(publicationsFile);
+		}
+		synchronized (this) {
+			release();
+		}
+	}
+
+	/**
+	 * Handles the response to an extension request. Called on the transport
+	 * worker thread.
+	 */
+	private void complete(Task task, ResponseHandler handler) {
+		IOException error = handler.getError();
+		if (error != null) {
+			finish(task, error);
+			return;
+		}
+
+		try {
+			byte[] body = Util.readAll(HttpClient.getResponseContents(handler.receiveSharedResponse(0)));
+			GTCertTokenResponse response = GTCertTokenResponse.getInstance(body);
+			int statusCode = response.getStatusCode();
+			if (statusCode == 0 || statusCode == 1) {
+				task.timestamp.extend(response);
+				store(task.timestamp, body);
+				finish(task, null);
+			} else if (response.getFailCode() == TIMESTAMP_TOO_NEW) {
+				synchronized (this) {
+					--inFlight;
+					if (!closed) {
+						deferred.add(task);
+						notifyAll();
+						return;
+					}
+				}
+				task.failed(new IOException("Extension scheduler closed"));
+			} else {
+				finish(task, new GTException("service returned error " + response.getFailCode() + ": " + response.getFailMessage()));
+			}
+		} catch (GTException e) {
+			finish(task, e);
+		} catch (IOException e) {
+			finish(task, e);
+		}
+	}
+
+	/**
+	 * Stores an extension response in the calendar mirror, if one is set.
+	 */
+	private void store(GTTimestamp timestamp, byte[] response) {
+		CalendarMirror mirror;
+		synchronized (this) {
+			mirror = calendarMirror;
+		}
+		if (mirror != null) {
+			try {
+				mirror.store(timestamp, response);
+			} catch (IOException e) {
+				Log.warning("Cannot write calendar mirror: {}", e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Reports the outcome of an extension request.
+	 *
+	 * @param error the error, or {@code null} if the timestamp was extended.
+	 */
+	private void finish(Task task, Exception error) {
+		synchronized (this) {
+			--inFlight;
+			if (error == null) {
+				++extendedCount;
+			} else {
+				++failedCount;
+			}
+			notifyAll();
+		}
+		if (error == null) {
+			task.callback.extended(task.timestamp);
+		} else {
+			task.failed(error);
+		}
+	}
+
+
+
+	/**
+	 * Timestamp waiting for extension.
+	 */
+	private static class Task {
+		final GTTimestamp timestamp;
+		final Callback callback;
+		// Registration time, in seconds
+		final long registered;
+
+		Task(GTTimestamp timestamp, Callback callback) {
+			this.timestamp = timestamp;
+			this.callback = callback;
+			this.registered = timestamp.getRegisteredTime().getTime() / 1000;
+		}
+
+		void failed(Exception error) {
+			callback.failed(timestamp, error);
+		}
+	}
+}
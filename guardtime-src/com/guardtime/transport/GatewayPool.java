@@ -0,0 +1,658 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.IOException;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Timer;
+import java.util.TimerTask;
+
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTTimestamp;
+
+
+
+/**
+ * Spreads requests over several equivalent gateways, preferring the fastest
+ * and most reliable ones.
+ * <p>
+ * For each gateway, the pool keeps an exponentially weighted moving average
+ * (EWMA) of the response time and of the error rate, and sends each request
+ * to the gateway with the lowest expected time to a successful response,
+ * taking into account the requests already in progress there. Gateways that
+ * have not been used for a while are probed with a request now and then, so
+ * that a recovered gateway gets its share of the traffic back.
+ * <p>
+ * If the chosen gateway fails, the request is sent to the next best one.
+ * With hedging enabled (see {@link #setHedgingEnabled(boolean)}), if there is
+ * no response from the first gateway by the time most responses from it have
+ * usually arrived ({@link #getHedgePercentile()}), a duplicate request is also
+ * sent to the next best gateway. The first successful response is used and
+ * the other request is canceled. This cuts the tail latency caused by a slow
+ * gateway at the cost of a few percent of extra requests.
+ * <p>
+ * Requests are sent using an {@link HttpStamper}, so responses are received
+ * with {@link HttpStamper#receiveTimestampResponse(ResponseHandler, long)}
+ * and {@link HttpStamper#receiveExtensionResponse(ResponseHandler, long)} as
+ * usual. A pool should contain gateways of one kind only: either stamping or
+ * extension services.
+ *
+ * @since 0.4
+ */
+public class GatewayPool {
+	/**
+	 * The default weight of the latest sample in the moving averages.
+	 */
+	public static final double DEFAULT_SMOOTHING = 0.2;
+
+	/**
+	 * The default response time percentile after which a hedged request is
+	 * sent.
+	 */
+	public static final int DEFAULT_HEDGE_PERCENTILE = 95;
+
+	/**
+	 * The delay before a hedged request, in milliseconds, used until enough
+	 * response times have been collected from the gateway.
+	 */
+	public static final long DEFAULT_HEDGE_DELAY = 500;
+
+	/**
+	 * The maximum number of gateways tried for one request.
+	 */
+	private static final int MAX_ATTEMPTS = 2;
+
+	/**
+	 * Number of recent response times kept per gateway for the percentile.
+	 */
+	private static final int SAMPLE_WINDOW = 128;
+
+	/**
+	 * Minimum number of response times needed for the percentile.
+	 */
+	private static final int MIN_SAMPLES = 16;
+
+	/**
+	 * Time after which an unused gateway is probed, in milliseconds.
+	 */
+	private static final long PROBE_INTERVAL = 30000;
+
+	/**
+	 * Lower bound for the success rate used in the cost, so that failing
+	 * gateways get a high but finite cost.
+	 */
+	private static final double MIN_SUCCESS_RATE = 0.05;
+
+	private final Gateway[] gateways;
+	private final HttpStamper stamper;
+	private final double smoothing;
+	private boolean hedgingEnabled;
+	private int hedgePercentile;
+
+	// Schedules hedged and failover requests; created on first use
+	private Timer timer;
+
+
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Requests are sent using the singleton {@link HttpStamper}.
+	 *
+	 * @param urls gateway URLs.
+	 *
+	 * @throws IOException if the stamper cannot be started.
+	 */
+	public GatewayPool(URL[] urls)
+	throws IOException {
+		this(urls, HttpStamper.getInstance(), DEFAULT_SMOOTHING);
+	}
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param urls gateway URLs.
+	 * @param stamper stamper to send the requests with.
+	 * @param smoothing weight of the latest sample in the moving averages,
+	 * 			between {@code 0} and {@code 1}.
+	 */
+	public GatewayPool(URL[] urls, HttpStamper stamper, double smoothing) {
+		if (urls == null || urls.length == 0) {
+			throw new IllegalArgumentException("invalid gateway URLs: none");
+		}
+		if (stamper == null) {
+			throw new IllegalArgumentException("invalid stamper: null");
+		}
+		if (!(smoothing > 0 && smoothing <= 1)) {
+			throw new IllegalArgumentException("invalid smoothing: " + smoothing);
+		}
+		this.gateways = new Gateway[urls.length];
+		for (int i = 0; i < urls.length; ++i) {
+			if (urls[i] == null) {
+				throw new IllegalArgumentException("invalid gateway URL: null");
+			}
+			this.gateways[i] = new Gateway(urls[i]);
+		}
+		this.stamper = stamper;
+		this.smoothing = smoothing;
+		this.hedgingEnabled = false;
+		this.hedgePercentile = DEFAULT_HEDGE_PERCENTILE;
+	}
+
+	/**
+	 * Returns the gateway URLs of this pool.
+	 *
+	 * @return gateway URLs, in the order given to the constructor.
+	 */
+	public URL[] getGateways() {
+		URL[] urls = new URL[gateways.length];
+		for (int i = 0; i < gateways.length; ++i) {
+			urls[i] = gateways[i].url;
+		}
+		return urls;
+	}
+
+	/**
+	 * Checks whether hedged requests are sent.
+	 *
+	 * @return {@code true} if hedging is enabled.
+	 */
+	public synchronized boolean isHedgingEnabled() {
+		return hedgingEnabled;
+	}
+
+	/**
+	 * Enables or disables hedged requests. Hedging is disabled by default.
+	 *
+	 * @param hedgingEnabled {@code true} to send a duplicate request to
+	 * 			another gateway when the first one is slow.
+	 */
+	public synchronized void setHedgingEnabled(boolean hedgingEnabled) {
+		this.hedgingEnabled = hedgingEnabled;
+	}
+
+	/**
+	 * Returns the response time percentile after which a hedged request is
+	 * sent.
+	 *
+	 * @return percentile, between {@code 1} and {@code 99}.
+	 */
+	public synchronized int getHedgePercentile() {
+		return hedgePercentile;
+	}
+
+	/**
+	 * Sets the response time percentile after which a hedged request is
+	 * sent. With the default of {@code 95}, about 5% of the requests are
+	 * hedged when the gateways work normally.
+	 *
+	 * @param hedgePercentile percentile, between {@code 1} and {@code 99}.
+	 */
+	public synchronized void setHedgePercentile(int hedgePercentile) {
+		if (hedgePercentile < 1 || hedgePercentile > 99) {
+			throw new IllegalArgumentException("invalid percentile: " + hedgePercentile);
+		}
+		this.hedgePercentile = hedgePercentile;
+	}
+
+	/**
+	 * Returns the average response time of the given gateway.
+	 *
+	 * @param url gateway URL.
+	 *
+	 * @return moving average of successful response times, in milliseconds,
+	 * 			or {@code -1} if there have been no successful responses.
+	 */
+	public double getLatency(URL url) {
+		return getGateway(url).getLatency();
+	}
+
+	/**
+	 * Returns the error rate of the given gateway.
+	 *
+	 * @param url gateway URL.
+	 *
+	 * @return moving average of the failure ratio, between {@code 0} and
+	 * 			{@code 1}.
+	 */
+	public double getErrorRate(URL url) {
+		return getGateway(url).getErrorRate();
+	}
+
+	/**
+	 * Adds timestamping request to the queue of the best gateway.
+	 *
+	 * @param dataHash data hash to retrieve timestamp for.
+	 * @param timeout transaction timeout, in milliseconds, covering all the
+	 * 			gateways tried.
+	 *
+	 * @return response handler; use
+	 * 			{@link HttpStamper#receiveTimestampResponse(ResponseHandler, long)}
+	 * 			to receive the response.
+	 *
+	 * @throws IOException if transport IO error occurs.
+	 *
+	 * @see HttpStamper#addTimestampRequest(GTDataHash, URL, long)
+	 */
+	public ResponseHandler addTimestampRequest(final GTDataHash dataHash, long timeout)
+	throws IOException {
+		return send(new Call() {
+			public ResponseHandler send(URL url, long timeout)
+			throws IOException {
+				return stamper.addTimestampRequest(dataHash, url, timeout);
+			}
+		}, timeout);
+	}
+
+	/**
+	 * Adds timestamp extension request to the queue of the best gateway.
+	 *
+	 * @param timestamp timestamp to extend.
+	 * @param timeout transaction timeout, in milliseconds, covering all the
+	 * 			gateways tried.
+	 *
+	 * @return response handler; use
+	 * 			{@link HttpStamper#receiveExtensionResponse(ResponseHandler, long)}
+	 * 			to receive the response.
+	 *
+	 * @throws IOException if transport IO error occurs.
+	 *
+	 * @see HttpStamper#addExtensionRequest(GTTimestamp, URL, long)
+	 */
+	public ResponseHandler addExtensionRequest(final GTTimestamp timestamp, long timeout)
+	throws IOException {
+		return send(new Call() {
+			public ResponseHandler send(URL url, long timeout)
+			throws IOException {
+				return stamper.addExtensionRequest(timestamp, url, timeout);
+			}
+		}, timeout);
+	}
+
+
+
+	/**
+	 * Starts an exchange for the given call.
+	 */
+	private ResponseHandler send(Call call, long timeout) {
+		Exchange exchange = new Exchange(call, timeout);
+		exchange.start();
+		return exchange.result;
+	}
+
+	/**
+	 * Finds the gateway with the given URL.
+	 */
+	private Gateway getGateway(URL url) {
+		String s = url.toExternalForm();
+		for (int i = 0; i < gateways.length; ++i) {
+			if (gateways[i].url.toExternalForm().equals(s)) {
+				return gateways[i];
+			}
+		}
+		throw new IllegalArgumentException("unknown gateway: " + s);
+	}
+
+	/**
+	 * Chooses the gateway with the lowest cost among those not tried yet,
+	 * and counts a request to it as outstanding.
+	 *
+	 * @param tried flags of the gateways tried already; updated.
+	 *
+	 * @return the chosen gateway, or {@code null} if all have been tried.
+	 */
+	private Gateway choose(boolean[] tried) {
+		long now = System.currentTimeMillis();
+		int best = -1;
+		double bestCost = 0;
+		synchronized (this) {
+			for (int i = 0; i < gateways.length; ++i) {
+				if (tried[i]) {
+					continue;
+				}
+				double cost = gateways[i].getCost(now);
+				if (best < 0 || cost < bestCost) {
+					best = i;
+					bestCost = cost;
+				}
+			}
+			if (best < 0) {
+				return null;
+			}
+			tried[best] = true;
+			gateways[best].begin(now);
+		}
+		return gateways[best];
+	}
+
+	/**
+	 * Schedules a task on the timer of this pool.
+	 */
+	private synchronized void schedule(TimerTask task, long delay) {
+		if (timer == null) {
+			timer = new Timer(true);
+		}
+		timer.schedule(task, delay);
+	}
+
+	/**
+	 * Sends one kind of request to a given gateway.
+	 */
+	private interface Call {
+		ResponseHandler send(URL url, long timeout)
+		throws IOException;
+	}
+
+
+
+	/**
+	 * Statistics of one gateway.
+	 */
+	private class Gateway {
+		private final URL url;
+		private final long[] samples;
+		private int sampleCount;
+		private int nextSample;
+		private double latency;
+		private double errorRate;
+		private int outstanding;
+		private long lastUsed;
+
+		public Gateway(URL url) {
+			this.url = url;
+			this.samples = new long[SAMPLE_WINDOW];
+			this.latency = -1;
+			this.errorRate = 0;
+		}
+
+		public synchronized double getLatency() {
+			return latency;
+		}
+
+		public synchronized double getErrorRate() {
+			return errorRate;
+		}
+
+		/**
+		 * Returns the expected time to a successful response, scaled by the
+		 * number of requests in progress. Unknown and idle gateways are
+		 * cheap, so that they get probed.
+		 */
+		public synchronized double getCost(long now) {
+			if (lastUsed == 0 || now - lastUsed > PROBE_INTERVAL) {
+				return outstanding;
+			}
+			// Without successful responses, assume the default hedge delay
+			double expected = (latency < 0) ? DEFAULT_HEDGE_DELAY : latency;
+			return expected / Math.max(MIN_SUCCESS_RATE, 1 - errorRate) * (outstanding + 1);
+		}
+
+		/**
+		 * Returns the delay before hedging a request sent to this gateway.
+		 */
+		public synchronized long getHedgeDelay(int percentile) {
+			if (sampleCount < MIN_SAMPLES) {
+				return DEFAULT_HEDGE_DELAY;
+			}
+			long[] sorted = new long[sampleCount];
+			System.arraycopy(samples, 0, sorted, 0, sampleCount);
+			Arrays.sort(sorted);
+			return Math.max(1, sorted[(sampleCount - 1) * percentile / 100]);
+		}
+
+		public synchronized void begin(long now) {
+			++outstanding;
+			lastUsed = now;
+		}
+
+		/**
+		 * Records the outcome of a request; canceled requests are not
+		 * recorded.
+		 */
+		public synchronized void end(boolean canceled, boolean success, long elapsed) {
+			--outstanding;
+			if (canceled) {
+				return;
+			}
+			errorRate += smoothing * ((success ? 0 : 1) - errorRate);
+			if (success) {
+				latency = (latency < 0) ? elapsed : latency + smoothing * (elapsed - latency);
+				samples[nextSample] = elapsed;
+				nextSample = (nextSample + 1) % SAMPLE_WINDOW;
+				sampleCount = Math.min(sampleCount + 1, SAMPLE_WINDOW);
+			}
+		}
+	}
+
+
+
+	/**
+	 * Request to one gateway.
+	 */
+	private static class Attempt {
+		private final Gateway gateway;
+		private final ResponseHandler handler;
+		private final long start;
+
+		public Attempt(Gateway gateway, ResponseHandler handler, long start) {
+			this.gateway = gateway;
+			this.handler = handler;
+			this.start = start;
+		}
+	}
+
+
+
+	/**
+	 * One logical request, possibly sent to several gateways.
+	 * <p>
+	 * The first request is sent on the calling thread, later ones on the
+	 * timer thread. Completions are handled on the transport worker threads,
+	 * which must never block, so they only schedule further requests.
+	 */
+	private class Exchange {
+		private final Call call;
+		private final Timeout deadline;
+		private final ResponseHandler result;
+		private final boolean[] tried;
+		private final List attempts;
+		private int started;
+		private int outstanding;
+		private boolean done;
+		private byte[] lastResponse;
+		private IOException lastError;
+		private TimerTask hedge;
+
+		public Exchange(Call call, long timeout) {
+			this.call = call;
+			this.deadline = new Timeout(timeout);
+			this.result = new ResponseHandler();
+			this.tried = new boolean[gateways.length];
+			this.attempts = new ArrayList();
+		}
+
+		/**
+		 * Sends the first request, and schedules the hedged one if enabled.
+		 */
+		public void start() {
+			Gateway gateway;
+			synchronized (this) {
+				gateway = choose(tried);
+				++started;
+				++outstanding;
+			}
+			if (gateways.length > 1) {
+				int percentile;
+				boolean hedging;
+				synchronized (GatewayPool.this) {
+					hedging = hedgingEnabled;
+					percentile = hedgePercentile;
+				}
+				if (hedging) {
+					scheduleNext(gateway.getHedgeDelay(percentile));
+				}
+			}
+			send(gateway);
+		}
+
+		/**
+		 * Schedules the next request, replacing the one scheduled before.
+		 */
+		private synchronized void scheduleNext(long delay) {
+			if (hedge != null) {
+				hedge.cancel();
+			}
+			hedge = new TimerTask() {
+				public void run() {
+					// The timer is shared by all exchanges of the pool
+					SocketClient.setNonBlocking();
+					sendNext();
+				}
+			};
+			schedule(hedge, delay);
+		}
+
+		/**
+		 * Sends the next request, if this exchange is not over yet.
+		 */
+		private void sendNext() {
+			Gateway gateway;
+			synchronized (this) {
+				if (done || started >= MAX_ATTEMPTS || deadline.isTimedOut()) {
+					return;
+				}
+				gateway = choose(tried);
+				if (gateway == null) {
+					return;
+				}
+				++started;
+				++outstanding;
+			}
+			send(gateway);
+		}
+
+		/**
+		 * Sends a request to the given gateway. Must not be called while
+		 * holding the lock, as the transport may block for admission.
+		 */
+		private void send(Gateway gateway) {
+			long start = System.currentTimeMillis();
+			ResponseHandler handler;
+			try {
+				handler = call.send(gateway.url, deadline.getRemaining());
+			} catch (IOException x) {
+				handler = new ResponseHandler();
+				handler.setError(x);
+			}
+
+			final Attempt attempt = new Attempt(gateway, handler, start);
+			boolean late;
+			synchronized (this) {
+				attempts.add(attempt);
+				late = done;
+			}
+			if (late) {
+				handler.cancel();
+			}
+			handler.setListener(new ResponseHandler.Listener() {
+				public void done(ResponseHandler handler) {
+					finished(attempt);
+				}
+			});
+		}
+
+		/**
+		 * Handles the end of a request to one gateway.
+		 */
+		private void finished(Attempt attempt) {
+			long elapsed = System.currentTimeMillis() - attempt.start;
+			byte[] response = null;
+			IOException error = attempt.handler.getError();
+			if (error == null) {
+				try {
+					response = attempt.handler.receiveSharedResponse(0);
+				} catch (IOException x) {
+					error = x;
+				}
+			}
+			boolean success = (response != null && HttpClient.getStatusCode(response) == 200);
+
+			List losers = null;
+			boolean complete = false;
+			boolean failover = false;
+			synchronized (this) {
+				if (done) {
+					// Lost the race, or canceled after another one won
+					attempt.gateway.end(true, false, elapsed);
+					return;
+				}
+				attempt.gateway.end(false, success, elapsed);
+				--outstanding;
+				if (success) {
+					lastResponse = response;
+					complete = true;
+				} else {
+					if (response != null) {
+						// Keep the error response in case there's nothing better
+						lastResponse = response;
+					} else {
+						lastError = error;
+					}
+					if (outstanding > 0) {
+						return;
+					}
+					if (started < MAX_ATTEMPTS && started < gateways.length && !deadline.isTimedOut()) {
+						failover = true;
+					} else {
+						complete = (lastResponse != null);
+					}
+				}
+				if (!failover) {
+					done = true;
+					if (hedge != null) {
+						hedge.cancel();
+					}
+					losers = new ArrayList(attempts);
+					losers.remove(attempt);
+				}
+			}
+
+			if (failover) {
+				// Not sent from here, the transport may block for admission
+				scheduleNext(0);
+				return;
+			}
+			if (complete) {
+				result.append(lastResponse, 0, lastResponse.length);
+				result.setComplete();
+			} else {
+				result.setError(lastError);
+			}
+			for (int i = 0; i < losers.size(); ++i) {
+				((Attempt) losers.get(i)).handler.cancel();
+			}
+		}
+	}
+}
@@ -0,0 +1,613 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+
+
+/**
+ * HPACK header compression for {@link Http2Client}.
+ * <p>
+ * Implements the header block encoding defined in
+ * <a href="http://www.ietf.org/rfc/rfc7541.txt">RFC 7541</a>. Header names
+ * and values are handled as ISO-8859-1 strings; each header is represented as
+ * a two-element {@code String} array of name and value.
+ * <p>
+ * The {@link Encoder} adds the headers it sends to its dynamic table, so
+ * repeated requests to the same service refer to the previously sent
+ * {@code :authority}, {@code :path} and similar headers by index instead of
+ * sending them again.
+ */
+class Hpack {
+	/**
+	 * The default maximum size of the dynamic table, in octets.
+	 */
+	static final int DEFAULT_TABLE_SIZE = 4096;
+
+	/**
+	 * Per-entry overhead used in the dynamic table size calculation.
+	 */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	/**
+	 * The static table, indexed from 1.
+	 */
+	private static final String[][] STATIC_TABLE = {
+		null,
+		{ ":authority", "" },
+		{ ":method", "GET" },
+		{ ":method", "POST" },
+		{ ":path", "/" },
+		{ ":path", "/index.html" },
+		{ ":scheme", "http" },
+		{ ":scheme", "https" },
+		{ ":status", "200" },
+		{ ":status", "204" },
+		{ ":status", "206" },
+		{ ":status", "304" },
+		{ ":status", "400" },
+		{ ":status", "404" },
+		{ ":status", "500" },
+		{ "accept-charset", "" },
+		{ "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" },
+		{ "accept-ranges", "" },
+		{ "accept", "" },
+		{ "access-control-allow-origin", "" },
+		{ "age", "" },
+		{ "allow", "" },
+		{ "authorization", "" },
+		{ "cache-control", "" },
+		{ "content-disposition", "" },
+		{ "content-encoding", "" },
+		{ "content-language", "" },
+		{ "content-length", "" },
+		{ "content-location", "" },
+		{ "content-range", "" },
+		{ "content-type", "" },
+		{ "cookie", "" },
+		{ "date", "" },
+		{ "etag", "" },
+		{ "expect", "" },
+		{ "expires", "" },
+		{ "from", "" },
+		{ "host", "" },
+		{ "if-match", "" },
+		{ "if-modified-since", "" },
+		{ "if-none-match", "" },
+		{ "if-range", "" },
+		{ "if-unmodified-since", "" },
+		{ "last-modified", "" },
+		{ "link", "" },
+		{ "location", "" },
+		{ "max-forwards", "" },
+		{ "proxy-authenticate", "" },
+		{ "proxy-authorization", "" },
+		{ "range", "" },
+		{ "referer", "" },
+		{ "refresh", "" },
+		{ "retry-after", "" },
+		{ "server", "" },
+		{ "set-cookie", "" },
+		{ "strict-transport-security", "" },
+		{ "transfer-encoding", "" },
+		{ "user-agent", "" },
+		{ "vary", "" },
+		{ "via", "" },
+		{ "www-authenticate", "" },
+	};
+
+	/**
+	 * Huffman codes of the symbols 0..255 and EOS (256), aligned to the
+	 * least significant bit.
+	 */
+	private static final int[] HUFFMAN_CODES = {
+		0x1ff8, 0x7fffd8, 0xfffffe2, 0xfffffe3, 0xfffffe4, 0xfffffe5, 0xfffffe6, 0xfffffe7,
+		0xfffffe8, 0xffffea, 0x3ffffffc, 0xfffffe9, 0xfffffea, 0x3ffffffd, 0xfffffeb, 0xfffffec,
+		0xfffffed, 0xfffffee, 0xfffffef, 0xffffff0, 0xffffff1, 0xffffff2, 0x3ffffffe, 0xffffff3,
+		0xffffff4, 0xffffff5, 0xffffff6, 0xffffff7, 0xffffff8, 0xffffff9, 0xffffffa, 0xffffffb,
+		0x14, 0x3f8, 0x3f9, 0xffa, 0x1ff9, 0x15, 0xf8, 0x7fa,
+		0x3fa, 0x3fb, 0xf9, 0x7fb, 0xfa, 0x16, 0x17, 0x18,
+		0x0, 0x1, 0x2, 0x19, 0x1a, 0x1b, 0x1c, 0x1d,
+		0x1e, 0x1f, 0x5c, 0xfb, 0x7ffc, 0x20, 0xffb, 0x3fc,
+		0x1ffa, 0x21, 0x5d, 0x5e, 0x5f, 0x60, 0x61, 0x62,
+		0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69, 0x6a,
+		0x6b, 0x6c, 0x6d, 0x6e, 0x6f, 0x70, 0x71, 0x72,
+		0xfc, 0x73, 0xfd, 0x1ffb, 0x7fff0, 0x1ffc, 0x3ffc, 0x22,
+		0x7ffd, 0x3, 0x23, 0x4, 0x24, 0x5, 0x25, 0x26,
+		0x27, 0x6, 0x74, 0x75, 0x28, 0x29, 0x2a, 0x7,
+		0x2b, 0x76, 0x2c, 0x8, 0x9, 0x2d, 0x77, 0x78,
+		0x79, 0x7a, 0x7b, 0x7ffe, 0x7fc, 0x3ffd, 0x1ffd, 0xffffffc,
+		0xfffe6, 0x3fffd2, 0xfffe7, 0xfffe8, 0x3fffd3, 0x3fffd4, 0x3fffd5, 0x7fffd9,
+		0x3fffd6, 0x7fffda, 0x7fffdb, 0x7fffdc, 0x7fffdd, 0x7fffde, 0xffffeb, 0x7fffdf,
+		0xffffec, 0xffffed, 0x3fffd7, 0x7fffe0, 0xffffee, 0x7fffe1, 0x7fffe2, 0x7fffe3,
+		0x7fffe4, 0x1fffdc, 0x3fffd8, 0x7fffe5, 0x3fffd9, 0x7fffe6, 0x7fffe7, 0xffffef,
+		0x3fffda, 0x1fffdd, 0xfffe9, 0x3fffdb, 0x3fffdc, 0x7fffe8, 0x7fffe9, 0x1fffde,
+		0x7fffea, 0x3fffdd, 0x3fffde, 0xfffff0, 0x1fffdf, 0x3fffdf, 0x7fffeb, 0x7fffec,
+		0x1fffe0, 0x1fffe1, 0x3fffe0, 0x1fffe2, 0x7fffed, 0x3fffe1, 0x7fffee, 0x7fffef,
+		0xfffea, 0x3fffe2, 0x3fffe3, 0x3fffe4, 0x7ffff0, 0x3fffe5, 0x3fffe6, 0x7ffff1,
+		0x3ffffe0, 0x3ffffe1, 0xfffeb, 0x7fff1, 0x3fffe7, 0x7ffff2, 0x3fffe8, 0x1ffffec,
+		0x3ffffe2, 0x3ffffe3, 0x3ffffe4, 0x7ffffde, 0x7ffffdf, 0x3ffffe5, 0xfffff1, 0x1ffffed,
+		0x7fff2, 0x1fffe3, 0x3ffffe6, 0x7ffffe0, 0x7ffffe1, 0x3ffffe7, 0x7ffffe2, 0xfffff2,
+		0x1fffe4, 0x1fffe5, 0x3ffffe8, 0x3ffffe9, 0xffffffd, 0x7ffffe3, 0x7ffffe4, 0x7ffffe5,
+		0xfffec, 0xfffff3, 0xfffed, 0x1fffe6, 0x3fffe9, 0x1fffe7, 0x1fffe8, 0x7ffff3,
+		0x3fffea, 0x3fffeb, 0x1ffffee, 0x1ffffef, 0xfffff4, 0xfffff5, 0x3ffffea, 0x7ffff4,
+		0x3ffffeb, 0x7ffffe6, 0x3ffffec, 0x3ffffed, 0x7ffffe7, 0x7ffffe8, 0x7ffffe9, 0x7ffffea,
+		0x7ffffeb, 0xffffffe, 0x7ffffec, 0x7ffffed, 0x7ffffee, 0x7ffffef, 0x7fffff0, 0x3ffffee,
+		0x3fffffff
+	};
+
+	/**
+	 * Huffman code lengths of the symbols 0..255 and EOS (256), in bits.
+	 */
+	private static final byte[] HUFFMAN_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28,
+		28, 24, 30, 28, 28, 30, 28, 28,
+		28, 28, 28, 28, 28, 28, 30, 28,
+		28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11,
+		10, 10, 8, 11, 8, 6, 6, 6,
+		5, 5, 5, 6, 6, 6, 6, 6,
+		6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7,
+		7, 7, 7, 7, 7, 7, 7, 7,
+		8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6,
+		6, 5, 7, 7, 6, 6, 6, 5,
+		6, 7, 6, 5, 5, 6, 7, 7,
+		7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23,
+		22, 23, 23, 23, 23, 23, 24, 23,
+		24, 24, 22, 23, 24, 23, 23, 23,
+		23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21,
+		23, 22, 22, 24, 21, 22, 23, 23,
+		21, 21, 22, 21, 23, 22, 23, 23,
+		20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25,
+		26, 26, 26, 27, 27, 26, 24, 25,
+		19, 21, 26, 27, 27, 26, 27, 24,
+		21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23,
+		22, 22, 25, 25, 24, 24, 26, 23,
+		26, 27, 26, 26, 27, 27, 27, 27,
+		27, 28, 27, 27, 27, 27, 27, 26,
+		30
+	};
+
+	/**
+	 * Huffman decoding tree. Node {@code n} has its children at
+	 * {@code 2 * n} (bit 0) and {@code 2 * n + 1} (bit 1); a positive entry
+	 * is the index of an inner node, a negative entry {@code -1 - symbol} a
+	 * leaf. The root is node 0.
+	 */
+	private static final int[] HUFFMAN_TREE;
+
+	static {
+		int[] tree = new int[2 * HUFFMAN_CODES.length];
+		int nodes = 1;
+		for (int sym = 0; sym < HUFFMAN_CODES.length; ++sym) {
+			int node = 0;
+			for (int i = HUFFMAN_LENGTHS[sym] - 1; i > 0; --i) {
+				int slot = 2 * node + ((HUFFMAN_CODES[sym] >>> i) & 1);
+				if (tree[slot] == 0) {
+					tree[slot] = nodes++;
+				}
+				node = tree[slot];
+			}
+			tree[2 * node + (HUFFMAN_CODES[sym] & 1)] = -1 - sym;
+		}
+		HUFFMAN_TREE = tree;
+	}
+
+
+
+	/**
+	 * The dynamic table shared by the encoding and decoding logic.
+	 */
+	private static class DynamicTable {
+		// Entries, newest first
+		private final LinkedList entries = new LinkedList();
+		private int size = 0;
+		private int maxSize = DEFAULT_TABLE_SIZE;
+
+		int length() {
+			return entries.size();
+		}
+
+		String[] get(int index) {
+			return (String[]) entries.get(index);
+		}
+
+		void add(String name, String value) {
+			int entrySize = entrySize(name, value);
+			entries.addFirst(new String[] { name, value });
+			size += entrySize;
+			evict();
+		}
+
+		void setMaxSize(int maxSize) {
+			this.maxSize = maxSize;
+			evict();
+		}
+
+		private void evict() {
+			while (size > maxSize && !entries.isEmpty()) {
+				String[] e = (String[]) entries.removeLast();
+				size -= entrySize(e[0], e[1]);
+			}
+		}
+
+		private static int entrySize(String name, String value) {
+			return name.length() + value.length() + ENTRY_OVERHEAD;
+		}
+	}
+
+
+
+	/**
+	 * Header block encoder. Not thread-safe.
+	 */
+	static class Encoder {
+		private final DynamicTable table = new DynamicTable();
+		// Table size update to signal at the start of the next block, or -1
+		private int pendingSizeUpdate = -1;
+
+		/**
+		 * Sets the maximum dynamic table size, as limited by the peer's
+		 * {@code SETTINGS_HEADER_TABLE_SIZE}.
+		 *
+		 * @param maxSize maximum size, in octets.
+		 */
+		void setMaxTableSize(int maxSize) {
+			maxSize = Math.min(maxSize, DEFAULT_TABLE_SIZE);
+			if (maxSize != table.maxSize) {
+				table.setMaxSize(maxSize);
+				pendingSizeUpdate = maxSize;
+			}
+		}
+
+		/**
+		 * Encodes the given headers into a header block.
+		 *
+		 * @param headers list of name/value pairs.
+		 * @param sensitive names of headers (such as {@code authorization})
+		 * 			that must never be added to any compression table.
+		 *
+		 * @return header block.
+		 */
+		byte[] encode(List headers, String[] sensitive) {
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			if (pendingSizeUpdate >= 0) {
+				writeInt(out, 0x20, 5, pendingSizeUpdate);
+				pendingSizeUpdate = -1;
+			}
+			for (int i = 0; i < headers.size(); ++i) {
+				String[] header = (String[]) headers.get(i);
+				encode(out, header[0], header[1], contains(sensitive, header[0]));
+			}
+			return out.toByteArray();
+		}
+
+		private void encode(ByteArrayOutputStream out, String name, String value, boolean sensitive) {
+			int nameIndex = 0;
+			// Look for an exact match first in the static table...
+			for (int i = 1; i < STATIC_TABLE.length; ++i) {
+				if (STATIC_TABLE[i][0].equals(name)) {
+					if (STATIC_TABLE[i][1].equals(value) && !sensitive) {
+						writeInt(out, 0x80, 7, i);
+						return;
+					}
+					if (nameIndex == 0) {
+						nameIndex = i;
+					}
+				}
+			}
+			// ...and then in the dynamic table
+			for (int i = 0; i < table.length(); ++i) {
+				String[] e = table.get(i);
+				if (e[0].equals(name)) {
+					if (e[1].equals(value) && !sensitive) {
+						writeInt(out, 0x80, 7, STATIC_TABLE.length + i);
+						return;
+					}
+					if (nameIndex == 0) {
+						nameIndex = STATIC_TABLE.length + i;
+					}
+				}
+			}
+
+			if (sensitive) {
+				// Literal never indexed
+				writeInt(out, 0x10, 4, nameIndex);
+			} else if (name.equals("content-length")) {
+				// Changes with every request, not worth a table entry
+				writeInt(out, 0x00, 4, nameIndex);
+			} else {
+				// Literal with incremental indexing
+				writeInt(out, 0x40, 6, nameIndex);
+				table.add(name, value);
+			}
+			if (nameIndex == 0) {
+				writeString(out, name);
+			}
+			writeString(out, value);
+		}
+
+		private static boolean contains(String[] names, String name) {
+			if (names != null) {
+				for (int i = 0; i < names.length; ++i) {
+					if (names[i].equals(name)) {
+						return true;
+					}
+				}
+			}
+			return false;
+		}
+	}
+
+
+
+	/**
+	 * Header block decoder. Not thread-safe.
+	 */
+	static class Decoder {
+		private final DynamicTable table = new DynamicTable();
+		// The limit we have announced to the peer
+		private final int maxTableSize;
+
+		/**
+		 * Class constructor.
+		 *
+		 * @param maxTableSize the maximum dynamic table size announced to
+		 * 			the peer.
+		 */
+		Decoder(int maxTableSize) {
+			this.maxTableSize = maxTableSize;
+			table.setMaxSize(maxTableSize);
+		}
+
+		/**
+		 * Decodes a complete header block.
+		 *
+		 * @param block header block.
+		 *
+		 * @return list of name/value pairs.
+		 *
+		 * @throws IOException if the block is malformed.
+		 */
+		List decode(byte[] block)
+		throws IOException {
+			List headers = new ArrayList();
+			int[] pos = new int[] { 0 };
+			while (pos[0] < block.length) {
+				int b = block[pos[0]] & 0xff;
+				if ((b & 0x80) != 0) {
+					// Indexed header field
+					headers.add(lookup(readInt(block, pos, 7)));
+				} else if ((b & 0xc0) == 0x40) {
+					// Literal with incremental indexing
+					String[] header = readLiteral(block, pos, 6);
+					table.add(header[0], header[1]);
+					headers.add(header);
+				} else if ((b & 0xe0) == 0x20) {
+					// Dynamic table size update
+					int size = readInt(block, pos, 5);
+					if (size > maxTableSize) {
+						throw new IOException("HPACK table size update over limit: " + size);
+					}
+					table.setMaxSize(size);
+				} else {
+					// Literal without indexing or never indexed
+					headers.add(readLiteral(block, pos, 4));
+				}
+			}
+			return headers;
+		}
+
+		private String[] lookup(int index)
+		throws IOException {
+			if (index > 0 && index < STATIC_TABLE.length) {
+				return STATIC_TABLE[index];
+			}
+			index -= STATIC_TABLE.length;
+			if (index >= 0 && index < table.length()) {
+				return table.get(index);
+			}
+			throw new IOException("HPACK index out of range: " + (index + STATIC_TABLE.length));
+		}
+
+		private String[] readLiteral(byte[] block, int[] pos, int prefix)
+		throws IOException {
+			int index = readInt(block, pos, prefix);
+			String name = (index == 0) ? readString(block, pos) : lookup(index)[0];
+			String value = readString(block, pos);
+			return new String[] { name, value };
+		}
+	}
+
+
+
+	/**
+	 * Writes an integer with an N-bit prefix (RFC 7541 section 5.1).
+	 *
+	 * @param out output stream.
+	 * @param flags bits above the prefix in the first octet.
+	 * @param prefix prefix length, in bits.
+	 * @param value the value.
+	 */
+	static void writeInt(ByteArrayOutputStream out, int flags, int prefix, int value) {
+		int max = (1 << prefix) - 1;
+		if (value < max) {
+			out.write(flags | value);
+			return;
+		}
+		out.write(flags | max);
+		value -= max;
+		while (value >= 0x80) {
+			out.write((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		out.write(value);
+	}
+
+	/**
+	 * Reads an integer with an N-bit prefix (RFC 7541 section 5.1).
+	 *
+	 * @param block input data.
+	 * @param pos position in the input, updated.
+	 * @param prefix prefix length, in bits.
+	 *
+	 * @return the value.
+	 *
+	 * @throws IOException if the input is truncated or the value too big.
+	 */
+	static int readInt(byte[] block, int[] pos, int prefix)
+	throws IOException {
+		int max = (1 << prefix) - 1;
+		int value = block[pos[0]++] & max;
+		if (value < max) {
+			return value;
+		}
+		for (int shift = 0; shift < 28; shift += 7) {
+			if (pos[0] >= block.length) {
+				throw new IOException("HPACK integer truncated");
+			}
+			int b = block[pos[0]++] & 0xff;
+			value += (b & 0x7f) << shift;
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("HPACK integer too big");
+	}
+
+	/**
+	 * Writes a string literal, Huffman-encoded if that is shorter.
+	 *
+	 * @param out output stream.
+	 * @param s the string.
+	 */
+	static void writeString(ByteArrayOutputStream out, String s) {
+		long bits = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			bits += HUFFMAN_LENGTHS[s.charAt(i) & 0xff];
+		}
+		int huffmanLength = (int) ((bits + 7) / 8);
+		if (huffmanLength >= s.length()) {
+			writeInt(out, 0x00, 7, s.length());
+			for (int i = 0; i < s.length(); ++i) {
+				out.write(s.charAt(i));
+			}
+			return;
+		}
+
+		writeInt(out, 0x80, 7, huffmanLength);
+		long acc = 0;
+		int accBits = 0;
+		for (int i = 0; i < s.length(); ++i) {
+			int sym = s.charAt(i) & 0xff;
+			acc = (acc << HUFFMAN_LENGTHS[sym]) | HUFFMAN_CODES[sym];
+			accBits += HUFFMAN_LENGTHS[sym];
+			while (accBits >= 8) {
+				accBits -= 8;
+				out.write((int) (acc >>> accBits));
+			}
+		}
+		if (accBits > 0) {
+			// Pad with the most significant bits of EOS, i.e. ones
+			out.write((int) ((acc << (8 - accBits)) | (0xff >>> accBits)));
+		}
+	}
+
+	/**
+	 * Reads a string literal.
+	 *
+	 * @param block input data.
+	 * @param pos position in the input, updated.
+	 *
+	 * @return the string.
+	 *
+	 * @throws IOException if the input is malformed.
+	 */
+	static String readString(byte[] block, int[] pos)
+	throws IOException {
+		if (pos[0] >= block.length) {
+			throw new IOException("HPACK string truncated");
+		}
+		boolean huffman = (block[pos[0]] & 0x80) != 0;
+		int length = readInt(block, pos, 7);
+		if (length > block.length - pos[0]) {
+			throw new IOException("HPACK string truncated");
+		}
+		int start = pos[0];
+		pos[0] += length;
+		if (!huffman) {
+			return new String(block, start, length, "ISO-8859-1");
+		}
+
+		StringBuffer sb = new StringBuffer(length * 8 / 5);
+		int node = 0;
+		// Bits consumed since the last complete symbol, and whether all were ones
+		int pending = 0;
+		boolean ones = true;
+		for (int i = start; i < start + length; ++i) {
+			int b = block[i];
+			for (int bit = 7; bit >= 0; --bit) {
+				int v = (b >>> bit) & 1;
+				int next = HUFFMAN_TREE[2 * node + v];
+				++pending;
+				ones &= (v == 1);
+				if (next < 0) {
+					int sym = -1 - next;
+					if (sym == 256) {
+						throw new IOException("HPACK string contains EOS");
+					}
+					sb.append((char) sym);
+					node = 0;
+					pending = 0;
+					ones = true;
+				} else if (next == 0) {
+					throw new IOException("HPACK invalid Huffman code");
+				} else {
+					node = next;
+				}
+			}
+		}
+		if (pending > 7 || !ones) {
+			throw new IOException("HPACK invalid Huffman padding");
+		}
+		return sb.toString();
+	}
+
+	/*
+	 * This is here just to clean up the public JavaDoc.
+	 */
+	private Hpack() {
+	}
+}
@@ -0,0 +1,468 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.net.UnknownHostException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLContext;
+
+import com.guardtime.util.Base64;
+
+
+
+/**
+ * Class to perform non-blocking HTTP/2 queries.
+ * <p>
+ * Unlike {@link HttpClient}, which opens a new connection for every request,
+ * this client keeps a small pool of connections per server and multiplexes
+ * any number of concurrent requests over them as HTTP/2 streams. Requests
+ * beyond the concurrency limit announced by the server wait in a queue.
+ * <p>
+ * {@code http} URLs are served over cleartext HTTP/2 with prior knowledge
+ * (h2c); the server must support it. {@code https} URLs are served over TLS
+ * with the protocol negotiated using ALPN. Proxies are not supported.
+ * <p>
+ * The client is used the same way as {@link HttpClient}:
+ * <pre>
+ * Http2Client client = new Http2Client();
+ * client.start();
+ * ResponseHandler handler = client.addHttpRequest(url, data, 0);
+ * byte[] response = handler.receiveResponse(0);
+ * InputStream contents = HttpClient.getResponseContents(response);
+ * </pre>
+ * Responses are presented in HTTP/1.x form, with a status line and headers
+ * followed by the response contents.
+ *
+ * @see HttpStamper#setHttp2Enabled(boolean)
+ *
+ * @since 0.4
+ */
+public class Http2Client
+implements Runnable {
+	/**
+	 * The default maximum number of connections per server.
+	 */
+	public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+	/**
+	 * ALPN identifier of HTTP/2 over TLS.
+	 */
+	static final String ALPN_PROTOCOL = "h2";
+
+	// The selector we'll be monitoring
+	private final Selector selector;
+
+	// Tasks to be run on the worker thread
+	private final LinkedList tasks;
+
+	// Maps a connection key to the List of available Http2Connections;
+	// accessed on the worker thread only
+	private final Map connections;
+
+	private AddressResolver resolver;
+	private SSLContext sslContext;
+	private int maxConnections;
+
+
+
+	/**
+	 * Default constructor.
+	 * <p>
+	 * Fails if a selector cannot be created.
+	 *
+	 * @throws IOException
+	 *             if an I/O error occurs.
+	 */
+	public Http2Client()
+	throws IOException {
+		selector = Selector.open();
+		tasks = new LinkedList();
+		connections = new HashMap();
+		resolver = new AddressResolver();
+		maxConnections = DEFAULT_MAX_CONNECTIONS;
+	}
+
+	/**
+	 * Returns the maximum number of connections opened to a single server.
+	 *
+	 * @return maximum number of connections.
+	 */
+	public synchronized int getMaxConnections() {
+		return maxConnections;
+	}
+
+	/**
+	 * Sets the maximum number of connections opened to a single server.
+	 * New connections are only opened when the existing ones have reached
+	 * the concurrent stream limit announced by the server.
+	 *
+	 * @param maxConnections maximum number of connections.
+	 */
+	public synchronized void setMaxConnections(int maxConnections) {
+		if (maxConnections < 1) {
+			throw new IllegalArgumentException("invalid connection limit: " + maxConnections);
+		}
+		this.maxConnections = maxConnections;
+	}
+
+	/**
+	 * Returns the resolver used to look up server addresses.
+	 *
+	 * @return host name resolver.
+	 */
+	public synchronized AddressResolver getResolver() {
+		return resolver;
+	}
+
+	/**
+	 * Sets the resolver used to look up server addresses.
+	 *
+	 * @param resolver host name resolver.
+	 */
+	public synchronized void setResolver(AddressResolver resolver) {
+		if (resolver == null) {
+			throw new IllegalArgumentException("invalid resolver: null");
+		}
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Returns the TLS context used for {@code https} connections.
+	 * <p>
+	 * Unless set by {@link #setSslContext(SSLContext)}, a context with the
+	 * platform default key and trust managers is created on first use.
+	 *
+	 * @return TLS context.
+	 *
+	 * @throws IOException if the default TLS context can not be created.
+	 */
+	public synchronized SSLContext getSslContext()
+	throws IOException {
+		if (sslContext == null) {
+			sslContext = TlsChannel.createDefaultContext();
+		}
+		return sslContext;
+	}
+
+	/**
+	 * Sets the TLS context to use for {@code https} connections.
+	 *
+	 * @param sslContext TLS context.
+	 */
+	public synchronized void setSslContext(SSLContext sslContext) {
+		if (sslContext == null) {
+			throw new IllegalArgumentException("invalid TLS context: null");
+		}
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Starts a worker thread for this client.
+	 */
+	public void start() {
+		Thread t = new Thread(this);
+		t.setDaemon(true);
+		t.start();
+	}
+
+	/**
+	 * The worker thread, basically an event loop.
+	 */
+	public void run() {
+		while (true) {
+			// Run the tasks queued by other threads
+			while (true) {
+				Runnable task;
+				synchronized (tasks) {
+					if (tasks.isEmpty()) {
+						break;
+					}
+					task = (Runnable) tasks.removeFirst();
+				}
+				task.run();
+			}
+
+			// Look for timeouts
+			long next = 0;
+			List all = new ArrayList();
+			for (Iterator i = connections.values().iterator(); i.hasNext();) {
+				all.addAll((List) i.next());
+			}
+			Iterator keys = selector.keys().iterator();
+			while (keys.hasNext()) {
+				Object connection = ((SelectionKey) keys.next()).attachment();
+				if (!all.contains(connection)) {
+					// Going away, but still serving its last streams
+					all.add(connection);
+				}
+			}
+			for (int i = 0; i < all.size(); ++i) {
+				long left = ((Http2Connection) all.get(i)).checkTimeouts();
+				if (next > left && left > 0 || next == 0) {
+					next = left;
+				}
+			}
+
+			// Wait for an event from one of the registered channels
+			try {
+				selector.select(next);
+			} catch (IOException x) {
+				// We don't have anyone to report this to...
+				x.printStackTrace();
+			}
+
+			// Iterate over the available events
+			keys = selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = (SelectionKey) keys.next();
+				keys.remove();
+				if (key.isValid()) {
+					((Http2Connection) key.attachment()).handle(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sends a GET request to this URL. Response is handled by the handler
+	 * returned.
+	 *
+	 * @param url
+	 *            URL.
+	 * @param timeout
+	 *            transaction timeout, in milliseconds.
+	 *
+	 * @return response handler.
+	 *
+	 * @throws IOException
+	 *             if the request can not be queued.
+	 */
+	public ResponseHandler addHttpRequest(URL url, long timeout)
+	throws IOException {
+		return addHttpRequest(url, null, timeout);
+	}
+
+	/**
+	 * Sends this data to this URL using POST-request. Response is handled by
+	 * the handler returned.
+	 *
+	 * @param url
+	 *            URL.
+	 * @param data
+	 *            data to be sent; if {@code null}, a GET request is sent.
+	 * @param timeout
+	 *            transaction timeout, in milliseconds. The transaction will be
+	 *            canceled and subsequent calls to
+	 *            {@code ResponseHandler.receiveResponse()} will throw
+	 *            {@code SocketTimeoutException} when the transaction in not
+	 *            completed within the time limit given here.
+	 *
+	 * @return response handler.
+	 *
+	 * @throws IOException
+	 *             if the request can not be queued.
+	 */
+	public ResponseHandler addHttpRequest(URL url, byte[] data, long timeout)
+	throws IOException {
+		String scheme = url.getProtocol().toLowerCase();
+		if (!scheme.equals("http") && !scheme.equals("https")) {
+			throw new IOException("Unsupported protocol: " + scheme);
+		}
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		String authority = url.getHost() + (url.getPort() < 0 ? "" : ":" + url.getPort());
+		String path = url.getFile().length() == 0 ? "/" : url.getFile();
+		String userInfo = url.getUserInfo();
+		String authorization = null;
+		if (userInfo != null && userInfo.contains(":")) {
+			authorization = "Basic " + Base64.encode(userInfo.getBytes());
+		}
+		if (scheme.equals("https")) {
+			// Fail early if TLS is not available
+			getSslContext();
+		}
+
+		final Http2Connection.Stream stream = new Http2Connection.Stream(
+				data == null ? "GET" : "POST", scheme, authority, path,
+				authorization, data, timeout);
+		final String key = scheme + "://" + url.getHost() + ":" + port;
+		final String host = url.getHost();
+		final int hostPort = port;
+		execute(new Runnable() {
+			public void run() {
+				dispatch(key, host, hostPort, stream);
+			}
+		});
+		stream.handler.setCanceller(new Runnable() {
+			public void run() {
+				execute(new Runnable() {
+					public void run() {
+						if (stream.connection != null) {
+							stream.connection.cancel(stream);
+						}
+					}
+				});
+			}
+		});
+		return stream.handler;
+	}
+
+
+
+	/**
+	 * Returns the selector of this client.
+	 */
+	Selector getSelector() {
+		return selector;
+	}
+
+	/**
+	 * Queues a task to be run on the worker thread.
+	 *
+	 * @param task the task.
+	 */
+	void execute(Runnable task) {
+		synchronized (tasks) {
+			tasks.addLast(task);
+		}
+		selector.wakeup();
+	}
+
+	/**
+	 * Hands a stream that could not be served by its connection over to
+	 * another one. Called on the worker thread.
+	 *
+	 * @param stream the stream.
+	 */
+	void dispatch(Http2Connection.Stream stream) {
+		try {
+			URL url = new URL(stream.scheme + "://" + stream.authority);
+			int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+			dispatch(stream.scheme + "://" + url.getHost() + ":" + port, url.getHost(), port, stream);
+		} catch (IOException x) {
+			stream.handler.setError(x);
+		}
+	}
+
+	/**
+	 * Removes a closed or closing connection from the pool, so that no new
+	 * streams are given to it. Called on the worker thread.
+	 *
+	 * @param connection the connection.
+	 */
+	void remove(Http2Connection connection) {
+		List pool = (List) connections.get(connection.getKey());
+		if (pool != null) {
+			pool.remove(connection);
+			if (pool.isEmpty()) {
+				connections.remove(connection.getKey());
+			}
+		}
+	}
+
+	/**
+	 * Assigns a stream to the least loaded connection to the given server,
+	 * opening a new connection if all the existing ones are full and the
+	 * connection limit allows it. Called on the worker thread.
+	 */
+	private void dispatch(String key, String host, int port, Http2Connection.Stream stream) {
+		if (stream.handler.isDone()) {
+			// Canceled while waiting for a connection
+			return;
+		}
+		List pool = (List) connections.get(key);
+		if (pool == null) {
+			pool = new ArrayList();
+			connections.put(key, pool);
+		}
+
+		Http2Connection best = null;
+		for (int i = 0; i < pool.size(); ++i) {
+			Http2Connection connection = (Http2Connection) pool.get(i);
+			if (connection.isAvailable() && (best == null || connection.getLoad() < best.getLoad())) {
+				best = connection;
+			}
+		}
+
+		if ((best == null || !best.hasFreeSlot()) && pool.size() < getMaxConnections()) {
+			try {
+				best = open(key, host, port);
+				pool.add(best);
+			} catch (IOException x) {
+				if (best == null) {
+					stream.handler.setError(x);
+					return;
+				}
+				// Fall back to the busy connection, which is in the pool already
+			}
+		}
+
+		best.submit(stream);
+	}
+
+	/**
+	 * Creates a new connection and starts looking up the server address.
+	 */
+	private Http2Connection open(String key, String host, int port)
+	throws IOException {
+		TlsChannel tls = null;
+		if (key.startsWith("https:")) {
+			tls = TlsChannel.open(getSslContext(), host, port, new String[] { ALPN_PROTOCOL });
+		}
+
+		final Http2Connection connection = new Http2Connection(this, key, tls);
+		final int hostPort = port;
+		getResolver().lookup(host, new AddressResolver.Callback() {
+			public void resolved(InetAddress[] addresses) {
+				final InetSocketAddress[] candidates = new InetSocketAddress[addresses.length];
+				for (int i = 0; i < addresses.length; ++i) {
+					candidates[i] = new InetSocketAddress(addresses[i], hostPort);
+				}
+				execute(new Runnable() {
+					public void run() {
+						connection.connect(candidates);
+					}
+				});
+			}
+
+			public void failed(final UnknownHostException error) {
+				execute(new Runnable() {
+					public void run() {
+						connection.close(error);
+					}
+				});
+			}
+		});
+		return connection;
+	}
+}
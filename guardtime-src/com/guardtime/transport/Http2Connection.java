@@ -0,0 +1,1106 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+
+import javax.net.ssl.SSLEngineResult;
+
+
+
+/**
+ * A single HTTP/2 connection of {@link Http2Client}.
+ * <p>
+ * Implements the client side of the framing layer defined in
+ * <a href="http://www.ietf.org/rfc/rfc7540.txt">RFC 7540</a>: streams are
+ * multiplexed over the connection up to the limit announced by the server,
+ * headers are compressed with {@link Hpack}, and flow control is applied in
+ * both directions. Server push is disabled.
+ * <p>
+ * All methods except the constructor must be called on the event loop thread
+ * of the owning client.
+ */
+class Http2Connection {
+	// Frame types
+	private static final int DATA = 0x0;
+	private static final int HEADERS = 0x1;
+	private static final int RST_STREAM = 0x3;
+	private static final int SETTINGS = 0x4;
+	private static final int PUSH_PROMISE = 0x5;
+	private static final int PING = 0x6;
+	private static final int GOAWAY = 0x7;
+	private static final int WINDOW_UPDATE = 0x8;
+	private static final int CONTINUATION = 0x9;
+
+	// Frame flags
+	private static final int FLAG_END_STREAM = 0x1;
+	private static final int FLAG_ACK = 0x1;
+	private static final int FLAG_END_HEADERS = 0x4;
+	private static final int FLAG_PADDED = 0x8;
+	private static final int FLAG_PRIORITY = 0x20;
+
+	// Error codes
+	private static final int PROTOCOL_ERROR = 0x1;
+	private static final int FLOW_CONTROL_ERROR = 0x3;
+	private static final int FRAME_SIZE_ERROR = 0x6;
+	private static final int REFUSED_STREAM = 0x7;
+	private static final int CANCEL = 0x8;
+	private static final int COMPRESSION_ERROR = 0x9;
+
+	// Settings
+	private static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	private static final int SETTINGS_ENABLE_PUSH = 0x2;
+	private static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	private static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	private static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+	private static final int FRAME_HEADER_LENGTH = 9;
+	private static final int DEFAULT_WINDOW = 65535;
+	private static final int DEFAULT_MAX_FRAME = 16384;
+	private static final int MAX_STREAM_ID = 0x7fffffff;
+
+	// Our receive windows: generous, as responses are consumed right away
+	private static final int CONNECTION_WINDOW = 16 * 1024 * 1024;
+	private static final int STREAM_WINDOW = 1024 * 1024;
+
+	// Assumed limit on concurrent streams until the server tells otherwise
+	private static final int DEFAULT_MAX_CONCURRENT = 100;
+
+	// Number of times a request is retried on a new connection when the
+	// server closes the connection or refuses the stream before processing it
+	private static final int MAX_ATTEMPTS = 3;
+
+	// Headers never added to the compression tables
+	private static final String[] SENSITIVE = { "authorization" };
+
+	private static final int STATE_CONNECTING = 0;
+	private static final int STATE_OPEN = 1;
+	private static final int STATE_CLOSED = 2;
+
+	private final Http2Client client;
+	private final String key;
+	private final TlsChannel tls;
+
+	private SocketChannel channel;
+	private SelectionKey selectionKey;
+	private InetSocketAddress[] candidates;
+	private int candidate;
+	private int state;
+	private boolean goingAway;
+	private boolean protocolChecked;
+
+	// Outgoing frames, in write mode
+	private ByteBuffer out;
+	// Incoming frames, in write mode
+	private ByteBuffer in;
+	// Receives decrypted data from the TLS layer
+	private final ResponseHandler input;
+
+	private final Hpack.Encoder encoder;
+	private final Hpack.Decoder decoder;
+
+	// Maps a stream id to an active Stream
+	private final Map streams;
+	// Streams waiting for a free slot
+	private final LinkedList queued;
+	// Streams with request data waiting for send window
+	private final LinkedList blocked;
+
+	private int nextStreamId;
+	private int peerMaxConcurrent;
+	private int peerInitialWindow;
+	private int peerMaxFrame;
+	private long sendWindow;
+	private int receiveConsumed;
+
+	// Header block being assembled from HEADERS and CONTINUATION frames
+	private int headerStreamId;
+	private boolean headerEndStream;
+	private ByteArrayOutputStream headerBlock;
+
+
+
+	/**
+	 * Request/response exchange on a connection.
+	 */
+	static class Stream {
+		final String method;
+		final String scheme;
+		final String authority;
+		final String path;
+		final String authorization;
+		final ByteBuffer body;
+		final ResponseHandler handler;
+		final Timeout timeout;
+
+		Http2Connection connection;
+		int id;
+		int attempts;
+		long sendWindow;
+		int receiveConsumed;
+		boolean responseStarted;
+
+		Stream(String method, String scheme, String authority, String path,
+				String authorization, byte[] data, long timeout) {
+			this.method = method;
+			this.scheme = scheme;
+			this.authority = authority;
+			this.path = path;
+			this.authorization = authorization;
+			this.body = (data == null) ? null : ByteBuffer.wrap(data);
+			this.handler = new ResponseHandler();
+			this.timeout = new Timeout(timeout);
+			this.attempts = 0;
+		}
+	}
+
+
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param client the owning client.
+	 * @param key connection pool key of the client.
+	 * @param tls TLS layer, or {@code null} for cleartext HTTP/2 (h2c).
+	 */
+	Http2Connection(Http2Client client, String key, TlsChannel tls) {
+		this.client = client;
+		this.key = key;
+		this.tls = tls;
+		this.state = STATE_CONNECTING;
+		this.goingAway = false;
+		this.protocolChecked = (tls == null);
+		this.out = ByteBuffer.allocate(DEFAULT_MAX_FRAME + FRAME_HEADER_LENGTH);
+		this.in = ByteBuffer.allocate(DEFAULT_MAX_FRAME + FRAME_HEADER_LENGTH);
+		this.input = new ResponseHandler() {
+			void append(byte[] responseBytes, int offset, int length) {
+				in = ensureCapacity(in, length);
+				in.put(responseBytes, offset, length);
+			}
+		};
+		this.encoder = new Hpack.Encoder();
+		this.decoder = new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE);
+		this.streams = new HashMap();
+		this.queued = new LinkedList();
+		this.blocked = new LinkedList();
+		this.nextStreamId = 1;
+		this.peerMaxConcurrent = DEFAULT_MAX_CONCURRENT;
+		this.peerInitialWindow = DEFAULT_WINDOW;
+		this.peerMaxFrame = DEFAULT_MAX_FRAME;
+		this.sendWindow = DEFAULT_WINDOW;
+		this.receiveConsumed = 0;
+		this.headerStreamId = 0;
+	}
+
+	/**
+	 * Returns the connection pool key of this connection.
+	 */
+	String getKey() {
+		return key;
+	}
+
+	/**
+	 * Checks whether new streams may be added to this connection.
+	 */
+	boolean isAvailable() {
+		return state != STATE_CLOSED && !goingAway && nextStreamId < MAX_STREAM_ID;
+	}
+
+	/**
+	 * Checks whether a new stream would start right away on this connection,
+	 * or as soon as it is established.
+	 */
+	boolean hasFreeSlot() {
+		return state != STATE_CLOSED && getLoad() < peerMaxConcurrent;
+	}
+
+	/**
+	 * Returns the number of active and queued streams.
+	 */
+	int getLoad() {
+		return streams.size() + queued.size();
+	}
+
+	/**
+	 * Adds a stream to this connection. The stream starts as soon as the
+	 * connection is open and the server allows another concurrent stream.
+	 *
+	 * @param stream the stream.
+	 */
+	void submit(Stream stream) {
+		stream.connection = this;
+		queued.addLast(stream);
+		if (state == STATE_OPEN) {
+			startQueued();
+			pump();
+		}
+	}
+
+	/**
+	 * Abandons a stream of this connection, resetting it if it has been
+	 * started already. The stream handler has been failed by the caller.
+	 *
+	 * @param stream the stream.
+	 */
+	void cancel(Stream stream) {
+		if (queued.remove(stream)) {
+			return;
+		}
+		if (streams.get(Integer.valueOf(stream.id)) != stream) {
+			// Finished or handed over to another connection
+			return;
+		}
+		streams.remove(Integer.valueOf(stream.id));
+		blocked.remove(stream);
+		writeRstStream(stream.id, CANCEL);
+		startQueued();
+		pump();
+	}
+
+	/**
+	 * Starts connecting to the first reachable one of the given addresses.
+	 *
+	 * @param candidates addresses of the server, in order.
+	 */
+	void connect(InetSocketAddress[] candidates) {
+		this.candidates = candidates;
+		this.candidate = 0;
+		connectNext(null);
+	}
+
+	/**
+	 * Handles a readiness event of the channel of this connection.
+	 *
+	 * @param key selection key of the channel.
+	 */
+	void handle(SelectionKey key) {
+		if (key.isConnectable()) {
+			try {
+				channel.finishConnect();
+			} catch (IOException x) {
+				// Try the next address of the host, if there is one
+				try {
+					channel.close();
+				} catch (IOException e) {
+					// Nothing here, we're abandoning this channel anyway
+				}
+				connectNext(x);
+				return;
+			}
+			opened();
+		} else {
+			pump();
+		}
+	}
+
+	/**
+	 * Times out the expired streams of this connection.
+	 *
+	 * @return time until the next stream expires, in milliseconds, or
+	 * 			{@code 0} if no stream has a finite timeout.
+	 */
+	long checkTimeouts() {
+		long next = 0;
+		boolean reset = false;
+
+		for (Iterator i = queued.iterator(); i.hasNext();) {
+			Stream stream = (Stream) i.next();
+			if (stream.timeout.isTimedOut()) {
+				i.remove();
+				stream.handler.setError(new SocketTimeoutException(state == STATE_CONNECTING ? "Connect timeout" : "Write timeout"));
+			} else {
+				next = earliest(next, stream.timeout.getRemaining());
+			}
+		}
+
+		for (Iterator i = streams.values().iterator(); i.hasNext();) {
+			Stream stream = (Stream) i.next();
+			if (stream.timeout.isTimedOut()) {
+				i.remove();
+				blocked.remove(stream);
+				writeRstStream(stream.id, CANCEL);
+				reset = true;
+				stream.handler.setError(new SocketTimeoutException("Read timeout"));
+			} else {
+				next = earliest(next, stream.timeout.getRemaining());
+			}
+		}
+
+		if (reset) {
+			startQueued();
+			pump();
+		}
+		return next;
+	}
+
+	/**
+	 * Closes this connection.
+	 * <p>
+	 * Active streams fail with the given error. Streams that have not been
+	 * started yet are handed back to the client for another connection if
+	 * this one was ever open, and fail otherwise.
+	 *
+	 * @param error the error to report, or {@code null} for a clean close.
+	 */
+	void close(IOException error) {
+		if (state == STATE_CLOSED) {
+			return;
+		}
+		boolean wasOpen = (state == STATE_OPEN);
+		state = STATE_CLOSED;
+		client.remove(this);
+
+		if (channel != null) {
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing here, the connection is gone either way
+			}
+		}
+
+		if (error == null) {
+			error = new IOException("HTTP/2 connection closed");
+		}
+		for (Iterator i = streams.values().iterator(); i.hasNext();) {
+			Stream stream = (Stream) i.next();
+			stream.handler.setError(error);
+		}
+		streams.clear();
+		blocked.clear();
+		while (!queued.isEmpty()) {
+			Stream stream = (Stream) queued.removeFirst();
+			if (wasOpen) {
+				retry(stream, error);
+			} else {
+				stream.handler.setError(error);
+			}
+		}
+	}
+
+
+
+	/*
+	 * Connection setup and I/O
+	 */
+
+
+
+	/**
+	 * Tries the next candidate address.
+	 *
+	 * @param error the error from the previous candidate, if any.
+	 */
+	private void connectNext(IOException error) {
+		while (candidate < candidates.length) {
+			InetSocketAddress address = candidates[candidate++];
+			try {
+				channel = SocketChannel.open();
+				channel.configureBlocking(false);
+				channel.connect(address);
+				selectionKey = channel.register(client.getSelector(), SelectionKey.OP_CONNECT, this);
+				return;
+			} catch (IOException x) {
+				error = x;
+			} catch (RuntimeException x) {
+				// Unresolved or unsupported address
+				IOException xx = new IOException("Cannot connect to " + address);
+				xx.initCause(x);
+				error = xx;
+			}
+			try {
+				channel.close();
+			} catch (IOException e) {
+				// Nothing here
+			}
+		}
+		close(error);
+	}
+
+	/**
+	 * Sends the connection preface and starts the queued streams once the
+	 * connection is established.
+	 */
+	private void opened() {
+		if (tls != null) {
+			try {
+				tls.begin();
+			} catch (IOException x) {
+				close(x);
+				return;
+			}
+		}
+
+		out.put(PREFACE);
+		ByteBuffer settings = ByteBuffer.allocate(18);
+		settings.putShort((short) SETTINGS_ENABLE_PUSH).putInt(0);
+		settings.putShort((short) SETTINGS_INITIAL_WINDOW_SIZE).putInt(STREAM_WINDOW);
+		settings.putShort((short) SETTINGS_HEADER_TABLE_SIZE).putInt(Hpack.DEFAULT_TABLE_SIZE);
+		writeFrame(SETTINGS, 0, 0, settings.array(), 0, settings.capacity());
+		writeWindowUpdate(0, CONNECTION_WINDOW - DEFAULT_WINDOW);
+
+		state = STATE_OPEN;
+		startQueued();
+		pump();
+	}
+
+	/**
+	 * Moves data between the channel and the frame buffers until the channel
+	 * would block, processing the incoming frames.
+	 */
+	private void pump() {
+		try {
+			while (state != STATE_CLOSED) {
+				boolean writeBlocked;
+				if (tls != null) {
+					out.flip();
+					int ops = tls.process(channel, out, input);
+					out.compact();
+					if (ops == 0) {
+						throw new IOException("HTTP/2 connection closed by peer");
+					}
+					writeBlocked = (ops == SelectionKey.OP_WRITE);
+					checkProtocol();
+				} else {
+					out.flip();
+					channel.write(out);
+					out.compact();
+					writeBlocked = (out.position() > 0);
+					while (true) {
+						in = ensureCapacity(in, 1);
+						int numRead = channel.read(in);
+						if (numRead < 0) {
+							throw new IOException("HTTP/2 connection closed by peer");
+						} else if (numRead == 0) {
+							break;
+						}
+					}
+				}
+
+				int before = out.position();
+				processFrames();
+				if (state == STATE_CLOSED) {
+					return;
+				}
+				if (writeBlocked || out.position() == before) {
+					boolean pending = writeBlocked || out.position() > 0;
+					selectionKey.interestOps(SelectionKey.OP_READ | (pending ? SelectionKey.OP_WRITE : 0));
+					return;
+				}
+			}
+		} catch (IOException x) {
+			close(x);
+		}
+	}
+
+	/**
+	 * Makes sure the server agreed to speak HTTP/2 over TLS.
+	 */
+	private void checkProtocol()
+	throws IOException {
+		if (protocolChecked) {
+			return;
+		}
+		SSLEngineResult.HandshakeStatus status = tls.getEngine().getHandshakeStatus();
+		if (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+				&& status != SSLEngineResult.HandshakeStatus.FINISHED) {
+			return;
+		}
+		String protocol = tls.getEngine().getApplicationProtocol();
+		if (protocol == null) {
+			return;
+		}
+		if (!Http2Client.ALPN_PROTOCOL.equals(protocol)) {
+			throw new IOException("Server does not support HTTP/2 over TLS");
+		}
+		protocolChecked = true;
+	}
+
+	/**
+	 * Processes all complete frames in the input buffer.
+	 */
+	private void processFrames()
+	throws IOException {
+		in.flip();
+		try {
+			while (in.remaining() >= FRAME_HEADER_LENGTH && state != STATE_CLOSED) {
+				int pos = in.position();
+				int length = ((in.get(pos) & 0xff) << 16) | ((in.get(pos + 1) & 0xff) << 8) | (in.get(pos + 2) & 0xff);
+				if (length > DEFAULT_MAX_FRAME) {
+					connectionError(FRAME_SIZE_ERROR, "frame too large: " + length);
+					return;
+				}
+				if (in.remaining() < FRAME_HEADER_LENGTH + length) {
+					break;
+				}
+				in.position(pos + 3);
+				int type = in.get() & 0xff;
+				int flags = in.get() & 0xff;
+				int streamId = in.getInt() & MAX_STREAM_ID;
+				byte[] payload = new byte[length];
+				in.get(payload);
+				processFrame(type, flags, streamId, payload);
+			}
+		} finally {
+			in.compact();
+		}
+	}
+
+	/**
+	 * Processes a single frame.
+	 */
+	private void processFrame(int type, int flags, int streamId, byte[] payload)
+	throws IOException {
+		if (headerStreamId != 0 && type != CONTINUATION) {
+			connectionError(PROTOCOL_ERROR, "header block interrupted");
+			return;
+		}
+
+		switch (type) {
+		case DATA:
+			processData(flags, streamId, payload);
+			break;
+		case HEADERS:
+			processHeaders(flags, streamId, payload);
+			break;
+		case CONTINUATION:
+			if (streamId != headerStreamId || headerStreamId == 0) {
+				connectionError(PROTOCOL_ERROR, "unexpected CONTINUATION");
+				return;
+			}
+			headerBlock.write(payload, 0, payload.length);
+			if ((flags & FLAG_END_HEADERS) != 0) {
+				processHeaderBlock();
+			}
+			break;
+		case RST_STREAM:
+			processRstStream(streamId, payload);
+			break;
+		case SETTINGS:
+			processSettings(flags, streamId, payload);
+			break;
+		case PUSH_PROMISE:
+			connectionError(PROTOCOL_ERROR, "server push is disabled");
+			break;
+		case PING:
+			if (payload.length != 8) {
+				connectionError(FRAME_SIZE_ERROR, "invalid PING");
+			} else if ((flags & FLAG_ACK) == 0) {
+				writeFrame(PING, FLAG_ACK, 0, payload, 0, payload.length);
+			}
+			break;
+		case GOAWAY:
+			processGoaway(payload);
+			break;
+		case WINDOW_UPDATE:
+			processWindowUpdate(streamId, payload);
+			break;
+		default:
+			// PRIORITY and unknown frame types are ignored
+			break;
+		}
+	}
+
+	private void processData(int flags, int streamId, byte[] payload)
+	throws IOException {
+		// The whole payload, padding included, counts against the windows
+		receiveConsumed += payload.length;
+		if (receiveConsumed >= CONNECTION_WINDOW / 2) {
+			writeWindowUpdate(0, receiveConsumed);
+			receiveConsumed = 0;
+		}
+
+		Stream stream = (Stream) streams.get(Integer.valueOf(streamId));
+		if (stream == null) {
+			// Already reset or timed out
+			return;
+		}
+		int offset = 0;
+		int length = payload.length;
+		if ((flags & FLAG_PADDED) != 0) {
+			int padLength = (length > 0) ? payload[0] & 0xff : 0;
+			if (padLength >= length) {
+				connectionError(PROTOCOL_ERROR, "invalid padding");
+				return;
+			}
+			offset = 1;
+			length -= 1 + padLength;
+		}
+		stream.handler.append(payload, offset, length);
+
+		if ((flags & FLAG_END_STREAM) != 0) {
+			finish(stream);
+		} else {
+			stream.receiveConsumed += payload.length;
+			if (stream.receiveConsumed >= STREAM_WINDOW / 2) {
+				writeWindowUpdate(streamId, stream.receiveConsumed);
+				stream.receiveConsumed = 0;
+			}
+		}
+	}
+
+	private void processHeaders(int flags, int streamId, byte[] payload)
+	throws IOException {
+		int offset = 0;
+		int length = payload.length;
+		if ((flags & FLAG_PADDED) != 0) {
+			int padLength = (length > 0) ? payload[0] & 0xff : 0;
+			if (padLength >= length) {
+				connectionError(PROTOCOL_ERROR, "invalid padding");
+				return;
+			}
+			offset = 1;
+			length -= 1 + padLength;
+		}
+		if ((flags & FLAG_PRIORITY) != 0) {
+			offset += 5;
+			length -= 5;
+		}
+		if (streamId == 0 || length < 0) {
+			connectionError(PROTOCOL_ERROR, "invalid HEADERS");
+			return;
+		}
+
+		headerStreamId = streamId;
+		headerEndStream = (flags & FLAG_END_STREAM) != 0;
+		headerBlock = new ByteArrayOutputStream(length);
+		headerBlock.write(payload, offset, length);
+		if ((flags & FLAG_END_HEADERS) != 0) {
+			processHeaderBlock();
+		}
+	}
+
+	private void processHeaderBlock()
+	throws IOException {
+		int streamId = headerStreamId;
+		byte[] block = headerBlock.toByteArray();
+		headerStreamId = 0;
+		headerBlock = null;
+
+		// The block must be decoded even for streams we have abandoned, to
+		// keep the decoder state in sync with the server
+		List headers;
+		try {
+			headers = decoder.decode(block);
+		} catch (IOException x) {
+			connectionError(COMPRESSION_ERROR, x.getMessage());
+			return;
+		}
+
+		Stream stream = (Stream) streams.get(Integer.valueOf(streamId));
+		if (stream == null) {
+			return;
+		}
+
+		if (!stream.responseStarted) {
+			String status = null;
+			StringBuffer sb = new StringBuffer();
+			for (int i = 0; i < headers.size(); ++i) {
+				String[] header = (String[]) headers.get(i);
+				if (header[0].equals(":status")) {
+					status = header[1];
+				} else if (!header[0].startsWith(":")) {
+					sb.append(header[0]).append(": ").append(header[1]).append("\r\n");
+				}
+			}
+			if (status == null) {
+				resetStream(stream, PROTOCOL_ERROR, new IOException("HTTP/2 response without status"));
+				return;
+			}
+			if (status.startsWith("1") && !headerEndStream) {
+				// Informational response, the final one follows
+				return;
+			}
+			// Present the response in HTTP/1.x form, so that the callers
+			// can use HttpClient.getResponseContents() as usual
+			byte[] head = ("HTTP/2.0 " + status + "\r\n" + sb + "\r\n").getBytes("ISO-8859-1");
+			stream.handler.append(head, 0, head.length);
+			stream.responseStarted = true;
+		}
+		// Trailers, if any, are dropped
+
+		if (headerEndStream) {
+			finish(stream);
+		}
+	}
+
+	private void processRstStream(int streamId, byte[] payload)
+	throws IOException {
+		if (payload.length != 4) {
+			connectionError(FRAME_SIZE_ERROR, "invalid RST_STREAM");
+			return;
+		}
+		int errorCode = ByteBuffer.wrap(payload).getInt();
+		Stream stream = (Stream) streams.remove(Integer.valueOf(streamId));
+		if (stream == null) {
+			return;
+		}
+		blocked.remove(stream);
+		IOException error = new IOException("HTTP/2 stream reset by peer, error code " + errorCode);
+		if (errorCode == REFUSED_STREAM && !stream.responseStarted) {
+			// Not processed by the server, safe to send again
+			retry(stream, error);
+		} else {
+			stream.handler.setError(error);
+		}
+		startQueued();
+	}
+
+	private void processSettings(int flags, int streamId, byte[] payload)
+	throws IOException {
+		if (streamId != 0) {
+			connectionError(PROTOCOL_ERROR, "SETTINGS on a stream");
+			return;
+		}
+		if ((flags & FLAG_ACK) != 0) {
+			return;
+		}
+		if (payload.length % 6 != 0) {
+			connectionError(FRAME_SIZE_ERROR, "invalid SETTINGS");
+			return;
+		}
+
+		ByteBuffer settings = ByteBuffer.wrap(payload);
+		while (settings.hasRemaining()) {
+			int id = settings.getShort() & 0xffff;
+			int value = settings.getInt();
+			if (id == SETTINGS_HEADER_TABLE_SIZE) {
+				encoder.setMaxTableSize(value < 0 ? Integer.MAX_VALUE : value);
+			} else if (id == SETTINGS_MAX_CONCURRENT_STREAMS) {
+				peerMaxConcurrent = (value < 0 ? Integer.MAX_VALUE : value);
+			} else if (id == SETTINGS_INITIAL_WINDOW_SIZE) {
+				if (value < 0) {
+					connectionError(FLOW_CONTROL_ERROR, "invalid initial window size");
+					return;
+				}
+				int delta = value - peerInitialWindow;
+				peerInitialWindow = value;
+				for (Iterator i = streams.values().iterator(); i.hasNext();) {
+					((Stream) i.next()).sendWindow += delta;
+				}
+			} else if (id == SETTINGS_MAX_FRAME_SIZE) {
+				if (value < DEFAULT_MAX_FRAME || value > 0xffffff) {
+					connectionError(PROTOCOL_ERROR, "invalid max frame size");
+					return;
+				}
+				peerMaxFrame = value;
+			}
+		}
+		writeFrame(SETTINGS, FLAG_ACK, 0, new byte[0], 0, 0);
+
+		startQueued();
+		sendData();
+	}
+
+	private void processGoaway(byte[] payload)
+	throws IOException {
+		if (payload.length < 8) {
+			connectionError(FRAME_SIZE_ERROR, "invalid GOAWAY");
+			return;
+		}
+		ByteBuffer buf = ByteBuffer.wrap(payload);
+		int lastStreamId = buf.getInt() & MAX_STREAM_ID;
+		int errorCode = buf.getInt();
+		goingAway = true;
+		client.remove(this);
+
+		// Streams above the last one are guaranteed not to be processed
+		IOException error = new IOException("HTTP/2 connection going away, error code " + errorCode);
+		List retried = new ArrayList();
+		for (Iterator i = streams.values().iterator(); i.hasNext();) {
+			Stream stream = (Stream) i.next();
+			if (stream.id > lastStreamId) {
+				i.remove();
+				blocked.remove(stream);
+				retried.add(stream);
+			}
+		}
+		retried.addAll(queued);
+		queued.clear();
+		for (int i = 0; i < retried.size(); ++i) {
+			retry((Stream) retried.get(i), error);
+		}
+
+		if (streams.isEmpty()) {
+			close(null);
+		}
+	}
+
+	private void processWindowUpdate(int streamId, byte[] payload)
+	throws IOException {
+		if (payload.length != 4) {
+			connectionError(FRAME_SIZE_ERROR, "invalid WINDOW_UPDATE");
+			return;
+		}
+		int increment = ByteBuffer.wrap(payload).getInt() & MAX_STREAM_ID;
+		if (streamId == 0) {
+			if (increment == 0) {
+				connectionError(PROTOCOL_ERROR, "zero window increment");
+				return;
+			}
+			sendWindow += increment;
+		} else {
+			Stream stream = (Stream) streams.get(Integer.valueOf(streamId));
+			if (stream == null) {
+				return;
+			}
+			if (increment == 0) {
+				resetStream(stream, PROTOCOL_ERROR, new IOException("HTTP/2 zero window increment"));
+				return;
+			}
+			stream.sendWindow += increment;
+		}
+		sendData();
+	}
+
+
+
+	/*
+	 * Stream management
+	 */
+
+
+
+	/**
+	 * Starts queued streams while the server allows more concurrent ones.
+	 */
+	private void startQueued() {
+		while (state == STATE_OPEN && !goingAway && !queued.isEmpty()
+				&& streams.size() < peerMaxConcurrent && nextStreamId < MAX_STREAM_ID) {
+			start((Stream) queued.removeFirst());
+		}
+		if (nextStreamId >= MAX_STREAM_ID && !goingAway) {
+			// Out of stream ids, new streams go to other connections
+			goingAway = true;
+			client.remove(this);
+			while (!queued.isEmpty()) {
+				Stream stream = (Stream) queued.removeFirst();
+				client.dispatch(stream);
+			}
+		}
+	}
+
+	/**
+	 * Sends the request headers of the given stream, and its data as far as
+	 * the flow control windows allow.
+	 */
+	private void start(Stream stream) {
+		stream.id = nextStreamId;
+		nextStreamId += 2;
+		stream.handler.markConnected();
+		stream.sendWindow = peerInitialWindow;
+		stream.receiveConsumed = 0;
+		stream.responseStarted = false;
+		streams.put(Integer.valueOf(stream.id), stream);
+
+		List headers = new ArrayList();
+		headers.add(new String[] { ":method", stream.method });
+		headers.add(new String[] { ":scheme", stream.scheme });
+		headers.add(new String[] { ":authority", stream.authority });
+		headers.add(new String[] { ":path", stream.path });
+		if (stream.authorization != null) {
+			headers.add(new String[] { "authorization", stream.authorization });
+		}
+		if (stream.body != null) {
+			headers.add(new String[] { "content-length", Integer.toString(stream.body.remaining()) });
+		}
+		byte[] block = encoder.encode(headers, SENSITIVE);
+
+		int endStream = (stream.body == null) ? FLAG_END_STREAM : 0;
+		int offset = 0;
+		int type = HEADERS;
+		do {
+			int length = Math.min(block.length - offset, peerMaxFrame);
+			int flags = (type == HEADERS ? endStream : 0);
+			if (offset + length == block.length) {
+				flags |= FLAG_END_HEADERS;
+			}
+			writeFrame(type, flags, stream.id, block, offset, length);
+			offset += length;
+			type = CONTINUATION;
+		} while (offset < block.length);
+
+		if (stream.body != null) {
+			blocked.addLast(stream);
+			sendData();
+		} else {
+			stream.handler.markSent();
+		}
+	}
+
+	/**
+	 * Sends request data of the blocked streams as far as the flow control
+	 * windows allow.
+	 */
+	private void sendData() {
+		for (Iterator i = blocked.iterator(); i.hasNext() && sendWindow > 0;) {
+			Stream stream = (Stream) i.next();
+			do {
+				int length = (int) Math.min(Math.min(stream.body.remaining(), peerMaxFrame),
+						Math.min(sendWindow, stream.sendWindow));
+				if (length <= 0 && stream.body.hasRemaining()) {
+					break;
+				}
+				int flags = (length == stream.body.remaining()) ? FLAG_END_STREAM : 0;
+				writeFrame(DATA, flags, stream.id, stream.body.array(), stream.body.position(), length);
+				stream.body.position(stream.body.position() + length);
+				sendWindow -= length;
+				stream.sendWindow -= length;
+			} while (stream.body.hasRemaining());
+			if (!stream.body.hasRemaining()) {
+				stream.handler.markSent();
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Completes the given stream successfully.
+	 */
+	private void finish(Stream stream) {
+		streams.remove(Integer.valueOf(stream.id));
+		blocked.remove(stream);
+		stream.handler.setComplete();
+		if (goingAway && streams.isEmpty()) {
+			close(null);
+		} else {
+			startQueued();
+		}
+	}
+
+	/**
+	 * Resets the given stream and fails it with the given error.
+	 */
+	private void resetStream(Stream stream, int errorCode, IOException error) {
+		streams.remove(Integer.valueOf(stream.id));
+		blocked.remove(stream);
+		writeRstStream(stream.id, errorCode);
+		stream.handler.setError(error);
+		startQueued();
+	}
+
+	/**
+	 * Hands the given stream, which the server did not process, back to the
+	 * client for another attempt, unless it has been tried too many times.
+	 */
+	private void retry(final Stream stream, IOException error) {
+		if (++stream.attempts >= MAX_ATTEMPTS) {
+			stream.handler.setError(error);
+			return;
+		}
+		if (stream.body != null) {
+			stream.body.rewind();
+		}
+		// Not dispatched right away, as the stream could be given back to
+		// this connection while it is still processing incoming frames
+		client.execute(new Runnable() {
+			public void run() {
+				client.dispatch(stream);
+			}
+		});
+	}
+
+	/**
+	 * Sends GOAWAY and closes the connection after a protocol violation by
+	 * the server.
+	 */
+	private void connectionError(int errorCode, String message) {
+		// Server push is disabled, so the server has opened no streams
+		ByteBuffer buf = ByteBuffer.allocate(8);
+		buf.putInt(0).putInt(errorCode);
+		writeFrame(GOAWAY, 0, 0, buf.array(), 0, 8);
+		try {
+			// Best effort only
+			out.flip();
+			if (tls == null) {
+				channel.write(out);
+			}
+			out.compact();
+		} catch (IOException x) {
+			// Nothing here, we're closing anyway
+		}
+		close(new IOException("HTTP/2 protocol error: " + message));
+	}
+
+
+
+	/*
+	 * Frame output
+	 */
+
+
+
+	private void writeRstStream(int streamId, int errorCode) {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		buf.putInt(errorCode);
+		writeFrame(RST_STREAM, 0, streamId, buf.array(), 0, 4);
+	}
+
+	private void writeWindowUpdate(int streamId, int increment) {
+		ByteBuffer buf = ByteBuffer.allocate(4);
+		buf.putInt(increment);
+		writeFrame(WINDOW_UPDATE, 0, streamId, buf.array(), 0, 4);
+	}
+
+	/**
+	 * Appends a frame to the output buffer.
+	 */
+	private void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) {
+		out = ensureCapacity(out, FRAME_HEADER_LENGTH + length);
+		out.put((byte) (length >>> 16)).put((byte) (length >>> 8)).put((byte) length);
+		out.put((byte) type).put((byte) flags).putInt(streamId);
+		out.put(payload, offset, length);
+	}
+
+	/**
+	 * Returns a buffer with room for at least {@code length} more bytes,
+	 * holding the contents of the given buffer in write mode.
+	 */
+	private static ByteBuffer ensureCapacity(ByteBuffer buffer, int length) {
+		if (buffer.remaining() >= length) {
+			return buffer;
+		}
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2, buffer.position() + length));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+
+	private static long earliest(long next, long remaining) {
+		if (remaining > 0 && (next == 0 || remaining < next)) {
+			return remaining;
+		}
+		return next;
+	}
+}
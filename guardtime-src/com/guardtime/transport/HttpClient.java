@@ -24,7 +24,6 @@ package com.guardtime.transport;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.net.InetSocketAddress;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.util.StringTokenizer;
@@ -62,6 +61,10 @@ import com.guardtime.util.Base64;
  * byte[] reponse = handler.receiveResponse(0);
  * </pre>
  *
+ * Requests to {@code https} URLs are sent over TLS, see
+ * {@link SocketClient#addSecureRequest(String, int, byte[], long)}. Note that
+ * requests through a proxy are always sent in plain text.
+ *
  * To extract response contents, if any, use
  * {@link #getResponseContents(byte[])} method:
  * <pre>
@@ -71,6 +74,7 @@ import com.guardtime.util.Base64;
 public class HttpClient
 extends SocketClient {
 	private static final String PROTOCOL = "HTTP/1.0";
+	private static final String HTTPS = "https";
 	private static final String NEWLINE = "\r\n";
 	private static final byte[] SEPARATOR = (NEWLINE + NEWLINE).getBytes();
 
@@ -98,6 +102,35 @@ extends SocketClient {
 		return new ByteArrayInputStream(response, pos, response.length - pos);
 	}
 
+	/**
+	 * Extracts the status code from this HTTP response.
+	 *
+	 * @param response HTTP response.
+	 *
+	 * @return status code, or {@code -1} if the status line is malformed.
+	 */
+	static int getStatusCode(byte[] response) {
+		// Status line: HTTP/1.0 200 OK
+		int i = 0;
+		while (i < response.length && response[i] != ' ') {
+			++i;
+		}
+		if (i + 4 > response.length) {
+			return -1;
+		}
+		int code = 0;
+		for (int j = i + 1; j < i + 4; ++j) {
+			if (response[j] < '0' || response[j] > '9') {
+				return -1;
+			}
+			code = code * 10 + (response[j] - '0');
+		}
+		if (i + 4 < response.length && response[i + 4] != ' ' && response[i + 4] != '\r') {
+			return -1;
+		}
+		return code;
+	}
+
 	/**
 	 * Finds the position of the given pattern in the given buffer.
 	 *
@@ -218,17 +251,19 @@ extends SocketClient {
 	 */
 	public ResponseHandler addHttpRequest(URL url, byte[] data, long timeout)
 	throws IOException {
-		InetSocketAddress socketAddress;
+		byte[] requestBytes = getRequest(url, data);
 
+		// Host names are resolved through the cache of this client,
+		// off the calling thread
 		if (proxySet) {
-			socketAddress = new InetSocketAddress(proxyHost, proxyPort);
+			return addRequest(proxyHost, proxyPort, requestBytes, timeout);
+		}
+		int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
+		if (HTTPS.equalsIgnoreCase(url.getProtocol())) {
+			return addSecureRequest(url.getHost(), port, requestBytes, timeout);
 		} else {
-			int port = url.getPort() < 0 ? url.getDefaultPort() : url.getPort();
-			socketAddress = new InetSocketAddress(url.getHost(), port);
+			return addRequest(url.getHost(), port, requestBytes, timeout);
 		}
-
-		byte[] requestBytes = getRequest(url, data);
-		return addRequest(socketAddress, requestBytes, timeout);
 	}
 
 
@@ -23,12 +23,17 @@ package com.guardtime.transport;
 
 import java.io.IOException;
 import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
 
 import com.guardtime.tsp.GTCertTokenResponse;
 import com.guardtime.tsp.GTDataHash;
 import com.guardtime.tsp.GTException;
 import com.guardtime.tsp.GTTimestamp;
 import com.guardtime.tsp.GTTimestampResponse;
+import com.guardtime.util.Counter;
+import com.guardtime.util.Histogram;
+import com.guardtime.util.Metrics;
 
 
 
@@ -52,13 +57,45 @@ import com.guardtime.tsp.GTTimestampResponse;
  *
  * {@code }
  *
+ * By default, requests are sent over HTTP/1.0, one connection per request.
+ * To multiplex all requests over a few HTTP/2 connections instead, call
+ * {@link #setHttp2Enabled(boolean)} or set the
+ * {@code com.guardtime.transport.http2} system property to {@code true}
+ * before the stamper is created. This also applies to the methods of
+ * {@link SimpleHttpStamper}, which use the singleton stamper.
+ * <p>
+ * Failed extension requests and publications file downloads are retried
+ * according to the {@link RetryPolicy} of the stamper; timestamping requests
+ * are only retried if the policy allows it. Each service endpoint has a
+ * {@link CircuitBreaker}, so that while a service is down, requests to it fail
+ * at once instead of each waiting for the full timeout.
+ *
  * @see com.guardtime.transport.SimpleHttpStamper
  *
  * @since 0.4
  */
 public class HttpStamper {
+	/**
+	 * Name of the system property that enables the HTTP/2 transport.
+	 */
+	public static final String HTTP2_PROPERTY = "com.guardtime.transport.http2";
+
+	/*
+	 * Metrics of the service operations, including retries
+	 */
+	private static final Operation STAMP = new Operation("stamp");
+	private static final Operation EXTEND = new Operation("extend");
+	private static final Operation PUBLICATIONS_FILE = new Operation("publications_file");
+
 	private static HttpStamper INSTANCE = null;
 	private HttpClient httpClient;
+	private Http2Client http2Client;
+	private boolean http2Enabled;
+	private RetryPolicy retryPolicy;
+	private boolean circuitBreakerEnabled;
+
+	// Maps a service endpoint to its CircuitBreaker
+	private final Map breakers;
 
 
 
@@ -109,7 +146,7 @@ public class HttpStamper {
 	 */
 	public static GTTimestampResponse receiveTimestampResponse(ResponseHandler handler, long timeout)
 	throws GTException, IOException {
-		byte[] response = handler.receiveResponse(timeout);
+		byte[] response = handler.receiveSharedResponse(timeout);
 		if (response == null) {
 			return null;
 		}
@@ -142,7 +179,7 @@ public class HttpStamper {
 	 */
 	public static GTCertTokenResponse receiveExtensionResponse(ResponseHandler handler, long timeout)
 	throws GTException, IOException {
-		byte[] response = handler.receiveResponse(timeout);
+		byte[] response = handler.receiveSharedResponse(timeout);
 		if (response == null) {
 			return null;
 		}
@@ -177,7 +214,8 @@ public class HttpStamper {
 	public ResponseHandler addTimestampRequest(GTDataHash dataHash, URL stamperUrl, long timeout)
 	throws IOException {
 		byte[] requestBytes = GTTimestamp.composeRequest(dataHash);
-		return httpClient.addHttpRequest(stamperUrl, requestBytes, timeout);
+		RetryPolicy policy = getRetryPolicy();
+		return addHttpRequest(STAMP, stamperUrl, requestBytes, timeout, policy != null && policy.isRetryStamping());
 	}
 
 	/**
@@ -206,7 +244,7 @@ public class HttpStamper {
 	public ResponseHandler addExtensionRequest(GTTimestamp timestamp, URL verifierUrl, long timeout)
 	throws IOException {
 		byte[] requestBytes = timestamp.composeExtensionRequest();
-		return httpClient.addHttpRequest(verifierUrl, requestBytes, timeout);
+		return addHttpRequest(EXTEND, verifierUrl, requestBytes, timeout, true);
 	}
 
 	/**
@@ -233,7 +271,206 @@ public class HttpStamper {
 	 */
 	public ResponseHandler addPublicationFileRequest(URL publicationFileUrl, long timeout)
 	throws IOException {
-		return httpClient.addHttpRequest(publicationFileUrl, timeout);
+		return addHttpRequest(PUBLICATIONS_FILE, publicationFileUrl, null, timeout, true);
+	}
+
+
+
+	/**
+	 * Checks whether requests are sent over HTTP/2.
+	 *
+	 * @return {@code true} if the HTTP/2 transport is enabled.
+	 *
+	 * @see #setHttp2Enabled(boolean)
+	 */
+	public synchronized boolean isHttp2Enabled() {
+		return http2Enabled;
+	}
+
+	/**
+	 * Enables or disables the HTTP/2 transport.
+	 * <p>
+	 * When enabled, requests are multiplexed over a few long-lived HTTP/2
+	 * connections per service (see {@link Http2Client}); {@code http} URLs
+	 * then require the service to accept cleartext HTTP/2 (h2c). Responses
+	 * are handled by the same {@link ResponseHandler} methods as before.
+	 * Requests already sent are not affected.
+	 *
+	 * @param enabled {@code true} to use HTTP/2, {@code false} to use
+	 * 			HTTP/1.0.
+	 *
+	 * @throws IOException if the HTTP/2 transport cannot be started.
+	 */
+	public synchronized void setHttp2Enabled(boolean enabled)
+	throws IOException {
+		if (enabled && http2Client == null) {
+			http2Client = new Http2Client();
+			http2Client.setResolver(httpClient.getResolver());
+			http2Client.start();
+		}
+		http2Enabled = enabled;
+	}
+
+	/**
+	 * Returns the retry policy of this stamper.
+	 *
+	 * @return retry policy, or {@code null} if failed requests are not
+	 * 			retried.
+	 */
+	public synchronized RetryPolicy getRetryPolicy() {
+		return retryPolicy;
+	}
+
+	/**
+	 * Sets the retry policy of this stamper. Requests already sent are not
+	 * affected.
+	 *
+	 * @param retryPolicy retry policy, or {@code null} to not retry failed
+	 * 			requests.
+	 */
+	public synchronized void setRetryPolicy(RetryPolicy retryPolicy) {
+		this.retryPolicy = retryPolicy;
+	}
+
+	/**
+	 * Checks whether requests are guarded by circuit breakers.
+	 *
+	 * @return {@code true} if circuit breakers are enabled.
+	 */
+	public synchronized boolean isCircuitBreakerEnabled() {
+		return circuitBreakerEnabled;
+	}
+
+	/**
+	 * Enables or disables the circuit breakers. They are enabled by default.
+	 *
+	 * @param circuitBreakerEnabled {@code true} to guard requests with
+	 * 			circuit breakers.
+	 */
+	public synchronized void setCircuitBreakerEnabled(boolean circuitBreakerEnabled) {
+		this.circuitBreakerEnabled = circuitBreakerEnabled;
+	}
+
+	/**
+	 * Returns the circuit breaker for the endpoint (protocol, host and port)
+	 * of the given URL, creating one with the default settings if needed.
+	 *
+	 * @param url service URL.
+	 *
+	 * @return circuit breaker.
+	 */
+	public CircuitBreaker getCircuitBreaker(URL url) {
+		String endpoint = getEndpoint(url);
+		synchronized (breakers) {
+			CircuitBreaker breaker = (CircuitBreaker) breakers.get(endpoint);
+			if (breaker == null) {
+				breaker = new CircuitBreaker();
+				breakers.put(endpoint, breaker);
+			}
+			return breaker;
+		}
+	}
+
+	/**
+	 * Sets the circuit breaker for the endpoint (protocol, host and port) of
+	 * the given URL, to use settings other than the default.
+	 *
+	 * @param url service URL.
+	 * @param breaker circuit breaker.
+	 */
+	public void setCircuitBreaker(URL url, CircuitBreaker breaker) {
+		if (breaker == null) {
+			throw new IllegalArgumentException("invalid circuit breaker: null");
+		}
+		synchronized (breakers) {
+			breakers.put(getEndpoint(url), breaker);
+		}
+	}
+
+	/**
+	 * Sends a request for the given operation and reports its outcome to
+	 * the metrics of the operation.
+	 *
+	 * @param operation the service operation.
+	 * @param url URL.
+	 * @param data data to POST, or {@code null} to GET.
+	 * @param timeout transaction timeout.
+	 * @param retryable whether the request may be retried.
+	 *
+	 * @return response handler.
+	 *
+	 * @throws IOException if transport IO error occurs.
+	 */
+	private ResponseHandler addHttpRequest(Operation operation, URL url, byte[] data, long timeout, boolean retryable)
+	throws IOException {
+		operation.requests.increment();
+		ResponseHandler handler;
+		try {
+			handler = addHttpRequest(url, data, timeout, retryable);
+		} catch (IOException e) {
+			operation.errors.increment();
+			throw e;
+		}
+		handler.addObserver(operation.latency, operation.errors);
+		return handler;
+	}
+
+	/**
+	 * Sends a request using the selected transport, with retries and the
+	 * circuit breaker of the service.
+	 *
+	 * @param url URL.
+	 * @param data data to POST, or {@code null} to GET.
+	 * @param timeout transaction timeout.
+	 * @param retryable whether the request may be sent more than once.
+	 *
+	 * @return response handler.
+	 *
+	 * @throws IOException if transport IO error occurs.
+	 */
+	private ResponseHandler addHttpRequest(final URL url, final byte[] data, long timeout, boolean retryable)
+	throws IOException {
+		RetryPolicy policy;
+		boolean guarded;
+		synchronized (this) {
+			policy = retryPolicy;
+			guarded = circuitBreakerEnabled;
+		}
+		if (policy == null && !guarded) {
+			return addHttpRequest(url, data, timeout);
+		}
+
+		CircuitBreaker breaker = (guarded ? getCircuitBreaker(url) : null);
+		RetryExchange exchange = new RetryExchange(new RetryExchange.Sender() {
+			public ResponseHandler send(long timeout)
+			throws IOException {
+				return addHttpRequest(url, data, timeout);
+			}
+		}, getEndpoint(url), policy, breaker, retryable, timeout);
+		return exchange.start();
+	}
+
+	/**
+	 * Sends a request using the selected transport.
+	 *
+	 * @param url URL.
+	 * @param data data to POST, or {@code null} to GET.
+	 * @param timeout transaction timeout.
+	 *
+	 * @return response handler.
+	 *
+	 * @throws IOException if transport IO error occurs.
+	 */
+	private ResponseHandler addHttpRequest(URL url, byte[] data, long timeout)
+	throws IOException {
+		Http2Client client;
+		synchronized (this) {
+			client = (http2Enabled ? http2Client : null);
+		}
+		if (client != null) {
+			return client.addHttpRequest(url, data, timeout);
+		}
+		return httpClient.addHttpRequest(url, data, timeout);
 	}
 
 
@@ -245,7 +482,41 @@ public class HttpStamper {
 	 */
 	private HttpStamper()
 	throws IOException {
+		retryPolicy = new RetryPolicy();
+		circuitBreakerEnabled = true;
+		breakers = new HashMap();
 		httpClient = new HttpClient();
 		httpClient.start();
+		if ("true".equalsIgnoreCase(System.getProperty(HTTP2_PROPERTY))) {
+			setHttp2Enabled(true);
+		}
+	}
+
+	/**
+	 * Returns the endpoint of the given URL, as protocol, host and port.
+	 */
+	private static String getEndpoint(URL url) {
+		int port = (url.getPort() < 0) ? url.getDefaultPort() : url.getPort();
+		return url.getProtocol().toLowerCase() + "://" + url.getHost().toLowerCase() + ":" + port;
+	}
+
+
+
+	/**
+	 * Metrics of one service operation.
+	 */
+	private static class Operation {
+		final Counter requests;
+		final Counter errors;
+		final Histogram latency;
+
+		public Operation(String name) {
+			requests = Metrics.counter("gt_http_requests_total",
+					"Requests to the GuardTime services.", "operation", name);
+			errors = Metrics.counter("gt_http_errors_total",
+					"Requests to the GuardTime services that failed in transport.", "operation", name);
+			latency = Metrics.histogram("gt_http_request_seconds",
+					"Duration of requests to the GuardTime services, including retries.", "operation", name);
+		}
 	}
 }
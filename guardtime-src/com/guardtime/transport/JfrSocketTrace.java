@@ -0,0 +1,191 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+
+/**
+ * Java Flight Recorder implementation of {@link SocketTrace}.
+ * <p>
+ * This is the only class of the package that links against {@code jdk.jfr};
+ * an instance of it is loaded by {@code SocketTrace} as the factory of traces
+ * only when the flight recorder is available.
+ */
+final class JfrSocketTrace
+implements SocketTrace.Factory {
+	private final EventType transactionType;
+	private final EventType phaseType;
+
+
+
+	/**
+	 * Default constructor.
+	 */
+	JfrSocketTrace() {
+		transactionType = EventType.getEventType(TransactionEvent.class);
+		phaseType = EventType.getEventType(PhaseEvent.class);
+	}
+
+	public SocketTrace start(String host, int port, boolean lookup) {
+		// No event objects at all unless a recording wants them
+		if (!transactionType.isEnabled() && !phaseType.isEnabled()) {
+			return null;
+		}
+		return new Trace(host, port, lookup ? "lookup" : "connect");
+	}
+
+
+
+	/**
+	 * Events of one transaction.
+	 */
+	private static final class Trace
+	extends SocketTrace {
+		private final String host;
+		private final int port;
+		private final TransactionEvent transaction;
+		// The phase in progress
+		private PhaseEvent phase;
+
+		Trace(String host, int port, String name) {
+			this.host = host;
+			this.port = port;
+			this.transaction = new TransactionEvent();
+			transaction.host = host;
+			transaction.port = port;
+			transaction.begin();
+			begin(name);
+		}
+
+		synchronized void resolved() {
+			next("connect");
+		}
+
+		synchronized void connected() {
+			next("send");
+		}
+
+		synchronized void sent() {
+			next("wait");
+		}
+
+		synchronized void firstByte() {
+			next("receive");
+		}
+
+		synchronized void complete(long received, Exception error) {
+			end();
+			transaction.end();
+			if (transaction.shouldCommit()) {
+				transaction.received = received;
+				transaction.error = (error == null) ? null : error.toString();
+				transaction.commit();
+			}
+		}
+
+		/**
+		 * Ends the phase in progress and begins the given one.
+		 */
+		private void next(String name) {
+			end();
+			begin(name);
+		}
+
+		private void begin(String name) {
+			PhaseEvent event = new PhaseEvent();
+			event.phase = name;
+			event.host = host;
+			event.port = port;
+			event.begin();
+			phase = event;
+		}
+
+		private void end() {
+			if (phase == null) {
+				return;
+			}
+			phase.end();
+			if (phase.shouldCommit()) {
+				phase.commit();
+			}
+			phase = null;
+		}
+	}
+
+
+
+	/**
+	 * One phase of a socket transaction.
+	 */
+	@Name("com.guardtime.SocketPhase")
+	@Label("Socket Transaction Phase")
+	@Description("A phase of a request sent by the GuardTime SDK socket client")
+	@Category({"GuardTime", "Transport"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class PhaseEvent
+	extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Host")
+		String host;
+
+		@Label("Port")
+		int port;
+	}
+
+	/**
+	 * A whole socket transaction.
+	 */
+	@Name("com.guardtime.SocketTransaction")
+	@Label("Socket Transaction")
+	@Description("A request sent by the GuardTime SDK socket client, from adding it to the end of the response")
+	@Category({"GuardTime", "Transport"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class TransactionEvent
+	extends Event {
+		@Label("Host")
+		String host;
+
+		@Label("Port")
+		int port;
+
+		@Label("Bytes Received")
+		@DataAmount
+		long received;
+
+		@Label("Error")
+		String error;
+	}
+}
@@ -0,0 +1,422 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.InterruptedIOException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.Map;
+
+
+
+/**
+ * Limits the number of requests in flight, in total and per host.
+ * <p>
+ * A request must be admitted by the limiter before it opens a connection,
+ * and must release its slot when the transaction is over. When either limit
+ * is reached, new requests wait in a first-come, first-served queue; a
+ * request to a host that is at its own limit does not hold up requests to
+ * other hosts behind it. Callers can choose how to wait:
+ * <ul>
+ * <li>{@link #acquire(String)} blocks until the request is admitted;
+ * <li>{@link #tryAcquire(String, long)} gives up after the given time;
+ * <li>{@link #tryAcquire(String)} fails at once if the request can not be
+ * admitted without waiting.
+ * </ul>
+ * This way a burst of requests slows down the producer instead of exhausting
+ * the file descriptors of the process.
+ * <p>
+ * A limiter can be shared by several clients to enforce process-wide
+ * limits.
+ *
+ * @see SocketClient#setLimiter(RequestLimiter)
+ *
+ * @since 0.4
+ */
+public class RequestLimiter {
+	/**
+	 * The default limit for requests in flight in total.
+	 */
+	public static final int DEFAULT_MAX_REQUESTS = 256;
+
+	/**
+	 * The default limit for requests in flight to a single host.
+	 */
+	public static final int DEFAULT_MAX_REQUESTS_PER_HOST = 64;
+
+	private int maxRequests;
+	private int maxRequestsPerHost;
+
+	// Requests in flight, in total and per host (maps host to int[1])
+	private int inFlight;
+	private final Map hostInFlight;
+
+	// Waiting requests, in arrival order
+	private final LinkedList queue;
+
+	// Statistics
+	private long admittedCount;
+	private long rejectedCount;
+	private long waitedCount;
+	private long totalWaitTime;
+	private long maxWaitTime;
+
+
+
+	/**
+	 * Default constructor.
+	 * <p>
+	 * Creates a limiter with {@link #DEFAULT_MAX_REQUESTS} and
+	 * {@link #DEFAULT_MAX_REQUESTS_PER_HOST}.
+	 */
+	public RequestLimiter() {
+		this(DEFAULT_MAX_REQUESTS, DEFAULT_MAX_REQUESTS_PER_HOST);
+	}
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param maxRequests limit for requests in flight in total; {@code 0}
+	 * 			for no limit.
+	 * @param maxRequestsPerHost limit for requests in flight to a single
+	 * 			host; {@code 0} for no limit.
+	 */
+	public RequestLimiter(int maxRequests, int maxRequestsPerHost) {
+		hostInFlight = new HashMap();
+		queue = new LinkedList();
+		setMaxRequests(maxRequests);
+		setMaxRequestsPerHost(maxRequestsPerHost);
+	}
+
+	/**
+	 * Returns the limit for requests in flight in total.
+	 *
+	 * @return the limit; {@code 0} if there is no limit.
+	 */
+	public synchronized int getMaxRequests() {
+		return maxRequests;
+	}
+
+	/**
+	 * Sets the limit for requests in flight in total. Lowering the limit does
+	 * not affect requests already admitted.
+	 *
+	 * @param maxRequests the limit; {@code 0} for no limit.
+	 */
+	public synchronized void setMaxRequests(int maxRequests) {
+		if (maxRequests < 0) {
+			throw new IllegalArgumentException("invalid request limit: " + maxRequests);
+		}
+		this.maxRequests = maxRequests;
+		admitWaiting();
+	}
+
+	/**
+	 * Returns the limit for requests in flight to a single host.
+	 *
+	 * @return the limit; {@code 0} if there is no limit.
+	 */
+	public synchronized int getMaxRequestsPerHost() {
+		return maxRequestsPerHost;
+	}
+
+	/**
+	 * Sets the limit for requests in flight to a single host. Lowering the
+	 * limit does not affect requests already admitted.
+	 *
+	 * @param maxRequestsPerHost the limit; {@code 0} for no limit.
+	 */
+	public synchronized void setMaxRequestsPerHost(int maxRequestsPerHost) {
+		if (maxRequestsPerHost < 0) {
+			throw new IllegalArgumentException("invalid per-host request limit: " + maxRequestsPerHost);
+		}
+		this.maxRequestsPerHost = maxRequestsPerHost;
+		admitWaiting();
+	}
+
+	/**
+	 * Admits a request to the given host, waiting as long as necessary.
+	 *
+	 * @param host host name or address.
+	 *
+	 * @throws InterruptedIOException if the thread is interrupted while
+	 * 			waiting; the interrupt status of the thread is kept.
+	 */
+	public void acquire(String host)
+	throws InterruptedIOException {
+		acquire(host, 0, true);
+	}
+
+	/**
+	 * Admits a request to the given host if that can be done without
+	 * waiting.
+	 *
+	 * @param host host name or address.
+	 *
+	 * @return {@code true} if the request was admitted, {@code false} if a
+	 * 			limit has been reached.
+	 */
+	public boolean tryAcquire(String host) {
+		synchronized (this) {
+			if (hasRoom(host)) {
+				admit(host, 0);
+				return true;
+			}
+			++rejectedCount;
+			return false;
+		}
+	}
+
+	/**
+	 * Admits a request to the given host, waiting at most the given time.
+	 *
+	 * @param host host name or address.
+	 * @param timeout maximum time to wait, in milliseconds; {@code 0} to
+	 * 			wait as long as necessary.
+	 *
+	 * @return {@code true} if the request was admitted, {@code false} if the
+	 * 			time passed first.
+	 *
+	 * @throws InterruptedIOException if the thread is interrupted while
+	 * 			waiting; the interrupt status of the thread is kept.
+	 */
+	public boolean tryAcquire(String host, long timeout)
+	throws InterruptedIOException {
+		return acquire(host, timeout, false);
+	}
+
+	/**
+	 * Releases the slot of a request admitted earlier, admitting the next
+	 * waiting requests, if any.
+	 *
+	 * @param host host name or address given when the request was admitted.
+	 */
+	public synchronized void release(String host) {
+		int[] count = (int[]) hostInFlight.get(host);
+		if (count == null || inFlight == 0) {
+			throw new IllegalStateException("no request in flight to " + host);
+		}
+		--inFlight;
+		if (--count[0] == 0) {
+			hostInFlight.remove(host);
+		}
+		admitWaiting();
+	}
+
+	/**
+	 * Returns the number of requests in flight.
+	 *
+	 * @return number of admitted requests not yet released.
+	 */
+	public synchronized int getInFlight() {
+		return inFlight;
+	}
+
+	/**
+	 * Returns the number of requests in flight to the given host.
+	 *
+	 * @param host host name or address.
+	 *
+	 * @return number of admitted requests not yet released.
+	 */
+	public synchronized int getInFlight(String host) {
+		int[] count = (int[]) hostInFlight.get(host);
+		return (count == null) ? 0 : count[0];
+	}
+
+	/**
+	 * Returns the number of requests waiting to be admitted.
+	 *
+	 * @return current queue depth.
+	 */
+	public synchronized int getQueueLength() {
+		return queue.size();
+	}
+
+	/**
+	 * Returns the number of requests admitted so far.
+	 *
+	 * @return number of admitted requests.
+	 */
+	public synchronized long getAdmittedCount() {
+		return admittedCount;
+	}
+
+	/**
+	 * Returns the number of requests turned away so far, either at once or
+	 * after their waiting time passed.
+	 *
+	 * @return number of rejected requests.
+	 */
+	public synchronized long getRejectedCount() {
+		return rejectedCount;
+	}
+
+	/**
+	 * Returns the number of admitted requests that had to wait in the queue.
+	 *
+	 * @return number of requests admitted after waiting.
+	 */
+	public synchronized long getWaitedCount() {
+		return waitedCount;
+	}
+
+	/**
+	 * Returns the total time admitted requests have spent waiting in the
+	 * queue. Divided by {@link #getAdmittedCount()}, this gives the average
+	 * admission delay.
+	 *
+	 * @return total waiting time, in milliseconds.
+	 */
+	public synchronized long getTotalWaitTime() {
+		return totalWaitTime;
+	}
+
+	/**
+	 * Returns the longest time a request has spent waiting in the queue
+	 * before being admitted.
+	 *
+	 * @return maximum waiting time, in milliseconds.
+	 */
+	public synchronized long getMaxWaitTime() {
+		return maxWaitTime;
+	}
+
+	/**
+	 * Admits a request, waiting if necessary.
+	 *
+	 * @param host host name or address.
+	 * @param timeout maximum time to wait, in milliseconds; {@code 0} for no
+	 * 			limit.
+	 * @param block whether to ignore the timeout and wait without limit.
+	 *
+	 * @return {@code true} if the request was admitted.
+	 */
+	private synchronized boolean acquire(String host, long timeout, boolean block)
+	throws InterruptedIOException {
+		if (hasRoom(host)) {
+			// Nobody who could use the room is waiting, or they would have
+			// been admitted when it was freed
+			admit(host, 0);
+			return true;
+		}
+
+		Waiter waiter = new Waiter(host);
+		queue.addLast(waiter);
+		Timeout time = new Timeout(block ? 0 : timeout);
+		while (!waiter.admitted) {
+			if (time.isTimedOut()) {
+				queue.remove(waiter);
+				++rejectedCount;
+				return false;
+			}
+			try {
+				wait(time.getRemaining());
+			} catch (InterruptedException e) {
+				if (waiter.admitted) {
+					// Too late to back out, keep the slot
+					Thread.currentThread().interrupt();
+					break;
+				}
+				queue.remove(waiter);
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a request slot");
+			}
+		}
+		++waitedCount;
+		return true;
+	}
+
+	/**
+	 * Checks whether a request to the given host can be admitted now.
+	 */
+	private boolean hasRoom(String host) {
+		if (host == null) {
+			throw new IllegalArgumentException("invalid host: null");
+		}
+		if (maxRequests > 0 && inFlight >= maxRequests) {
+			return false;
+		}
+		if (maxRequestsPerHost > 0 && getInFlight(host) >= maxRequestsPerHost) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Counts a request to the given host as in flight.
+	 */
+	private void admit(String host, long waitTime) {
+		++inFlight;
+		int[] count = (int[]) hostInFlight.get(host);
+		if (count == null) {
+			count = new int[1];
+			hostInFlight.put(host, count);
+		}
+		++count[0];
+		++admittedCount;
+		totalWaitTime += waitTime;
+		if (waitTime > maxWaitTime) {
+			maxWaitTime = waitTime;
+		}
+	}
+
+	/**
+	 * Admits the waiting requests that fit in the limits, in arrival order.
+	 */
+	private void admitWaiting() {
+		boolean admitted = false;
+		for (Iterator i = queue.iterator(); i.hasNext();) {
+			if (maxRequests > 0 && inFlight >= maxRequests) {
+				break;
+			}
+			Waiter waiter = (Waiter) i.next();
+			if (hasRoom(waiter.host)) {
+				i.remove();
+				admit(waiter.host, System.currentTimeMillis() - waiter.since);
+				waiter.admitted = true;
+				admitted = true;
+			}
+		}
+		if (admitted) {
+			notifyAll();
+		}
+	}
+
+
+
+	/**
+	 * Request waiting to be admitted.
+	 */
+	private static class Waiter {
+		private final String host;
+		private final long since;
+		private boolean admitted;
+
+		public Waiter(String host) {
+			this.host = host;
+			this.since = System.currentTimeMillis();
+			this.admitted = false;
+		}
+	}
+}
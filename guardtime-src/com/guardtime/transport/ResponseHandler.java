@@ -21,9 +21,15 @@
  */
 package com.guardtime.transport;
 
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.guardtime.util.ChunkedByteSink;
+import com.guardtime.util.Counter;
+import com.guardtime.util.Histogram;
 
 
 
@@ -34,20 +40,67 @@ import java.net.SocketTimeoutException;
  * and {@link HttpClient}.
  */
 public class ResponseHandler {
-	// Buffer to collect the response data
-	private ByteArrayOutputStream response;
+	// Buffer to collect the response data, until it is complete
+	private ChunkedByteSink response;
+	// The complete response
+	private byte[] result;
 	// Whether we have the complete response
 	private boolean complete;
 	// The I/O error, if any
 	private IOException error;
+	// Notified when the transaction is over, if set
+	private Listener listener;
+	// Aborts the transaction in the transport, if set
+	private Runnable canceller;
+	// Times of the transaction phases, in System.nanoTime() units
+	private final long startTime;
+	private long connectTime;
+	private long sendTime;
+	private long firstByteTime;
+	private long endTime;
+	// Metrics the outcome of the transaction is reported to, if any
+	private List observers;
+	private boolean reported;
+	// Flight recorder events of the transaction, if recording
+	private SocketTrace trace;
+	// The address the transaction goes to, if known
+	private InetSocketAddress address;
+
+
+
+	/**
+	 * Callback interface for transport components that need to react to the
+	 * end of a transaction without a thread waiting on it.
+	 */
+	interface Listener {
+		/**
+		 * Called once when the transaction has completed or failed. Called
+		 * on the transport worker thread, so it must not block.
+		 *
+		 * @param handler the handler of the transaction.
+		 */
+		void done(ResponseHandler handler);
+	}
+
+
 
 	/**
 	 * Default constructor.
 	 */
 	public ResponseHandler() {
-		response = new ByteArrayOutputStream();
+		response = new ChunkedByteSink();
+		result = null;
 		complete = false;
 		error = null;
+		startTime = System.nanoTime();
+		connectTime = -1;
+		sendTime = -1;
+		firstByteTime = -1;
+		endTime = -1;
+		observers = null;
+		reported = false;
+		trace = null;
+		address = null;
 	}
 
 	/**
@@ -73,12 +126,23 @@ public class ResponseHandler {
 	 *             calls to {@code receiveResponse()} will throw the same
 	 *             exception again.
 	 */
-	public synchronized byte[] receiveResponse(long timeout)
+	public byte[] receiveResponse(long timeout)
+	throws IOException {
+		byte[] response = receiveSharedResponse(timeout);
+		return (response == null) ? null : (byte[]) response.clone();
+	}
+
+	/**
+	 * Works like {@link #receiveResponse(long)}, but returns the response
+	 * array kept by this handler instead of a copy. For callers in this
+	 * package that only read the response.
+	 */
+	synchronized byte[] receiveSharedResponse(long timeout)
 	throws IOException {
 		Timeout time = new Timeout(timeout);
 		while (true) {
 			if (complete) {
-				return response.toByteArray();
+				return result;
 			}
 			if (time.isTimedOut()) {
 				return null;
@@ -94,6 +158,163 @@ public class ResponseHandler {
 		}
 	}
 
+	/**
+	 * Returns the time this handler was created, which is when the
+	 * transaction was added.
+	 * <p>
+	 * This and the other phase times are in the time base of
+	 * {@code System.nanoTime()}, so only the differences between them are
+	 * meaningful. They are meant for measuring where the time of a
+	 * transaction goes; see {@link #getConnectTime()},
+	 * {@link #getSendTime()}, {@link #getFirstByteTime()} and
+	 * {@link #getEndTime()}.
+	 *
+	 * @return start time, in nanoseconds.
+	 *
+	 * @since 0.4
+	 */
+	public long getStartTime() {
+		return startTime;
+	}
+
+	/**
+	 * Returns the time the connection for the transaction was established.
+	 * This includes the host name lookup and the wait for admission by the
+	 * {@link RequestLimiter}, but not the TLS handshake, if any. On a shared
+	 * HTTP/2 connection, this is when the request got a stream.
+	 *
+	 * @return connect time, in nanoseconds; {@code -1} if not known.
+	 *
+	 * @since 0.4
+	 */
+	public synchronized long getConnectTime() {
+		return connectTime;
+	}
+
+	/**
+	 * Returns the time the request was completely handed to the network.
+	 *
+	 * @return send time, in nanoseconds; {@code -1} if not known.
+	 *
+	 * @since 0.4
+	 */
+	public synchronized long getSendTime() {
+		return sendTime;
+	}
+
+	/**
+	 * Returns the time the first byte of the response was received.
+	 *
+	 * @return first byte time, in nanoseconds; {@code -1} if nothing has been
+	 * 			received.
+	 *
+	 * @since 0.4
+	 */
+	public synchronized long getFirstByteTime() {
+		return firstByteTime;
+	}
+
+	/**
+	 * Returns the time the transaction completed or failed.
+	 *
+	 * @return end time, in nanoseconds; {@code -1} if the transaction is not
+	 * 			over yet.
+	 *
+	 * @since 0.4
+	 */
+	public synchronized long getEndTime() {
+		return endTime;
+	}
+
+	/**
+	 * Records that the host name of the request was resolved.
+	 */
+	synchronized void markResolved() {
+		if (trace != null) {
+			trace.resolved();
+		}
+	}
+
+	/**
+	 * Records that the connection for the transaction was established.
+	 */
+	synchronized void markConnected() {
+		connectTime = System.nanoTime();
+		if (trace != null) {
+			trace.connected();
+		}
+	}
+
+	/**
+	 * Records that the request was completely handed to the network.
+	 */
+	synchronized void markSent() {
+		sendTime = System.nanoTime();
+		if (trace != null) {
+			trace.sent();
+		}
+	}
+
+	/**
+	 * Takes over the phase times, except the start time, of the given
+	 * handler. Used when the response of a transaction is received through
+	 * another handler, as with retries.
+	 */
+	synchronized void copyTimes(ResponseHandler handler) {
+		synchronized (handler) {
+			connectTime = handler.connectTime;
+			sendTime = handler.sendTime;
+			firstByteTime = handler.firstByteTime;
+		}
+	}
+
+	/**
+	 * Returns the address the transaction goes to.
+	 *
+	 * @return the address, or {@code null} if not known.
+	 */
+	synchronized InetSocketAddress getAddress() {
+		return address;
+	}
+
+	/**
+	 * Sets the address the transaction goes to.
+	 */
+	synchronized void setAddress(InetSocketAddress address) {
+		this.address = address;
+	}
+
+	/**
+	 * Sets the flight recorder events to update as the transaction goes
+	 * through its phases.
+	 */
+	synchronized void setTrace(SocketTrace trace) {
+		this.trace = trace;
+	}
+
+	/**
+	 * Adds metrics to report the outcome of the transaction to: the time
+	 * from the start to the end of the transaction is recorded in
+	 * {@code latency}, and a failure is counted in {@code errors}. If the
+	 * transaction is over already, the outcome is reported right away.
+	 *
+	 * @param latency histogram for the duration of the transaction.
+	 * @param errors counter for failed transactions.
+	 */
+	void addObserver(Histogram latency, Counter errors) {
+		Observer observer = new Observer(latency, errors);
+		synchronized (this) {
+			if (!reported) {
+				if (observers == null) {
+					observers = new ArrayList(2);
+				}
+				observers.add(observer);
+				return;
+			}
+		}
+		observer.report(this);
+	}
+
 	/**
 	 * Append data to response being received.
 	 * 
@@ -115,6 +336,15 @@ public class ResponseHandler {
 	 *            the number of bytes to append.
 	 */
 	synchronized void append(byte[] responseBytes, int offset, int length) {
+		if (complete || error != null) {
+			return;
+		}
+		if (firstByteTime < 0 && length > 0) {
+			firstByteTime = System.nanoTime();
+			if (trace != null) {
+				trace.firstByte();
+			}
+		}
 		response.write(responseBytes, offset, length);
 	}
 
@@ -122,17 +352,176 @@ public class ResponseHandler {
 	 * Signal that a complete response has been received.
 	 * Wake up threads that are waiting on this response.
 	 */
-	synchronized void setComplete() {
-		this.complete = true;
-		notifyAll();
+	void setComplete() {
+		Listener l;
+		synchronized (this) {
+			if (complete || error != null) {
+				return;
+			}
+			complete = true;
+			endTime = System.nanoTime();
+			result = response.toByteArray();
+			l = listener;
+			notifyAll();
+		}
+		report();
+		if (l != null) {
+			l.done(this);
+		}
 	}
 
 	/**
 	 * Signal that an error (including transaction timeout) has occurred.
 	 * Wake up threads that are waiting on this response.
 	 */
-	synchronized void setError(IOException error) {
-		this.error = error;
-		notifyAll();
+	void setError(IOException error) {
+		Listener l;
+		synchronized (this) {
+			if (complete || this.error != null) {
+				return;
+			}
+			this.error = error;
+			endTime = System.nanoTime();
+			l = listener;
+			notifyAll();
+		}
+		report();
+		if (l != null) {
+			l.done(this);
+		}
+	}
+
+	/**
+	 * Reports the outcome of the transaction to the observers.
+	 */
+	private void report() {
+		Object[] list;
+		synchronized (this) {
+			if (trace != null) {
+				trace.complete(complete ? result.length : response.size(), error);
+				trace = null;
+			}
+			// The chunks go back to the pool
+			response.release();
+			reported = true;
+			if (observers == null) {
+				return;
+			}
+			list = observers.toArray();
+			observers = null;
+		}
+		for (int i = 0; i < list.length; ++i) {
+			((Observer) list[i]).report(this);
+		}
+	}
+
+	/**
+	 * Checks whether the transaction has completed or failed.
+	 */
+	synchronized boolean isDone() {
+		return complete || error != null;
+	}
+
+	/**
+	 * Checks whether the transaction was canceled.
+	 */
+	synchronized boolean isCanceled() {
+		return error instanceof CanceledException;
+	}
+
+	/**
+	 * Returns the error the transaction failed with.
+	 *
+	 * @return the error, or {@code null} if the transaction has not failed.
+	 */
+	synchronized IOException getError() {
+		return error;
+	}
+
+	/**
+	 * Sets the listener to notify when the transaction is over. If it is over
+	 * already, the listener is notified right away.
+	 */
+	void setListener(Listener listener) {
+		synchronized (this) {
+			this.listener = listener;
+			if (!complete && error == null) {
+				return;
+			}
+		}
+		listener.done(this);
+	}
+
+	/**
+	 * Sets the task that aborts the transaction in the transport. If the
+	 * transaction has been canceled already, the task is run right away.
+	 */
+	void setCanceller(Runnable canceller) {
+		synchronized (this) {
+			this.canceller = canceller;
+			if (!(error instanceof CanceledException)) {
+				return;
+			}
+		}
+		canceller.run();
+	}
+
+	/**
+	 * Cancels the transaction, if it is not over yet. The transaction fails
+	 * with an {@code IOException} right away, and the transport releases its
+	 * resources as soon as possible.
+	 */
+	void cancel() {
+		Runnable c;
+		synchronized (this) {
+			if (complete || error != null) {
+				return;
+			}
+			c = canceller;
+		}
+		setError(new CanceledException());
+		if (c != null) {
+			c.run();
+		}
+	}
+
+
+
+	/**
+	 * Metrics the outcome of a transaction is reported to.
+	 */
+	private static class Observer {
+		private final Histogram latency;
+		private final Counter errors;
+
+		public Observer(Histogram latency, Counter errors) {
+			this.latency = latency;
+			this.errors = errors;
+		}
+
+		public void report(ResponseHandler handler) {
+			long start = handler.getStartTime();
+			long end = handler.getEndTime();
+			if (latency != null) {
+				latency.observe(end - start);
+			}
+			if (errors != null && handler.getError() != null) {
+				errors.increment();
+			}
+		}
+	}
+
+
+
+	/**
+	 * Error of a canceled transaction.
+	 */
+	private static class CanceledException
+	extends IOException {
+		private static final long serialVersionUID = 1L;
+
+		public CanceledException() {
+			super("Transaction canceled");
+		}
 	}
 }
@@ -0,0 +1,259 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.IOException;
+import java.util.Timer;
+import java.util.TimerTask;
+
+
+
+/**
+ * One logical request, sent again according to a {@link RetryPolicy} and
+ * guarded by a {@link CircuitBreaker}.
+ * <p>
+ * Attempts after the first one are sent from a timer thread after the
+ * backoff delay. Completions are handled on the transport worker threads,
+ * which must never block, so they only schedule further attempts. The timer
+ * thread must not block either: an attempt it sends is not admitted by a
+ * saturated {@link RequestLimiter}, and fails instead.
+ */
+class RetryExchange {
+	// Runs the delayed retries of all exchanges
+	private static Timer timer;
+
+	private final Sender sender;
+	private final String endpoint;
+	private final RetryPolicy policy;
+	private final CircuitBreaker breaker;
+	private final boolean retryable;
+	private final Timeout deadline;
+	private final ResponseHandler result;
+
+	private int attempts;
+	private boolean done;
+	private ResponseHandler current;
+	private TimerTask pending;
+
+
+
+	/**
+	 * Sends one attempt of the request.
+	 */
+	interface Sender {
+		/**
+		 * Sends the request.
+		 *
+		 * @param timeout transaction timeout, in milliseconds.
+		 *
+		 * @return response handler of the attempt.
+		 *
+		 * @throws IOException if the request cannot be sent.
+		 */
+		ResponseHandler send(long timeout)
+		throws IOException;
+	}
+
+
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param sender sends the attempts.
+	 * @param endpoint name of the service, for error messages.
+	 * @param policy retry policy, or {@code null} for no retries.
+	 * @param breaker circuit breaker of the service, or {@code null}.
+	 * @param retryable whether the request may be repeated.
+	 * @param timeout transaction timeout covering all attempts, in
+	 * 			milliseconds.
+	 */
+	RetryExchange(Sender sender, String endpoint, RetryPolicy policy,
+			CircuitBreaker breaker, boolean retryable, long timeout) {
+		this.sender = sender;
+		this.endpoint = endpoint;
+		this.policy = policy;
+		this.breaker = breaker;
+		this.retryable = retryable;
+		this.deadline = new Timeout(timeout);
+		this.result = new ResponseHandler();
+	}
+
+	/**
+	 * Sends the first attempt.
+	 *
+	 * @return response handler for the whole exchange.
+	 */
+	ResponseHandler start() {
+		if (policy != null) {
+			policy.recordRequest();
+		}
+		result.setCanceller(new Runnable() {
+			public void run() {
+				cancel();
+			}
+		});
+		attempt();
+		return result;
+	}
+
+	/**
+	 * Sends an attempt, unless the exchange is over or the breaker is open.
+	 */
+	private void attempt() {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			++attempts;
+			pending = null;
+		}
+		if (breaker != null && !breaker.allowRequest()) {
+			finish(null, new IOException("Service unavailable, circuit breaker open: " + endpoint));
+			return;
+		}
+
+		ResponseHandler handler;
+		try {
+			handler = sender.send(deadline.getRemaining());
+		} catch (IOException x) {
+			handler = new ResponseHandler();
+			handler.setError(x);
+		}
+		boolean canceled;
+		synchronized (this) {
+			current = handler;
+			canceled = done;
+		}
+		if (canceled) {
+			handler.cancel();
+		}
+		handler.setListener(new ResponseHandler.Listener() {
+			public void done(ResponseHandler handler) {
+				finished(handler);
+			}
+		});
+	}
+
+	/**
+	 * Handles the end of an attempt.
+	 */
+	private void finished(ResponseHandler handler) {
+		if (handler.isCanceled()) {
+			// The whole exchange was canceled
+			if (breaker != null) {
+				breaker.recordAbandoned();
+			}
+			return;
+		}
+
+		byte[] response = null;
+		IOException error = handler.getError();
+		if (error == null) {
+			try {
+				response = handler.receiveSharedResponse(0);
+			} catch (IOException x) {
+				error = x;
+			}
+		}
+		boolean failed = (response == null || HttpClient.getStatusCode(response) >= 500);
+		if (breaker != null) {
+			if (failed) {
+				breaker.recordFailure();
+			} else {
+				breaker.recordSuccess();
+			}
+		}
+		if (!failed) {
+			result.copyTimes(handler);
+			finish(response, null);
+			return;
+		}
+
+		TimerTask task = null;
+		synchronized (this) {
+			if (!done && retryable && policy != null && attempts < policy.getMaxAttempts()) {
+				long delay = policy.getDelay(attempts);
+				boolean inTime = !deadline.isTimedOut()
+						&& (deadline.getRemaining() == 0 || delay < deadline.getRemaining());
+				if (inTime && policy.tryRetry()) {
+					task = new TimerTask() {
+						public void run() {
+							// The timer is shared by all exchanges
+							SocketClient.setNonBlocking();
+							attempt();
+						}
+					};
+					pending = task;
+					schedule(task, delay);
+				}
+			}
+		}
+		if (task == null) {
+			finish(response, error);
+		}
+	}
+
+	/**
+	 * Ends the exchange with the given response or error.
+	 */
+	private void finish(byte[] response, IOException error) {
+		synchronized (this) {
+			if (done) {
+				return;
+			}
+			done = true;
+		}
+		if (response != null) {
+			result.append(response, 0, response.length);
+			result.setComplete();
+		} else {
+			result.setError(error);
+		}
+	}
+
+	/**
+	 * Cancels the pending retry or the attempt in progress.
+	 */
+	private void cancel() {
+		ResponseHandler handler;
+		synchronized (this) {
+			done = true;
+			if (pending != null) {
+				pending.cancel();
+			}
+			handler = current;
+		}
+		if (handler != null) {
+			handler.cancel();
+		}
+	}
+
+	/**
+	 * Schedules a task on the shared timer.
+	 */
+	private static synchronized void schedule(TimerTask task, long delay) {
+		if (timer == null) {
+			timer = new Timer(true);
+		}
+		timer.schedule(task, delay);
+	}
+}
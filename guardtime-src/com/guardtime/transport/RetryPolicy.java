@@ -0,0 +1,280 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.util.Random;
+
+
+
+/**
+ * Decides whether and when failed requests are sent again.
+ * <p>
+ * A request is retried when it fails with an I/O error or the service
+ * answers with a server error (HTTP status 5xx), up to
+ * {@link #getMaxAttempts()} attempts in total. Before each retry, the
+ * policy waits for a random time between zero and an exponentially
+ * growing limit ("full jitter"), so that clients failing at the same time
+ * do not retry in lockstep.
+ * <p>
+ * Retries are only done for requests that can safely be repeated:
+ * extension requests and publications file downloads. Repeating a
+ * timestamping request may give two timestamps for the same hash, which is
+ * harmless for most uses but costs the service an extra signing; this has
+ * to be enabled with {@link #setRetryStamping(boolean)}.
+ * <p>
+ * To keep retries from multiplying the load on a service that is already
+ * struggling, retries are paid for from a budget: each new request adds
+ * {@link #getBudgetRatio()} to the budget, each retry takes one from it,
+ * and the budget also refills by one retry per second. When the budget is
+ * empty, failures are reported to the caller without retrying.
+ *
+ * @see HttpStamper#setRetryPolicy(RetryPolicy)
+ *
+ * @since 0.4
+ */
+public class RetryPolicy {
+	/**
+	 * The default maximum number of attempts, including the first one.
+	 */
+	public static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+	/**
+	 * The default limit of the delay before the first retry, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_BASE_DELAY = 100;
+
+	/**
+	 * The default limit of the delay before any retry, in milliseconds.
+	 */
+	public static final long DEFAULT_MAX_DELAY = 5000;
+
+	/**
+	 * The default number of retries earned by each new request.
+	 */
+	public static final double DEFAULT_BUDGET_RATIO = 0.2;
+
+	/**
+	 * The maximum number of retries that can be saved up in the budget.
+	 */
+	private static final double MAX_BUDGET = 10;
+
+	private int maxAttempts;
+	private long baseDelay;
+	private long maxDelay;
+	private double budgetRatio;
+	private boolean retryStamping;
+
+	private final Random random;
+	private double budget;
+	private long lastRefill;
+	private long retryCount;
+	private long budgetExhaustedCount;
+
+
+
+	/**
+	 * Default constructor.
+	 * <p>
+	 * Creates a policy with {@link #DEFAULT_MAX_ATTEMPTS},
+	 * {@link #DEFAULT_BASE_DELAY}, {@link #DEFAULT_MAX_DELAY} and
+	 * {@link #DEFAULT_BUDGET_RATIO}, which does not retry timestamping
+	 * requests.
+	 */
+	public RetryPolicy() {
+		random = new Random();
+		budget = MAX_BUDGET;
+		lastRefill = System.currentTimeMillis();
+		setMaxAttempts(DEFAULT_MAX_ATTEMPTS);
+		setDelays(DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+		setBudgetRatio(DEFAULT_BUDGET_RATIO);
+		setRetryStamping(false);
+	}
+
+	/**
+	 * Returns the maximum number of attempts per request.
+	 *
+	 * @return number of attempts, including the first one.
+	 */
+	public synchronized int getMaxAttempts() {
+		return maxAttempts;
+	}
+
+	/**
+	 * Sets the maximum number of attempts per request.
+	 *
+	 * @param maxAttempts number of attempts, including the first one;
+	 * 			{@code 1} disables retries.
+	 */
+	public synchronized void setMaxAttempts(int maxAttempts) {
+		if (maxAttempts < 1) {
+			throw new IllegalArgumentException("invalid number of attempts: " + maxAttempts);
+		}
+		this.maxAttempts = maxAttempts;
+	}
+
+	/**
+	 * Returns the limit of the delay before the first retry.
+	 *
+	 * @return delay limit, in milliseconds.
+	 */
+	public synchronized long getBaseDelay() {
+		return baseDelay;
+	}
+
+	/**
+	 * Returns the limit of the delay before any retry.
+	 *
+	 * @return delay limit, in milliseconds.
+	 */
+	public synchronized long getMaxDelay() {
+		return maxDelay;
+	}
+
+	/**
+	 * Sets the delay limits. The limit doubles with each retry, starting
+	 * from {@code baseDelay}, until it reaches {@code maxDelay}.
+	 *
+	 * @param baseDelay limit of the delay before the first retry, in
+	 * 			milliseconds.
+	 * @param maxDelay limit of the delay before any retry, in milliseconds.
+	 */
+	public synchronized void setDelays(long baseDelay, long maxDelay) {
+		if (baseDelay < 0 || maxDelay < baseDelay) {
+			throw new IllegalArgumentException("invalid delays: " + baseDelay + ", " + maxDelay);
+		}
+		this.baseDelay = baseDelay;
+		this.maxDelay = maxDelay;
+	}
+
+	/**
+	 * Returns the number of retries earned by each new request.
+	 *
+	 * @return budget ratio.
+	 */
+	public synchronized double getBudgetRatio() {
+		return budgetRatio;
+	}
+
+	/**
+	 * Sets the number of retries earned by each new request. With the
+	 * default of {@code 0.2}, retries add at most about 20% to the load
+	 * when a service fails persistently.
+	 *
+	 * @param budgetRatio budget ratio, not negative.
+	 */
+	public synchronized void setBudgetRatio(double budgetRatio) {
+		if (!(budgetRatio >= 0)) {
+			throw new IllegalArgumentException("invalid budget ratio: " + budgetRatio);
+		}
+		this.budgetRatio = budgetRatio;
+	}
+
+	/**
+	 * Checks whether timestamping requests are retried.
+	 *
+	 * @return {@code true} if timestamping requests are retried.
+	 */
+	public synchronized boolean isRetryStamping() {
+		return retryStamping;
+	}
+
+	/**
+	 * Sets whether timestamping requests are retried. A retried request may
+	 * produce more than one timestamp for the same hash.
+	 *
+	 * @param retryStamping {@code true} to retry timestamping requests.
+	 */
+	public synchronized void setRetryStamping(boolean retryStamping) {
+		this.retryStamping = retryStamping;
+	}
+
+	/**
+	 * Returns the number of retries done so far.
+	 *
+	 * @return number of retries.
+	 */
+	public synchronized long getRetryCount() {
+		return retryCount;
+	}
+
+	/**
+	 * Returns the number of retries skipped so far because the budget was
+	 * empty.
+	 *
+	 * @return number of skipped retries.
+	 */
+	public synchronized long getBudgetExhaustedCount() {
+		return budgetExhaustedCount;
+	}
+
+	/**
+	 * Records a new request, adding to the retry budget.
+	 */
+	synchronized void recordRequest() {
+		refill();
+		budget = Math.min(MAX_BUDGET, budget + budgetRatio);
+	}
+
+	/**
+	 * Takes a retry from the budget, if there is one.
+	 *
+	 * @return {@code true} if the retry may be done.
+	 */
+	synchronized boolean tryRetry() {
+		refill();
+		if (budget < 1) {
+			++budgetExhaustedCount;
+			return false;
+		}
+		budget -= 1;
+		++retryCount;
+		return true;
+	}
+
+	/**
+	 * Returns a random delay before the given retry.
+	 *
+	 * @param retry number of the retry, starting from {@code 1}.
+	 *
+	 * @return delay, in milliseconds.
+	 */
+	synchronized long getDelay(int retry) {
+		long limit = baseDelay;
+		for (int i = 1; i < retry && limit < maxDelay; ++i) {
+			limit *= 2;
+		}
+		limit = Math.min(limit, maxDelay);
+		return (long) (random.nextDouble() * (limit + 1));
+	}
+
+	/**
+	 * Adds one retry per second elapsed to the budget.
+	 */
+	private void refill() {
+		long now = System.currentTimeMillis();
+		if (now > lastRefill) {
+			budget = Math.min(MAX_BUDGET, budget + (now - lastRefill) / 1000.0);
+			lastRefill = now;
+		}
+	}
+}
@@ -33,6 +33,9 @@ import com.guardtime.tsp.GTPublicationsFile;
 import com.guardtime.tsp.GTTimestamp;
 import com.guardtime.tsp.GTTimestampResponse;
 import com.guardtime.tsp.GTVerificationResult;
+import com.guardtime.util.Counter;
+import com.guardtime.util.Histogram;
+import com.guardtime.util.Metrics;
 
 
 
@@ -79,6 +82,57 @@ import com.guardtime.tsp.GTVerificationResult;
  * @since 0.4
  */
 public class SimpleHttpStamper {
+	/*
+	 * Error bits of HttpVerificationResult and their names, for the metrics
+	 */
+	private static final int[] ERROR_BITS = {
+		HttpVerificationResult.INVALID_ALGORITHM_FAILURE,
+		HttpVerificationResult.INVALID_REQUEST_FAILURE,
+		HttpVerificationResult.INVALID_DATA_FORMAT_FAILURE,
+		HttpVerificationResult.TIME_NOT_AVAILBLE_FAILURE,
+		HttpVerificationResult.UNACCEPTED_POLICY_FAILURE,
+		HttpVerificationResult.UNACCEPTED_EXTENSION_FAILURE,
+		HttpVerificationResult.ADDITIONAL_INFO_NOT_AVAILABLE_FAILURE,
+		HttpVerificationResult.SYSTEM_FAILURE,
+		HttpVerificationResult.TIMESTAMP_TOO_NEW_FAILURE,
+		HttpVerificationResult.TIMESTAMP_TOO_OLD_FAILURE,
+		HttpVerificationResult.RESPONSE_FORMAT_FAILURE,
+		HttpVerificationResult.SERVICE_UNREACHABLE_FAILURE
+	};
+	private static final String[] ERROR_NAMES = {
+		"INVALID_ALGORITHM_FAILURE",
+		"INVALID_REQUEST_FAILURE",
+		"INVALID_DATA_FORMAT_FAILURE",
+		"TIME_NOT_AVAILBLE_FAILURE",
+		"UNACCEPTED_POLICY_FAILURE",
+		"UNACCEPTED_EXTENSION_FAILURE",
+		"ADDITIONAL_INFO_NOT_AVAILABLE_FAILURE",
+		"SYSTEM_FAILURE",
+		"TIMESTAMP_TOO_NEW_FAILURE",
+		"TIMESTAMP_TOO_OLD_FAILURE",
+		"RESPONSE_FORMAT_FAILURE",
+		"SERVICE_UNREACHABLE_FAILURE"
+	};
+
+	/*
+	 * Metrics of online verification
+	 */
+	private static final Counter VALID = Metrics.counter("gt_http_verifications_total",
+			"Online timestamp verifications, by result.", "result", "valid");
+	private static final Counter INVALID = Metrics.counter("gt_http_verifications_total",
+			"Online timestamp verifications, by result.", "result", "invalid");
+	private static final Histogram LATENCY = Metrics.histogram("gt_http_verification_seconds",
+			"Duration of online timestamp verifications, including extension.");
+	private static final Counter[] ERRORS = new Counter[ERROR_BITS.length];
+
+	static {
+		for (int i = 0; i < ERROR_BITS.length; ++i) {
+			ERRORS[i] = Metrics.counter("gt_http_verification_errors_total",
+					"Online verification failures, by HttpVerificationResult error bit.",
+					"error", ERROR_NAMES[i]);
+		}
+	}
+
 	/**
 	 * Creates timestamp for this hash value using this stamping service URL.
 	 *
@@ -228,7 +282,7 @@ public class SimpleHttpStamper {
 
 		ResponseHandler handler = stamper.addPublicationFileRequest(url, 0);
 
-		InputStream in = HttpClient.getResponseContents(handler.receiveResponse(0));
+		InputStream in = HttpClient.getResponseContents(handler.receiveSharedResponse(0));
 		return GTPublicationsFile.getInstance(in);
 	}
 
@@ -314,6 +368,34 @@ public class SimpleHttpStamper {
 			throw new IllegalArgumentException("invalid publications file: null");
 		}
 
+		long startTime = System.nanoTime();
+		HttpVerificationResult result = verifyOnline(timestamp, dataHash, verifierUrl, publicationsFile);
+
+		// Report the outcome to the metrics
+		LATENCY.observeSince(startTime);
+		if (result.isValid()) {
+			VALID.increment();
+		} else {
+			INVALID.increment();
+		}
+		for (int i = 0; i < ERROR_BITS.length; ++i) {
+			if (result.hasError(ERROR_BITS[i])) {
+				ERRORS[i].increment();
+			}
+		}
+
+		return result;
+	}
+
+
+
+	/**
+	 * Verifies this timestamp, extending it first if possible.
+	 *
+	 * @see #verify(GTTimestamp, GTDataHash, URL, String, GTPublicationsFile)
+	 */
+	private static HttpVerificationResult verifyOnline(GTTimestamp timestamp,
+			GTDataHash dataHash, URL verifierUrl, GTPublicationsFile publicationsFile) {
 		// Check timestamp syntax: done already while constructing timestamp
 		// Check publications file signature: done in GTTimestamp.verify()
 
@@ -22,8 +22,10 @@
 package com.guardtime.transport;
 
 import java.io.IOException;
+import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
 import java.nio.channels.CancelledKeyException;
 import java.nio.channels.SelectionKey;
@@ -38,6 +40,13 @@ import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
 
+import javax.net.ssl.SSLContext;
+
+import com.guardtime.util.Counter;
+import com.guardtime.util.Gauge;
+import com.guardtime.util.Histogram;
+import com.guardtime.util.Metrics;
+
 
 
 /**
@@ -45,9 +54,34 @@ import java.util.Set;
  */
 public class SocketClient
 implements Runnable {
+	/*
+	 * Metrics shared by all socket clients
+	 */
+	static final Counter REQUESTS = Metrics.counter("gt_socket_requests_total",
+			"Requests added to socket clients.");
+	static final Counter ERRORS = Metrics.counter("gt_socket_errors_total",
+			"Socket transactions that failed, timed out or were canceled.");
+	static final Counter BYTES_SENT = Metrics.counter("gt_socket_sent_bytes_total",
+			"Bytes written to sockets, including TLS overhead.");
+	static final Counter BYTES_RECEIVED = Metrics.counter("gt_socket_received_bytes_total",
+			"Bytes read from sockets, including TLS overhead.");
+	static final Gauge CHANNELS = Metrics.gauge("gt_socket_channels",
+			"Socket channels open for transactions in flight.");
+	static final Gauge SELECTOR_KEYS = Metrics.gauge("gt_socket_selector_keys",
+			"Channels registered with the selectors of socket clients.");
+	static final Histogram LATENCY = Metrics.histogram("gt_socket_request_seconds",
+			"Duration of socket transactions, from adding the request to the end of the response.");
+
+	// Set on threads that must not wait for admission, such as the timer
+	// threads sending retries, hedged requests and failovers
+	private static final ThreadLocal NON_BLOCKING = new ThreadLocal();
+
 	// The selector we'll be monitoring
 	private Selector selector;
 
+	// Number of selector keys last reported to SELECTOR_KEYS
+	private int selectorKeys;
+
 	// Channel registration requests
 	private Set pendingRequests;
 
@@ -57,9 +91,36 @@ implements Runnable {
 	// Maps a SocketChannel to a ResponseHandler for receiving data
 	private Map responseHandlers;
 
+	// Maps a connecting SocketChannel to the Failover addresses left to try
+	private Map failovers;
+
+	// Maps a SocketChannel to its TlsChannel for secure requests
+	private Map tlsChannels;
+
+	// Resolves and caches host names for host-based requests
+	private AddressResolver resolver;
+
+	// Limits the requests in flight, if set, and how long to wait for
+	// admission
+	private RequestLimiter limiter;
+	private long admissionTimeout;
+
+	// Maps a ResponseHandler to the Permit of its admitted request
+	private Map permits;
+
+	// Channels of canceled transactions, to be closed by the worker thread
+	private Set cancellations;
+
+	// TLS configuration for secure requests; created on first use
+	private SSLContext sslContext;
+	private String[] applicationProtocols;
+
 	// The buffer into which we'll read data when it's available
 	private ByteBuffer readBuffer;
 
+	// Told about the life cycle of the requests, if set
+	private volatile TransactionListener listener;
+
 	/**
 	 * Default constructor.
 	 * <p>
@@ -74,7 +135,183 @@ implements Runnable {
 		pendingRequests = new HashSet();
 		pendingData = Collections.synchronizedMap(new HashMap());
 		responseHandlers = Collections.synchronizedMap(new HashMap());
+		failovers = Collections.synchronizedMap(new HashMap());
+		tlsChannels = Collections.synchronizedMap(new HashMap());
+		resolver = new AddressResolver();
+		limiter = null;
+		admissionTimeout = 0;
+		permits = Collections.synchronizedMap(new HashMap());
+		cancellations = new HashSet();
 		readBuffer = ByteBuffer.allocate(8192);
+		listener = null;
+	}
+
+	/**
+	 * Returns the resolver used for host-based requests.
+	 *
+	 * @return host name resolver.
+	 *
+	 * @see #addRequest(String, int, byte[], long)
+	 */
+	public AddressResolver getResolver() {
+		return resolver;
+	}
+
+	/**
+	 * Sets the resolver to use for host-based requests. Several clients may
+	 * share a resolver to share its cache.
+	 *
+	 * @param resolver host name resolver.
+	 *
+	 * @see #addRequest(String, int, byte[], long)
+	 */
+	public void setResolver(AddressResolver resolver) {
+		if (resolver == null) {
+			throw new IllegalArgumentException("invalid resolver: null");
+		}
+		this.resolver = resolver;
+	}
+
+	/**
+	 * Returns the limiter that admits the requests of this client.
+	 *
+	 * @return request limiter, or {@code null} if the requests are not
+	 * 			limited (the default).
+	 *
+	 * @see #setAdmissionTimeout(long)
+	 */
+	public synchronized RequestLimiter getLimiter() {
+		return limiter;
+	}
+
+	/**
+	 * Sets the limiter that admits the requests of this client. Several
+	 * clients may share a limiter to share its limits. Requests already
+	 * admitted are released to the limiter that admitted them.
+	 *
+	 * @param limiter request limiter, or {@code null} not to limit the
+	 * 			requests.
+	 *
+	 * @see #setAdmissionTimeout(long)
+	 */
+	public synchronized void setLimiter(RequestLimiter limiter) {
+		this.limiter = limiter;
+	}
+
+	/**
+	 * Returns how long a new request waits for admission when the limits of
+	 * the {@link RequestLimiter} of this client have been reached.
+	 *
+	 * @return maximum waiting time, in milliseconds; {@code 0} if requests
+	 * 			wait as long as necessary, negative if they fail at once.
+	 */
+	public synchronized long getAdmissionTimeout() {
+		return admissionTimeout;
+	}
+
+	/**
+	 * Sets how long a new request waits for admission when the limits of the
+	 * {@link RequestLimiter} of this client have been reached. The waiting
+	 * is done on the thread adding the request, which provides backpressure
+	 * to the producer of the requests; a request that is not admitted in
+	 * time fails with an {@code IOException}.
+	 * <p>
+	 * The transaction timeout of a request starts running only after the
+	 * request has been admitted.
+	 * <p>
+	 * Retries, hedged requests and failovers are sent from timer threads
+	 * shared by many requests; they never wait, and fail at once if not
+	 * admitted.
+	 *
+	 * @param admissionTimeout maximum waiting time, in milliseconds;
+	 * 			{@code 0} to wait as long as necessary (the default), a
+	 * 			negative value to fail at once.
+	 */
+	public synchronized void setAdmissionTimeout(long admissionTimeout) {
+		this.admissionTimeout = admissionTimeout;
+	}
+
+	/**
+	 * Returns the TLS context used for secure requests.
+	 * <p>
+	 * Unless set by {@link #setSslContext(SSLContext)}, a context with the
+	 * platform default key and trust managers is created on first use.
+	 * <p>
+	 * TLS sessions are cached in the client session context of the TLS
+	 * context (see {@code SSLContext.getClientSessionContext()}) and resumed
+	 * with an abbreviated handshake on later connections to the same host and
+	 * port. The size and lifetime of the cache can be tuned there.
+	 *
+	 * @return TLS context.
+	 *
+	 * @throws IOException if the default TLS context can not be created.
+	 */
+	public synchronized SSLContext getSslContext()
+	throws IOException {
+		if (sslContext == null) {
+			sslContext = TlsChannel.createDefaultContext();
+		}
+		return sslContext;
+	}
+
+	/**
+	 * Sets the TLS context to use for secure requests. Clients sharing a
+	 * context also share its TLS session cache.
+	 *
+	 * @param sslContext TLS context.
+	 */
+	public synchronized void setSslContext(SSLContext sslContext) {
+		if (sslContext == null) {
+			throw new IllegalArgumentException("invalid TLS context: null");
+		}
+		this.sslContext = sslContext;
+	}
+
+	/**
+	 * Returns the application protocols offered in the TLS handshake.
+	 *
+	 * @return protocol names in order of preference, or {@code null} if ALPN
+	 * 			is not used.
+	 */
+	public synchronized String[] getApplicationProtocols() {
+		return applicationProtocols;
+	}
+
+	/**
+	 * Sets the application protocols (such as {@code "http/1.1"}) to offer
+	 * in the TLS handshake using the ALPN extension.
+	 *
+	 * @param applicationProtocols protocol names in order of preference, or
+	 * 			{@code null} to not use ALPN.
+	 */
+	public synchronized void setApplicationProtocols(String[] applicationProtocols) {
+		this.applicationProtocols = applicationProtocols;
+	}
+
+	/**
+	 * Returns the listener told about the life cycle of the requests.
+	 *
+	 * @return the listener, or {@code null} if none is set.
+	 *
+	 * @since 0.4
+	 */
+	public TransactionListener getListener() {
+		return listener;
+	}
+
+	/**
+	 * Sets the listener told about the life cycle of the requests. Requests
+	 * already in flight are reported from their next step on.
+	 * <p>
+	 * Without a listener, the requests are not tracked beyond what the
+	 * transport needs, and no objects are created for the listener.
+	 *
+	 * @param listener the listener, or {@code null} to remove it.
+	 *
+	 * @since 0.4
+	 */
+	public void setListener(TransactionListener listener) {
+		this.listener = listener;
 	}
 
 	/**
@@ -101,6 +338,18 @@ implements Runnable {
 				pendingRequests.clear();
 			}
 
+			// Close the channels of canceled transactions
+			synchronized (cancellations) {
+				Iterator channels = cancellations.iterator();
+				while (channels.hasNext()) {
+					SocketChannel channel = (SocketChannel) channels.next();
+					if (responseHandlers.containsKey(channel)) {
+						cleanup(channel, new IOException("Transaction canceled"));
+					}
+				}
+				cancellations.clear();
+			}
+
 			// Look for timeouts
 			long next = 0;
 			Iterator keys = selector.keys().iterator();
@@ -138,6 +387,9 @@ implements Runnable {
 				// We don't have anyone to report this to...
 				x.printStackTrace();
 			}
+			int numKeys = selector.keys().size();
+			SELECTOR_KEYS.add(numKeys - selectorKeys);
+			selectorKeys = numKeys;
 
 			// Iterate over the available events
 			keys = selector.selectedKeys().iterator();
@@ -168,33 +420,252 @@ implements Runnable {
 	 *
 	 * @return response handler.
 	 *
-	 * @throws IOException if transport error occurred.
+	 * @throws IOException if transport error occurred, or if the request was
+	 * 			not admitted in time (see
+	 * 			{@link #setAdmissionTimeout(long)}).
 	 */
 	public ResponseHandler addRequest(InetSocketAddress address, byte[] data, long timeout)
 	throws IOException {
+		ResponseHandler handler = newHandler(address.getHostString(), address.getPort(), false);
+		handler.setAddress(address);
+		TransactionListener l = listener;
+		try {
+			admit(address.getHostString(), handler);
+		} catch (IOException x) {
+			handler.setError(x);
+			if (l != null) {
+				l.failed(handler, address, x, handler.getEndTime());
+			}
+			throw x;
+		}
+		if (l != null) {
+			l.queued(handler, address, System.nanoTime());
+		}
+
 		// Create a non-blocking socket channel and initiate connecting
+		SocketChannel channel;
+		try {
+			channel = openChannel(address);
+		} catch (IOException x) {
+			release(handler);
+			handler.setError(x);
+			if (l != null) {
+				l.failed(handler, address, x, handler.getEndTime());
+			}
+			throw x;
+		}
+
+		// Register the response handler and queue data to be written
+		addChannel(channel, address, handler, ByteBuffer.wrap(data), new Timeout(timeout), null);
+
+		return handler;
+	}
+
+	/**
+	 * Adds a request to be sent to the given host and port.
+	 * The request will be processed asynchronously.
+	 * Response is handled by the handler returned.
+	 * <p>
+	 * Unlike {@link #addRequest(InetSocketAddress, byte[], long)}, this
+	 * method does not resolve the host name on the calling thread. The name
+	 * is looked up through the {@link AddressResolver} of this client, and
+	 * if the host has several addresses, they are tried in turn until a
+	 * connection is established. Lookup and connection errors, as well as
+	 * failure to be admitted in time (see {@link #setAdmissionTimeout(long)}),
+	 * are reported through the response handler.
+	 *
+	 * @param host host name or textual IP address.
+	 * @param port port number.
+	 * @param data data to send.
+	 * @param timeout transaction timeout, in milliseconds, including the time
+	 * 			spent on the host name lookup.
+	 *
+	 * @return response handler.
+	 *
+	 * @see #getResolver()
+	 */
+	public ResponseHandler addRequest(String host, int port, byte[] data, long timeout) {
+		return addRequest(host, port, data, timeout, null);
+	}
+
+	/**
+	 * Adds a request to be sent to the given host and port over TLS.
+	 * The request will be processed asynchronously.
+	 * Response is handled by the handler returned.
+	 * <p>
+	 * Works like {@link #addRequest(String, int, byte[], long)}, but the data
+	 * is sent and the response received over a TLS connection established
+	 * using the context returned by {@link #getSslContext()}. The server
+	 * certificate is checked to be valid for {@code host}. Handshake errors
+	 * are reported through the response handler.
+	 *
+	 * @param host host name or textual IP address.
+	 * @param port port number.
+	 * @param data data to send.
+	 * @param timeout transaction timeout, in milliseconds, including the time
+	 * 			spent on the host name lookup and the TLS handshake.
+	 *
+	 * @return response handler.
+	 *
+	 * @throws IOException if the default TLS context can not be created.
+	 */
+	public ResponseHandler addSecureRequest(String host, int port, byte[] data, long timeout)
+	throws IOException {
+		TlsChannel tls = TlsChannel.open(getSslContext(), host, port, getApplicationProtocols());
+		return addRequest(host, port, data, timeout, tls);
+	}
+
+	/**
+	 * Adds a host-based request, with or without TLS.
+	 *
+	 * @param host host name or textual IP address.
+	 * @param port port number.
+	 * @param data data to send.
+	 * @param timeout transaction timeout, in milliseconds.
+	 * @param tls TLS layer for the connection; {@code null} for plain
+	 * 			requests.
+	 *
+	 * @return response handler.
+	 */
+	private ResponseHandler addRequest(String host, final int port, byte[] data, long timeout, final TlsChannel tls) {
+		final ResponseHandler handler = newHandler(host, port, true);
+		TransactionListener l = listener;
+		if (l != null) {
+			handler.setAddress(InetSocketAddress.createUnresolved(host, port));
+		}
+		try {
+			admit(host, handler);
+		} catch (IOException x) {
+			handler.setError(x);
+			if (l != null) {
+				l.failed(handler, handler.getAddress(), x, handler.getEndTime());
+			}
+			return handler;
+		}
+		if (l != null) {
+			l.queued(handler, handler.getAddress(), System.nanoTime());
+		}
+
+		final ByteBuffer buffer = ByteBuffer.wrap(data);
+		final Timeout time = new Timeout(timeout);
+
+		resolver.lookup(host, new AddressResolver.Callback() {
+			public void resolved(InetAddress[] addresses) {
+				handler.markResolved();
+				InetSocketAddress[] candidates = new InetSocketAddress[addresses.length];
+				for (int i = 0; i < addresses.length; ++i) {
+					candidates[i] = new InetSocketAddress(addresses[i], port);
+				}
+				connect(candidates, 0, handler, buffer, time, tls);
+			}
+
+			public void failed(UnknownHostException error) {
+				finish(handler, error);
+			}
+		});
+
+		return handler;
+	}
+
+	/**
+	 * Opens a non-blocking channel and initiates connecting to the given
+	 * address.
+	 *
+	 * @param address socket address.
+	 *
+	 * @return the new channel.
+	 *
+	 * @throws IOException if the channel can not be opened or the address
+	 * 			is not valid.
+	 */
+	private SocketChannel openChannel(InetSocketAddress address)
+	throws IOException {
 		SocketChannel channel = SocketChannel.open();
-		channel.configureBlocking(false);
+		CHANNELS.increment();
 		try {
+			channel.configureBlocking(false);
 			channel.connect(address);
 		} catch (UnsupportedAddressTypeException x) {
+			closeChannel(channel);
 			// There's no IOException(Throwable) constructor in JDK1.5
 			IOException xx = new IOException();
 			xx.initCause(x);
 			throw xx;
 		} catch (UnresolvedAddressException x) {
+			closeChannel(channel);
 			// There's no IOException(Throwable) constructor in JDK1.5
 			IOException xx = new IOException();
 			xx.initCause(x);
 			throw xx;
+		} catch (IOException x) {
+			closeChannel(channel);
+			throw x;
+		}
+		return channel;
+	}
+
+	/**
+	 * Connects to the first reachable one of the given candidate addresses,
+	 * starting from {@code index}. The remaining candidates are kept for
+	 * failover in case the connection attempt fails later.
+	 *
+	 * @param candidates socket addresses to try, in order.
+	 * @param index index of the first candidate to try.
+	 * @param handler response handler for the transaction.
+	 * @param buffer data to send.
+	 * @param timeout transaction timeout.
+	 * @param tls TLS layer for the connection, or {@code null}.
+	 */
+	private void connect(InetSocketAddress[] candidates, int index,
+			ResponseHandler handler, ByteBuffer buffer, Timeout timeout, TlsChannel tls) {
+		IOException error = null;
+		for (; index < candidates.length; ++index) {
+			SocketChannel channel;
+			try {
+				channel = openChannel(candidates[index]);
+			} catch (IOException x) {
+				error = x;
+				continue;
+			}
+			if (index + 1 < candidates.length) {
+				failovers.put(channel, new Failover(candidates, index + 1));
+			}
+			addChannel(channel, candidates[index], handler, buffer, timeout, tls);
+			return;
 		}
+		finish(handler, error);
+	}
 
+	/**
+	 * Registers the handler and data for the given channel and queues the
+	 * channel for registration with the selector.
+	 *
+	 * @param channel connecting channel.
+	 * @param address the address the channel connects to.
+	 * @param handler response handler.
+	 * @param buffer data to send.
+	 * @param timeout transaction timeout.
+	 * @param tls TLS layer for the connection, or {@code null}.
+	 */
+	private void addChannel(final SocketChannel channel, InetSocketAddress address,
+			ResponseHandler handler, ByteBuffer buffer, Timeout timeout, TlsChannel tls) {
 		// Register the response handler
-		ResponseHandler handler = new ResponseHandler();
+		handler.setAddress(address);
 		responseHandlers.put(channel, handler);
+		handler.setCanceller(new Runnable() {
+			public void run() {
+				synchronized (cancellations) {
+					cancellations.add(channel);
+				}
+				selector.wakeup();
+			}
+		});
+		if (tls != null) {
+			tlsChannels.put(channel, tls);
+		}
 
 		// Queue data to be written
-		pendingData.put(channel, ByteBuffer.wrap(data));
+		pendingData.put(channel, buffer);
 
 		// Queue a request for channel registration
 		// Can't register directly, as channel.register() would block here
@@ -205,8 +676,6 @@ implements Runnable {
 
 		// Wake up worker thread so it can process the registration
 		selector.wakeup();
-
-		return handler;
 	}
 
 	/**
@@ -222,9 +691,44 @@ implements Runnable {
 		try {
 			channel.finishConnect();
 		} catch (IOException x) {
+			// Try the next address of the host, if there is one
+			Failover failover = (Failover) failovers.remove(channel);
+			if (failover != null) {
+				try {
+					closeChannel(channel);
+				} catch (IOException e) {
+					// Nothing here, we're abandoning this channel anyway
+				}
+				ResponseHandler handler = (ResponseHandler) responseHandlers.remove(channel);
+				ByteBuffer buffer = (ByteBuffer) pendingData.remove(channel);
+				// The handshake has not started yet, so the TLS layer can be reused
+				TlsChannel tls = (TlsChannel) tlsChannels.remove(channel);
+				connect(failover.candidates, failover.next, handler, buffer, (Timeout) key.attachment(), tls);
+				return;
+			}
 			cleanup(channel, x);
 			return;
 		}
+		failovers.remove(channel);
+		ResponseHandler handler = (ResponseHandler) responseHandlers.get(channel);
+		if (handler != null) {
+			handler.markConnected();
+			TransactionListener l = listener;
+			if (l != null) {
+				l.connected(handler, handler.getAddress(), handler.getConnectTime());
+			}
+		}
+
+		// Secure connections start with the TLS handshake
+		TlsChannel tls = (TlsChannel) tlsChannels.get(channel);
+		if (tls != null) {
+			try {
+				tls.begin();
+			} catch (IOException x) {
+				cleanup(channel, x);
+				return;
+			}
+		}
 
 		// When connected, register for writing to this channel
 		key.interestOps(SelectionKey.OP_WRITE);
@@ -238,18 +742,33 @@ implements Runnable {
 	 */
 	private void write(SelectionKey key) {
 		SocketChannel channel = (SocketChannel) key.channel();
+		TlsChannel tls = (TlsChannel) tlsChannels.get(channel);
+		if (tls != null) {
+			process(key, tls);
+			return;
+		}
 		ByteBuffer buffer = (ByteBuffer) pendingData.get(channel);
 
 		// Write data from the buffer
+		int numWritten;
 		try {
-			channel.write(buffer);
+			numWritten = channel.write(buffer);
 		} catch (IOException x) {
 			cleanup(channel, x);
 			return;
 		}
+		BYTES_SENT.add(numWritten);
+		ResponseHandler handler = (ResponseHandler) responseHandlers.get(channel);
+		TransactionListener l = listener;
+		if (l != null && handler != null && numWritten > 0) {
+			l.written(handler, handler.getAddress(), numWritten, System.nanoTime());
+		}
 
 		// When all data written, register for reading from this channel
 		if (buffer.remaining() == 0) {
+			if (handler != null) {
+				handler.markSent();
+			}
 			key.interestOps(SelectionKey.OP_READ);
 		}
 	}
@@ -262,6 +781,11 @@ implements Runnable {
 	 */
 	private void read(SelectionKey key) {
 		SocketChannel channel = (SocketChannel) key.channel();
+		TlsChannel tls = (TlsChannel) tlsChannels.get(channel);
+		if (tls != null) {
+			process(key, tls);
+			return;
+		}
 		ResponseHandler handler = (ResponseHandler) responseHandlers.get(channel);
 
 		// Reset read buffer for new data
@@ -278,13 +802,66 @@ implements Runnable {
 
 		// Hand the data over to the client
 		if (numRead > 0) {
+			BYTES_RECEIVED.add(numRead);
+			TransactionListener l = listener;
+			boolean first = (l != null && handler.getFirstByteTime() < 0);
 			handler.append(readBuffer.array(), 0, numRead);
+			if (first) {
+				l.firstByte(handler, handler.getAddress(), handler.getFirstByteTime());
+			}
 		} else {
 			// Connection closed cleanly
 			cleanup(channel, null);
 		}
 	}
 
+	/**
+	 * Moves data through the TLS layer of the connection defined by the given
+	 * key, in whichever direction the handshake or the transaction requires.
+	 *
+	 * @param key
+	 *            key defining the connection.
+	 * @param tls
+	 *            TLS layer of the connection.
+	 */
+	private void process(SelectionKey key, TlsChannel tls) {
+		SocketChannel channel = (SocketChannel) key.channel();
+		ByteBuffer buffer = (ByteBuffer) pendingData.get(channel);
+		ResponseHandler handler = (ResponseHandler) responseHandlers.get(channel);
+		TransactionListener l = (handler == null) ? null : listener;
+		int remaining = buffer.remaining();
+		boolean first = (l != null && handler.getFirstByteTime() < 0);
+
+		int ops;
+		try {
+			ops = tls.process(channel, buffer, handler);
+		} catch (IOException x) {
+			cleanup(channel, x);
+			return;
+		}
+
+		if (l != null) {
+			int numWritten = remaining - buffer.remaining();
+			if (numWritten > 0) {
+				l.written(handler, handler.getAddress(), numWritten, System.nanoTime());
+			}
+			if (first && handler.getFirstByteTime() >= 0) {
+				l.firstByte(handler, handler.getAddress(), handler.getFirstByteTime());
+			}
+		}
+
+		if (handler != null && buffer.remaining() == 0 && handler.getSendTime() < 0) {
+			handler.markSent();
+		}
+
+		if (ops == 0) {
+			// Connection closed cleanly
+			cleanup(channel, null);
+		} else {
+			key.interestOps(ops);
+		}
+	}
+
 	/**
 	 * Cleans up all internal resources when we're done with a channel.
 	 * 
@@ -296,7 +873,7 @@ implements Runnable {
 	 */
 	private void cleanup(SocketChannel channel, IOException error) {
 		try {
-			channel.close();
+			closeChannel(channel);
 		} catch (IOException e) {
 			// Do not overwrite the original error, if there was one
 			if (error != null) {
@@ -305,13 +882,128 @@ implements Runnable {
 		}
 
 		pendingData.remove(channel);
+		failovers.remove(channel);
+		tlsChannels.remove(channel);
 		ResponseHandler handler = (ResponseHandler) responseHandlers.remove(channel);
+		if (handler == null) {
+			// Cleaned up already, the transaction was canceled
+			return;
+		}
+		finish(handler, error);
+	}
+
+	/**
+	 * Creates the response handler for a new request, counts the request and
+	 * starts its flight recorder events, if they are enabled.
+	 *
+	 * @param host host name or address the request goes to.
+	 * @param port port number.
+	 * @param lookup whether the host name has to be resolved.
+	 */
+	private static ResponseHandler newHandler(String host, int port, boolean lookup) {
+		ResponseHandler handler = new ResponseHandler();
+		REQUESTS.increment();
+		handler.addObserver(LATENCY, ERRORS);
+		SocketTrace trace = SocketTrace.start(host, port, lookup);
+		if (trace != null) {
+			handler.setTrace(trace);
+		}
+		return handler;
+	}
+
+	/**
+	 * Closes the given channel, if it is open.
+	 *
+	 * @param channel the channel to close.
+	 *
+	 * @throws IOException if closing fails.
+	 */
+	private static void closeChannel(SocketChannel channel)
+	throws IOException {
+		if (channel.isOpen()) {
+			CHANNELS.decrement();
+			channel.close();
+		}
+	}
+
+	/**
+	 * Admits a new request through the limiter of this client, waiting as
+	 * configured by {@link #setAdmissionTimeout(long)}.
+	 *
+	 * @param host host name or address the request goes to.
+	 * @param handler response handler of the request.
+	 *
+	 * @throws IOException if the request was not admitted.
+	 */
+	private void admit(String host, ResponseHandler handler)
+	throws IOException {
+		RequestLimiter limiter = getLimiter();
+		if (limiter == null) {
+			return;
+		}
+		long wait = getAdmissionTimeout();
+		boolean admitted;
+		if (wait < 0 || NON_BLOCKING.get() != null) {
+			admitted = limiter.tryAcquire(host);
+		} else {
+			admitted = limiter.tryAcquire(host, wait);
+		}
+		if (!admitted) {
+			throw new IOException("Too many requests in flight to " + host);
+		}
+		permits.put(handler, new Permit(limiter, host));
+	}
+
+	/**
+	 * Marks the calling thread as one that must not wait for admission:
+	 * requests added on it fail at once if the limits of the
+	 * {@link RequestLimiter} have been reached, whatever the admission
+	 * timeout. Used by the timer threads that send retries, hedged requests
+	 * and failovers, where waiting would hold up the requests of all other
+	 * endpoints.
+	 */
+	static void setNonBlocking() {
+		NON_BLOCKING.set(Boolean.TRUE);
+	}
 
+	/**
+	 * Releases the slot of the request with the given handler, if it holds
+	 * one.
+	 *
+	 * @param handler response handler of the request.
+	 */
+	private void release(ResponseHandler handler) {
+		Permit permit = (Permit) permits.remove(handler);
+		if (permit != null) {
+			permit.limiter.release(permit.host);
+		}
+	}
+
+	/**
+	 * Ends a transaction, freeing its request slot for the next request.
+	 *
+	 * @param handler response handler of the transaction.
+	 * @param error the error to report back to clients; {@code null} if the
+	 * 			transaction was completed successfully.
+	 */
+	private void finish(ResponseHandler handler, IOException error) {
+		release(handler);
 		if (error == null) {
 			handler.setComplete();
 		} else {
 			handler.setError(error);
 		}
+
+		TransactionListener l = listener;
+		if (l != null) {
+			if (error == null) {
+				l.completed(handler, handler.getAddress(), handler.getEndTime());
+			} else if (error instanceof SocketTimeoutException) {
+				l.timedOut(handler, handler.getAddress(), handler.getEndTime());
+			} else {
+				l.failed(handler, handler.getAddress(), error, handler.getEndTime());
+			}
+		}
 	}
 
 
@@ -322,9 +1014,9 @@ implements Runnable {
 	private class Request {
 		private SocketChannel channel;
 		private Selector selector;
-		private long timeout;
+		private Timeout timeout;
 
-		public Request(SocketChannel channel, Selector selector, long timeout) {
+		public Request(SocketChannel channel, Selector selector, Timeout timeout) {
 			this.channel = channel;
 			this.selector = selector;
 			this.timeout = timeout;
@@ -332,12 +1024,48 @@ implements Runnable {
 
 		public void process() {
 			try {
-				channel.register(selector, SelectionKey.OP_CONNECT, new Timeout(timeout));
+				channel.register(selector, SelectionKey.OP_CONNECT, timeout);
 			} catch (IOException x) {
 				cleanup(channel, x);
+				return;
+			}
+			TransactionListener l = listener;
+			ResponseHandler handler = (ResponseHandler) responseHandlers.get(channel);
+			if (l != null && handler != null) {
+				l.registered(handler, handler.getAddress(), System.nanoTime());
 			}
 		}
 	}
+
+
+
+	/**
+	 * Request slot held by an admitted request.
+	 */
+	private static class Permit {
+		private final RequestLimiter limiter;
+		private final String host;
+
+		public Permit(RequestLimiter limiter, String host) {
+			this.limiter = limiter;
+			this.host = host;
+		}
+	}
+
+
+
+	/**
+	 * Addresses left to try when connecting to a host.
+	 */
+	private static class Failover {
+		private final InetSocketAddress[] candidates;
+		private final int next;
+
+		public Failover(InetSocketAddress[] candidates, int next) {
+			this.candidates = candidates;
+			this.next = next;
+		}
+	}
 }
 
 /**
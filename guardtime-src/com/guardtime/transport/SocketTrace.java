@@ -0,0 +1,129 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+
+
+/**
+ * Flight recorder events of one socket transaction.
+ * <p>
+ * A transaction goes through the phases {@code lookup} (host name
+ * resolution, for host-based requests), {@code connect}, {@code send} (TLS
+ * handshake, if any, and writing the request), {@code wait} (until the first
+ * byte of the response) and {@code receive}. Each phase is recorded as a
+ * {@code com.guardtime.SocketPhase} event, and the whole transaction as a
+ * {@code com.guardtime.SocketTransaction} event.
+ * <p>
+ * The SDK still runs on platforms without the {@code jdk.jfr} module, so
+ * this class does not use the event classes directly: the events are
+ * implemented by {@link JfrSocketTrace}, which is loaded only when the flight
+ * recorder is available. A trace is only created when one of the events is
+ * enabled in a running recording, so without recording there is no cost per
+ * transaction.
+ */
+abstract class SocketTrace {
+	// Creates the traces; null if the flight recorder is not available
+	private static final Factory FACTORY = loadFactory();
+
+
+
+	/**
+	 * Creates traces of new transactions.
+	 */
+	interface Factory {
+		/**
+		 * Starts a trace for a new transaction.
+		 *
+		 * @param host host name or address the request goes to.
+		 * @param port port number.
+		 * @param lookup whether the transaction starts with a host name
+		 * 			lookup.
+		 *
+		 * @return the trace, or {@code null} if the events are not enabled.
+		 */
+		SocketTrace start(String host, int port, boolean lookup);
+	}
+
+
+
+	/**
+	 * Starts a trace for a new transaction.
+	 *
+	 * @param host host name or address the request goes to.
+	 * @param port port number.
+	 * @param lookup whether the transaction starts with a host name lookup.
+	 *
+	 * @return the trace, or {@code null} if the events are not enabled or the
+	 * 			flight recorder is not available.
+	 */
+	static SocketTrace start(String host, int port, boolean lookup) {
+		if (FACTORY == null) {
+			return null;
+		}
+		return FACTORY.start(host, port, lookup);
+	}
+
+	/**
+	 * Records that the host name was resolved.
+	 */
+	abstract void resolved();
+
+	/**
+	 * Records that the connection was established.
+	 */
+	abstract void connected();
+
+	/**
+	 * Records that the request was sent.
+	 */
+	abstract void sent();
+
+	/**
+	 * Records that the first byte of the response was received.
+	 */
+	abstract void firstByte();
+
+	/**
+	 * Records the end of the transaction.
+	 *
+	 * @param received number of response bytes received.
+	 * @param error the error the transaction failed with, or {@code null}.
+	 */
+	abstract void complete(long received, Exception error);
+
+
+
+	/**
+	 * Returns {@link JfrSocketTrace} if the flight recorder is available;
+	 * {@code null} otherwise.
+	 */
+	private static Factory loadFactory() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (Factory) Class.forName("com.guardtime.transport.JfrSocketTrace").newInstance();
+		} catch (Exception e) {
+			return null;
+		} catch (LinkageError e) {
+			return null;
+		}
+	}
+}
@@ -0,0 +1,1142 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.tsp.GTTimestampResponse;
+import com.guardtime.util.Log;
+
+
+
+/**
+ * Durable local queue of timestamping requests.
+ * <p>
+ * {@link SimpleHttpStamper#create(GTDataHash, URL)} blocks until the
+ * stamping service answers and fails when the service can not be reached.
+ * The journal decouples the two: {@link #submit(GTDataHash)} records the
+ * data hash in an append-only file on the local disk and returns a ticket
+ * as soon as the record is durable. A background thread then sends the
+ * recorded hashes to the stamping service through {@link HttpStamper} and
+ * writes the results back to the journal, where they can be fetched with
+ * {@link #getTimestamp(long)} or {@link #waitForTimestamp(long, long)}.
+ * <p>
+ * The journal is stored in a directory as a sequence of fixed-size segment
+ * files that are memory-mapped for writing; the next segment file is
+ * created in the background while the current one fills up. Concurrent
+ * submissions are made durable together with one {@code fsync} call
+ * ("group commit"), so the cost of forcing the data to disk is shared by
+ * all requests that arrived while the previous sync was running.
+ * <p>
+ * When the journal is opened, the segments are replayed: requests that
+ * have no result yet are queued for stamping again, and results that have
+ * not been acknowledged with {@link #acknowledge(long)} are available
+ * again. A segment file is deleted once all requests recorded in it have
+ * been acknowledged.
+ * <p>
+ * When the stamping service fails or can not be reached, the request is
+ * kept in the journal and sending is paused for an exponentially growing
+ * time, up to {@link #MAX_BACKOFF}. When the service answers with an error
+ * status, the request fails permanently. Note that a request whose
+ * response was lost, for example because the process stopped, is sent
+ * again, which may give two timestamps for the same hash.
+ *
+ * @since 0.4
+ */
+public class StampJournal {
+	/**
+	 * Status of a request waiting to be stamped.
+	 */
+	public static final int PENDING = 0;
+
+	/**
+	 * Status of a request that has been stamped.
+	 */
+	public static final int STAMPED = 1;
+
+	/**
+	 * Status of a request the stamping service refused.
+	 */
+	public static final int FAILED = 2;
+
+	/**
+	 * The default size of segment files, in bytes.
+	 */
+	public static final int DEFAULT_SEGMENT_SIZE = 16 * 1024 * 1024;
+
+	/**
+	 * The default maximum number of requests sent to the stamping service
+	 * at the same time.
+	 */
+	public static final int DEFAULT_MAX_IN_FLIGHT = 16;
+
+	/**
+	 * The default timeout of requests sent to the stamping service, in
+	 * milliseconds.
+	 */
+	public static final long DEFAULT_REQUEST_TIMEOUT = 30000;
+
+	/**
+	 * The maximum time sending is paused after failures, in milliseconds.
+	 */
+	public static final long MAX_BACKOFF = 60000;
+
+	// Segment file layout: magic, first ticket number, records
+	private static final int MAGIC = 0x47544a31; // "GTJ1"
+	private static final int SEGMENT_HEADER = 12;
+	private static final String SEGMENT_PREFIX = "stamp-";
+	private static final String SEGMENT_SUFFIX = ".journal";
+
+	// Record layout: type, payload length, ticket, CRC32, payload;
+	// a zero type byte marks the end of the records in a segment
+	private static final int RECORD_HEADER = 17;
+	private static final byte END = 0;
+	private static final byte REQUEST = 1;
+	private static final byte RESULT = 2;
+	private static final byte FAILURE = 3;
+	private static final byte ACK = 4;
+
+	private static final long MIN_BACKOFF = 100;
+
+	private final File directory;
+	private final URL stamperUrl;
+	private final int segmentSize;
+
+	// Maps ticket number to Entry, for requests not yet acknowledged
+	private final Map entries;
+	// Entries waiting to be sent, in submission order
+	private final LinkedList queue;
+	// Segments in order; the last one is written to
+	private final List segments;
+	// Next segment, created ahead of time by the sync thread
+	private Segment spare;
+	// Whether a writer is waiting for the spare segment
+	private boolean spareWanted;
+	// Acknowledged entries whose ACK record may not be on disk yet
+	private final LinkedList acknowledged;
+
+	private long nextTicket;
+	private long nextSegment;
+	// Bytes written and bytes known to be on disk, counted over all segments
+	private long written;
+	private long synced;
+	private boolean syncing;
+	private IOException failure;
+	private boolean closed;
+
+	private int maxInFlight;
+	private long requestTimeout;
+	private int inFlight;
+	private long backoff;
+	private long pausedUntil;
+
+	private final Thread syncer;
+	private final Thread drainer;
+
+
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Opens the journal in the given directory, creating the directory if
+	 * needed, and starts stamping the pending requests.
+	 *
+	 * @param directory the journal directory.
+	 * @param stamperUrl stamping service URL.
+	 *
+	 * @throws IOException if the journal can not be opened or is damaged.
+	 */
+	public StampJournal(File directory, URL stamperUrl)
+	throws IOException {
+		this(directory, stamperUrl, DEFAULT_SEGMENT_SIZE);
+	}
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Opens the journal in the given directory, creating the directory if
+	 * needed, and starts stamping the pending requests.
+	 *
+	 * @param directory the journal directory.
+	 * @param stamperUrl stamping service URL.
+	 * @param segmentSize size of new segment files, in bytes.
+	 *
+	 * @throws IOException if the journal can not be opened or is damaged.
+	 */
+	public StampJournal(File directory, URL stamperUrl, int segmentSize)
+	throws IOException {
+		if (directory == null) {
+			throw new IllegalArgumentException("invalid directory: null");
+		}
+		if (stamperUrl == null) {
+			throw new IllegalArgumentException("invalid stamper URL: null");
+		}
+		if (segmentSize < 4096) {
+			throw new IllegalArgumentException("invalid segment size: " + segmentSize);
+		}
+		this.directory = directory;
+		this.stamperUrl = stamperUrl;
+		this.segmentSize = segmentSize;
+		entries = new HashMap();
+		queue = new LinkedList();
+		segments = new ArrayList();
+		acknowledged = new LinkedList();
+		nextTicket = 1;
+		nextSegment = 1;
+		maxInFlight = DEFAULT_MAX_IN_FLIGHT;
+		requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+		backoff = 0;
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create journal directory " + directory);
+		}
+		replay();
+
+		syncer = new Thread(new Runnable() {
+			public void run() {
+				sync();
+			}
+		}, "StampJournal-sync");
+		syncer.setDaemon(true);
+		syncer.start();
+		drainer = new Thread(new Runnable() {
+			public void run() {
+				drain();
+			}
+		}, "StampJournal-drain");
+		drainer.setDaemon(true);
+		drainer.start();
+	}
+
+	/**
+	 * Returns the maximum number of requests sent to the stamping service at
+	 * the same time.
+	 *
+	 * @return maximum number of requests in flight.
+	 */
+	public synchronized int getMaxInFlight() {
+		return maxInFlight;
+	}
+
+	/**
+	 * Sets the maximum number of requests sent to the stamping service at
+	 * the same time.
+	 *
+	 * @param maxInFlight maximum number of requests in flight.
+	 */
+	public synchronized void setMaxInFlight(int maxInFlight) {
+		if (maxInFlight < 1) {
+			throw new IllegalArgumentException("invalid maximum in flight: " + maxInFlight);
+		}
+		this.maxInFlight = maxInFlight;
+		notifyAll();
+	}
+
+	/**
+	 * Returns the timeout of requests sent to the stamping service.
+	 *
+	 * @return timeout, in milliseconds.
+	 */
+	public synchronized long getRequestTimeout() {
+		return requestTimeout;
+	}
+
+	/**
+	 * Sets the timeout of requests sent to the stamping service.
+	 *
+	 * @param requestTimeout timeout, in milliseconds; {@code 0} means no
+	 * 			timeout.
+	 */
+	public synchronized void setRequestTimeout(long requestTimeout) {
+		if (requestTimeout < 0) {
+			throw new IllegalArgumentException("invalid request timeout: " + requestTimeout);
+		}
+		this.requestTimeout = requestTimeout;
+	}
+
+	/**
+	 * Returns the number of requests waiting to be stamped.
+	 *
+	 * @return number of pending requests.
+	 */
+	public synchronized int getPendingCount() {
+		return queue.size() + inFlight;
+	}
+
+
+
+	/**
+	 * Records a timestamping request for the given data hash.
+	 * <p>
+	 * Returns when the request has been written to disk; the timestamp is
+	 * requested from the stamping service in the background.
+	 *
+	 * @param dataHash data hash to create timestamp for.
+	 *
+	 * @return ticket number identifying the request in this journal.
+	 *
+	 * @throws IOException if the request can not be written to the journal.
+	 */
+	public long submit(GTDataHash dataHash)
+	throws IOException {
+		if (dataHash == null) {
+			throw new IllegalArgumentException("invalid data hash: null");
+		}
+		byte[] imprint = dataHash.toDataImprint();
+		Entry entry;
+		long position;
+		synchronized (this) {
+			checkOpen();
+			reserve(imprint.length);
+			entry = new Entry(nextTicket, imprint);
+			entry.segment = append(REQUEST, entry.ticket, imprint);
+			++nextTicket;
+			entry.segment.references++;
+			position = written;
+			entries.put(new Long(entry.ticket), entry);
+			queue.addLast(entry);
+			notifyAll();
+		}
+		waitSynced(position);
+		return entry.ticket;
+	}
+
+	/**
+	 * Returns the status of the given request.
+	 *
+	 * @param ticket ticket number returned by {@link #submit(GTDataHash)}.
+	 *
+	 * @return {@link #PENDING}, {@link #STAMPED} or {@link #FAILED}.
+	 *
+	 * @throws IllegalArgumentException if the ticket is unknown or has been
+	 * 			acknowledged.
+	 */
+	public synchronized int getStatus(long ticket) {
+		return getEntry(ticket).status;
+	}
+
+	/**
+	 * Returns the timestamp created for the given request.
+	 *
+	 * @param ticket ticket number returned by {@link #submit(GTDataHash)}.
+	 *
+	 * @return the timestamp, or {@code null} if the request is still
+	 * 			pending.
+	 *
+	 * @throws GTException if the stamping service refused the request.
+	 * @throws IllegalArgumentException if the ticket is unknown or has been
+	 * 			acknowledged.
+	 */
+	public GTTimestamp getTimestamp(long ticket)
+	throws GTException {
+		Entry entry;
+		synchronized (this) {
+			entry = getEntry(ticket);
+			if (entry.status == PENDING) {
+				return null;
+			}
+		}
+		return entry.getTimestamp();
+	}
+
+	/**
+	 * Waits for the timestamp of the given request.
+	 *
+	 * @param ticket ticket number returned by {@link #submit(GTDataHash)}.
+	 * @param timeout the time to wait, in milliseconds; {@code 0} means wait
+	 * 			until the request is stamped.
+	 *
+	 * @return the timestamp, or {@code null} if the timeout passed before
+	 * 			the request was stamped.
+	 *
+	 * @throws GTException if the stamping service refused the request.
+	 * @throws IOException if the journal was closed while waiting.
+	 * @throws IllegalArgumentException if the ticket is unknown or has been
+	 * 			acknowledged.
+	 */
+	public GTTimestamp waitForTimestamp(long ticket, long timeout)
+	throws GTException, IOException {
+		Timeout time = new Timeout(timeout);
+		Entry entry;
+		synchronized (this) {
+			entry = getEntry(ticket);
+			while (entry.status == PENDING) {
+				checkOpen();
+				if (time.isTimedOut()) {
+					return null;
+				}
+				try {
+					wait(time.getRemaining());
+				} catch (InterruptedException e) {
+					// Nothing here
+				}
+			}
+		}
+		return entry.getTimestamp();
+	}
+
+	/**
+	 * Acknowledges that the result of the given request has been handled,
+	 * so that it can be dropped from the journal. Returns when the
+	 * acknowledgement has been written to disk.
+	 *
+	 * @param ticket ticket number returned by {@link #submit(GTDataHash)}.
+	 *
+	 * @throws IOException if the acknowledgement can not be written to the
+	 * 			journal.
+	 * @throws IllegalArgumentException if the ticket is unknown or has been
+	 * 			acknowledged, or the request is still pending.
+	 */
+	public void acknowledge(long ticket)
+	throws IOException {
+		long position;
+		synchronized (this) {
+			checkOpen();
+			reserve(0);
+			Entry entry = getEntry(ticket);
+			if (entry.status == PENDING) {
+				throw new IllegalArgumentException("ticket still pending: " + ticket);
+			}
+			append(ACK, ticket, new byte[0]);
+			entries.remove(new Long(ticket));
+			// Segments are released only when the ACK record is on disk
+			entry.acknowledged = written;
+			acknowledged.addLast(entry);
+			position = written;
+		}
+		waitSynced(position);
+	}
+
+	/**
+	 * Stops stamping and closes the journal. Pending requests stay in the
+	 * journal and are stamped when it is opened again.
+	 *
+	 * @throws IOException if the journal could not be written to disk.
+	 */
+	public void close()
+	throws IOException {
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			notifyAll();
+		}
+		try {
+			syncer.join();
+			drainer.join();
+		} catch (InterruptedException e) {
+			// Nothing here
+		}
+		synchronized (this) {
+			for (int i = 0; i < segments.size(); i++) {
+				((Segment) segments.get(i)).close();
+			}
+			if (spare != null) {
+				spare.close();
+				spare.file.delete();
+				spare = null;
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Reads the existing segments and rebuilds the state of the requests.
+	 */
+	private void replay()
+	throws IOException {
+		File[] files = directory.listFiles();
+		if (files == null) {
+			throw new IOException("Cannot list journal directory " + directory);
+		}
+		List names = new ArrayList();
+		for (int i = 0; i < files.length; i++) {
+			String name = files[i].getName();
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				names.add(name);
+			}
+		}
+		// Sequence numbers are fixed-width hex, so names sort in order
+		Object[] sorted = names.toArray();
+		Arrays.sort(sorted);
+
+		for (int i = 0; i < sorted.length; i++) {
+			String name = (String) sorted[i];
+			long number;
+			try {
+				number = Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()), 16);
+			} catch (NumberFormatException e) {
+				continue;
+			}
+			Segment segment = new Segment(new File(directory, name), 0);
+			segments.add(segment);
+			nextSegment = number + 1;
+			nextTicket = Math.max(nextTicket, segment.firstTicket);
+			replay(segment);
+		}
+
+		// Everything read is on disk already
+		synced = written;
+
+		// Requests still pending go out in the original order
+		List pending = new ArrayList();
+		for (Iterator i = entries.values().iterator(); i.hasNext(); ) {
+			Entry entry = (Entry) i.next();
+			if (entry.status == PENDING) {
+				pending.add(entry);
+			}
+		}
+		Object[] order = pending.toArray();
+		Arrays.sort(order);
+		queue.addAll(Arrays.asList(order));
+
+		if (segments.isEmpty()) {
+			spare = new Segment(new File(directory, segmentName(nextSegment)), segmentSize);
+			++nextSegment;
+			rotate();
+		}
+		deleteReleased();
+	}
+
+	/**
+	 * Replays the records of the given segment.
+	 */
+	private void replay(Segment segment)
+	throws IOException {
+		MappedByteBuffer buffer = segment.buffer;
+		CRC32 crc = new CRC32();
+		int position = SEGMENT_HEADER;
+		while (position + RECORD_HEADER <= buffer.capacity()) {
+			buffer.position(position);
+			byte type = buffer.get();
+			int length = buffer.getInt();
+			long ticket = buffer.getLong();
+			int checksum = buffer.getInt();
+			if (type == END || length < 0 || length > buffer.remaining()) {
+				break;
+			}
+			byte[] payload = new byte[length];
+			buffer.get(payload);
+			if (checksum(crc, type, ticket, payload) != checksum) {
+				// Torn write at the time of a crash
+				Log.warning("Journal segment {} truncated at {}", segment.file, new Long(position));
+				break;
+			}
+			position += RECORD_HEADER + length;
+			nextTicket = Math.max(nextTicket, ticket + 1);
+
+			Entry entry = (Entry) entries.get(new Long(ticket));
+			if (type == REQUEST) {
+				entry = new Entry(ticket, payload);
+				entry.segment = segment;
+				segment.references++;
+				entries.put(new Long(ticket), entry);
+			} else if (entry == null) {
+				// Request acknowledged, or in a deleted segment
+				continue;
+			} else if (type == RESULT || type == FAILURE) {
+				entry.setResult(type, payload);
+				if (entry.segment != segment) {
+					entry.resultSegment = segment;
+					segment.references++;
+				}
+			} else if (type == ACK) {
+				release(entry);
+			}
+		}
+
+		// Clear whatever is left of a torn record, so new records can follow
+		buffer.position(position);
+		while (buffer.hasRemaining()) {
+			if (buffer.get() != END) {
+				buffer.put(buffer.position() - 1, END);
+				segment.dirty = true;
+			}
+		}
+		segment.position = position;
+		written += position;
+	}
+
+	/**
+	 * Makes room in the current segment for a record with the given payload
+	 * length, moving on to the spare segment if the current one is full.
+	 * Must be called with the lock held, before reading any state the record
+	 * depends on: if the spare segment is not ready yet, this waits for the
+	 * sync thread to create it, and releases the lock meanwhile.
+	 */
+	private void reserve(int length)
+	throws IOException {
+		int size = RECORD_HEADER + length;
+		if (size > segmentSize - SEGMENT_HEADER) {
+			throw new IOException("Journal record too large: " + size + " bytes");
+		}
+		while (true) {
+			Segment segment = (Segment) segments.get(segments.size() - 1);
+			if (segment.position + size <= segment.buffer.capacity()) {
+				return;
+			}
+			if (spare != null) {
+				rotate();
+				return;
+			}
+			spareWanted = true;
+			notifyAll();
+			waitQuietly(0);
+			checkOpen();
+		}
+	}
+
+	/**
+	 * Appends a record to the current segment, which must have room for it
+	 * reserved with {@link #reserve(int)}. Must be called with the lock held.
+	 *
+	 * @return the segment the record was written to.
+	 */
+	private Segment append(byte type, long ticket, byte[] payload) {
+		int size = RECORD_HEADER + payload.length;
+		Segment segment = (Segment) segments.get(segments.size() - 1);
+
+		MappedByteBuffer buffer = segment.buffer;
+		buffer.position(segment.position + 1);
+		buffer.putInt(payload.length);
+		buffer.putLong(ticket);
+		buffer.putInt(checksum(new CRC32(), type, ticket, payload));
+		buffer.put(payload);
+		// Type byte goes last, so a partly written record reads as the end
+		buffer.put(segment.position, type);
+		segment.position += size;
+		segment.dirty = true;
+		written += size;
+		notifyAll();
+		return segment;
+	}
+
+	/**
+	 * Starts writing to the spare segment. Must be called with the lock held.
+	 */
+	private void rotate() {
+		Segment segment = spare;
+		spare = null;
+		spareWanted = false;
+		segment.start(nextTicket);
+		segments.add(segment);
+		written += SEGMENT_HEADER;
+	}
+
+	/**
+	 * Returns whether the sync thread should create the spare segment: when
+	 * a writer is waiting for it, or when the current segment is half full.
+	 * Must be called with the lock held.
+	 */
+	private boolean needsSpare() {
+		if (spare != null || closed) {
+			return false;
+		}
+		Segment segment = (Segment) segments.get(segments.size() - 1);
+		return spareWanted || segment.position > segment.buffer.capacity() / 2;
+	}
+
+	/**
+	 * Drops the given entry and its references to segments. Must be called
+	 * with the lock held.
+	 */
+	private void release(Entry entry) {
+		entries.remove(new Long(entry.ticket));
+		entry.segment.references--;
+		if (entry.resultSegment != null) {
+			entry.resultSegment.references--;
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments, other than the current one, that no
+	 * longer hold records of unacknowledged requests. Must be called with
+	 * the lock held, after the acknowledgements are on disk.
+	 * <p>
+	 * Segments are only deleted from the start of the journal: a later
+	 * segment may hold the ACK records of requests recorded in an earlier
+	 * one, and must be kept for as long as the earlier segment is.
+	 */
+	private void deleteReleased() {
+		while (segments.size() > 1) {
+			Segment segment = (Segment) segments.get(0);
+			if (segment.references > 0) {
+				break;
+			}
+			segments.remove(0);
+			segment.close();
+			if (!segment.file.delete()) {
+				// Mapped files can not be deleted on some platforms; the
+				// next replay finds only released records and tries again
+				Log.warning("Cannot delete journal segment {}", segment.file);
+			}
+		}
+	}
+
+	/**
+	 * Waits until the journal is on disk up to the given position.
+	 */
+	private synchronized void waitSynced(long position)
+	throws IOException {
+		while (synced < position) {
+			if (failure != null) {
+				throw failure;
+			}
+			// No closed check: close() lets the sync thread write out all
+			// records before it stops, so the wait ends either way
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Nothing here
+			}
+		}
+	}
+
+	/**
+	 * Body of the sync thread: forces written records to disk, one batch at
+	 * a time, and creates the spare segment, so that neither is done on the
+	 * threads that write records.
+	 */
+	private void sync() {
+		while (true) {
+			long target;
+			Segment[] dirty;
+			File spareFile = null;
+			synchronized (this) {
+				while (synced == written && !needsSpare() && !closed) {
+					try {
+						wait();
+					} catch (InterruptedException e) {
+						// Nothing here
+					}
+				}
+				if (synced == written && !needsSpare()) {
+					return;
+				}
+				target = written;
+				List list = new ArrayList();
+				for (int i = 0; i < segments.size(); i++) {
+					Segment segment = (Segment) segments.get(i);
+					if (segment.dirty) {
+						segment.dirty = false;
+						list.add(segment);
+					}
+				}
+				dirty = (Segment[]) list.toArray(new Segment[list.size()]);
+				if (needsSpare()) {
+					spareFile = new File(directory, segmentName(nextSegment));
+					++nextSegment;
+				}
+			}
+
+			// Records written meanwhile join the next batch
+			IOException error = null;
+			for (int i = 0; i < dirty.length; i++) {
+				try {
+					dirty[i].buffer.force();
+				} catch (RuntimeException e) {
+					// MappedByteBuffer.force() reports I/O errors unchecked
+					error = new IOException("Cannot sync journal segment " + dirty[i].file + ": " + e.getMessage());
+					error.initCause(e);
+				}
+			}
+			Segment created = null;
+			if (spareFile != null && error == null) {
+				try {
+					created = new Segment(spareFile, segmentSize);
+				} catch (IOException e) {
+					error = new IOException("Cannot create journal segment " + spareFile + ": " + e.getMessage());
+					error.initCause(e);
+				}
+			}
+
+			synchronized (this) {
+				if (error != null) {
+					Log.error(error.getMessage());
+					failure = error;
+					closed = true;
+				} else {
+					synced = target;
+					while (!acknowledged.isEmpty() && ((Entry) acknowledged.getFirst()).acknowledged <= synced) {
+						release((Entry) acknowledged.removeFirst());
+					}
+					deleteReleased();
+					spare = created;
+				}
+				notifyAll();
+				if (error != null) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Body of the drain thread: sends pending requests to the stamping
+	 * service.
+	 */
+	private void drain() {
+		HttpStamper stamper;
+		try {
+			stamper = HttpStamper.getInstance();
+		} catch (IOException e) {
+			Log.error("Cannot start journal stamper: {}", e.getMessage());
+			return;
+		}
+
+		while (true) {
+			final Entry entry;
+			long timeout;
+			synchronized (this) {
+				while (true) {
+					if (closed) {
+						return;
+					}
+					long pause = pausedUntil - System.currentTimeMillis();
+					if (pause > 0) {
+						waitQuietly(pause);
+					} else if (queue.isEmpty() || inFlight >= maxInFlight) {
+						waitQuietly(0);
+					} else {
+						break;
+					}
+				}
+				entry = (Entry) queue.removeFirst();
+				++inFlight;
+				timeout = requestTimeout;
+			}
+
+			ResponseHandler handler;
+			try {
+				GTDataHash dataHash = GTDataHash.getInstance(entry.imprint);
+				handler = stamper.addTimestampRequest(dataHash, stamperUrl, timeout);
+			} catch (IOException e) {
+				retry(entry, e);
+				continue;
+			} catch (IllegalArgumentException e) {
+				// Unknown hash algorithm in a replayed request
+				finish(entry, FAILURE, encode("invalid data imprint: " + e.getMessage()));
+				continue;
+			}
+			handler.setListener(new ResponseHandler.Listener() {
+				public void done(ResponseHandler handler) {
+					complete(entry, handler);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Handles the response to a request sent by the drain thread. Called on
+	 * the transport worker thread.
+	 */
+	private void complete(Entry entry, ResponseHandler handler) {
+		IOException error = handler.getError();
+		if (error != null) {
+			retry(entry, error);
+			return;
+		}
+
+		byte[] response;
+		try {
+			response = handler.receiveSharedResponse(0);
+		} catch (IOException e) {
+			retry(entry, e);
+			return;
+		}
+		int status = HttpClient.getStatusCode(response);
+		if (status != 200) {
+			if (status >= 400 && status < 500) {
+				finish(entry, FAILURE, encode("HTTP error " + status));
+			} else {
+				retry(entry, new IOException("HTTP error " + status));
+			}
+			return;
+		}
+
+		try {
+			GTTimestampResponse tsResponse = GTTimestampResponse.getInstance(HttpClient.getResponseContents(response));
+			int statusCode = tsResponse.getStatusCode();
+			if (statusCode == 0 || statusCode == 1) {
+				finish(entry, RESULT, tsResponse.getTimestamp().getEncoded());
+			} else {
+				finish(entry, FAILURE, encode("service returned error " + tsResponse.getFailCode() + ": " + tsResponse.getFailMessage()));
+			}
+		} catch (GTException e) {
+			retry(entry, new IOException("Invalid timestamp response: " + e.getMessage()));
+		} catch (IOException e) {
+			retry(entry, e);
+		}
+	}
+
+	/**
+	 * Puts a request that could not be sent back to the front of the queue
+	 * and pauses sending.
+	 */
+	private synchronized void retry(Entry entry, IOException error) {
+		Log.debug("Journal request {} failed: {}", new Long(entry.ticket), error.getMessage());
+		--inFlight;
+		queue.addFirst(entry);
+		backoff = Math.min(MAX_BACKOFF, Math.max(MIN_BACKOFF, backoff * 2));
+		pausedUntil = System.currentTimeMillis() + backoff;
+		notifyAll();
+	}
+
+	/**
+	 * Records the result of a request.
+	 */
+	private synchronized void finish(Entry entry, byte type, byte[] payload) {
+		--inFlight;
+		backoff = 0;
+		if (closed) {
+			// The request is sent again when the journal is reopened
+			notifyAll();
+			return;
+		}
+		try {
+			reserve(payload.length);
+			Segment segment = append(type, entry.ticket, payload);
+			if (segment != entry.segment) {
+				entry.resultSegment = segment;
+				segment.references++;
+			}
+			entry.setResult(type, payload);
+		} catch (IOException e) {
+			// Closed while waiting for a new segment: the request is sent
+			// again when the journal is reopened
+			if (failure != null || !closed) {
+				Log.error("Cannot write journal result {}: {}", new Long(entry.ticket), e.getMessage());
+				queue.addFirst(entry);
+			}
+		}
+		notifyAll();
+	}
+
+	/**
+	 * Waits on the lock, ignoring interrupts.
+	 */
+	private void waitQuietly(long timeout) {
+		try {
+			wait(timeout);
+		} catch (InterruptedException e) {
+			// Nothing here
+		}
+	}
+
+	/**
+	 * Throws an {@code IOException} if the journal has been closed.
+	 */
+	private void checkOpen()
+	throws IOException {
+		if (failure != null) {
+			throw failure;
+		}
+		if (closed) {
+			throw new IOException("Journal closed");
+		}
+	}
+
+	/**
+	 * Looks up an entry. Must be called with the lock held.
+	 */
+	private Entry getEntry(long ticket) {
+		Entry entry = (Entry) entries.get(new Long(ticket));
+		if (entry == null) {
+			throw new IllegalArgumentException("unknown ticket: " + ticket);
+		}
+		return entry;
+	}
+
+	/**
+	 * Computes the checksum of a record.
+	 */
+	private static int checksum(CRC32 crc, byte type, long ticket, byte[] payload) {
+		crc.reset();
+		crc.update(type);
+		for (int i = 56; i >= 0; i -= 8) {
+			crc.update((int) (ticket >>> i));
+		}
+		crc.update(payload);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Encodes an error message for a failure record.
+	 */
+	private static byte[] encode(String message) {
+		try {
+			return message.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			// UTF-8 is always supported
+			throw new RuntimeException(e.getMessage());
+		}
+	}
+
+	/**
+	 * Returns the file name of the given segment.
+	 */
+	private static String segmentName(long number) {
+		String hex = Long.toHexString(number);
+		StringBuffer name = new StringBuffer(SEGMENT_PREFIX);
+		for (int i = hex.length(); i < 16; i++) {
+			name.append('0');
+		}
+		return name.append(hex).append(SEGMENT_SUFFIX).toString();
+	}
+
+
+
+	/**
+	 * Memory-mapped segment file.
+	 */
+	private static class Segment {
+		final File file;
+		long firstTicket;
+		final MappedByteBuffer buffer;
+		private final RandomAccessFile raf;
+		// Where the next record goes
+		int position;
+		// Number of unacknowledged requests with records in this segment
+		int references;
+		// Whether there are records not yet forced to disk
+		boolean dirty;
+
+		/**
+		 * Opens an existing segment if {@code size} is {@code 0}, otherwise
+		 * creates a new one, to be started with {@link #start(long)}.
+		 */
+		Segment(File file, int size)
+		throws IOException {
+			this.file = file;
+			raf = new RandomAccessFile(file, "rw");
+			try {
+				if (size > 0) {
+					raf.setLength(size);
+				} else if (raf.length() < SEGMENT_HEADER || raf.length() > Integer.MAX_VALUE) {
+					throw new IOException("Invalid journal segment " + file);
+				}
+				buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, raf.length());
+			} catch (IOException e) {
+				raf.close();
+				throw e;
+			}
+			if (size > 0) {
+				buffer.putInt(0, MAGIC);
+			} else {
+				if (buffer.getInt(0) != MAGIC) {
+					raf.close();
+					throw new IOException("Invalid journal segment " + file);
+				}
+				this.firstTicket = buffer.getLong(4);
+			}
+			position = SEGMENT_HEADER;
+		}
+
+		/**
+		 * Sets the first ticket number of a new segment.
+		 */
+		void start(long firstTicket) {
+			buffer.putLong(4, firstTicket);
+			this.firstTicket = firstTicket;
+			dirty = true;
+		}
+
+		void close() {
+			try {
+				raf.close();
+			} catch (IOException e) {
+				// Nothing here
+			}
+		}
+	}
+
+
+
+	/**
+	 * Request recorded in the journal.
+	 */
+	private static class Entry
+	implements Comparable {
+		final long ticket;
+		final byte[] imprint;
+		int status;
+		// Encoded timestamp or UTF-8 error message
+		byte[] result;
+		// Segments holding the request and result records
+		Segment segment;
+		Segment resultSegment;
+		// Journal position of the ACK record, once acknowledged
+		long acknowledged;
+
+		Entry(long ticket, byte[] imprint) {
+			this.ticket = ticket;
+			this.imprint = imprint;
+			this.status = PENDING;
+		}
+
+		void setResult(byte type, byte[] payload) {
+			status = (type == RESULT) ? STAMPED : FAILED;
+			result = payload;
+		}
+
+		GTTimestamp getTimestamp()
+		throws GTException {
+			if (status == FAILED) {
+				String message;
+				try {
+					message = new String(result, "UTF-8");
+				} catch (UnsupportedEncodingException e) {
+					message = new String(result);
+				}
+				throw new GTException(message);
+			}
+			return GTTimestamp.getInstance(result);
+		}
+
+		public int compareTo(Object o) {
+			long other = ((Entry) o).ticket;
+			return (ticket < other) ? -1 : ((ticket == other) ? 0 : 1);
+		}
+	}
+}
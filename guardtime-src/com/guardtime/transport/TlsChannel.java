@@ -0,0 +1,272 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.security.GeneralSecurityException;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+
+
+
+/**
+ * TLS layer over a non-blocking socket channel.
+ * <p>
+ * Drives an {@code SSLEngine} from the {@link SocketClient} event loop: each
+ * time the channel becomes ready, {@link #process(SocketChannel, ByteBuffer,
+ * ResponseHandler)} moves as much data as possible between the channel and the
+ * engine without blocking and tells the event loop what to wait for next.
+ * <p>
+ * Also sets up TLS the same way for all transports: the default context in
+ * {@link #createDefaultContext()} and the client engine settings in
+ * {@link #open(SSLContext, String, int, String[])}.
+ */
+class TlsChannel {
+	private final SSLEngine engine;
+
+	// Encrypted data waiting to be written to the channel
+	private ByteBuffer netOut;
+
+	// Encrypted data read from the channel, not yet decrypted
+	private ByteBuffer netIn;
+
+	// Decrypted data, not yet handed over to the response handler
+	private ByteBuffer appIn;
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param engine client mode TLS engine.
+	 */
+	TlsChannel(SSLEngine engine) {
+		this.engine = engine;
+		SSLSession session = engine.getSession();
+		netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+		netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+		appIn = ByteBuffer.allocate(session.getApplicationBufferSize());
+	}
+
+	/**
+	 * Creates the TLS context used when none has been set, with the platform
+	 * default key and trust managers.
+	 *
+	 * @return TLS context.
+	 *
+	 * @throws IOException if the context can not be created.
+	 */
+	static SSLContext createDefaultContext()
+	throws IOException {
+		try {
+			SSLContext context = SSLContext.getInstance("TLS");
+			context.init(null, null, null);
+			return context;
+		} catch (GeneralSecurityException x) {
+			// There's no IOException(Throwable) constructor in JDK1.5
+			IOException xx = new IOException("Cannot create TLS context");
+			xx.initCause(x);
+			throw xx;
+		}
+	}
+
+	/**
+	 * Creates a channel for a client connection to the given host. The
+	 * server certificate is checked to be valid for {@code host}, and the
+	 * engine is created for {@code host} and {@code port} so that a session
+	 * cached in the context can be resumed.
+	 *
+	 * @param context TLS context.
+	 * @param host host name or textual IP address.
+	 * @param port port number.
+	 * @param applicationProtocols protocols to offer using ALPN, in order of
+	 * 			preference, or {@code null} to not use ALPN.
+	 *
+	 * @return TLS channel.
+	 */
+	static TlsChannel open(SSLContext context, String host, int port, String[] applicationProtocols) {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		SSLParameters params = engine.getSSLParameters();
+		params.setEndpointIdentificationAlgorithm("HTTPS");
+		if (applicationProtocols != null) {
+			params.setApplicationProtocols(applicationProtocols);
+		}
+		engine.setSSLParameters(params);
+		return new TlsChannel(engine);
+	}
+
+	/**
+	 * Returns the TLS engine of this channel.
+	 *
+	 * @return TLS engine.
+	 */
+	SSLEngine getEngine() {
+		return engine;
+	}
+
+	/**
+	 * Starts the TLS handshake. Should be called once the underlying channel
+	 * is connected.
+	 *
+	 * @throws IOException if the handshake can not be started.
+	 */
+	void begin()
+	throws IOException {
+		engine.beginHandshake();
+	}
+
+	/**
+	 * Performs as much of the handshake, sending and receiving as possible
+	 * without blocking.
+	 *
+	 * @param channel connected channel.
+	 * @param data application data to send.
+	 * @param handler response handler to receive decrypted data.
+	 *
+	 * @return {@code SelectionKey.OP_WRITE} or {@code SelectionKey.OP_READ}
+	 * 			if the channel has to become ready before the transaction can
+	 * 			go on; {@code 0} if the peer has closed the connection.
+	 *
+	 * @throws IOException if an I/O or TLS protocol error occurs.
+	 */
+	int process(SocketChannel channel, ByteBuffer data, ResponseHandler handler)
+	throws IOException {
+		while (true) {
+			// Pending encrypted output always goes first
+			if (netOut.position() > 0) {
+				netOut.flip();
+				SocketClient.BYTES_SENT.add(channel.write(netOut));
+				netOut.compact();
+				if (netOut.position() > 0) {
+					return SelectionKey.OP_WRITE;
+				}
+			}
+
+			SSLEngineResult.HandshakeStatus status = engine.getHandshakeStatus();
+			boolean handshaking = (status != SSLEngineResult.HandshakeStatus.NOT_HANDSHAKING
+					&& status != SSLEngineResult.HandshakeStatus.FINISHED);
+
+			if (status == SSLEngineResult.HandshakeStatus.NEED_TASK) {
+				// Delegated tasks are short CPU-bound computations (key
+				// exchange, certificate checks), so we run them in place
+				Runnable task;
+				while ((task = engine.getDelegatedTask()) != null) {
+					task.run();
+				}
+			} else if (status == SSLEngineResult.HandshakeStatus.NEED_WRAP
+					|| (!handshaking && data.hasRemaining())) {
+				wrap(data);
+			} else if (!unwrap(channel, handler, handshaking)) {
+				return (engine.isInboundDone() ? 0 : SelectionKey.OP_READ);
+			}
+		}
+	}
+
+	/**
+	 * Encrypts application or handshake data into the output buffer.
+	 */
+	private void wrap(ByteBuffer data)
+	throws IOException {
+		SSLEngineResult result = engine.wrap(data, netOut);
+		if (result.getStatus() == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+			netOut = enlarge(netOut, engine.getSession().getPacketBufferSize());
+		} else if (result.getStatus() == SSLEngineResult.Status.CLOSED) {
+			throw new SSLException("TLS connection closed while sending");
+		}
+	}
+
+	/**
+	 * Decrypts data from the input buffer, reading more from the channel as
+	 * needed, and hands decrypted data over to the response handler.
+	 *
+	 * @return {@code true} if progress was made; {@code false} if the
+	 * 			channel has no data available or the connection is closed.
+	 */
+	private boolean unwrap(SocketChannel channel, ResponseHandler handler, boolean handshaking)
+	throws IOException {
+		if (engine.isInboundDone()) {
+			return false;
+		}
+
+		netIn.flip();
+		SSLEngineResult result;
+		try {
+			result = engine.unwrap(netIn, appIn);
+		} finally {
+			netIn.compact();
+		}
+
+		if (appIn.position() > 0) {
+			handler.append(appIn.array(), appIn.arrayOffset(), appIn.position());
+			appIn.clear();
+		}
+
+		SSLEngineResult.Status status = result.getStatus();
+		if (status == SSLEngineResult.Status.BUFFER_OVERFLOW) {
+			appIn = enlarge(appIn, engine.getSession().getApplicationBufferSize());
+		} else if (status == SSLEngineResult.Status.BUFFER_UNDERFLOW) {
+			if (!netIn.hasRemaining()) {
+				netIn = enlarge(netIn, engine.getSession().getPacketBufferSize());
+			}
+			int numRead = channel.read(netIn);
+			if (numRead > 0) {
+				SocketClient.BYTES_RECEIVED.add(numRead);
+			}
+			if (numRead == 0) {
+				return false;
+			} else if (numRead < 0) {
+				if (handshaking) {
+					throw new SSLException("Connection closed during TLS handshake");
+				}
+				// Like plain HTTP/1.0, we accept the end of stream as the end
+				// of response even if the peer did not send close_notify
+				try {
+					engine.closeInbound();
+				} catch (SSLException e) {
+					// Nothing here, see above
+				}
+				return false;
+			}
+		} else if (status == SSLEngineResult.Status.CLOSED) {
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Returns a buffer of at least the given size holding the contents of the
+	 * given buffer, which is assumed to be in write mode.
+	 */
+	private static ByteBuffer enlarge(ByteBuffer buffer, int size) {
+		ByteBuffer bigger = ByteBuffer.allocate(Math.max(size, buffer.capacity() * 2));
+		buffer.flip();
+		bigger.put(buffer);
+		return bigger;
+	}
+}
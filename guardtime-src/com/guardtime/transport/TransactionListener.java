@@ -0,0 +1,135 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+
+
+
+/**
+ * Listener interface for the life cycle of the requests of a
+ * {@link SocketClient}.
+ * <p>
+ * A listener set with {@link SocketClient#setListener(TransactionListener)}
+ * is told about every step of every request: when it is queued, when its
+ * channel is registered with the selector, connected, written to and read
+ * from, and how it ends. This is meant for tracing, accounting and load
+ * balancing code that needs to see the requests without being part of the
+ * transport.
+ * <p>
+ * All times are in the time base of {@code System.nanoTime()}, like the
+ * phase times of {@link ResponseHandler}. The address is the one the
+ * request goes to; for requests added by host name, it is unresolved until
+ * the channel is opened, and the address of the current attempt after
+ * that.
+ * <p>
+ * Note: Except for {@link #queued}, the methods are called on the worker
+ * thread of the client, which serves all of its requests. Implementations
+ * should return quickly and must never block or throw exceptions.
+ *
+ * @since 0.4
+ */
+public interface TransactionListener {
+	/**
+	 * Called when a request has been added to the client and admitted by its
+	 * {@link RequestLimiter}. Called on the thread that added the request.
+	 *
+	 * @param handler response handler of the request.
+	 * @param address the address the request goes to.
+	 * @param time the time of the event, in nanoseconds.
+	 */
+	public void queued(ResponseHandler handler, InetSocketAddress address, long time);
+
+	/**
+	 * Called when the channel of a request has been registered with the
+	 * selector of the client, which starts the wait for the connection. If
+	 * the request fails over to another address of the host, this is called
+	 * again for the new channel.
+	 *
+	 * @param handler response handler of the request.
+	 * @param address the address the channel connects to.
+	 * @param time the time of the event, in nanoseconds.
+	 */
+	public void registered(ResponseHandler handler, InetSocketAddress address, long time);
+
+	/**
+	 * Called when the connection of a request has been established.
+	 *
+	 * @param handler response handler of the request.
+	 * @param address the address connected to.
+	 * @param time the time of the event, in nanoseconds.
+	 */
+	public void connected(ResponseHandler handler, InetSocketAddress address, long time);
+
+	/**
+	 * Called when request data has been written. For TLS connections, this
+	 * is the request data handed to the TLS layer, not counting the
+	 * handshake or record overhead.
+	 *
+	 * @param handler response handler of the request.
+	 * @param address the address of the connection.
+	 * @param bytes number of bytes written.
+	 * @param time the time of the event, in nanoseconds.
+	 */
+	public void written(ResponseHandler handler, InetSocketAddress address, int bytes, long time);
+
+	/**
+	 * Called when the first byte of the response has been read.
+	 *
+	 * @param handler response handler of the request.
+	 * @param address the address of the connection.
+	 * @param time the time of the event, in nanoseconds.
+	 */
+	public void firstByte(ResponseHandler handler, InetSocketAddress address, long time);
+
+	/**
+	 * Called when the response has been received completely. The handler
+	 * already has the response when this is called.
+	 *
+	 * @param handler response handler of the request.
+	 * @param address the address of the connection.
+	 * @param time the time of the event, in nanoseconds.
+	 */
+	public void completed(ResponseHandler handler, InetSocketAddress address, long time);
+
+	/**
+	 * Called when a request has failed because its timeout passed.
+	 *
+	 * @param handler response handler of the request.
+	 * @param address the address of the connection.
+	 * @param time the time of the event, in nanoseconds.
+	 */
+	public void timedOut(ResponseHandler handler, InetSocketAddress address, long time);
+
+	/**
+	 * Called when a request has failed for any other reason, including host
+	 * name lookup errors and cancellation.
+	 *
+	 * @param handler response handler of the request.
+	 * @param address the address of the connection, or the unresolved
+	 * 			address if the request failed before a channel was opened.
+	 * @param error the error the request failed with.
+	 * @param time the time of the event, in nanoseconds.
+	 */
+	public void failed(ResponseHandler handler, InetSocketAddress address, IOException error, long time);
+}
@@ -0,0 +1,264 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.tsp;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+
+
+
+/**
+ * Reads and restores the internal state of the digests used by
+ * {@link GTDataHash}, for checkpoints.
+ * <p>
+ * The Bouncy Castle version the SDK is built with has no public API for
+ * exporting the state of a digest, so the state is taken from the fields of
+ * the provider's digest object: the chaining variables, the partial block and
+ * the byte counters, which are all integers, longs or arrays of them. The
+ * class name of the digest is stored with the state, and a state is only
+ * restored into a digest of the same class with the same fields, so that a
+ * checkpoint written with another provider version is rejected rather than
+ * misread.
+ */
+final class DigestState {
+	private static final byte INT = 1;
+	private static final byte LONG = 2;
+	private static final byte BYTES = 3;
+	private static final byte INTS = 4;
+	private static final byte LONGS = 5;
+
+	// Orders fields by declaring class depth, then by name
+	private static final Comparator FIELD_ORDER = new Comparator() {
+		public int compare(Object o1, Object o2) {
+			Field f1 = (Field) o1;
+			Field f2 = (Field) o2;
+			if (f1.getDeclaringClass() != f2.getDeclaringClass()) {
+				return f1.getDeclaringClass().isAssignableFrom(f2.getDeclaringClass()) ? -1 : 1;
+			}
+			return f1.getName().compareTo(f2.getName());
+		}
+	};
+
+
+
+	/**
+	 * Writes the state of the given digest.
+	 *
+	 * @param md the digest.
+	 * @param out the stream to write to.
+	 *
+	 * @throws IOException if writing fails.
+	 * @throws UnsupportedOperationException if the state of the digest can
+	 * 			not be read.
+	 */
+	static void write(MessageDigest md, DataOutputStream out)
+	throws IOException {
+		Object digest = getDigest(md);
+		Field[] fields = getFields(digest.getClass());
+		out.writeUTF(digest.getClass().getName());
+		out.writeShort(fields.length);
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				Field f = fields[i];
+				Class type = f.getType();
+				out.writeUTF(f.getName());
+				if (type == Integer.TYPE) {
+					out.writeByte(INT);
+					out.writeInt(f.getInt(digest));
+				} else if (type == Long.TYPE) {
+					out.writeByte(LONG);
+					out.writeLong(f.getLong(digest));
+				} else if (type == byte[].class) {
+					byte[] a = (byte[]) f.get(digest);
+					out.writeByte(BYTES);
+					out.writeInt(a.length);
+					out.write(a);
+				} else if (type == int[].class) {
+					int[] a = (int[]) f.get(digest);
+					out.writeByte(INTS);
+					out.writeInt(a.length);
+					for (int j = 0; j < a.length; j++) {
+						out.writeInt(a[j]);
+					}
+				} else {
+					long[] a = (long[]) f.get(digest);
+					out.writeByte(LONGS);
+					out.writeInt(a.length);
+					for (int j = 0; j < a.length; j++) {
+						out.writeLong(a[j]);
+					}
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw unsupported(e);
+		}
+	}
+
+	/**
+	 * Restores the state of the given digest.
+	 *
+	 * @param md the digest, freshly created for the same algorithm as the
+	 * 			one the state was written from.
+	 * @param in the stream to read from.
+	 *
+	 * @throws IOException if reading fails.
+	 * @throws IllegalArgumentException if the state does not match the
+	 * 			digest.
+	 * @throws UnsupportedOperationException if the state of the digest can
+	 * 			not be restored.
+	 */
+	static void read(MessageDigest md, DataInputStream in)
+	throws IOException {
+		Object digest = getDigest(md);
+		Field[] fields = getFields(digest.getClass());
+		String className = in.readUTF();
+		if (!className.equals(digest.getClass().getName()) || in.readShort() != fields.length) {
+			throw new IllegalArgumentException("checkpoint not compatible with digest " + digest.getClass().getName());
+		}
+		try {
+			for (int i = 0; i < fields.length; i++) {
+				Field f = fields[i];
+				Class type = f.getType();
+				String name = in.readUTF();
+				byte tag = in.readByte();
+				if (!name.equals(f.getName()) || tag != tagOf(type)) {
+					throw new IllegalArgumentException("checkpoint not compatible with digest field " + f.getName());
+				}
+				if (tag == INT) {
+					f.setInt(digest, in.readInt());
+				} else if (tag == LONG) {
+					f.setLong(digest, in.readLong());
+				} else {
+					int n = in.readInt();
+					Object current = f.get(digest);
+					if (current == null || java.lang.reflect.Array.getLength(current) != n) {
+						throw new IllegalArgumentException("checkpoint not compatible with digest field " + f.getName());
+					}
+					if (tag == BYTES) {
+						in.readFully((byte[]) current);
+					} else if (tag == INTS) {
+						int[] a = (int[]) current;
+						for (int j = 0; j < n; j++) {
+							a[j] = in.readInt();
+						}
+					} else {
+						long[] a = (long[]) current;
+						for (int j = 0; j < n; j++) {
+							a[j] = in.readLong();
+						}
+					}
+				}
+			}
+		} catch (IllegalAccessException e) {
+			throw unsupported(e);
+		}
+	}
+
+
+
+	/**
+	 * Returns the Bouncy Castle digest inside the given message digest.
+	 */
+	private static Object getDigest(MessageDigest md) {
+		for (Class c = md.getClass(); c != MessageDigest.class && c != null; c = c.getSuperclass()) {
+			try {
+				Field f = c.getDeclaredField("digest");
+				f.setAccessible(true);
+				Object digest = f.get(md);
+				if (digest != null) {
+					return digest;
+				}
+			} catch (NoSuchFieldException e) {
+				// Try the superclass
+			} catch (IllegalAccessException e) {
+				throw unsupported(e);
+			} catch (RuntimeException e) {
+				throw unsupported(e);
+			}
+		}
+		throw new UnsupportedOperationException("digest state not accessible: " + md.getClass().getName());
+	}
+
+	/**
+	 * Returns the state fields of the given digest class, in a fixed order.
+	 */
+	private static Field[] getFields(Class c) {
+		List list = new ArrayList();
+		for (; c != null && c != Object.class; c = c.getSuperclass()) {
+			Field[] declared = c.getDeclaredFields();
+			for (int i = 0; i < declared.length; i++) {
+				Field f = declared[i];
+				if (Modifier.isStatic(f.getModifiers())) {
+					continue;
+				}
+				if (tagOf(f.getType()) == 0) {
+					throw new UnsupportedOperationException("digest state not supported: "
+							+ c.getName() + "." + f.getName());
+				}
+				try {
+					f.setAccessible(true);
+				} catch (RuntimeException e) {
+					throw unsupported(e);
+				}
+				list.add(f);
+			}
+		}
+		Field[] fields = (Field[]) list.toArray(new Field[list.size()]);
+		Arrays.sort(fields, FIELD_ORDER);
+		return fields;
+	}
+
+	/**
+	 * Returns the type tag for the given field type, or 0 if not supported.
+	 */
+	private static byte tagOf(Class type) {
+		if (type == Integer.TYPE) {
+			return INT;
+		} else if (type == Long.TYPE) {
+			return LONG;
+		} else if (type == byte[].class) {
+			return BYTES;
+		} else if (type == int[].class) {
+			return INTS;
+		} else if (type == long[].class) {
+			return LONGS;
+		}
+		return 0;
+	}
+
+	private static UnsupportedOperationException unsupported(Exception cause) {
+		UnsupportedOperationException e = new UnsupportedOperationException("digest state not accessible");
+		e.initCause(cause);
+		return e;
+	}
+
+	private DigestState() {
+	}
+}
@@ -0,0 +1,546 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.tsp;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.FileChannel;
+
+
+
+/**
+ * Manifest of a large file hashed in fixed-size chunks.
+ * <p>
+ * Hashing a file of hundreds of gigabytes as one data hash is a single
+ * sequential computation bound to one processor core. The manifest instead
+ * splits the file into chunks of {@link #getChunkSize()} bytes (the last one
+ * may be shorter), hashes the chunks in parallel and puts the chunk hashes in
+ * the leaves of a {@link GTHashTree}. The root hash of the tree is then
+ * timestamped as usual:
+ *
+ * <pre>
+ * GTChunkManifest manifest = GTChunkManifest.create(file, GTHashAlgorithm.DEFAULT,
+ * 		GTChunkManifest.DEFAULT_CHUNK_SIZE, 0);
+ * GTTimestamp timestamp = SimpleHttpStamper.create(manifest.getRootHash(), stamperUrl);
+ * byte[] manifestBytes = manifest.getEncoded();
+ * </pre>
+ *
+ * The manifest is kept next to the timestamp. To verify the file, restore the
+ * manifest, verify the timestamp against its root hash and then check the
+ * file against the manifest, either as a whole or only a byte range of it;
+ * for a range, only the chunks that overlap it are read:
+ *
+ * <pre>
+ * GTChunkManifest manifest = GTChunkManifest.getInstance(manifestBytes);
+ * GTVerificationResult result = timestamp.verify(manifest.getRootHash(), publicationsFile);
+ * boolean intact = manifest.verify(file, offset, length, 0);
+ * </pre>
+ *
+ * A verifier that does not have the manifest can check a single chunk with
+ * just the chunk's hash chain, see {@link #getChain(int)} and
+ * {@link #getRootHash(File, long, int, byte[], GTHashAlgorithm)}.
+ * <p>
+ * The root hash depends on the chunk size, so the same file gives different
+ * root hashes with different chunk sizes. An empty file has one empty chunk.
+ *
+ * @since 0.4
+ */
+public final class GTChunkManifest {
+	/**
+	 * The default chunk size, in bytes.
+	 */
+	public static final long DEFAULT_CHUNK_SIZE = 16 * 1024 * 1024;
+
+	private static final int MANIFEST_MAGIC = 0x47544d46;
+	private static final byte MANIFEST_VERSION = 1;
+
+	private final GTHashAlgorithm hashAlgorithm;
+	private final long chunkSize;
+	private final long length;
+	private final GTDataHash[] chunkHashes;
+	private final GTHashTree tree;
+
+
+
+	/**
+	 * Builds the manifest of the given file.
+	 *
+	 * @param file file to build the manifest of.
+	 * @param hashAlgorithm hash algorithm to hash the chunks and the tree
+	 * 			with.
+	 * @param chunkSize chunk size, in bytes.
+	 * @param threads number of threads to hash the chunks with; {@code 0} to
+	 * 			use one per available processor.
+	 *
+	 * @return manifest of the file.
+	 *
+	 * @throws IllegalArgumentException if the file has more chunks than a
+	 * 			manifest can hold.
+	 * @throws IOException if file reading error occurs.
+	 */
+	public static GTChunkManifest create(File file, GTHashAlgorithm hashAlgorithm, long chunkSize, int threads)
+	throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("invalid file: null");
+		} else if (hashAlgorithm == null) {
+			throw new IllegalArgumentException("invalid hash algorithm: null");
+		} else if (chunkSize <= 0) {
+			throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+		} else if (threads < 0) {
+			throw new IllegalArgumentException("invalid number of threads: " + threads);
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long length = channel.size();
+			int count = getChunkCount(length, chunkSize);
+			GTDataHash[] chunkHashes = new GTDataHash[count];
+			hashChunks(channel, hashAlgorithm, chunkSize, length, 0, chunkHashes, threads);
+			return new GTChunkManifest(hashAlgorithm, chunkSize, length, chunkHashes);
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Restores a manifest from the bytes returned by {@link #getEncoded()}.
+	 *
+	 * @param encoded encoded manifest.
+	 *
+	 * @return manifest object.
+	 *
+	 * @throws IllegalArgumentException if the encoded manifest is malformed.
+	 */
+	public static GTChunkManifest getInstance(byte[] encoded) {
+		if (encoded == null) {
+			throw new IllegalArgumentException("invalid manifest: null");
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+		try {
+			if (in.readInt() != MANIFEST_MAGIC || in.readByte() != MANIFEST_VERSION) {
+				throw new IllegalArgumentException("invalid manifest format");
+			}
+			GTHashAlgorithm hashAlgorithm = GTHashAlgorithm.getByGtid(in.readByte());
+			long chunkSize = in.readLong();
+			long length = in.readLong();
+			if (chunkSize <= 0 || length < 0) {
+				throw new IllegalArgumentException("invalid manifest: bad chunk size or length");
+			}
+			int count = in.readInt();
+			if (count != getChunkCount(length, chunkSize)) {
+				throw new IllegalArgumentException("invalid manifest: bad number of chunks");
+			}
+			GTDataHash[] chunkHashes = new GTDataHash[count];
+			for (int i = 0; i < count; ++i) {
+				byte[] hashedMessage = new byte[hashAlgorithm.getHashLength()];
+				in.readFully(hashedMessage);
+				chunkHashes[i] = GTDataHash.getInstance(hashAlgorithm, hashedMessage);
+			}
+			if (in.read() != -1) {
+				throw new IllegalArgumentException("invalid manifest: trailing data");
+			}
+			return new GTChunkManifest(hashAlgorithm, chunkSize, length, chunkHashes);
+		} catch (IOException e) {
+			throw new IllegalArgumentException("invalid manifest: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Computes the root hash of a manifest from one chunk of the file and the
+	 * hash chain of the chunk.
+	 * <p>
+	 * This lets a verifier check a chunk without the manifest: the root hash
+	 * computed here is verified against the timestamp as usual.
+	 *
+	 * @param file file to read the chunk from.
+	 * @param chunkSize chunk size of the manifest, in bytes.
+	 * @param index index of the chunk.
+	 * @param chain hash chain of the chunk, as returned by
+	 * 			{@link #getChain(int)}.
+	 * @param hashAlgorithm hash algorithm of the manifest.
+	 *
+	 * @return root hash of the manifest.
+	 *
+	 * @throws EOFException if the file ends before the chunk starts.
+	 * @throws IOException if file reading error occurs.
+	 * @throws IllegalArgumentException if the hash chain has invalid format.
+	 */
+	public static GTDataHash getRootHash(File file, long chunkSize, int index, byte[] chain, GTHashAlgorithm hashAlgorithm)
+	throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("invalid file: null");
+		} else if (chunkSize <= 0) {
+			throw new IllegalArgumentException("invalid chunk size: " + chunkSize);
+		} else if (index < 0) {
+			throw new IllegalArgumentException("invalid chunk index: " + index);
+		} else if (hashAlgorithm == null) {
+			throw new IllegalArgumentException("invalid hash algorithm: null");
+		}
+
+		GTDataHash chunkHash;
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			long position = index * chunkSize;
+			long size = channel.size();
+			if (position > size || (position == size && index > 0)) {
+				throw new EOFException("chunk starts past the end of the file");
+			}
+			long chunkLength = Math.min(chunkSize, size - position);
+			chunkHash = new GTDataHash(hashAlgorithm).update(channel, position, chunkLength).close();
+		} finally {
+			raf.close();
+		}
+		return GTHashTree.getRootHash(chunkHash, chain, hashAlgorithm);
+	}
+
+
+
+	/**
+	 * Class constructor.
+	 */
+	private GTChunkManifest(GTHashAlgorithm hashAlgorithm, long chunkSize, long length, GTDataHash[] chunkHashes) {
+		this.hashAlgorithm = hashAlgorithm;
+		this.chunkSize = chunkSize;
+		this.length = length;
+		this.chunkHashes = chunkHashes;
+		this.tree = new GTHashTree(hashAlgorithm, chunkHashes);
+	}
+
+	/**
+	 * Returns the hash algorithm of the manifest.
+	 */
+	public GTHashAlgorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * Returns the chunk size of the manifest, in bytes.
+	 */
+	public long getChunkSize() {
+		return chunkSize;
+	}
+
+	/**
+	 * Returns the length of the file the manifest was built of, in bytes.
+	 */
+	public long getLength() {
+		return length;
+	}
+
+	/**
+	 * Returns the number of chunks in the manifest.
+	 */
+	public int getChunkCount() {
+		return chunkHashes.length;
+	}
+
+	/**
+	 * Returns the hash of the given chunk.
+	 *
+	 * @param index index of the chunk.
+	 *
+	 * @return chunk hash.
+	 *
+	 * @throws IndexOutOfBoundsException if there is no such chunk.
+	 */
+	public GTDataHash getChunkHash(int index) {
+		if (index < 0 || index >= chunkHashes.length) {
+			throw new IndexOutOfBoundsException("invalid chunk index: " + index);
+		}
+		return chunkHashes[index];
+	}
+
+	/**
+	 * Returns the hash chain from the given chunk to the root hash.
+	 *
+	 * @param index index of the chunk.
+	 *
+	 * @return hash chain bytes.
+	 *
+	 * @throws IndexOutOfBoundsException if there is no such chunk.
+	 *
+	 * @see GTHashTree#getChain(int)
+	 */
+	public byte[] getChain(int index) {
+		return tree.getChain(index);
+	}
+
+	/**
+	 * Returns the root hash of the manifest, to be timestamped.
+	 */
+	public GTDataHash getRootHash() {
+		return tree.getRootHash();
+	}
+
+	/**
+	 * Returns the manifest in its binary format, to be restored with
+	 * {@link #getInstance(byte[])}.
+	 *
+	 * @return encoded manifest.
+	 */
+	public byte[] getEncoded() {
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		try {
+			out.writeInt(MANIFEST_MAGIC);
+			out.writeByte(MANIFEST_VERSION);
+			out.writeByte(hashAlgorithm.getGtid());
+			out.writeLong(chunkSize);
+			out.writeLong(length);
+			out.writeInt(chunkHashes.length);
+			for (int i = 0; i < chunkHashes.length; ++i) {
+				out.write(chunkHashes[i].getHashedMessage());
+			}
+			out.flush();
+		} catch (IOException e) {
+			// Not possible with in-memory streams
+			throw new RuntimeException(e.getMessage(), e);
+		}
+		return buf.toByteArray();
+	}
+
+	/**
+	 * Checks the whole file against the manifest.
+	 *
+	 * @param file file to check.
+	 * @param threads number of threads to hash the chunks with; {@code 0} to
+	 * 			use one per available processor.
+	 *
+	 * @return {@code true} if the file has the length and the content recorded
+	 * 			in the manifest; {@code false} otherwise.
+	 *
+	 * @throws IOException if file reading error occurs.
+	 */
+	public boolean verify(File file, int threads)
+	throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("invalid file: null");
+		}
+		if (file.length() != length) {
+			return false;
+		}
+		return verify(file, 0, length, threads);
+	}
+
+	/**
+	 * Checks a byte range of the file against the manifest. Only the chunks
+	 * that overlap the range are read, so the bytes around the range are
+	 * checked too, up to the chunk boundaries.
+	 *
+	 * @param file file to check.
+	 * @param offset start of the range in the file.
+	 * @param length length of the range, in bytes.
+	 * @param threads number of threads to hash the chunks with; {@code 0} to
+	 * 			use one per available processor.
+	 *
+	 * @return {@code true} if the chunks have the content recorded in the
+	 * 			manifest; {@code false} otherwise, including when the file
+	 * 			ends before the last of the chunks does.
+	 *
+	 * @throws IllegalArgumentException if the range extends past the length
+	 * 			recorded in the manifest.
+	 * @throws IOException if file reading error occurs.
+	 */
+	public boolean verify(File file, long offset, long length, int threads)
+	throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("invalid file: null");
+		} else if (offset < 0 || length < 0 || offset + length > this.length) {
+			throw new IllegalArgumentException("invalid range: " + offset + "+" + length);
+		} else if (threads < 0) {
+			throw new IllegalArgumentException("invalid number of threads: " + threads);
+		}
+
+		int first = (int) (offset / chunkSize);
+		int last = (length == 0) ? first : (int) ((offset + length - 1) / chunkSize);
+		if (first == chunkHashes.length) {
+			// Empty range at the very end
+			return true;
+		}
+
+		GTDataHash[] hashes = new GTDataHash[last - first + 1];
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			hashChunks(raf.getChannel(), hashAlgorithm, chunkSize, this.length, first, hashes, threads);
+		} catch (EOFException e) {
+			return false;
+		} finally {
+			raf.close();
+		}
+		for (int i = 0; i < hashes.length; ++i) {
+			if (!hashes[i].equals(chunkHashes[first + i])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+
+
+	/**
+	 * Returns the number of chunks in a file.
+	 *
+	 * @throws IllegalArgumentException if there are more chunks than a
+	 * 			manifest can hold.
+	 */
+	private static int getChunkCount(long length, long chunkSize) {
+		long count = (length == 0) ? 1 : (length - 1) / chunkSize + 1;
+		if (count > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException("too many chunks: " + count);
+		}
+		return (int) count;
+	}
+
+	/**
+	 * Hashes consecutive chunks of the file in parallel.
+	 *
+	 * @param channel channel to read the file from.
+	 * @param hashAlgorithm hash algorithm to hash the chunks with.
+	 * @param chunkSize chunk size, in bytes.
+	 * @param length length of the file, in bytes; the last chunk ends here.
+	 * @param first index of the first chunk to hash.
+	 * @param hashes array to put the chunk hashes in; its size is the number
+	 * 			of chunks to hash.
+	 * @param threads number of threads; {@code 0} for one per processor.
+	 *
+	 * @throws IOException if file reading error occurs.
+	 */
+	private static void hashChunks(FileChannel channel, GTHashAlgorithm hashAlgorithm, long chunkSize, long length,
+			int first, GTDataHash[] hashes, int threads)
+	throws IOException {
+		if (threads == 0) {
+			threads = Runtime.getRuntime().availableProcessors();
+		}
+		Hasher hasher = new Hasher(channel, hashAlgorithm, chunkSize, length, first, hashes);
+		// The calling thread is one of the workers
+		Thread[] workers = new Thread[Math.min(threads, hashes.length) - 1];
+		for (int i = 0; i < workers.length; ++i) {
+			workers[i] = new Thread(hasher, "GTChunkManifest hasher");
+			workers[i].setDaemon(true);
+			workers[i].start();
+		}
+		hasher.run();
+
+		boolean interrupted = false;
+		for (int i = 0; i < workers.length; ++i) {
+			while (true) {
+				try {
+					workers[i].join();
+					break;
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+		}
+		if (interrupted) {
+			Thread.currentThread().interrupt();
+		}
+		hasher.checkError();
+	}
+
+
+
+	/**
+	 * Task shared by the threads hashing the chunks. Each thread takes the
+	 * next chunk that has not been taken yet, until all are done or one of
+	 * them fails.
+	 */
+	private static class Hasher
+	implements Runnable {
+		private final FileChannel channel;
+		private final GTHashAlgorithm hashAlgorithm;
+		private final long chunkSize;
+		private final long length;
+		private final int first;
+		private final GTDataHash[] hashes;
+		// Index in hashes of the next chunk to take
+		private int next;
+		private IOException ioError;
+		private RuntimeException runtimeError;
+
+		public Hasher(FileChannel channel, GTHashAlgorithm hashAlgorithm, long chunkSize, long length,
+				int first, GTDataHash[] hashes) {
+			this.channel = channel;
+			this.hashAlgorithm = hashAlgorithm;
+			this.chunkSize = chunkSize;
+			this.length = length;
+			this.first = first;
+			this.hashes = hashes;
+			this.next = 0;
+		}
+
+		public void run() {
+			while (true) {
+				int i;
+				synchronized (this) {
+					if (next == hashes.length || ioError != null || runtimeError != null) {
+						return;
+					}
+					i = next++;
+				}
+				long position = (first + i) * chunkSize;
+				long chunkLength = Math.min(chunkSize, length - position);
+				try {
+					// Positional reads and mappings don't touch the shared
+					// channel position, so the threads can share the channel
+					GTDataHash hash = new GTDataHash(hashAlgorithm).update(channel, position, chunkLength).close();
+					synchronized (this) {
+						hashes[i] = hash;
+					}
+				} catch (IOException e) {
+					synchronized (this) {
+						if (ioError == null) {
+							ioError = e;
+						}
+					}
+				} catch (RuntimeException e) {
+					synchronized (this) {
+						if (runtimeError == null) {
+							runtimeError = e;
+						}
+					}
+				}
+			}
+		}
+
+		/**
+		 * Rethrows the error one of the threads failed with, if any.
+		 */
+		public synchronized void checkError()
+		throws IOException {
+			if (ioError != null) {
+				throw ioError;
+			} else if (runtimeError != null) {
+				throw runtimeError;
+			}
+		}
+	}
+}
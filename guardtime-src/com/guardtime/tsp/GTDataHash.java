@@ -21,8 +21,18 @@
  */
 package com.guardtime.tsp;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -32,6 +42,7 @@ import java.util.Arrays;
 import org.bouncycastle.jce.provider.BouncyCastleProvider;
 
 import com.guardtime.asn1.MessageImprint;
+import com.guardtime.util.BufferPool;
 import com.guardtime.util.Util;
 
 
@@ -77,6 +88,21 @@ import com.guardtime.util.Util;
  * <p>
  * To check hash calculator state, use {@link #isClosed()} method.
  * <p>
+ * The state of an open hash calculator can be saved with
+ * {@link #getCheckpoint()} and restored later, even in another run of the
+ * application, with {@link #resume(byte[])}. This is useful for append-only
+ * files that are timestamped repeatedly as they grow: only the data appended
+ * since the checkpoint has to be hashed.
+ *
+ * <pre>
+ * GTDataHash dataHash = (checkpoint == null) ?
+ *    new GTDataHash(GTHashAlgorithm.DEFAULT) : GTDataHash.resume(checkpoint);
+ * long hashed = dataHash.getByteCount();
+ * dataHash.update(channel, hashed, channel.size() - hashed);
+ * checkpoint = dataHash.getCheckpoint(); // Save next to the file
+ * byte[] hashedMessage = dataHash.getHashedMessage();
+ * </pre>
+ * <p>
  * When calculating the hash sum of some data to verify a timestamp, make sure
  * to use the same hash algorithm as when the timestamp was created. To get this
  * algorithm, use {@link GTTimestamp#getHashAlgorithm()}.
@@ -98,11 +124,19 @@ import com.guardtime.util.Util;
  */
 public class GTDataHash {
 	private static final int DEFAULT_BUFFER_SIZE = 8192;
+	// File regions at least this long are memory mapped instead of read
+	private static final long MAP_THRESHOLD = 4 << 20;
+	// Size of the memory mapped windows
+	private static final long MAP_WINDOW = 32 << 20;
+	// Checkpoint format identifier and version
+	private static final int CHECKPOINT_MAGIC = 0x47544443;
+	private static final byte CHECKPOINT_VERSION = 1;
 
 	private byte[] hashedMessage;
 	private int bufferSize;
 	private GTHashAlgorithm hashAlgorithm;
 	private MessageDigest messageDigest;
+	private long byteCount;
 
 	/*
 	 * Initializers
@@ -169,6 +203,47 @@ public class GTDataHash {
 		return new GTDataHash(hashAlg, Util.copyOf(dataImprint, 1, dataImprint.length - 1));
 	}
 
+	/**
+	 * Builds new hash object with open hash calculator from a checkpoint
+	 * created by {@link #getCheckpoint()}.
+	 * <p>
+	 * The hash object continues from where the checkpointed one was: updating
+	 * it with the rest of the data gives the same hash value as hashing all of
+	 * the data from the start. The checkpoint does not record the data
+	 * itself, so it's up to the caller to make sure the data hashed before the
+	 * checkpoint has not changed.
+	 *
+	 * @param checkpoint checkpoint of an open hash object.
+	 *
+	 * @return newly created hash object.
+	 *
+	 * @throws IllegalArgumentException if the checkpoint is malformed or was
+	 * 			created with an incompatible cryptographic provider.
+	 *
+	 * @since 0.4
+	 */
+	public static GTDataHash resume(byte[] checkpoint) {
+		if (checkpoint == null) {
+			throw new IllegalArgumentException("invalid checkpoint: null");
+		}
+
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(checkpoint));
+		try {
+			if (in.readInt() != CHECKPOINT_MAGIC || in.readByte() != CHECKPOINT_VERSION) {
+				throw new IllegalArgumentException("invalid checkpoint format");
+			}
+			GTDataHash dataHash = new GTDataHash(GTHashAlgorithm.getByGtid(in.readByte()));
+			dataHash.byteCount = in.readLong();
+			DigestState.read(dataHash.messageDigest, in);
+			if (in.read() != -1) {
+				throw new IllegalArgumentException("invalid checkpoint: trailing data");
+			}
+			return dataHash;
+		} catch (IOException e) {
+			throw new IllegalArgumentException("invalid checkpoint: " + e.getMessage());
+		}
+	}
+
 
 
 	/*
@@ -281,6 +356,7 @@ public class GTDataHash {
 		}
 
 		messageDigest.update(data, offset, length);
+		byteCount += length;
 
 		return this;
 	}
@@ -306,13 +382,17 @@ public class GTDataHash {
 		}
 
 		// isClosed-check is done in `update(byte[], int, int)`
-		byte[] buffer = new byte[bufferSize];
-		while (true) {
-			int bytesRead = in.read(buffer);
-			if (bytesRead == -1) {
-				return this;
+		byte[] buffer = BufferPool.acquire(bufferSize);
+		try {
+			while (true) {
+				int bytesRead = in.read(buffer, 0, bufferSize);
+				if (bytesRead == -1) {
+					return this;
+				}
+				update(buffer, 0, bytesRead);
 			}
-			update(buffer, 0, bytesRead);
+		} finally {
+			BufferPool.release(buffer);
 		}
 	}
 
@@ -338,12 +418,147 @@ public class GTDataHash {
 		}
 
 		// isClosed-check is done in `update(byte[], int, int)`
-		byte[] buffer = new byte[bufferSize];
-		int remaining = limit;
-		while (remaining > 0) {
-			int bytesRead = in.read(buffer, 0, Math.min(remaining, bufferSize));
-			update(buffer, 0, bytesRead);
-			remaining -= bytesRead;
+		byte[] buffer = BufferPool.acquire(bufferSize);
+		try {
+			int remaining = limit;
+			while (remaining > 0) {
+				int bytesRead = in.read(buffer, 0, Math.min(remaining, bufferSize));
+				update(buffer, 0, bytesRead);
+				remaining -= bytesRead;
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+
+		return this;
+	}
+
+	/**
+	 * Updates this hash calculator with the remaining bytes of the given
+	 * buffer. The buffer may be direct or memory mapped.
+	 * <p>
+	 * On return, the position of the buffer equals its limit.
+	 * <p>
+	 * This method returns current hash object and is ready for chaining.
+	 *
+	 * @param buffer buffer to feed to this hash calculator.
+	 *
+	 * @return this hash object updated with the given data.
+	 *
+	 * @throws IllegalStateException if hash calculator is closed.
+	 *
+	 * @since 0.4
+	 */
+	public GTDataHash update(ByteBuffer buffer) {
+		if (buffer == null) {
+			throw new IllegalArgumentException("invalid update buffer: null");
+		} else if (isClosed()) {
+			throw new IllegalStateException("hash calculator already closed");
+		}
+
+		byteCount += buffer.remaining();
+		messageDigest.update(buffer);
+
+		return this;
+	}
+
+	/**
+	 * Updates this hash calculator with the contents of the given file.
+	 * <p>
+	 * This method returns current hash object and is ready for chaining.
+	 *
+	 * @param file file to read data from.
+	 *
+	 * @return this hash object updated with the given data.
+	 *
+	 * @throws IOException if file reading error occurs.
+	 * @throws IllegalStateException if hash calculator is closed.
+	 *
+	 * @see #update(FileChannel, long, long)
+	 *
+	 * @since 0.4
+	 */
+	public GTDataHash update(File file)
+	throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("invalid update file: null");
+		} else if (isClosed()) {
+			throw new IllegalStateException("hash calculator already closed");
+		}
+
+		RandomAccessFile raf = new RandomAccessFile(file, "r");
+		try {
+			FileChannel channel = raf.getChannel();
+			return update(channel, 0, channel.size());
+		} finally {
+			raf.close();
+		}
+	}
+
+	/**
+	 * Updates this hash calculator with a region of the given file channel.
+	 * The position of the channel is not changed.
+	 * <p>
+	 * Regions of a few megabytes and more are memory mapped, a window at a
+	 * time, and the digest is fed straight from the mapped buffers. While a
+	 * window is being hashed, a background thread loads the next one, so that
+	 * the disk reads and the hashing overlap. Smaller regions are read in
+	 * chunks of {@link #getBufferSize()} bytes.
+	 * <p>
+	 * This method returns current hash object and is ready for chaining.
+	 *
+	 * @param channel channel to read data from.
+	 * @param position position of the region in the file.
+	 * @param length number of bytes to read.
+	 *
+	 * @return this hash object updated with the given data.
+	 *
+	 * @throws EOFException if the region extends past the end of the file.
+	 * @throws IOException if file reading error occurs.
+	 * @throws IllegalStateException if hash calculator is closed.
+	 *
+	 * @since 0.4
+	 */
+	public GTDataHash update(FileChannel channel, long position, long length)
+	throws IOException {
+		if (channel == null) {
+			throw new IllegalArgumentException("invalid update channel: null");
+		} else if (position < 0 || length < 0) {
+			throw new IllegalArgumentException("invalid update region: " + position + "+" + length);
+		} else if (isClosed()) {
+			throw new IllegalStateException("hash calculator already closed");
+		}
+		if (position + length > channel.size()) {
+			throw new EOFException("region ends past the end of the file");
+		}
+
+		if (length < MAP_THRESHOLD) {
+			read(channel, position, length);
+			return this;
+		}
+
+		long end = position + length;
+		MappedByteBuffer next = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(length, MAP_WINDOW));
+		Prefetcher prefetcher = (length > MAP_WINDOW) ? new Prefetcher() : null;
+		try {
+			while (next != null) {
+				MappedByteBuffer current = next;
+				position += current.remaining();
+				next = null;
+				if (position < end) {
+					next = channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(end - position, MAP_WINDOW));
+					prefetcher.load(next);
+				}
+				byteCount += current.remaining();
+				messageDigest.update(current);
+				if (next != null) {
+					prefetcher.await();
+				}
+			}
+		} finally {
+			if (prefetcher != null) {
+				prefetcher.stop();
+			}
 		}
 
 		return this;
@@ -373,6 +588,59 @@ public class GTDataHash {
 		return this;
 	}
 
+	/**
+	 * Returns the number of bytes fed to this hash calculator, including
+	 * those before the checkpoint it was resumed from, if any.
+	 *
+	 * @return number of bytes hashed; {@code 0} for hash objects created
+	 * 			from a hash value.
+	 *
+	 * @since 0.4
+	 */
+	public long getByteCount() {
+		return byteCount;
+	}
+
+	/**
+	 * Saves the state of the open hash calculator, so that the calculation
+	 * can be continued later with {@link #resume(byte[])}. The hash
+	 * calculator stays open and can be updated further.
+	 * <p>
+	 * The checkpoint holds the internal state of the digest, which is tied to
+	 * the cryptographic provider: it can only be resumed with the same
+	 * provider version. The checkpoint is as sensitive as the data hashed so
+	 * far, as it can be used to compute hashes of the data with anything
+	 * appended.
+	 *
+	 * @return checkpoint of this hash object.
+	 *
+	 * @throws IllegalStateException if hash calculator is closed.
+	 * @throws UnsupportedOperationException if the state of the digest can
+	 * 			not be saved with the current cryptographic provider.
+	 *
+	 * @since 0.4
+	 */
+	public byte[] getCheckpoint() {
+		if (isClosed()) {
+			throw new IllegalStateException("hash calculator already closed");
+		}
+
+		ByteArrayOutputStream buf = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(buf);
+		try {
+			out.writeInt(CHECKPOINT_MAGIC);
+			out.writeByte(CHECKPOINT_VERSION);
+			out.writeByte(hashAlgorithm.getGtid());
+			out.writeLong(byteCount);
+			DigestState.write(messageDigest, out);
+			out.flush();
+		} catch (IOException e) {
+			// Not possible with in-memory streams
+			throw new RuntimeException(e.getMessage(), e);
+		}
+		return buf.toByteArray();
+	}
+
 	/**
 	 * Returns hash calculator state (can be 'open' or 'closed').
 	 *
@@ -538,6 +806,7 @@ public class GTDataHash {
 
 		this.hashAlgorithm = hashAlgorithm;
 		this.hashedMessage = hashedMessage;
+		this.byteCount = 0;
 
 		if (hashedMessage == null) { // No hashed message -- initialize new digest
 			String provider = BouncyCastleProvider.PROVIDER_NAME;
@@ -563,6 +832,118 @@ public class GTDataHash {
 
 
 
+	/**
+	 * Updates the hash calculator with a region of the given file channel,
+	 * using positional reads into a pooled buffer.
+	 */
+	private void read(FileChannel channel, long position, long length)
+	throws IOException {
+		byte[] buffer = BufferPool.acquire(bufferSize);
+		try {
+			ByteBuffer bb = ByteBuffer.wrap(buffer);
+			while (length > 0) {
+				bb.clear();
+				bb.limit((int) Math.min(length, bufferSize));
+				int bytesRead = channel.read(bb, position);
+				if (bytesRead < 0) {
+					throw new EOFException("region ends past the end of the file");
+				}
+				messageDigest.update(buffer, 0, bytesRead);
+				byteCount += bytesRead;
+				position += bytesRead;
+				length -= bytesRead;
+			}
+		} finally {
+			BufferPool.release(buffer);
+		}
+	}
+
+
+
+	/**
+	 * Background thread loading the next memory mapped window of a file
+	 * while the current one is being hashed.
+	 */
+	private static class Prefetcher
+	implements Runnable {
+		private MappedByteBuffer pending;
+		private boolean busy;
+		private boolean stopped;
+
+		public Prefetcher() {
+			pending = null;
+			busy = false;
+			stopped = false;
+			Thread t = new Thread(this, "GTDataHash read-ahead");
+			t.setDaemon(true);
+			t.start();
+		}
+
+		/**
+		 * Starts loading the given window.
+		 */
+		public synchronized void load(MappedByteBuffer buffer) {
+			pending = buffer;
+			busy = true;
+			notifyAll();
+		}
+
+		/**
+		 * Waits until the window given last has been loaded.
+		 */
+		public synchronized void await() {
+			while (busy && !stopped) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Hashing the window loads it anyway
+					Thread.currentThread().interrupt();
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Stops the thread.
+		 */
+		public synchronized void stop() {
+			stopped = true;
+			notifyAll();
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					MappedByteBuffer buffer;
+					synchronized (this) {
+						while (pending == null && !stopped) {
+							try {
+								wait();
+							} catch (InterruptedException e) {
+								// Nothing here
+							}
+						}
+						if (stopped) {
+							return;
+						}
+						buffer = pending;
+						pending = null;
+					}
+					buffer.load();
+					synchronized (this) {
+						busy = false;
+						notifyAll();
+					}
+				}
+			} finally {
+				// Also if loading failed; the hashing thread will see the error
+				stop();
+			}
+		}
+	}
+
+
+
 	/*
 	 * Fixes for Java 1.4.2
 	 */
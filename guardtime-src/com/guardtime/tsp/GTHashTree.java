@@ -0,0 +1,219 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.tsp;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+
+
+/**
+ * Local hash tree used to timestamp many data hashes with one timestamp.
+ * <p>
+ * The data hashes are the leaves of a binary hash tree and the tree is
+ * timestamped by its root hash. The link from each leaf to the root is given
+ * as a hash chain in the same binary format that timestamps use for their
+ * location and history chains, so it can be kept next to the timestamp:
+ *
+ * <pre>
+ * GTHashTree tree = new GTHashTree(GTHashAlgorithm.DEFAULT, dataHashes);
+ * GTTimestamp timestamp = SimpleHttpStamper.create(tree.getRootHash(), stamperUrl);
+ * byte[] chain = tree.getChain(i);
+ * </pre>
+ *
+ * To verify data with the timestamp and its chain, compute the root hash from
+ * the data hash and verify the timestamp against the root hash:
+ *
+ * <pre>
+ * GTDataHash rootHash = GTHashTree.getRootHash(dataHash, chain, timestamp.getHashAlgorithm());
+ * GTVerificationResult result = timestamp.verify(rootHash, publicationsFile);
+ * </pre>
+ *
+ * Each internal node of the tree is computed as in the GuardTime aggregation
+ * trees: the imprints of the hashes of its children, followed by its level
+ * (one more than the higher of its children, the leaves being on level
+ * {@code 0}). The root hash is the hash of the root node. With an odd number of
+ * nodes on a level, the last one is moved up to the next level as is.
+ *
+ * @since 0.4
+ */
+public final class GTHashTree {
+	private final GTHashAlgorithm hashAlgorithm;
+
+	// Nodes of the tree by height, leaves first, as byte[] values
+	private final List nodes;
+
+	// Levels of the nodes, as int[] arrays parallel to nodes
+	private final List levels;
+
+	private final GTDataHash rootHash;
+
+
+
+	/**
+	 * Computes the root hash of the tree from a leaf and its hash chain.
+	 *
+	 * @param dataHash data hash in the leaf.
+	 * @param chain hash chain from the leaf to the root, as returned by
+	 * 			{@link #getChain(int)}.
+	 * @param hashAlgorithm hash algorithm of the root hash.
+	 *
+	 * @return root hash of the tree.
+	 *
+	 * @throws IllegalArgumentException if the hash chain has invalid format.
+	 */
+	public static GTDataHash getRootHash(GTDataHash dataHash, byte[] chain, GTHashAlgorithm hashAlgorithm) {
+		if (dataHash == null) {
+			throw new IllegalArgumentException("invalid data hash: null");
+		} else if (hashAlgorithm == null) {
+			throw new IllegalArgumentException("invalid hash algorithm: null");
+		}
+		byte[] root = HashChain.getLocationInstance(chain).computeOutput(dataHash.toDataImprint());
+		return new GTDataHash(hashAlgorithm).update(root).close();
+	}
+
+
+
+	/**
+	 * Builds the hash tree of the given data hashes.
+	 *
+	 * @param hashAlgorithm hash algorithm to compute the tree with.
+	 * @param dataHashes data hashes to put in the leaves, in order.
+	 *
+	 * @throws IllegalArgumentException if there are no data hashes, or more
+	 * 			than the levels of the hash chain format allow.
+	 */
+	public GTHashTree(GTHashAlgorithm hashAlgorithm, GTDataHash[] dataHashes) {
+		if (hashAlgorithm == null) {
+			throw new IllegalArgumentException("invalid hash algorithm: null");
+		} else if (dataHashes == null || dataHashes.length == 0) {
+			throw new IllegalArgumentException("invalid data hashes: none");
+		}
+		this.hashAlgorithm = hashAlgorithm;
+		this.nodes = new ArrayList();
+		this.levels = new ArrayList();
+
+		byte[][] current = new byte[dataHashes.length][];
+		int[] currentLevels = new int[dataHashes.length];
+		for (int i = 0; i < dataHashes.length; ++i) {
+			if (dataHashes[i] == null) {
+				throw new IllegalArgumentException("invalid data hash: null");
+			}
+			current[i] = dataHashes[i].toDataImprint();
+		}
+		nodes.add(current);
+		levels.add(currentLevels);
+
+		while (current.length > 1) {
+			byte[][] parents = new byte[(current.length + 1) / 2][];
+			int[] parentLevels = new int[parents.length];
+			for (int i = 0; i < parents.length; ++i) {
+				if (2 * i + 1 == current.length) {
+					// Odd one out, moved up as is
+					parents[i] = current[2 * i];
+					parentLevels[i] = currentLevels[2 * i];
+					continue;
+				}
+				int level = Math.max(currentLevels[2 * i], currentLevels[2 * i + 1]) + 1;
+				if (level > 0xff) {
+					throw new IllegalArgumentException("too many data hashes: " + dataHashes.length);
+				}
+				parents[i] = join(current[2 * i], current[2 * i + 1], level);
+				parentLevels[i] = level;
+			}
+			current = parents;
+			currentLevels = parentLevels;
+			nodes.add(current);
+			levels.add(currentLevels);
+		}
+
+		rootHash = new GTDataHash(hashAlgorithm).update(current[0]).close();
+	}
+
+	/**
+	 * Returns the hash algorithm of the tree.
+	 */
+	public GTHashAlgorithm getHashAlgorithm() {
+		return hashAlgorithm;
+	}
+
+	/**
+	 * Returns the number of leaves in the tree.
+	 */
+	public int size() {
+		return ((byte[][]) nodes.get(0)).length;
+	}
+
+	/**
+	 * Returns the root hash of the tree, to be timestamped.
+	 */
+	public GTDataHash getRootHash() {
+		return rootHash;
+	}
+
+	/**
+	 * Returns the hash chain from the given leaf to the root of the tree.
+	 *
+	 * @param index index of the leaf.
+	 *
+	 * @return hash chain bytes; empty for a tree with a single leaf.
+	 *
+	 * @throws IndexOutOfBoundsException if there is no such leaf.
+	 */
+	public byte[] getChain(int index) {
+		if (index < 0 || index >= size()) {
+			throw new IndexOutOfBoundsException("invalid leaf index: " + index);
+		}
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		for (int h = 0; h + 1 < nodes.size(); ++h) {
+			byte[][] current = (byte[][]) nodes.get(h);
+			int[] parentLevels = (int[]) levels.get(h + 1);
+			int sibling = index ^ 1;
+			if (sibling < current.length) {
+				byte[] siblingImprint = new GTDataHash(hashAlgorithm).update(current[sibling]).toDataImprint();
+				out.write(hashAlgorithm.getGtid());
+				// Direction 1: the sibling is on the right
+				out.write(sibling > index ? 1 : 0);
+				out.write(siblingImprint, 0, siblingImprint.length);
+				out.write(parentLevels[index / 2]);
+			}
+			index /= 2;
+		}
+		return out.toByteArray();
+	}
+
+
+
+	/**
+	 * Computes the parent node of the given nodes.
+	 */
+	private byte[] join(byte[] left, byte[] right, int level) {
+		byte[] leftImprint = new GTDataHash(hashAlgorithm).update(left).toDataImprint();
+		byte[] rightImprint = new GTDataHash(hashAlgorithm).update(right).toDataImprint();
+		byte[] res = new byte[leftImprint.length + rightImprint.length + 1];
+		System.arraycopy(leftImprint, 0, res, 0, leftImprint.length);
+		System.arraycopy(rightImprint, 0, res, leftImprint.length, rightImprint.length);
+		res[res.length - 1] = (byte) level;
+		return res;
+	}
+}
@@ -47,6 +47,9 @@ import sun.security.pkcs.SignerInfo;
 import sun.security.x509.AlgorithmId;
 
 import com.guardtime.util.Base32;
+import com.guardtime.util.Counter;
+import com.guardtime.util.Histogram;
+import com.guardtime.util.Metrics;
 import com.guardtime.util.Util;
 
 
@@ -85,6 +88,18 @@ public final class GTPublicationsFile {
 	private static final int HEADER_SIZE = 36;
 	private static final int TIME_SIZE = 8;
 
+	/*
+	 * Metrics of signature verification; cached results are not counted
+	 */
+	private static final Counter VALID = Metrics.counter("gt_publications_file_verifications_total",
+			"Publications file signature verifications, by result.", "result", "valid");
+	private static final Counter INVALID = Metrics.counter("gt_publications_file_verifications_total",
+			"Publications file signature verifications, by result.", "result", "invalid");
+	private static final Histogram LATENCY = Metrics.histogram("gt_publications_file_verification_seconds",
+			"Duration of publications file signature verifications.");
+	private static final Counter[] ERRORS = Verifier.errorCounters("gt_publications_file_verification_errors_total",
+			"Publications file verification failures, by GTVerificationResult error bit.");
+
 
 
 	private byte[] content;
@@ -515,24 +530,49 @@ public final class GTPublicationsFile {
 		System.arraycopy(content, signatureBlockBegin, signature, 0, signature.length);
 
 		// Verify PKCS7 file
+		long startTime = System.nanoTime();
+		Object event = TraceEvents.RECORDER.beginPublicationsFile(keyStorePath);
 		try {
 			PKCS7 pkcs7 = new PKCS7(signature);
 			verifyPkcs7(pkcs7, keyStorePath);
 		} catch (ParsingException e) {
 			verificationResult.updateErrors(GTVerificationResult.PUBFILE_SIGNATURE_FAILURE);
+			report(startTime, event);
 			return verificationResult;
 		} catch (GTException e) {
 			verificationResult.updateErrors(GTVerificationResult.PUBFILE_SIGNATURE_FAILURE);
+			report(startTime, event);
 			return verificationResult;
 		}
 
 		// All checks passed
 		isSignatureVerified = true;
 		verificationResult.updateStatus(GTVerificationResult.PUBFILE_SIGNATURE_VERIFIED);
+		report(startTime, event);
 
 		return verificationResult;
 	}
 
+	/**
+	 * Reports the outcome of a signature verification to the metrics and
+	 * the flight recorder.
+	 *
+	 * @param startTime start time of the verification, as returned by
+	 * 			{@code System.nanoTime()}.
+	 * @param event flight recorder event handle of the verification, or
+	 * 			{@code null}.
+	 */
+	private void report(long startTime, Object event) {
+		TraceEvents.RECORDER.endPublicationsFile(event, verificationResult.getErrorCode());
+		LATENCY.observeSince(startTime);
+		if (verificationResult.isValid()) {
+			VALID.increment();
+		} else {
+			INVALID.increment();
+		}
+		Verifier.countErrors(ERRORS, verificationResult);
+	}
+
 	/**
 	 * Verifies PKCS7 object (checks signed data).
 	 *
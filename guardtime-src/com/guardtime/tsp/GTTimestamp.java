@@ -379,11 +379,17 @@ public class GTTimestamp {
 			throw new IllegalArgumentException("invalid timestamp stream: null");
 		}
 
+		Object event = TraceEvents.RECORDER.beginParse();
+		boolean valid = false;
 		try {
 			ContentInfo token = ContentInfo.getInstance(in);
-			return new GTTimestamp(token);
+			GTTimestamp timestamp = new GTTimestamp(token);
+			valid = true;
+			return timestamp;
 		} catch (Asn1FormatException e) {
 			throw new GTException("timestamp has invalid format", e);
+		} finally {
+			TraceEvents.RECORDER.endParse(event, valid);
 		}
 	}
 
@@ -658,10 +664,24 @@ public class GTTimestamp {
 			throw new IllegalArgumentException("invalid publications file: null");
 		}
 
+		long startTime = System.nanoTime();
+		verifyAgainstFile(dataHash, publicationsFile);
+		Verifier.report(verificationResult, startTime);
+
+		return verificationResult;
+	}
+
+	/**
+	 * Verifies this timestamp with the given data hash and publications file,
+	 * updating {@code verificationResult}.
+	 *
+	 * @see #verify(GTDataHash, GTPublicationsFile)
+	 */
+	private void verifyAgainstFile(GTDataHash dataHash, GTPublicationsFile publicationsFile) {
 		// Verify publications file
 		verificationResult.update(publicationsFile.verifySignature());
 		if (!verificationResult.isValid()) {
-			return verificationResult;
+			return;
 		}
 
 		// Extract publication or public key;
@@ -694,8 +714,6 @@ public class GTTimestamp {
 		}
 
 		verificationResult.update(verify(dataHash, publication, publicKey));
-
-		return verificationResult;
 	}
 
 	/**
@@ -729,7 +747,9 @@ public class GTTimestamp {
 			throw new IllegalStateException("cannot verify against publication: timestamp not extended");
 		}
 
+		long startTime = System.nanoTime();
 		verificationResult.update(verify(dataHash, publication, null));
+		Verifier.report(verificationResult, startTime);
 
 		return verificationResult;
 	}
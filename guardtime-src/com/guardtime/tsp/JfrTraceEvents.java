@@ -0,0 +1,174 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.tsp;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+
+
+/**
+ * Java Flight Recorder events of timestamp parsing and verification.
+ * <p>
+ * This is the only class of the package that links against {@code jdk.jfr};
+ * it is loaded by {@link TraceEvents} only when the flight recorder is
+ * available. An event object is only created when its type is enabled in a
+ * running recording.
+ */
+final class JfrTraceEvents
+extends TraceEvents {
+	private final EventType parseType;
+	private final EventType phaseType;
+	private final EventType publicationsFileType;
+
+
+
+	/**
+	 * Default constructor.
+	 */
+	JfrTraceEvents() {
+		parseType = EventType.getEventType(TimestampParse.class);
+		phaseType = EventType.getEventType(VerificationPhase.class);
+		publicationsFileType = EventType.getEventType(PublicationsFileVerification.class);
+	}
+
+	Object beginParse() {
+		if (!parseType.isEnabled()) {
+			return null;
+		}
+		TimestampParse event = new TimestampParse();
+		event.begin();
+		return event;
+	}
+
+	void endParse(Object event, boolean valid) {
+		if (event == null) {
+			return;
+		}
+		TimestampParse e = (TimestampParse) event;
+		e.valid = valid;
+		e.commit();
+	}
+
+	Object beginPhase(String phase) {
+		if (!phaseType.isEnabled()) {
+			return null;
+		}
+		VerificationPhase event = new VerificationPhase();
+		event.phase = phase;
+		event.begin();
+		return event;
+	}
+
+	void endPhase(Object event, VerificationResult result) {
+		if (event == null) {
+			return;
+		}
+		VerificationPhase e = (VerificationPhase) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.errorCode = result.getErrorCode();
+			e.commit();
+		}
+	}
+
+	Object beginPublicationsFile(String keyStore) {
+		if (!publicationsFileType.isEnabled()) {
+			return null;
+		}
+		PublicationsFileVerification event = new PublicationsFileVerification();
+		event.keyStore = keyStore;
+		event.begin();
+		return event;
+	}
+
+	void endPublicationsFile(Object event, int errorCode) {
+		if (event == null) {
+			return;
+		}
+		PublicationsFileVerification e = (PublicationsFileVerification) event;
+		e.end();
+		if (e.shouldCommit()) {
+			e.errorCode = errorCode;
+			e.commit();
+		}
+	}
+
+
+
+	/**
+	 * Parsing of a DER-encoded timestamp.
+	 */
+	@Name("com.guardtime.TimestampParse")
+	@Label("Timestamp Parse")
+	@Description("Parsing and syntax check of a GuardTime timestamp")
+	@Category({"GuardTime", "Timestamp"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class TimestampParse
+	extends Event {
+		@Label("Valid")
+		boolean valid;
+	}
+
+	/**
+	 * One step of timestamp verification.
+	 */
+	@Name("com.guardtime.VerificationPhase")
+	@Label("Verification Phase")
+	@Description("A step of GuardTime timestamp verification")
+	@Category({"GuardTime", "Timestamp"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class VerificationPhase
+	extends Event {
+		@Label("Phase")
+		String phase;
+
+		@Label("Error Code")
+		int errorCode;
+	}
+
+	/**
+	 * Verification of a publications file signature.
+	 */
+	@Name("com.guardtime.PublicationsFileVerification")
+	@Label("Publications File Verification")
+	@Description("Verification of the signature of a GuardTime publications file")
+	@Category({"GuardTime", "Timestamp"})
+	@Enabled(false)
+	@StackTrace(false)
+	static final class PublicationsFileVerification
+	extends Event {
+		@Label("Key Store")
+		String keyStore;
+
+		@Label("Error Code")
+		int errorCode;
+	}
+}
@@ -0,0 +1,545 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.tsp;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+
+import com.guardtime.util.BufferPool;
+
+
+
+/**
+ * Data hash object calculating the hash sums of the same data with several
+ * hash algorithms in one pass.
+ * <p>
+ * Use this to hash data that has to be checked against timestamps created
+ * with different algorithms, or to hash with both the algorithm of an
+ * existing timestamp and a stronger one, without reading the data once per
+ * algorithm:
+ *
+ * <pre>
+ * MultiDataHash multiHash = new MultiDataHash(new GTHashAlgorithm[] {
+ *    timestamp1.getHashAlgorithm(), timestamp2.getHashAlgorithm() });
+ * multiHash.update(file);
+ * GTDataHash dataHash1 = multiHash.getDataHash(timestamp1.getHashAlgorithm());
+ * GTDataHash dataHash2 = multiHash.getDataHash(timestamp2.getHashAlgorithm());
+ * </pre>
+ *
+ * In the parallel mode, each algorithm but the first runs on a thread of its
+ * own. When reading from a stream, the data is read ahead into a small ring
+ * of shared buffers, so that reading and hashing overlap. The threads are
+ * started for each update and stopped before it returns, also when it
+ * fails; updates smaller than the read buffer are hashed on the calling
+ * thread.
+ * <p>
+ * Like {@link GTDataHash}, this class is not thread-safe.
+ *
+ * @see GTDataHash
+ *
+ * @since 0.4
+ */
+public class MultiDataHash {
+	// Size of the read buffers
+	private static final int BUFFER_SIZE = 65536;
+	// Number of read buffers in the parallel mode
+	private static final int READ_AHEAD = 3;
+
+	private final GTDataHash[] dataHashes;
+	// Whether dataHashes[1..] are updated by worker threads
+	private final boolean parallel;
+
+
+
+	/**
+	 * Class constructor. Creates hash calculators for the given algorithms,
+	 * all updated on the calling thread.
+	 *
+	 * @param hashAlgorithms hash algorithms to hash data with; duplicates
+	 * 			are ignored.
+	 */
+	public MultiDataHash(GTHashAlgorithm[] hashAlgorithms) {
+		this(hashAlgorithms, false);
+	}
+
+	/**
+	 * Class constructor. Creates hash calculators for the given algorithms.
+	 *
+	 * @param hashAlgorithms hash algorithms to hash data with; duplicates
+	 * 			are ignored.
+	 * @param parallel if {@code true}, each algorithm runs on a thread of
+	 * 			its own while data is hashed.
+	 */
+	public MultiDataHash(GTHashAlgorithm[] hashAlgorithms, boolean parallel) {
+		if (hashAlgorithms == null || hashAlgorithms.length == 0) {
+			throw new IllegalArgumentException("invalid hash algorithms: none");
+		}
+
+		List list = new ArrayList();
+		for (int i = 0; i < hashAlgorithms.length; i++) {
+			if (hashAlgorithms[i] == null) {
+				throw new IllegalArgumentException("invalid hash algorithm: null");
+			}
+			if (indexOf(list, hashAlgorithms[i]) < 0) {
+				list.add(new GTDataHash(hashAlgorithms[i]));
+			}
+		}
+		dataHashes = (GTDataHash[]) list.toArray(new GTDataHash[list.size()]);
+
+		this.parallel = parallel && dataHashes.length > 1;
+	}
+
+
+
+	/*
+	 * Hash calculator operations
+	 */
+
+
+
+	/**
+	 * Updates all hash calculators with the given data.
+	 * <p>
+	 * This method returns current hash object and is ready for chaining.
+	 *
+	 * @param data byte array to feed to the hash calculators.
+	 *
+	 * @return this hash object updated with the given data.
+	 *
+	 * @throws IllegalStateException if the hash calculators are closed.
+	 */
+	public MultiDataHash update(byte[] data) {
+		if (data == null) {
+			throw new IllegalArgumentException("invalid update data: null");
+		}
+
+		return update(data, 0, data.length);
+	}
+
+	/**
+	 * Updates all hash calculators with part of the given data.
+	 * <p>
+	 * This method returns current hash object and is ready for chaining.
+	 *
+	 * @param data byte array to read data from.
+	 * @param offset offset to start reading data from.
+	 * @param length number of bytes to read.
+	 *
+	 * @return this hash object updated with the given data.
+	 *
+	 * @throws IllegalStateException if the hash calculators are closed.
+	 */
+	public MultiDataHash update(byte[] data, int offset, int length) {
+		if (data == null) {
+			throw new IllegalArgumentException("invalid update data: null");
+		} else if (offset < 0 || length < 0 || offset > data.length - length) {
+			throw new IllegalArgumentException("invalid update range: " + offset + "+" + length);
+		} else if (isClosed()) {
+			throw new IllegalStateException("hash calculator already closed");
+		}
+
+		if (!parallel || length < BUFFER_SIZE) {
+			// Not worth starting the threads for
+			for (int i = 0; i < dataHashes.length; i++) {
+				dataHashes[i].update(data, offset, length);
+			}
+		} else {
+			Worker[] workers = startWorkers();
+			try {
+				Chunk chunk = new Chunk(data);
+				chunk.length = length;
+				hash(workers, chunk, offset);
+				chunk.await();
+			} finally {
+				stopWorkers(workers);
+			}
+		}
+
+		return this;
+	}
+
+	/**
+	 * Updates all hash calculators with data from the given input stream,
+	 * reading it once.
+	 * <p>
+	 * This method returns current hash object and is ready for chaining.
+	 *
+	 * @param in input stream to read data from.
+	 *
+	 * @return this hash object updated with the given data.
+	 *
+	 * @throws IOException if stream reading error occurs.
+	 * @throws IllegalStateException if the hash calculators are closed.
+	 */
+	public MultiDataHash update(InputStream in)
+	throws IOException {
+		if (in == null) {
+			throw new IllegalArgumentException("invalid update stream: null");
+		} else if (isClosed()) {
+			throw new IllegalStateException("hash calculator already closed");
+		}
+
+		if (!parallel) {
+			byte[] buffer = BufferPool.acquire(BUFFER_SIZE);
+			try {
+				int bytesRead;
+				while ((bytesRead = in.read(buffer, 0, BUFFER_SIZE)) != -1) {
+					for (int i = 0; i < dataHashes.length; i++) {
+						dataHashes[i].update(buffer, 0, bytesRead);
+					}
+				}
+			} finally {
+				BufferPool.release(buffer);
+			}
+			return this;
+		}
+
+		// Read into one buffer while the workers hash the others
+		Chunk[] chunks = new Chunk[READ_AHEAD];
+		for (int i = 0; i < chunks.length; i++) {
+			chunks[i] = new Chunk(BufferPool.acquire(BUFFER_SIZE));
+		}
+		Worker[] workers = startWorkers();
+		boolean completed = false;
+		try {
+			for (int i = 0; ; i = (i + 1) % chunks.length) {
+				Chunk chunk = chunks[i];
+				chunk.await();
+				chunk.length = in.read(chunk.buffer, 0, BUFFER_SIZE);
+				if (chunk.length == -1) {
+					break;
+				}
+				hash(workers, chunk, 0);
+			}
+			completed = true;
+		} finally {
+			// Every buffer goes back to the pool, even if a worker failed
+			RuntimeException error = null;
+			for (int i = 0; i < chunks.length; i++) {
+				try {
+					chunks[i].await();
+				} catch (RuntimeException e) {
+					if (error == null) {
+						error = e;
+					}
+				}
+				BufferPool.release(chunks[i].buffer);
+			}
+			stopWorkers(workers);
+			// Otherwise the exception thrown from the loop is already on its way
+			if (completed && error != null) {
+				throw error;
+			}
+		}
+
+		return this;
+	}
+
+	/**
+	 * Updates all hash calculators with the contents of the given file,
+	 * reading it once.
+	 * <p>
+	 * This method returns current hash object and is ready for chaining.
+	 *
+	 * @param file file to read data from.
+	 *
+	 * @return this hash object updated with the given data.
+	 *
+	 * @throws IOException if file reading error occurs.
+	 * @throws IllegalStateException if the hash calculators are closed.
+	 */
+	public MultiDataHash update(File file)
+	throws IOException {
+		if (file == null) {
+			throw new IllegalArgumentException("invalid update file: null");
+		} else if (isClosed()) {
+			throw new IllegalStateException("hash calculator already closed");
+		}
+
+		InputStream in = new FileInputStream(file);
+		try {
+			return update(in);
+		} finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Closes all hash calculators.
+	 * <p>
+	 * Hash values cannot be updated after this method is called.
+	 * <p>
+	 * Does nothing if the calculators are closed already.
+	 * <p>
+	 * This method returns current hash object and is ready for chaining.
+	 *
+	 * @return this hash object with hash calculators closed.
+	 */
+	public MultiDataHash close() {
+		for (int i = 0; i < dataHashes.length; i++) {
+			dataHashes[i].close();
+		}
+
+		return this;
+	}
+
+	/**
+	 * Returns hash calculator state (can be 'open' or 'closed').
+	 *
+	 * @return {@code true} if the hash calculators are closed; {@code false}
+	 * 			otherwise.
+	 */
+	public boolean isClosed() {
+		return dataHashes[0].isClosed();
+	}
+
+
+
+	/*
+	 * Property getters
+	 */
+
+
+
+	/**
+	 * Returns the hash algorithms used in this hash object, without
+	 * duplicates.
+	 *
+	 * @return hash algorithms.
+	 */
+	public GTHashAlgorithm[] getHashAlgorithms() {
+		GTHashAlgorithm[] res = new GTHashAlgorithm[dataHashes.length];
+		for (int i = 0; i < dataHashes.length; i++) {
+			res[i] = dataHashes[i].getHashAlgorithm();
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the data hash calculated with the given algorithm.
+	 * <p>
+	 * Hash values cannot be updated after this method is called.
+	 *
+	 * @param hashAlgorithm hash algorithm.
+	 *
+	 * @return closed data hash object.
+	 *
+	 * @throws IllegalArgumentException if the algorithm is not used in this
+	 * 			hash object.
+	 */
+	public GTDataHash getDataHash(GTHashAlgorithm hashAlgorithm) {
+		for (int i = 0; i < dataHashes.length; i++) {
+			if (dataHashes[i].getHashAlgorithm().equals(hashAlgorithm)) {
+				close();
+				return dataHashes[i];
+			}
+		}
+		throw new IllegalArgumentException("hash algorithm not used: " + hashAlgorithm);
+	}
+
+	/**
+	 * Returns the data hashes calculated with all algorithms, in the order
+	 * of {@link #getHashAlgorithms()}.
+	 * <p>
+	 * Hash values cannot be updated after this method is called.
+	 *
+	 * @return closed data hash objects.
+	 */
+	public GTDataHash[] getDataHashes() {
+		close();
+		GTDataHash[] res = new GTDataHash[dataHashes.length];
+		System.arraycopy(dataHashes, 0, res, 0, dataHashes.length);
+		return res;
+	}
+
+
+
+	/*
+	 * Common private methods
+	 */
+
+
+
+	/**
+	 * Starts a worker for each algorithm but the first.
+	 */
+	private Worker[] startWorkers() {
+		Worker[] workers = new Worker[dataHashes.length - 1];
+		for (int i = 0; i < workers.length; i++) {
+			workers[i] = new Worker(dataHashes[i + 1]);
+		}
+		return workers;
+	}
+
+	/**
+	 * Stops the given workers once they have hashed the chunks queued to
+	 * them.
+	 */
+	private static void stopWorkers(Worker[] workers) {
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].stop();
+		}
+	}
+
+	/**
+	 * Hands the given chunk to the workers and hashes it with the first
+	 * algorithm on the calling thread.
+	 */
+	private void hash(Worker[] workers, Chunk chunk, int offset) {
+		chunk.offset = offset;
+		chunk.pending = workers.length;
+		for (int i = 0; i < workers.length; i++) {
+			workers[i].submit(chunk);
+		}
+		dataHashes[0].update(chunk.buffer, offset, chunk.length);
+	}
+
+	/**
+	 * Returns the index of the data hash with the given algorithm in the list.
+	 */
+	private static int indexOf(List dataHashes, GTHashAlgorithm hashAlgorithm) {
+		for (int i = 0; i < dataHashes.size(); i++) {
+			if (((GTDataHash) dataHashes.get(i)).getHashAlgorithm().equals(hashAlgorithm)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+
+
+	/**
+	 * A buffer of data shared by the workers.
+	 */
+	private static class Chunk {
+		public final byte[] buffer;
+		public int offset;
+		public int length;
+		// Number of workers still hashing the chunk
+		private int pending;
+		private RuntimeException error;
+
+		public Chunk(byte[] buffer) {
+			this.buffer = buffer;
+			this.pending = 0;
+		}
+
+		/**
+		 * Called by a worker when it is done with the chunk.
+		 */
+		public synchronized void done(RuntimeException e) {
+			if (e != null && error == null) {
+				error = e;
+			}
+			if (--pending == 0) {
+				notifyAll();
+			}
+		}
+
+		/**
+		 * Waits until all workers are done with the chunk.
+		 *
+		 * @throws RuntimeException if a worker failed to hash the chunk.
+		 */
+		public synchronized void await() {
+			boolean interrupted = false;
+			// The buffer can't be reused before the workers are done with it
+			while (pending > 0) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					interrupted = true;
+				}
+			}
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+			if (error != null) {
+				RuntimeException e = error;
+				error = null;
+				throw e;
+			}
+		}
+	}
+
+
+
+	/**
+	 * Worker thread updating one hash calculator.
+	 */
+	private static class Worker
+	implements Runnable {
+		private final GTDataHash dataHash;
+		private final LinkedList queue;
+		private boolean stopped;
+
+		public Worker(GTDataHash dataHash) {
+			this.dataHash = dataHash;
+			this.queue = new LinkedList();
+			this.stopped = false;
+			Thread t = new Thread(this, "MultiDataHash " + dataHash.getHashAlgorithm().getName());
+			t.setDaemon(true);
+			t.start();
+		}
+
+		public synchronized void submit(Chunk chunk) {
+			queue.addLast(chunk);
+			notifyAll();
+		}
+
+		public synchronized void stop() {
+			stopped = true;
+			notifyAll();
+		}
+
+		public void run() {
+			while (true) {
+				Chunk chunk;
+				synchronized (this) {
+					while (queue.isEmpty() && !stopped) {
+						try {
+							wait();
+						} catch (InterruptedException e) {
+							// Nothing here
+						}
+					}
+					if (queue.isEmpty()) {
+						return;
+					}
+					chunk = (Chunk) queue.removeFirst();
+				}
+				RuntimeException error = null;
+				try {
+					dataHash.update(chunk.buffer, chunk.offset, chunk.length);
+				} catch (RuntimeException e) {
+					error = e;
+				}
+				chunk.done(error);
+			}
+		}
+	}
+}
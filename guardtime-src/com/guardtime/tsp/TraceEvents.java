@@ -0,0 +1,122 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.tsp;
+
+
+
+/**
+ * Flight recorder events of timestamp parsing and verification.
+ * <p>
+ * The SDK still runs on platforms without the {@code jdk.jfr} module, so the
+ * parsing and verification code does not use the event classes directly.
+ * It calls the methods of {@link #RECORDER} instead, which is
+ * {@link JfrTraceEvents} when the flight recorder is available and this
+ * no-op implementation otherwise.
+ * <p>
+ * The {@code begin} methods return an event handle to pass to the matching
+ * {@code end} method, or {@code null} if the event is not being recorded;
+ * the {@code end} methods accept {@code null}.
+ */
+class TraceEvents {
+	/**
+	 * The event recorder in use.
+	 */
+	static final TraceEvents RECORDER = load();
+
+
+
+	/**
+	 * Default constructor.
+	 */
+	TraceEvents() {
+	}
+
+	/**
+	 * Begins the event of parsing a timestamp.
+	 */
+	Object beginParse() {
+		return null;
+	}
+
+	/**
+	 * Ends the event of parsing a timestamp.
+	 *
+	 * @param event event handle returned by {@link #beginParse()}.
+	 * @param valid whether the timestamp was parsed successfully.
+	 */
+	void endParse(Object event, boolean valid) {
+	}
+
+	/**
+	 * Begins the event of a verification step.
+	 *
+	 * @param phase name of the step.
+	 */
+	Object beginPhase(String phase) {
+		return null;
+	}
+
+	/**
+	 * Ends the event of a verification step.
+	 *
+	 * @param event event handle returned by {@link #beginPhase(String)}.
+	 * @param result the verification result after the step.
+	 */
+	void endPhase(Object event, VerificationResult result) {
+	}
+
+	/**
+	 * Begins the event of verifying a publications file signature.
+	 *
+	 * @param keyStore path of the key store used.
+	 */
+	Object beginPublicationsFile(String keyStore) {
+		return null;
+	}
+
+	/**
+	 * Ends the event of verifying a publications file signature.
+	 *
+	 * @param event event handle returned by
+	 * 			{@link #beginPublicationsFile(String)}.
+	 * @param errorCode error code of the verification result.
+	 */
+	void endPublicationsFile(Object event, int errorCode) {
+	}
+
+
+
+	/**
+	 * Returns {@link JfrTraceEvents} if the flight recorder is available; a
+	 * no-op recorder otherwise.
+	 */
+	private static TraceEvents load() {
+		try {
+			Class.forName("jdk.jfr.Event");
+			return (TraceEvents) Class.forName("com.guardtime.tsp.JfrTraceEvents").newInstance();
+		} catch (Exception e) {
+			return new TraceEvents();
+		} catch (LinkageError e) {
+			return new TraceEvents();
+		}
+	}
+}
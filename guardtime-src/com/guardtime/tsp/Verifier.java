@@ -43,10 +43,102 @@ import com.guardtime.asn1.SignedData;
 import com.guardtime.asn1.SignerInfo;
 import com.guardtime.asn1.TimeSignature;
 import com.guardtime.util.Base32;
+import com.guardtime.util.Counter;
+import com.guardtime.util.Histogram;
+import com.guardtime.util.Metrics;
 
 
 
 abstract class Verifier {
+	/*
+	 * Error bits of GTVerificationResult and their names, for the metrics
+	 */
+	private static final int[] ERROR_BITS = {
+		GTVerificationResult.SYNTACTIC_CHECK_FAILURE,
+		GTVerificationResult.HASHCHAIN_VERIFICATION_FAILURE,
+		GTVerificationResult.PUBLIC_KEY_SIGNATURE_FAILURE,
+		GTVerificationResult.PUBLIC_KEY_FAILURE,
+		GTVerificationResult.WRONG_DOCUMENT_FAILURE,
+		GTVerificationResult.PUBLICATION_FAILURE,
+		GTVerificationResult.CERTIFICATE_FAILURE,
+		GTVerificationResult.TECH_FAILURE,
+		GTVerificationResult.PUBFILE_SIGNATURE_FAILURE
+	};
+	private static final String[] ERROR_NAMES = {
+		"SYNTACTIC_CHECK_FAILURE",
+		"HASHCHAIN_VERIFICATION_FAILURE",
+		"PUBLIC_KEY_SIGNATURE_FAILURE",
+		"PUBLIC_KEY_FAILURE",
+		"WRONG_DOCUMENT_FAILURE",
+		"PUBLICATION_FAILURE",
+		"CERTIFICATE_FAILURE",
+		"TECH_FAILURE",
+		"PUBFILE_SIGNATURE_FAILURE"
+	};
+
+	/*
+	 * Metrics of timestamp verification
+	 */
+	private static final Counter VALID = Metrics.counter("gt_timestamp_verifications_total",
+			"Timestamp verifications, by result.", "result", "valid");
+	private static final Counter INVALID = Metrics.counter("gt_timestamp_verifications_total",
+			"Timestamp verifications, by result.", "result", "invalid");
+	private static final Histogram LATENCY = Metrics.histogram("gt_timestamp_verification_seconds",
+			"Duration of timestamp verifications.");
+	private static final Counter[] ERRORS = errorCounters("gt_timestamp_verification_errors_total",
+			"Timestamp verification failures, by GTVerificationResult error bit.");
+
+
+
+	/**
+	 * Reports the outcome of a timestamp verification to the metrics.
+	 *
+	 * @param result the verification result.
+	 * @param startTime start time of the verification, as returned by
+	 * 			{@code System.nanoTime()}.
+	 */
+	static void report(GTVerificationResult result, long startTime) {
+		LATENCY.observeSince(startTime);
+		if (result.isValid()) {
+			VALID.increment();
+		} else {
+			INVALID.increment();
+		}
+		countErrors(ERRORS, result);
+	}
+
+	/**
+	 * Counts the error bits set in the given result.
+	 *
+	 * @param counters counters for the bits, as returned by
+	 * 			{@link #errorCounters(String, String)}.
+	 * @param result the verification result.
+	 */
+	static void countErrors(Counter[] counters, GTVerificationResult result) {
+		for (int i = 0; i < ERROR_BITS.length; ++i) {
+			if (result.hasError(ERROR_BITS[i])) {
+				counters[i].increment();
+			}
+		}
+	}
+
+	/**
+	 * Registers one counter for each error bit of
+	 * {@link GTVerificationResult}, labeled with the name of the bit.
+	 *
+	 * @param name metric name.
+	 * @param help description of the metric.
+	 *
+	 * @return the counters, in the order of {@code ERROR_BITS}.
+	 */
+	static Counter[] errorCounters(String name, String help) {
+		Counter[] counters = new Counter[ERROR_BITS.length];
+		for (int i = 0; i < ERROR_BITS.length; ++i) {
+			counters[i] = Metrics.counter(name, help, "error", ERROR_NAMES[i]);
+		}
+		return counters;
+	}
+
 	static GTVerificationResult verify(ContentInfo contentInfo, GTDataHash dataHash, String publication, PublicKey publicKey) {
 		GTVerificationResult result = new GTVerificationResult();
 
@@ -67,7 +159,9 @@ abstract class Verifier {
 
 		// Check data hash
 		MessageImprint messageImprint = signedData.getEContent().getMessageImprint();
+		Object phase = TraceEvents.RECORDER.beginPhase("data hash");
 		result.update(checkDataHash(messageImprint, dataHash));
+		TraceEvents.RECORDER.endPhase(phase, result);
 		if (!result.isValid()) {
 			return result;
 		}
@@ -76,14 +170,18 @@ abstract class Verifier {
 		byte[] eContent = signedData.getEContent().getDerEncoded();
 		GTHashAlgorithm digestAlg = GTHashAlgorithm.getByOid(signerInfo.getDigestAlgorithm());
 		byte[] messageDigest = signerInfo.getMessageDigest();
+		phase = TraceEvents.RECORDER.beginPhase("message digest");
 		result.update(verifyMessageDigest(messageDigest, digestAlg, eContent));
+		TraceEvents.RECORDER.endPhase(phase, result);
 
 		// Verify time signature (hash chains)
 		byte[] signedAttrs = signerInfo.getEncodedSignedAttrs();
 		if (signedAttrs == null) {
 			throw new IllegalArgumentException("invalid signed attrs: null");
 		}
+		phase = TraceEvents.RECORDER.beginPhase("hash chains");
 		result.update(verifyHashChains(timeSignature, digestAlg, signedAttrs));
+		TraceEvents.RECORDER.endPhase(phase, result);
 		if (!result.isValid()) {
 			return result;
 		}
@@ -91,7 +189,9 @@ abstract class Verifier {
 		// If timestamp is extended, verify publication.
 		// Else, verify certificate and public key signature.
 		if (timeSignature.isExtended()) {
+			phase = TraceEvents.RECORDER.beginPhase("publication");
 			result.update(verifyPublication(timeSignature, publication));
+			TraceEvents.RECORDER.endPhase(phase, result);
 		} else {
 			// Extract certificate bytes
 			X509Certificate certificate = contentInfo.getContent().getCertificate();
@@ -103,13 +203,17 @@ abstract class Verifier {
 			Date historyTime = new Date(historyId.longValue() * 1000);
 
 			// Verify certificate
+			phase = TraceEvents.RECORDER.beginPhase("certificate");
 			result.update(verifyCertificate(certificate, publicKey, historyTime));
+			TraceEvents.RECORDER.endPhase(phase, result);
 			if (!result.isValid()) {
 				return result;
 			}
 
 			// Verify public key signature
+			phase = TraceEvents.RECORDER.beginPhase("public key signature");
 			result.update(verifyPkSignature(timeSignature, publicKey));
+			TraceEvents.RECORDER.endPhase(phase, result);
 			if (!result.isValid()) {
 				return result;
 			}
@@ -22,6 +22,9 @@
 
 package com.guardtime.util;
 
+import java.io.InputStream;
+import java.io.OutputStream;
+
 /**
  * <a target="_blank" href="http://www.ietf.org/rfc/rfc4648.txt">RFC 4648</a>
  * base-64 encoding/decoding.
@@ -33,8 +36,7 @@ public abstract class Base64 {
 	/**
 	 * The encoder/decoder instance.
 	 */
-	private static BaseX inst = new BaseX(
-			"ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/",
+	private static final BaseCodec codec = new BaseCodec("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/",
 			true, '=');
 
 	/**
@@ -63,7 +65,7 @@ public abstract class Base64 {
 		if (in == null) {
 			return null;
 		}
-		return inst.encode(in, off, len, null, 0).toString();
+		return new String(codec.encode(in, off, len, (char) 0, 0));
 	}
 
 	/**
@@ -78,7 +80,54 @@ public abstract class Base64 {
 		if (in == null) {
 			return null;
 		}
-		return inst.decode(in);
+		return codec.decode(in);
+	}
+
+	/**
+	 * Decodes the given base-64 data, given as ASCII bytes. Any non-base-64
+	 * characters are silently ignored.
+	 *
+	 * @param in
+	 *            an array containing the data to decode.
+	 * @param off
+	 *            the start offset of the data within {@code in}.
+	 * @param len
+	 *            the number of bytes to decode.
+	 * @return the decoded bytes.
+	 * @since 0.4
+	 */
+	public static byte[] decode(byte[] in, int off, int len) {
+		if (in == null) {
+			return null;
+		}
+		return codec.decode(in, off, len);
+	}
+
+	/**
+	 * Creates a stream that encodes the data written to it into base-64 and
+	 * writes the result, as ASCII bytes, to the given stream.
+	 *
+	 * @param out
+	 *            the stream to write the encoded data to.
+	 * @return the encoder stream.
+	 * @since 0.4
+	 */
+	public static BaseEncoderStream newEncoder(OutputStream out) {
+		return new BaseEncoderStream(out, codec);
+	}
+
+	/**
+	 * Creates a stream that reads base-64 data, as ASCII bytes, from the
+	 * given stream and returns the decoded data. Any non-base-64 characters
+	 * are silently ignored.
+	 *
+	 * @param in
+	 *            the stream to read the encoded data from.
+	 * @return the decoder stream.
+	 * @since 0.4
+	 */
+	public static BaseDecoderStream newDecoder(InputStream in) {
+		return new BaseDecoderStream(in, codec);
 	}
 
 	/*
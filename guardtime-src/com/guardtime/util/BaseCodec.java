@@ -0,0 +1,353 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guardtime.util;
+
+import java.util.Arrays;
+
+/**
+ * A table-driven <a target="_blank"
+ * href="http://www.ietf.org/rfc/rfc4648.txt">RFC 4648</a> codec for a fixed
+ * ASCII alphabet, used by {@link Base16}, {@link Base32} and {@link Base64}.
+ * <p>
+ * The output is the same as that of {@link BaseX} with the same alphabet, but
+ * the input is processed a whole group of bytes at a time (one for base-16,
+ * five for base-32, three for base-64), characters are written straight into
+ * arrays, and decoding looks the characters up in a flat table without range
+ * checks.
+ */
+final class BaseCodec {
+
+	/**
+	 * A lookup table from values to characters.
+	 */
+	private final char[] chars;
+
+	/**
+	 * A lookup table from values to ASCII bytes.
+	 */
+	private final byte[] bytes;
+
+	/**
+	 * A lookup table from ASCII codes to values; -1 for the characters not
+	 * used in the encoded form.
+	 */
+	private final byte[] values;
+
+	/**
+	 * The number of data bits encoded per character.
+	 */
+	final int bits;
+
+	/**
+	 * The number of characters in a full group in the encoded form.
+	 */
+	final int groupChars;
+
+	/**
+	 * The number of bytes in a full group in the decoded form.
+	 */
+	final int groupBytes;
+
+	/**
+	 * The character used for padding the last group.
+	 */
+	private final char pad;
+
+	/**
+	 * Constructs a codec for the given alphabet.
+	 *
+	 * @param alphabet
+	 *            the encoding alphabet of ASCII characters; the length must
+	 *            be 16, 32 or 64.
+	 * @param caseSensitive
+	 *            if {@code false}, the decoder accepts both upper- and
+	 *            lower-case forms as equal.
+	 * @param padding
+	 *            the padding character.
+	 */
+	BaseCodec(String alphabet, boolean caseSensitive, char padding) {
+		bits = Integer.numberOfTrailingZeros(alphabet.length());
+		if (bits < 4 || bits > 6 || (1 << bits) != alphabet.length()) {
+			throw new IllegalArgumentException("Unsupported alphabet size");
+		}
+		groupChars = 8 / Util.gcd(8, bits);
+		groupBytes = groupChars * bits / 8;
+		chars = alphabet.toCharArray();
+		bytes = new byte[chars.length];
+		values = new byte[128];
+		Arrays.fill(values, (byte) -1);
+		for (int i = 0; i < chars.length; i++) {
+			char c = chars[i];
+			bytes[i] = (byte) c;
+			values[c] = (byte) i;
+			if (!caseSensitive) {
+				values[Character.toLowerCase(c)] = (byte) i;
+				values[Character.toUpperCase(c)] = (byte) i;
+			}
+		}
+		pad = padding;
+	}
+
+	/**
+	 * Returns the length of the encoded form of the given number of bytes,
+	 * including the padding.
+	 *
+	 * @param len
+	 *            the number of bytes to encode.
+	 * @return the number of characters.
+	 */
+	int encodedLength(int len) {
+		return (len + groupBytes - 1) / groupBytes * groupChars;
+	}
+
+	/**
+	 * Encodes the given bytes into characters, optionally inserting a
+	 * separator between blocks of {@code freq} characters.
+	 *
+	 * @param in
+	 *            an array containing the bytes to encode.
+	 * @param off
+	 *            the start offset of the data within {@code in}.
+	 * @param len
+	 *            the number of bytes to encode.
+	 * @param sep
+	 *            the separator; none is inserted when this is {@code 0} or
+	 *            {@code freq} is not positive.
+	 * @param freq
+	 *            the number of characters between the separators.
+	 * @return a newly allocated array containing the encoded data.
+	 */
+	char[] encode(byte[] in, int off, int len, char sep, int freq) {
+		if (off < 0 || len < 0 || off > in.length - len) {
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		int n = encodedLength(len);
+		if (sep == 0 || freq <= 0 || n <= freq) {
+			char[] out = new char[n];
+			encode(in, off, len, out);
+			return out;
+		}
+
+		// Encode into place, then spread the blocks out from the end
+		char[] out = new char[n + (n - 1) / freq];
+		encode(in, off, len, out);
+		int src = n - (n - 1) / freq * freq;
+		int dst = out.length - src;
+		System.arraycopy(out, n - src, out, dst, src);
+		for (src = n - src; src > 0; src -= freq) {
+			out[--dst] = sep;
+			dst -= freq;
+			System.arraycopy(out, src - freq, out, dst, freq);
+		}
+		return out;
+	}
+
+	/**
+	 * Encodes the given bytes into characters, starting at the beginning of
+	 * the output array, which must have room for {@link #encodedLength(int)}
+	 * characters.
+	 */
+	private void encode(byte[] in, int off, int len, char[] out) {
+		char[] chars = this.chars;
+		int mask = chars.length - 1;
+		int end = off + len - len % groupBytes;
+		int o = 0;
+		while (off < end) {
+			long group = 0;
+			for (int i = 0; i < groupBytes; i++) {
+				group = (group << 8) | (in[off++] & 0xff);
+			}
+			for (int shift = (groupChars - 1) * bits; shift >= 0; shift -= bits) {
+				out[o++] = chars[(int) (group >>> shift) & mask];
+			}
+		}
+		int rest = len % groupBytes;
+		if (rest > 0) {
+			long group = 0;
+			for (int i = 0; i < groupBytes; i++) {
+				group = (group << 8) | (i < rest ? in[off++] & 0xff : 0);
+			}
+			int used = (8 * rest + bits - 1) / bits;
+			int shift = (groupChars - 1) * bits;
+			for (int i = 0; i < groupChars; i++, shift -= bits) {
+				out[o++] = (i < used) ? chars[(int) (group >>> shift) & mask] : pad;
+			}
+		}
+	}
+
+	/**
+	 * Encodes the given bytes into ASCII bytes.
+	 *
+	 * @param in
+	 *            an array containing the bytes to encode.
+	 * @param off
+	 *            the start offset of the data within {@code in}.
+	 * @param len
+	 *            the number of bytes to encode.
+	 * @param out
+	 *            the array to write the encoded data to.
+	 * @param outOff
+	 *            the start offset within {@code out}.
+	 * @param last
+	 *            if {@code true}, a partial group at the end of the input is
+	 *            encoded and padded; otherwise, only whole groups are encoded.
+	 * @return the number of input bytes consumed.
+	 */
+	int encode(byte[] in, int off, int len, byte[] out, int outOff, boolean last) {
+		byte[] bytes = this.bytes;
+		int mask = bytes.length - 1;
+		int start = off;
+		int end = off + len - len % groupBytes;
+		int o = outOff;
+		while (off < end) {
+			long group = 0;
+			for (int i = 0; i < groupBytes; i++) {
+				group = (group << 8) | (in[off++] & 0xff);
+			}
+			for (int shift = (groupChars - 1) * bits; shift >= 0; shift -= bits) {
+				out[o++] = bytes[(int) (group >>> shift) & mask];
+			}
+		}
+		int rest = len % groupBytes;
+		if (last && rest > 0) {
+			long group = 0;
+			for (int i = 0; i < groupBytes; i++) {
+				group = (group << 8) | (i < rest ? in[off++] & 0xff : 0);
+			}
+			int used = (8 * rest + bits - 1) / bits;
+			int shift = (groupChars - 1) * bits;
+			for (int i = 0; i < groupChars; i++, shift -= bits) {
+				out[o++] = (i < used) ? bytes[(int) (group >>> shift) & mask] : (byte) pad;
+			}
+		}
+		return off - start;
+	}
+
+	/**
+	 * Decodes the given string, silently ignoring any characters not in the
+	 * alphabet.
+	 *
+	 * @param in
+	 *            the string to decode.
+	 * @return the decoded bytes.
+	 */
+	byte[] decode(String in) {
+		int len = in.length();
+		byte[] out = new byte[len * bits / 8];
+		byte[] values = this.values;
+		int o = 0;
+		int buf = 0;
+		int bufBits = 0;
+		for (int i = 0; i < len; i++) {
+			int c = in.charAt(i);
+			int v = (c < 128) ? values[c] : -1;
+			if (v < 0) {
+				continue;
+			}
+			buf = (buf << bits) | v;
+			bufBits += bits;
+			if (bufBits >= 8) {
+				bufBits -= 8;
+				out[o++] = (byte) (buf >>> bufBits);
+			}
+		}
+		return trim(out, o);
+	}
+
+	/**
+	 * Decodes the given ASCII bytes, silently ignoring any characters not in
+	 * the alphabet.
+	 *
+	 * @param in
+	 *            an array containing the data to decode.
+	 * @param off
+	 *            the start offset of the data within {@code in}.
+	 * @param len
+	 *            the number of bytes to decode.
+	 * @return the decoded bytes.
+	 */
+	byte[] decode(byte[] in, int off, int len) {
+		if (off < 0 || len < 0 || off > in.length - len) {
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		byte[] out = new byte[len * bits / 8];
+		int o = decode(in, off, len, out, 0, new int[2]);
+		return trim(out, o);
+	}
+
+	/**
+	 * Decodes the given ASCII bytes, silently ignoring any characters not in
+	 * the alphabet. The bits not yet making up a whole byte are carried over
+	 * between calls in {@code state}.
+	 *
+	 * @param in
+	 *            an array containing the data to decode.
+	 * @param off
+	 *            the start offset of the data within {@code in}.
+	 * @param len
+	 *            the number of bytes to decode.
+	 * @param out
+	 *            the array to write the decoded data to; must have room for
+	 *            {@code (len * bits + 7) / 8} bytes.
+	 * @param outOff
+	 *            the start offset within {@code out}.
+	 * @param state
+	 *            the bit buffer and the number of bits in it.
+	 * @return the number of bytes decoded.
+	 */
+	int decode(byte[] in, int off, int len, byte[] out, int outOff, int[] state) {
+		byte[] values = this.values;
+		int end = off + len;
+		int o = outOff;
+		int buf = state[0];
+		int bufBits = state[1];
+		while (off < end) {
+			int v = values[in[off++] & 0x7f];
+			if (v < 0 || in[off - 1] < 0) {
+				continue;
+			}
+			buf = (buf << bits) | v;
+			bufBits += bits;
+			if (bufBits >= 8) {
+				bufBits -= 8;
+				out[o++] = (byte) (buf >>> bufBits);
+			}
+		}
+		state[0] = buf & ((1 << bufBits) - 1);
+		state[1] = bufBits;
+		return o - outOff;
+	}
+
+	/**
+	 * Returns the first {@code len} bytes of the given array.
+	 */
+	private static byte[] trim(byte[] buf, int len) {
+		if (len == buf.length) {
+			return buf;
+		}
+		byte[] tmp = new byte[len];
+		System.arraycopy(buf, 0, tmp, 0, len);
+		return tmp;
+	}
+
+}
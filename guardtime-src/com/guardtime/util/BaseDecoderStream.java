@@ -0,0 +1,213 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guardtime.util;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * An input stream that reads one of the
+ * <a target="_blank" href="http://www.ietf.org/rfc/rfc4648.txt">RFC 4648</a>
+ * encodings as ASCII bytes from the underlying stream, and returns the
+ * decoded data. Instances are created by
+ * {@link Base16#newDecoder(InputStream)},
+ * {@link Base32#newDecoder(InputStream)} and
+ * {@link Base64#newDecoder(InputStream)}.
+ * <p>
+ * As with the {@code decode} methods, any characters not in the encoding
+ * alphabet, including line breaks and padding, are silently ignored.
+ *
+ * @since 0.4
+ */
+public class BaseDecoderStream extends FilterInputStream {
+
+	/**
+	 * The codec.
+	 */
+	private final BaseCodec codec;
+
+	/**
+	 * The encoded data read from the underlying stream.
+	 */
+	private final byte[] inBuf;
+
+	/**
+	 * The decoded data not yet returned.
+	 */
+	private final byte[] buf;
+
+	/**
+	 * The position of the next byte to return in {@code buf}.
+	 */
+	private int bufPos;
+
+	/**
+	 * The number of bytes in {@code buf}.
+	 */
+	private int bufLen;
+
+	/**
+	 * The bits not yet making up a whole byte.
+	 */
+	private final int[] state;
+
+	/**
+	 * Constructs a new decoder.
+	 *
+	 * @param in
+	 *            the stream to read the encoded data from.
+	 * @param codec
+	 *            the codec.
+	 */
+	BaseDecoderStream(InputStream in, BaseCodec codec) {
+		super(in);
+		if (in == null) {
+			throw new NullPointerException();
+		}
+		this.codec = codec;
+		inBuf = new byte[8192];
+		buf = new byte[(inBuf.length * codec.bits + 7) / 8];
+		bufPos = 0;
+		bufLen = 0;
+		state = new int[2];
+	}
+
+	/**
+	 * Reads the next decoded byte.
+	 *
+	 * @return the next byte, or -1 at the end of the stream.
+	 * @throws IOException
+	 *             when reading from the underlying stream fails.
+	 */
+	public int read() throws IOException {
+		if (bufPos == bufLen && !fill()) {
+			return -1;
+		}
+		return buf[bufPos++] & 0xff;
+	}
+
+	/**
+	 * Reads decoded bytes into the given array.
+	 *
+	 * @param b
+	 *            the array to read the data into.
+	 * @param off
+	 *            the start offset within {@code b}.
+	 * @param len
+	 *            the maximum number of bytes to read.
+	 * @return the number of bytes read, or -1 at the end of the stream.
+	 * @throws IOException
+	 *             when reading from the underlying stream fails.
+	 */
+	public int read(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off > b.length - len) {
+			throw new IndexOutOfBoundsException();
+		}
+		if (len == 0) {
+			return 0;
+		}
+		if (bufPos == bufLen && !fill()) {
+			return -1;
+		}
+		int n = Math.min(len, bufLen - bufPos);
+		System.arraycopy(buf, bufPos, b, off, n);
+		bufPos += n;
+		return n;
+	}
+
+	/**
+	 * Skips over decoded bytes.
+	 *
+	 * @param n
+	 *            the number of bytes to skip.
+	 * @return the number of bytes skipped.
+	 * @throws IOException
+	 *             when reading from the underlying stream fails.
+	 */
+	public long skip(long n) throws IOException {
+		long skipped = 0;
+		while (skipped < n) {
+			if (bufPos == bufLen && !fill()) {
+				break;
+			}
+			int k = (int) Math.min(n - skipped, bufLen - bufPos);
+			bufPos += k;
+			skipped += k;
+		}
+		return skipped;
+	}
+
+	/**
+	 * Returns the number of decoded bytes that can be read without blocking.
+	 *
+	 * @return the number of bytes already decoded.
+	 */
+	public int available() {
+		return bufLen - bufPos;
+	}
+
+	/**
+	 * Marks are not supported.
+	 *
+	 * @return {@code false}.
+	 */
+	public boolean markSupported() {
+		return false;
+	}
+
+	/**
+	 * Marks are not supported.
+	 */
+	public void mark(int readlimit) {
+	}
+
+	/**
+	 * Marks are not supported.
+	 *
+	 * @throws IOException
+	 *             always.
+	 */
+	public void reset() throws IOException {
+		throw new IOException("mark/reset not supported");
+	}
+
+	/**
+	 * Decodes the next chunk of the underlying stream.
+	 *
+	 * @return {@code false} at the end of the underlying stream.
+	 */
+	private boolean fill() throws IOException {
+		bufPos = 0;
+		bufLen = 0;
+		while (bufLen == 0) {
+			int n = in.read(inBuf, 0, inBuf.length);
+			if (n < 0) {
+				return false;
+			}
+			bufLen = codec.decode(inBuf, 0, n, buf, 0, state);
+		}
+		return true;
+	}
+
+}
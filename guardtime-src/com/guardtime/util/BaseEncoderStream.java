@@ -0,0 +1,238 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guardtime.util;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * An output stream that encodes the data written to it in one of the
+ * <a target="_blank" href="http://www.ietf.org/rfc/rfc4648.txt">RFC 4648</a>
+ * encodings, and writes the encoded form as ASCII bytes to the underlying
+ * stream. Instances are created by {@link Base16#newEncoder(OutputStream)},
+ * {@link Base32#newEncoder(OutputStream)} and
+ * {@link Base64#newEncoder(OutputStream)}.
+ * <p>
+ * The encoded form is the same as the one produced by the {@code encode}
+ * methods for all the data at once. As the last group of data can only be
+ * encoded when its end is known, {@link #finish()} or {@link #close()} must
+ * be called after the last write.
+ *
+ * @since 0.4
+ */
+public class BaseEncoderStream extends FilterOutputStream {
+
+	/**
+	 * The codec.
+	 */
+	private final BaseCodec codec;
+
+	/**
+	 * The bytes of an incomplete group, waiting for the rest of the group.
+	 */
+	private final byte[] pending;
+
+	/**
+	 * The number of bytes in {@code pending}.
+	 */
+	private int pendingLen;
+
+	/**
+	 * The encoded data not yet written to the underlying stream.
+	 */
+	private final byte[] buf;
+
+	/**
+	 * The number of bytes in {@code buf}.
+	 */
+	private int bufLen;
+
+	/**
+	 * Whether {@link #finish()} has been called.
+	 */
+	private boolean finished;
+
+	/**
+	 * Constructs a new encoder.
+	 *
+	 * @param out
+	 *            the stream to write the encoded data to.
+	 * @param codec
+	 *            the codec.
+	 */
+	BaseEncoderStream(OutputStream out, BaseCodec codec) {
+		super(out);
+		if (out == null) {
+			throw new NullPointerException();
+		}
+		this.codec = codec;
+		pending = new byte[codec.groupBytes];
+		pendingLen = 0;
+		buf = new byte[8192 / codec.groupChars * codec.groupChars];
+		bufLen = 0;
+		finished = false;
+	}
+
+	/**
+	 * Encodes the given byte.
+	 *
+	 * @param b
+	 *            the byte to encode.
+	 * @throws IOException
+	 *             when writing to the underlying stream fails, or the encoder
+	 *             has been finished.
+	 */
+	public void write(int b) throws IOException {
+		checkOpen();
+		pending[pendingLen++] = (byte) b;
+		if (pendingLen == pending.length) {
+			encodePending(false);
+		}
+	}
+
+	/**
+	 * Encodes the given bytes.
+	 *
+	 * @param b
+	 *            an array containing the bytes to encode.
+	 * @param off
+	 *            the start offset of the data within {@code b}.
+	 * @param len
+	 *            the number of bytes to encode.
+	 * @throws IOException
+	 *             when writing to the underlying stream fails, or the encoder
+	 *             has been finished.
+	 */
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (off < 0 || len < 0 || off > b.length - len) {
+			throw new IndexOutOfBoundsException();
+		}
+		checkOpen();
+
+		// Complete the pending group first
+		while (pendingLen > 0 && len > 0) {
+			pending[pendingLen++] = b[off++];
+			--len;
+			if (pendingLen == pending.length) {
+				encodePending(false);
+			}
+		}
+
+		// Encode the whole groups straight from the caller's array
+		int group = codec.groupBytes;
+		while (len >= group) {
+			int room = (buf.length - bufLen) / codec.groupChars * group;
+			if (room == 0) {
+				flushBuffer();
+				continue;
+			}
+			int n = Math.min(len - len % group, room);
+			codec.encode(b, off, n, buf, bufLen, false);
+			bufLen += n / group * codec.groupChars;
+			off += n;
+			len -= n;
+		}
+
+		// Keep the rest for later
+		System.arraycopy(b, off, pending, 0, len);
+		pendingLen = len;
+	}
+
+	/**
+	 * Writes the data encoded so far to the underlying stream and flushes it.
+	 * An incomplete last group is not written until the encoder is finished.
+	 *
+	 * @throws IOException
+	 *             when writing to the underlying stream fails.
+	 */
+	public void flush() throws IOException {
+		flushBuffer();
+		out.flush();
+	}
+
+	/**
+	 * Encodes the last group of data, with padding as needed, and writes all
+	 * the encoded data to the underlying stream, without closing it. No more
+	 * data can be written after this.
+	 *
+	 * @throws IOException
+	 *             when writing to the underlying stream fails.
+	 */
+	public void finish() throws IOException {
+		if (finished) {
+			return;
+		}
+		encodePending(true);
+		flushBuffer();
+		finished = true;
+	}
+
+	/**
+	 * Finishes the encoder and closes the underlying stream.
+	 *
+	 * @throws IOException
+	 *             when writing to or closing the underlying stream fails.
+	 */
+	public void close() throws IOException {
+		try {
+			finish();
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Encodes the pending bytes into the buffer.
+	 */
+	private void encodePending(boolean last) throws IOException {
+		if (buf.length - bufLen < codec.groupChars) {
+			flushBuffer();
+		}
+		codec.encode(pending, 0, pendingLen, buf, bufLen, last);
+		if (pendingLen > 0) {
+			bufLen += codec.groupChars;
+		}
+		pendingLen = 0;
+	}
+
+	/**
+	 * Writes the buffer to the underlying stream.
+	 */
+	private void flushBuffer() throws IOException {
+		if (bufLen > 0) {
+			out.write(buf, 0, bufLen);
+			bufLen = 0;
+		}
+	}
+
+	/**
+	 * Checks that the encoder has not been finished.
+	 */
+	private void checkOpen() throws IOException {
+		if (finished) {
+			throw new IOException("Encoder finished");
+		}
+	}
+
+}
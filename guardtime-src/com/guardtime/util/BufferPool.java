@@ -0,0 +1,185 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.util;
+
+/**
+ * A pool of byte buffers for the temporary buffers of I/O operations.
+ * <p>
+ * Buffers are handed out in size classes that are powers of two from
+ * {@link #MIN_SIZE} to {@link #MAX_SIZE} bytes; a request is served with a
+ * buffer of the smallest class that fits, so the buffer may be larger than
+ * asked for. Each thread keeps a few released buffers of each class for
+ * itself, and the rest go to a depot shared by all threads, so that buffers
+ * filled on one thread and released on another are reused too. Requests
+ * larger than {@code MAX_SIZE} are served with fresh arrays that are not
+ * pooled.
+ * <p>
+ * A buffer must not be used after it has been released, and must not be
+ * released more than once. Buffers are not cleared between uses.
+ *
+ * @since 0.4
+ */
+public final class BufferPool {
+	/**
+	 * The smallest size class, in bytes.
+	 */
+	public static final int MIN_SIZE = 512;
+
+	/**
+	 * The largest size class, in bytes.
+	 */
+	public static final int MAX_SIZE = 1 << 20;
+
+	// log2(MIN_SIZE)
+	private static final int MIN_SHIFT = 9;
+
+	// Number of size classes
+	private static final int CLASSES = 12;
+
+	// Number of buffers of each class kept by each thread
+	private static final int LOCAL_BUFFERS = 2;
+
+	// Number of bytes of each class kept in the shared depot
+	private static final int DEPOT_BYTES = 1 << 21;
+
+	// Per-thread caches, each a Cache
+	private static final ThreadLocal caches = new ThreadLocal() {
+		protected Object initialValue() {
+			return new Cache(LOCAL_BUFFERS);
+		}
+	};
+
+	// Shared depot; accessed only while holding its lock
+	private static final Cache depot = new Cache(-1);
+
+
+
+	/**
+	 * Returns a buffer of at least the given size.
+	 *
+	 * @param size the minimum size of the buffer, in bytes.
+	 *
+	 * @return a buffer of at least {@code size} bytes, with arbitrary content.
+	 */
+	public static byte[] acquire(int size) {
+		if (size < 0) {
+			throw new IllegalArgumentException("invalid buffer size: " + size);
+		}
+		if (size > MAX_SIZE) {
+			return new byte[size];
+		}
+		int index = classOf(size);
+		byte[] buf = ((Cache) caches.get()).take(index);
+		if (buf == null) {
+			synchronized (depot) {
+				buf = depot.take(index);
+			}
+		}
+		if (buf == null) {
+			buf = new byte[MIN_SIZE << index];
+		}
+		return buf;
+	}
+
+	/**
+	 * Returns a buffer to the pool. Arrays that were not handed out by
+	 * {@link #acquire(int)} are accepted if their size is one of the size
+	 * classes, and ignored otherwise.
+	 *
+	 * @param buf the buffer to return; may be {@code null}.
+	 */
+	public static void release(byte[] buf) {
+		if (buf == null || buf.length < MIN_SIZE || buf.length > MAX_SIZE
+				|| (buf.length & (buf.length - 1)) != 0) {
+			return;
+		}
+		int index = classOf(buf.length);
+		if (((Cache) caches.get()).put(index, buf)) {
+			return;
+		}
+		synchronized (depot) {
+			depot.put(index, buf);
+		}
+	}
+
+	/**
+	 * Returns the size class index for the given size.
+	 */
+	private static int classOf(int size) {
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+
+	/*
+	 * This is here just to clean up the public JavaDoc.
+	 */
+	private BufferPool() {
+	}
+
+
+
+	/**
+	 * Stacks of free buffers, one per size class.
+	 */
+	private static class Cache {
+		private final byte[][][] stacks;
+		private final int[] counts;
+
+		/**
+		 * @param limit number of buffers per class, or -1 to keep
+		 * 			{@code DEPOT_BYTES} bytes per class.
+		 */
+		public Cache(int limit) {
+			stacks = new byte[CLASSES][][];
+			counts = new int[CLASSES];
+			for (int i = 0; i < CLASSES; ++i) {
+				int n = (limit < 0) ? Math.max(1, DEPOT_BYTES / (MIN_SIZE << i)) : limit;
+				stacks[i] = new byte[n][];
+			}
+		}
+
+		public byte[] take(int index) {
+			int n = counts[index];
+			if (n == 0) {
+				return null;
+			}
+			byte[][] stack = stacks[index];
+			byte[] buf = stack[--n];
+			stack[n] = null;
+			counts[index] = n;
+			return buf;
+		}
+
+		public boolean put(int index, byte[] buf) {
+			int n = counts[index];
+			byte[][] stack = stacks[index];
+			if (n == stack.length) {
+				return false;
+			}
+			stack[n] = buf;
+			counts[index] = n + 1;
+			return true;
+		}
+	}
+}
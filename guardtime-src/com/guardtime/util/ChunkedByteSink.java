@@ -0,0 +1,227 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A growable in-memory byte sink that keeps the data in a list of chunks
+ * taken from the {@link BufferPool}.
+ * <p>
+ * Unlike {@code ByteArrayOutputStream}, growing the sink never copies the
+ * data already written: a new chunk, twice the size of the previous one up to
+ * {@link #MAX_CHUNK} bytes, is added instead. The data is copied once, into an
+ * array of the exact size, by {@link #toByteArray()}. When the sink is no
+ * longer needed, {@link #release()} returns the chunks to the pool.
+ * <p>
+ * This class is not thread-safe.
+ *
+ * @since 0.4
+ */
+public class ChunkedByteSink extends OutputStream {
+	/**
+	 * The largest chunk size, in bytes.
+	 */
+	public static final int MAX_CHUNK = 65536;
+
+	// The chunks; all but the last one are full
+	private byte[][] chunks;
+	private int chunkCount;
+	// Number of bytes in the last chunk
+	private int position;
+	// Number of bytes in the full chunks
+	private int completed;
+	// Size of the first chunk
+	private final int initialChunk;
+
+
+
+	/**
+	 * Default constructor.
+	 * <p>
+	 * Creates a sink starting with a chunk of {@link BufferPool#MIN_SIZE}
+	 * bytes.
+	 */
+	public ChunkedByteSink() {
+		this(BufferPool.MIN_SIZE);
+	}
+
+	/**
+	 * Class constructor.
+	 *
+	 * @param initialChunk the size of the first chunk; a good guess for the
+	 * 			amount of data saves chunks.
+	 */
+	public ChunkedByteSink(int initialChunk) {
+		if (initialChunk < 1) {
+			throw new IllegalArgumentException("invalid chunk size: " + initialChunk);
+		}
+		this.initialChunk = Math.min(initialChunk, MAX_CHUNK);
+		chunks = new byte[8][];
+		chunkCount = 0;
+		position = 0;
+		completed = 0;
+	}
+
+	/**
+	 * Returns the number of bytes written to this sink.
+	 *
+	 * @return the number of bytes.
+	 */
+	public int size() {
+		return completed + position;
+	}
+
+	/**
+	 * Writes the given byte to this sink.
+	 *
+	 * @param b the byte to write.
+	 */
+	public void write(int b) {
+		byte[] chunk = lastChunk();
+		chunk[position++] = (byte) b;
+	}
+
+	/**
+	 * Writes the given bytes to this sink.
+	 *
+	 * @param b the array containing the data.
+	 * @param off the start offset of the data within {@code b}.
+	 * @param len the number of bytes to write.
+	 */
+	public void write(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || off > b.length - len) {
+			throw new IndexOutOfBoundsException();
+		}
+		while (len > 0) {
+			byte[] chunk = lastChunk();
+			int n = Math.min(len, chunk.length - position);
+			System.arraycopy(b, off, chunk, position, n);
+			position += n;
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Reads the given stream to its end into this sink, straight into the
+	 * chunks.
+	 *
+	 * @param in the stream to read.
+	 *
+	 * @return the number of bytes read.
+	 *
+	 * @throws IOException if reading the stream fails.
+	 */
+	public int readFrom(InputStream in)
+	throws IOException {
+		int total = 0;
+		while (true) {
+			byte[] chunk = lastChunk();
+			int n = in.read(chunk, position, chunk.length - position);
+			if (n < 0) {
+				return total;
+			}
+			position += n;
+			total += n;
+		}
+	}
+
+	/**
+	 * Writes the contents of this sink to the given stream.
+	 *
+	 * @param out the stream to write to.
+	 *
+	 * @throws IOException if writing to the stream fails.
+	 */
+	public void writeTo(OutputStream out)
+	throws IOException {
+		for (int i = 0; i < chunkCount; ++i) {
+			byte[] chunk = chunks[i];
+			out.write(chunk, 0, (i == chunkCount - 1) ? position : chunk.length);
+		}
+	}
+
+	/**
+	 * Returns a copy of the contents of this sink.
+	 *
+	 * @return a newly allocated array holding the data.
+	 */
+	public byte[] toByteArray() {
+		byte[] res = new byte[size()];
+		int off = 0;
+		for (int i = 0; i < chunkCount; ++i) {
+			byte[] chunk = chunks[i];
+			int n = (i == chunkCount - 1) ? position : chunk.length;
+			System.arraycopy(chunk, 0, res, off, n);
+			off += n;
+		}
+		return res;
+	}
+
+	/**
+	 * Empties this sink and returns its chunks to the {@link BufferPool}. The
+	 * sink can be used again afterwards.
+	 */
+	public void release() {
+		for (int i = 0; i < chunkCount; ++i) {
+			BufferPool.release(chunks[i]);
+			chunks[i] = null;
+		}
+		chunkCount = 0;
+		position = 0;
+		completed = 0;
+	}
+
+	/**
+	 * Same as {@link #release()}.
+	 */
+	public void close() {
+		release();
+	}
+
+	/**
+	 * Returns the last chunk, adding a new one if it is full.
+	 */
+	private byte[] lastChunk() {
+		if (chunkCount > 0) {
+			byte[] chunk = chunks[chunkCount - 1];
+			if (position < chunk.length) {
+				return chunk;
+			}
+			completed += chunk.length;
+		}
+		if (chunkCount == chunks.length) {
+			byte[][] tmp = new byte[chunkCount * 2][];
+			System.arraycopy(chunks, 0, tmp, 0, chunkCount);
+			chunks = tmp;
+		}
+		int size = (chunkCount == 0) ? initialChunk
+				: Math.min(chunks[chunkCount - 1].length * 2, MAX_CHUNK);
+		byte[] chunk = BufferPool.acquire(size);
+		chunks[chunkCount++] = chunk;
+		position = 0;
+		return chunk;
+	}
+}
@@ -0,0 +1,77 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.util;
+
+
+
+/**
+ * Monotonically increasing count of events, such as requests sent or bytes
+ * received.
+ * <p>
+ * Counters are created and registered by
+ * {@link Metrics#counter(String, String)}. Updating a counter is cheap and
+ * safe from any thread.
+ *
+ * @since 0.4
+ */
+public final class Counter {
+	private final StripedLong value;
+
+
+
+	/**
+	 * Default constructor.
+	 */
+	Counter() {
+		value = new StripedLong();
+	}
+
+	/**
+	 * Adds one to this counter.
+	 */
+	public void increment() {
+		value.add(1);
+	}
+
+	/**
+	 * Adds the given amount to this counter.
+	 *
+	 * @param amount the amount to add.
+	 *
+	 * @throws IllegalArgumentException if {@code amount} is negative.
+	 */
+	public void add(long amount) {
+		if (amount < 0) {
+			throw new IllegalArgumentException("invalid counter increment: " + amount);
+		}
+		value.add(amount);
+	}
+
+	/**
+	 * Returns the current value of this counter.
+	 *
+	 * @return counter value.
+	 */
+	public long get() {
+		return value.get();
+	}
+}
@@ -0,0 +1,78 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.util;
+
+
+
+/**
+ * Value that can go up and down, such as the number of open connections.
+ * <p>
+ * Gauges are created and registered by
+ * {@link Metrics#gauge(String, String)}. Updating a gauge is cheap and safe
+ * from any thread.
+ *
+ * @since 0.4
+ */
+public final class Gauge {
+	private final StripedLong value;
+
+
+
+	/**
+	 * Default constructor.
+	 */
+	Gauge() {
+		value = new StripedLong();
+	}
+
+	/**
+	 * Adds one to this gauge.
+	 */
+	public void increment() {
+		value.add(1);
+	}
+
+	/**
+	 * Subtracts one from this gauge.
+	 */
+	public void decrement() {
+		value.add(-1);
+	}
+
+	/**
+	 * Adds the given amount to this gauge.
+	 *
+	 * @param delta the amount to add; may be negative.
+	 */
+	public void add(long delta) {
+		value.add(delta);
+	}
+
+	/**
+	 * Returns the current value of this gauge.
+	 *
+	 * @return gauge value.
+	 */
+	public long get() {
+		return value.get();
+	}
+}
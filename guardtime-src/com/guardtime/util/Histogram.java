@@ -0,0 +1,172 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.util;
+
+
+
+/**
+ * Distribution of durations, such as request latencies.
+ * <p>
+ * Durations are counted in fixed buckets from half a millisecond to a
+ * minute, which is the range of everything from hashing a small file to a
+ * slow round trip to the gateway. Histograms are created and registered by
+ * {@link Metrics#histogram(String, String)}. Recording a duration is cheap
+ * and safe from any thread.
+ *
+ * @since 0.4
+ */
+public final class Histogram {
+	/**
+	 * Upper bounds of the buckets, in seconds. The last bucket, for longer
+	 * durations, is not listed.
+	 */
+	static final double[] BOUNDS = {
+		0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05,
+		0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60
+	};
+
+	// Upper bounds of the buckets, in nanoseconds
+	private static final long[] BOUNDS_NANOS;
+
+	static {
+		BOUNDS_NANOS = new long[BOUNDS.length];
+		for (int i = 0; i < BOUNDS.length; ++i) {
+			BOUNDS_NANOS[i] = Math.round(BOUNDS[i] * 1e9);
+		}
+	}
+
+	// Cells the updates are spread over, see StripedLong
+	private final Cell[] cells;
+
+
+
+	/**
+	 * Default constructor.
+	 */
+	Histogram() {
+		cells = new Cell[Metrics.STRIPES];
+		for (int i = 0; i < cells.length; ++i) {
+			cells[i] = new Cell();
+		}
+	}
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos the duration, in nanoseconds; negative values are
+	 * 			counted as zero.
+	 */
+	public void observe(long nanos) {
+		if (nanos < 0) {
+			nanos = 0;
+		}
+		int bucket = bucket(nanos);
+		Cell cell = cells[Metrics.stripe()];
+		synchronized (cell) {
+			++cell.counts[bucket];
+			cell.sum += nanos;
+		}
+	}
+
+	/**
+	 * Records the time passed since the given start time.
+	 *
+	 * @param startNanos start time, as returned by {@code System.nanoTime()}.
+	 */
+	public void observeSince(long startNanos) {
+		observe(System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Returns the number of durations recorded.
+	 *
+	 * @return the count.
+	 */
+	public long getCount() {
+		long count = 0;
+		long[] counts = getCounts();
+		for (int i = 0; i < counts.length; ++i) {
+			count += counts[i];
+		}
+		return count;
+	}
+
+	/**
+	 * Returns the sum of the durations recorded.
+	 *
+	 * @return the sum, in nanoseconds.
+	 */
+	public long getSum() {
+		long sum = 0;
+		for (int i = 0; i < cells.length; ++i) {
+			Cell cell = cells[i];
+			synchronized (cell) {
+				sum += cell.sum;
+			}
+		}
+		return sum;
+	}
+
+	/**
+	 * Returns the number of durations in each bucket; the last element is
+	 * for durations above the last bound. The counts are not cumulative.
+	 */
+	long[] getCounts() {
+		long[] counts = new long[BOUNDS.length + 1];
+		for (int i = 0; i < cells.length; ++i) {
+			Cell cell = cells[i];
+			synchronized (cell) {
+				for (int j = 0; j < counts.length; ++j) {
+					counts[j] += cell.counts[j];
+				}
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Returns the index of the bucket for the given duration.
+	 */
+	private static int bucket(long nanos) {
+		int low = 0;
+		int high = BOUNDS_NANOS.length;
+		while (low < high) {
+			int mid = (low + high) >>> 1;
+			if (BOUNDS_NANOS[mid] < nanos) {
+				low = mid + 1;
+			} else {
+				high = mid;
+			}
+		}
+		return low;
+	}
+
+
+
+	/**
+	 * One cell of the histogram.
+	 */
+	private static final class Cell {
+		final long[] counts = new long[BOUNDS.length + 1];
+		long sum;
+	}
+}
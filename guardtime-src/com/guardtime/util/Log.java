@@ -28,6 +28,16 @@ import java.util.List;
 
 /**
  * This abstract class manages a simple logging framework.
+ * <p>
+ * By default, messages are passed on to the loggers on the thread that logs
+ * them. After {@link #startAsync(int, boolean)}, they are instead queued in a
+ * bounded buffer and passed on by a background thread, so that logging
+ * threads do not wait for the loggers or for each other.
+ * <p>
+ * To avoid building messages that nobody will see, guard the expensive ones
+ * with {@link #isEnabled(LogLevel)}, or use the parameterized methods such as
+ * {@link #debug(String, Object, Object)}, which only format the message when a
+ * logger converts it to a string.
  *
  * @since 0.4
  */
@@ -39,6 +49,19 @@ public abstract class Log {
 	 */
 	private static LogLevel globalLevel = LogLevel.All;
 
+	/**
+	 * The lowest importance level of messages that are passed on to any
+	 * logger; {@link LogLevel#None} when there are no loggers. Kept up to date
+	 * with the global level and the loggers, so that filtered messages can be
+	 * rejected without taking a lock.
+	 */
+	private static volatile LogLevel threshold = LogLevel.None;
+
+	/**
+	 * The background dispatcher, when in the asynchronous mode.
+	 */
+	private static volatile LogDispatcher dispatcher = null;
+
 	/**
 	 * Retrieves the current global logging level. Any messages whose importance
 	 * level is below this threshold are ignored.
@@ -64,6 +87,32 @@ public abstract class Log {
 			throw new NullPointerException();
 		}
 		globalLevel = level;
+		updateThreshold();
+	}
+
+	/**
+	 * Checks whether a message of the given importance level would be passed
+	 * on to any logger. This is cheap and takes no locks, so it can be used to
+	 * skip building messages that would be ignored anyway.
+	 *
+	 * @param level
+	 *            the importance level of the message.
+	 * @return {@code true} if messages of the given level are logged.
+	 * @throws NullPointerException
+	 *             when {@code level} is {@code null}.
+	 */
+	public static boolean isEnabled(LogLevel level) {
+		return threshold.compareTo(level) <= 0;
+	}
+
+	/**
+	 * Checks whether messages at the {@link LogLevel#Debug} level would be
+	 * passed on to any logger.
+	 *
+	 * @return {@code true} if debug messages are logged.
+	 */
+	public static boolean isDebugEnabled() {
+		return isEnabled(LogLevel.Debug);
 	}
 
 	/**
@@ -92,6 +141,7 @@ public abstract class Log {
 			throw new NullPointerException();
 		}
 		listeners.add(new ListenerEntry(listener, level));
+		updateThreshold();
 	}
 
 	/**
@@ -108,6 +158,82 @@ public abstract class Log {
 				i.remove();
 			}
 		}
+		updateThreshold();
+	}
+
+	/**
+	 * Switches to the asynchronous mode: messages are queued in a bounded
+	 * buffer and passed on to the loggers by a background daemon thread, in
+	 * the order they were queued. Logging threads then take no locks, unless
+	 * they have to wait for space in the buffer.
+	 * <p>
+	 * If already in the asynchronous mode, the messages queued so far are
+	 * passed on before switching to the new buffer.
+	 *
+	 * @param capacity
+	 *            the number of messages the buffer can hold; rounded up to a
+	 *            power of two.
+	 * @param blockWhenFull
+	 *            what to do when the buffer is full: if {@code true}, the
+	 *            logging thread waits for space; if {@code false}, the message
+	 *            is dropped and counted in the {@code gt_log_dropped_total}
+	 *            metric.
+	 * @throws IllegalArgumentException
+	 *             when {@code capacity} is not positive.
+	 * @see #stopAsync()
+	 */
+	public static void startAsync(int capacity, boolean blockWhenFull) {
+		LogDispatcher d = new LogDispatcher(capacity, blockWhenFull);
+		LogDispatcher old;
+		synchronized (Log.class) {
+			old = dispatcher;
+			dispatcher = d;
+		}
+		// Not under the lock: the old dispatcher thread needs it to deliver
+		// the messages still queued
+		if (old != null) {
+			old.stop();
+		}
+	}
+
+	/**
+	 * Switches back to the synchronous mode, after passing on the messages
+	 * queued so far.
+	 *
+	 * @see #startAsync(int, boolean)
+	 */
+	public static void stopAsync() {
+		LogDispatcher old;
+		synchronized (Log.class) {
+			old = dispatcher;
+			dispatcher = null;
+		}
+		// Not under the lock, see startAsync()
+		if (old != null) {
+			old.stop();
+		}
+	}
+
+	/**
+	 * Waits until the messages queued so far in the asynchronous mode have
+	 * been passed on to the loggers. Returns right away in the synchronous
+	 * mode.
+	 */
+	public static void flush() {
+		LogDispatcher d = dispatcher;
+		if (d != null) {
+			d.flush();
+		}
+	}
+
+	/**
+	 * Returns the number of messages dropped because the buffer of the
+	 * asynchronous mode was full.
+	 *
+	 * @return the number of dropped messages.
+	 */
+	public static long getDropped() {
+		return LogDispatcher.DROPPED.get();
 	}
 
 	/**
@@ -122,10 +248,52 @@ public abstract class Log {
 	 * @throws NullPointerException
 	 *             when {@code level} is {@code null}.
 	 */
-	public static synchronized void log(LogLevel level, Object message) {
+	public static void log(LogLevel level, Object message) {
 		if (level == null) {
 			throw new NullPointerException();
 		}
+		if (!isEnabled(level)) {
+			return;
+		}
+		LogDispatcher d = dispatcher;
+		if (d == null || !d.offer(level, message)) {
+			deliver(level, message);
+		}
+	}
+
+	/**
+	 * Logs a parameterized message at the given importance level. The message
+	 * is formatted only if and when a logger converts it to a string: each
+	 * <code>{}</code> in the pattern is replaced by the next parameter.
+	 *
+	 * @param level
+	 *            the importance level of the message.
+	 * @param pattern
+	 *            the message pattern.
+	 * @param params
+	 *            the parameters of the message.
+	 * @throws NullPointerException
+	 *             when {@code level} or {@code params} is {@code null}.
+	 */
+	public static void log(LogLevel level, String pattern, Object[] params) {
+		if (params == null) {
+			throw new NullPointerException();
+		}
+		if (isEnabled(level)) {
+			log(level, new LogMessage(pattern, params));
+		}
+	}
+
+	/**
+	 * Passes the given message on to all currently registered listeners whose
+	 * threshold is not higher than the importance level of the message.
+	 *
+	 * @param level
+	 *            the importance level of the message.
+	 * @param message
+	 *            the message.
+	 */
+	static synchronized void deliver(LogLevel level, Object message) {
 		if (globalLevel.compareTo(level) <= 0) {
 			for (Iterator i = listeners.iterator(); i.hasNext();) {
 				ListenerEntry e = (ListenerEntry) i.next();
@@ -136,6 +304,21 @@ public abstract class Log {
 		}
 	}
 
+	/**
+	 * Recomputes the threshold after a change in the global level or the
+	 * loggers.
+	 */
+	private static synchronized void updateThreshold() {
+		LogLevel lowest = LogLevel.None;
+		for (Iterator i = listeners.iterator(); i.hasNext();) {
+			ListenerEntry e = (ListenerEntry) i.next();
+			if (e.level.compareTo(lowest) < 0) {
+				lowest = e.level;
+			}
+		}
+		threshold = (globalLevel.compareTo(lowest) > 0) ? globalLevel : lowest;
+	}
+
 	/**
 	 * Logs the given message at the {@link LogLevel#Fatal} level.
 	 *
@@ -146,6 +329,38 @@ public abstract class Log {
 		log(LogLevel.Fatal, message);
 	}
 
+	/**
+	 * Logs a parameterized message at the {@link LogLevel#Fatal} level.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param param
+	 *            the parameter of the message.
+	 * @see #log(LogLevel, String, Object[])
+	 */
+	public static void fatal(String pattern, Object param) {
+		if (isEnabled(LogLevel.Fatal)) {
+			log(LogLevel.Fatal, new LogMessage(pattern, new Object[] { param }));
+		}
+	}
+
+	/**
+	 * Logs a parameterized message at the {@link LogLevel#Fatal} level.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param param1
+	 *            the first parameter of the message.
+	 * @param param2
+	 *            the second parameter of the message.
+	 * @see #log(LogLevel, String, Object[])
+	 */
+	public static void fatal(String pattern, Object param1, Object param2) {
+		if (isEnabled(LogLevel.Fatal)) {
+			log(LogLevel.Fatal, new LogMessage(pattern, new Object[] { param1, param2 }));
+		}
+	}
+
 	/**
 	 * Logs the given message at the {@link LogLevel#Error} level.
 	 *
@@ -156,6 +371,38 @@ public abstract class Log {
 		log(LogLevel.Error, message);
 	}
 
+	/**
+	 * Logs a parameterized message at the {@link LogLevel#Error} level.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param param
+	 *            the parameter of the message.
+	 * @see #log(LogLevel, String, Object[])
+	 */
+	public static void error(String pattern, Object param) {
+		if (isEnabled(LogLevel.Error)) {
+			log(LogLevel.Error, new LogMessage(pattern, new Object[] { param }));
+		}
+	}
+
+	/**
+	 * Logs a parameterized message at the {@link LogLevel#Error} level.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param param1
+	 *            the first parameter of the message.
+	 * @param param2
+	 *            the second parameter of the message.
+	 * @see #log(LogLevel, String, Object[])
+	 */
+	public static void error(String pattern, Object param1, Object param2) {
+		if (isEnabled(LogLevel.Error)) {
+			log(LogLevel.Error, new LogMessage(pattern, new Object[] { param1, param2 }));
+		}
+	}
+
 	/**
 	 * Logs the given message at the {@link LogLevel#Warning} level.
 	 *
@@ -166,6 +413,38 @@ public abstract class Log {
 		log(LogLevel.Warning, message);
 	}
 
+	/**
+	 * Logs a parameterized message at the {@link LogLevel#Warning} level.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param param
+	 *            the parameter of the message.
+	 * @see #log(LogLevel, String, Object[])
+	 */
+	public static void warning(String pattern, Object param) {
+		if (isEnabled(LogLevel.Warning)) {
+			log(LogLevel.Warning, new LogMessage(pattern, new Object[] { param }));
+		}
+	}
+
+	/**
+	 * Logs a parameterized message at the {@link LogLevel#Warning} level.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param param1
+	 *            the first parameter of the message.
+	 * @param param2
+	 *            the second parameter of the message.
+	 * @see #log(LogLevel, String, Object[])
+	 */
+	public static void warning(String pattern, Object param1, Object param2) {
+		if (isEnabled(LogLevel.Warning)) {
+			log(LogLevel.Warning, new LogMessage(pattern, new Object[] { param1, param2 }));
+		}
+	}
+
 	/**
 	 * Logs the given message at the {@link LogLevel#Debug} level.
 	 *
@@ -176,6 +455,38 @@ public abstract class Log {
 		log(LogLevel.Debug, message);
 	}
 
+	/**
+	 * Logs a parameterized message at the {@link LogLevel#Debug} level.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param param
+	 *            the parameter of the message.
+	 * @see #log(LogLevel, String, Object[])
+	 */
+	public static void debug(String pattern, Object param) {
+		if (isEnabled(LogLevel.Debug)) {
+			log(LogLevel.Debug, new LogMessage(pattern, new Object[] { param }));
+		}
+	}
+
+	/**
+	 * Logs a parameterized message at the {@link LogLevel#Debug} level.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param param1
+	 *            the first parameter of the message.
+	 * @param param2
+	 *            the second parameter of the message.
+	 * @see #log(LogLevel, String, Object[])
+	 */
+	public static void debug(String pattern, Object param1, Object param2) {
+		if (isEnabled(LogLevel.Debug)) {
+			log(LogLevel.Debug, new LogMessage(pattern, new Object[] { param1, param2 }));
+		}
+	}
+
 	/*
 	 * This is here just to clean up the public JavaDoc.
 	 */
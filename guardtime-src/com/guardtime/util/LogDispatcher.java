@@ -0,0 +1,354 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guardtime.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * The background dispatcher used by {@link Log} in the asynchronous mode.
+ * <p>
+ * Messages are queued in a bounded ring buffer that any number of threads can
+ * add to without taking a lock, and are handed to the loggers by a single
+ * daemon thread. Each slot of the ring carries a sequence number telling
+ * whether it is free for the producer of the given lap or holds a message for
+ * the consumer; a producer claims a slot by advancing the shared tail
+ * position with a compare-and-set.
+ */
+final class LogDispatcher implements Runnable {
+
+	/**
+	 * How long the dispatcher and the waiting producers sleep at most before
+	 * checking the ring again, in milliseconds.
+	 */
+	private static final long POLL_INTERVAL = 10;
+
+	/**
+	 * Messages dropped because the ring was full.
+	 */
+	static final Counter DROPPED = Metrics.counter("gt_log_dropped_total",
+			"Log messages dropped because the log buffer was full.");
+
+	/**
+	 * The number of slots minus one; the number of slots is a power of two.
+	 */
+	private final int mask;
+
+	/**
+	 * The levels and messages in the slots.
+	 */
+	private final LogLevel[] levels;
+	private final Object[] messages;
+
+	/**
+	 * Sequence numbers of the slots: a slot at index {@code i} is free for
+	 * position {@code p} when its sequence is {@code p}, and holds the message
+	 * of position {@code p} when its sequence is {@code p + 1}.
+	 */
+	private final AtomicLongArray sequences;
+
+	/**
+	 * The next position to be claimed by a producer.
+	 */
+	private final AtomicLong tail;
+
+	/**
+	 * The next position to be consumed. Only changed while holding
+	 * {@code drainLock}.
+	 */
+	private volatile long head;
+
+	/**
+	 * Whether producers wait for space when the ring is full, instead of
+	 * dropping the message.
+	 */
+	private final boolean block;
+
+	/**
+	 * Monitor for the threads waiting for the dispatcher, and the dispatcher
+	 * waiting for messages.
+	 */
+	private final Object lock = new Object();
+
+	/**
+	 * Serializes the consumers: the dispatcher thread, and the producers
+	 * cleaning up after the dispatcher has stopped.
+	 */
+	private final Object drainLock = new Object();
+
+	/**
+	 * Whether the dispatcher thread is about to sleep or sleeping.
+	 */
+	private volatile boolean idle;
+
+	/**
+	 * The number of threads waiting for the dispatcher to make progress.
+	 * Only changed while holding {@code lock}.
+	 */
+	private volatile int waiting;
+
+	/**
+	 * Whether the dispatcher has been told to stop.
+	 */
+	private volatile boolean stopped;
+
+	/**
+	 * The dispatcher thread.
+	 */
+	private final Thread thread;
+
+	/**
+	 * Constructs and starts a new dispatcher.
+	 *
+	 * @param capacity
+	 *            the minimum number of messages the ring can hold; rounded up
+	 *            to a power of two.
+	 * @param block
+	 *            whether producers wait for space when the ring is full.
+	 */
+	LogDispatcher(int capacity, boolean block) {
+		if (capacity <= 0 || capacity > (1 << 30)) {
+			throw new IllegalArgumentException("invalid capacity: " + capacity);
+		}
+		int size = 1;
+		while (size < capacity) {
+			size <<= 1;
+		}
+		mask = size - 1;
+		levels = new LogLevel[size];
+		messages = new Object[size];
+		sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; ++i) {
+			sequences.set(i, i);
+		}
+		tail = new AtomicLong(0);
+		head = 0;
+		this.block = block;
+		idle = false;
+		waiting = 0;
+		stopped = false;
+		thread = new Thread(this, "Log dispatcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Queues the given message for the loggers.
+	 *
+	 * @param level
+	 *            the importance level of the message.
+	 * @param message
+	 *            the message.
+	 * @return {@code false} if the dispatcher has stopped and the message
+	 *         was not queued; {@code true} otherwise, including when the
+	 *         message was dropped because the ring was full or the calling
+	 *         thread was interrupted while waiting for space.
+	 */
+	boolean offer(LogLevel level, Object message) {
+		while (!stopped) {
+			if (publish(level, message)) {
+				if (stopped) {
+					// The dispatcher may be gone already
+					drain();
+				} else if (idle) {
+					wake();
+				}
+				return true;
+			}
+			if (!block || !await()) {
+				DROPPED.increment();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Waits until all messages queued before the call have been handed to the
+	 * loggers, or the calling thread is interrupted.
+	 */
+	void flush() {
+		long target = tail.get();
+		while (head < target && !stopped) {
+			if (!await()) {
+				return;
+			}
+		}
+		if (stopped) {
+			drain();
+		}
+	}
+
+	/**
+	 * Stops the dispatcher after handing the queued messages to the loggers.
+	 * Messages offered after this fail to queue.
+	 */
+	void stop() {
+		stopped = true;
+		wake();
+		if (Thread.currentThread() == thread) {
+			return;
+		}
+		try {
+			thread.join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		drain();
+	}
+
+	/**
+	 * The loop of the dispatcher thread.
+	 */
+	public void run() {
+		while (true) {
+			if (drain() > 0) {
+				if (waiting > 0) {
+					synchronized (lock) {
+						lock.notifyAll();
+					}
+				}
+				continue;
+			}
+			if (stopped) {
+				break;
+			}
+			synchronized (lock) {
+				idle = true;
+				try {
+					if (isEmpty() && !stopped) {
+						lock.wait(POLL_INTERVAL * 10);
+					}
+				} catch (InterruptedException e) {
+					// Nothing here
+				} finally {
+					idle = false;
+				}
+			}
+		}
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Tries to put the given message in the next free slot.
+	 *
+	 * @return {@code false} if the ring is full.
+	 */
+	private boolean publish(LogLevel level, Object message) {
+		long pos = tail.get();
+		while (true) {
+			int i = (int) pos & mask;
+			long diff = sequences.get(i) - pos;
+			if (diff == 0) {
+				if (tail.compareAndSet(pos, pos + 1)) {
+					levels[i] = level;
+					messages[i] = message;
+					sequences.set(i, pos + 1);
+					return true;
+				}
+				pos = tail.get();
+			} else if (diff < 0) {
+				return false;
+			} else {
+				// Another producer got there first
+				pos = tail.get();
+			}
+		}
+	}
+
+	/**
+	 * Hands the queued messages to the loggers, until the first slot that is
+	 * free or not yet filled by its producer.
+	 *
+	 * @return the number of messages handed over.
+	 */
+	private int drain() {
+		int count = 0;
+		synchronized (drainLock) {
+			long pos = head;
+			while (true) {
+				int i = (int) pos & mask;
+				if (sequences.get(i) != pos + 1) {
+					break;
+				}
+				LogLevel level = levels[i];
+				Object message = messages[i];
+				levels[i] = null;
+				messages[i] = null;
+				sequences.set(i, pos + mask + 1);
+				head = ++pos;
+				++count;
+				try {
+					Log.deliver(level, message);
+				} catch (RuntimeException e) {
+					// We don't have anyone to report this to...
+					e.printStackTrace();
+				}
+			}
+		}
+		return count;
+	}
+
+	/**
+	 * Checks whether there is no message to hand over at the head.
+	 */
+	private boolean isEmpty() {
+		long pos = head;
+		return sequences.get((int) pos & mask) != pos + 1;
+	}
+
+	/**
+	 * Wakes up the dispatcher thread.
+	 */
+	private void wake() {
+		synchronized (lock) {
+			lock.notifyAll();
+		}
+	}
+
+	/**
+	 * Waits a while for the dispatcher to make progress.
+	 *
+	 * @return {@code false} if the wait was interrupted.
+	 */
+	private boolean await() {
+		synchronized (lock) {
+			++waiting;
+			try {
+				if (idle) {
+					lock.notifyAll();
+				}
+				lock.wait(POLL_INTERVAL);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return false;
+			} finally {
+				--waiting;
+			}
+		}
+		return true;
+	}
+
+}
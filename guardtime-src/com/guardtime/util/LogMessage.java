@@ -0,0 +1,105 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.guardtime.util;
+
+/**
+ * A parameterized log message that is formatted only when it is first
+ * converted to a string, normally by the logger that consumes it.
+ * <p>
+ * Each <code>{}</code> in the pattern is replaced by the next parameter, in
+ * order; placeholders without a parameter are left as they are. The
+ * parameters are held by reference, so a mutable parameter changed before the
+ * message is consumed shows its new state.
+ */
+final class LogMessage {
+
+	/**
+	 * The message pattern.
+	 */
+	private final String pattern;
+
+	/**
+	 * The parameters of the message.
+	 */
+	private final Object[] params;
+
+	/**
+	 * The formatted message, once known.
+	 */
+	private String text;
+
+	/**
+	 * Constructs a new message.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param params
+	 *            the parameters of the message.
+	 */
+	LogMessage(String pattern, Object[] params) {
+		this.pattern = pattern;
+		this.params = params;
+		this.text = null;
+	}
+
+	/**
+	 * Formats the message.
+	 *
+	 * @return the message with the parameters filled in.
+	 */
+	public synchronized String toString() {
+		if (text == null) {
+			text = format(pattern, params);
+		}
+		return text;
+	}
+
+	/**
+	 * Replaces the placeholders in the given pattern with the parameters.
+	 *
+	 * @param pattern
+	 *            the message pattern.
+	 * @param params
+	 *            the parameters of the message.
+	 * @return the formatted message.
+	 */
+	static String format(String pattern, Object[] params) {
+		if (pattern == null) {
+			return "null";
+		}
+		StringBuffer buf = new StringBuffer(pattern.length() + 16 * params.length);
+		int start = 0;
+		for (int i = 0; i < params.length; ++i) {
+			int pos = pattern.indexOf("{}", start);
+			if (pos < 0) {
+				break;
+			}
+			buf.append(pattern, start, pos);
+			buf.append(params[i]);
+			start = pos + 2;
+		}
+		buf.append(pattern, start, pattern.length());
+		return buf.toString();
+	}
+
+}
@@ -0,0 +1,346 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.util;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * This abstract class manages the registry of metrics the SDK reports into.
+ * <p>
+ * The transport and verification components count their requests, bytes,
+ * errors and latencies into metrics registered here. An application can add
+ * its own metrics the same way, and export all of them with
+ * {@link #write(Writer)} in the Prometheus text exposition format, for
+ * example from an HTTP endpoint scraped by a Prometheus server.
+ * <p>
+ * Metrics are identified by name and an optional label. Asking for a metric
+ * that is registered already returns the existing one, so components can
+ * look up their metrics once, into static fields, and update them without
+ * going through the registry again.
+ *
+ * @since 0.4
+ */
+public abstract class Metrics {
+	/**
+	 * Content type of the output of {@link #write(Writer)}.
+	 */
+	public static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+	/**
+	 * Number of cells striped metrics spread their updates over; a power of
+	 * two.
+	 */
+	static final int STRIPES;
+
+	static {
+		int n = 1;
+		int cpus = Runtime.getRuntime().availableProcessors();
+		while (n < 2 * cpus && n < 64) {
+			n <<= 1;
+		}
+		STRIPES = n;
+	}
+
+	private static final String COUNTER = "counter";
+	private static final String GAUGE = "gauge";
+	private static final String HISTOGRAM = "histogram";
+
+	/**
+	 * Registered metric families, by name.
+	 * <p>
+	 * TODO: Replace the raw type with {@code TreeMap<String, Family>} when we
+	 * upgrade the platform requirements to JDK 1.5+.
+	 */
+	private static Map families = new TreeMap();
+
+
+
+	/**
+	 * Returns the counter with the given name, registering it if needed.
+	 *
+	 * @param name metric name.
+	 * @param help description of the metric.
+	 *
+	 * @return the counter.
+	 *
+	 * @throws IllegalArgumentException if the name is not valid, or a metric
+	 * 			of another type is registered with that name.
+	 */
+	public static Counter counter(String name, String help) {
+		return (Counter) get(COUNTER, name, help, null, null);
+	}
+
+	/**
+	 * Returns the counter with the given name and label, registering it if
+	 * needed.
+	 *
+	 * @param name metric name.
+	 * @param help description of the metric.
+	 * @param labelName label name.
+	 * @param labelValue label value.
+	 *
+	 * @return the counter.
+	 *
+	 * @throws IllegalArgumentException if the name or label is not valid, or
+	 * 			a metric of another type is registered with that name.
+	 */
+	public static Counter counter(String name, String help, String labelName, String labelValue) {
+		return (Counter) get(COUNTER, name, help, labelName, labelValue);
+	}
+
+	/**
+	 * Returns the gauge with the given name, registering it if needed.
+	 *
+	 * @param name metric name.
+	 * @param help description of the metric.
+	 *
+	 * @return the gauge.
+	 *
+	 * @throws IllegalArgumentException if the name is not valid, or a metric
+	 * 			of another type is registered with that name.
+	 */
+	public static Gauge gauge(String name, String help) {
+		return (Gauge) get(GAUGE, name, help, null, null);
+	}
+
+	/**
+	 * Returns the histogram with the given name, registering it if needed.
+	 *
+	 * @param name metric name.
+	 * @param help description of the metric.
+	 *
+	 * @return the histogram.
+	 *
+	 * @throws IllegalArgumentException if the name is not valid, or a metric
+	 * 			of another type is registered with that name.
+	 */
+	public static Histogram histogram(String name, String help) {
+		return (Histogram) get(HISTOGRAM, name, help, null, null);
+	}
+
+	/**
+	 * Returns the histogram with the given name and label, registering it if
+	 * needed.
+	 *
+	 * @param name metric name.
+	 * @param help description of the metric.
+	 * @param labelName label name.
+	 * @param labelValue label value.
+	 *
+	 * @return the histogram.
+	 *
+	 * @throws IllegalArgumentException if the name or label is not valid, or
+	 * 			a metric of another type is registered with that name.
+	 */
+	public static Histogram histogram(String name, String help, String labelName, String labelValue) {
+		return (Histogram) get(HISTOGRAM, name, help, labelName, labelValue);
+	}
+
+	/**
+	 * Writes all registered metrics in the Prometheus text exposition format,
+	 * version 0.0.4. Durations are written in seconds.
+	 *
+	 * @param out the writer to write to.
+	 *
+	 * @throws IOException if writing fails.
+	 */
+	public static void write(Writer out)
+	throws IOException {
+		StringBuffer sb = new StringBuffer();
+		synchronized (Metrics.class) {
+			for (Iterator i = families.values().iterator(); i.hasNext();) {
+				Family family = (Family) i.next();
+				family.write(sb);
+			}
+		}
+		out.write(sb.toString());
+		out.flush();
+	}
+
+
+
+	/**
+	 * Returns the metric with the given name and label, registering it if
+	 * needed.
+	 */
+	private static synchronized Object get(String type, String name, String help,
+			String labelName, String labelValue) {
+		if (!isValidName(name, true)) {
+			throw new IllegalArgumentException("invalid metric name: " + name);
+		}
+		if (labelName != null && (!isValidName(labelName, false) || labelName.equals("le"))) {
+			throw new IllegalArgumentException("invalid label name: " + labelName);
+		}
+		if (labelName != null && labelValue == null) {
+			throw new IllegalArgumentException("invalid label value: null");
+		}
+
+		Family family = (Family) families.get(name);
+		if (family == null) {
+			family = new Family(type, name, help);
+			families.put(name, family);
+		} else if (!family.type.equals(type)) {
+			throw new IllegalArgumentException("metric " + name + " is a " + family.type);
+		}
+
+		String labels = (labelName == null) ? "" : labelName + "=\"" + escape(labelValue, true) + "\"";
+		Object metric = family.children.get(labels);
+		if (metric == null) {
+			if (type.equals(COUNTER)) {
+				metric = new Counter();
+			} else if (type.equals(GAUGE)) {
+				metric = new Gauge();
+			} else {
+				metric = new Histogram();
+			}
+			family.children.put(labels, metric);
+		}
+		return metric;
+	}
+
+	/**
+	 * Returns the stripe index for the current thread.
+	 */
+	static int stripe() {
+		int h = System.identityHashCode(Thread.currentThread());
+		// Spread the bits, identity hashes are not well distributed
+		h ^= (h >>> 16);
+		h *= 0x45d9f3b;
+		h ^= (h >>> 16);
+		return h & (STRIPES - 1);
+	}
+
+	/**
+	 * Checks whether the given string is a valid metric or label name.
+	 */
+	private static boolean isValidName(String name, boolean allowColon) {
+		if (name == null || name.length() == 0) {
+			return false;
+		}
+		for (int i = 0; i < name.length(); ++i) {
+			char c = name.charAt(i);
+			boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_'
+					|| (allowColon && c == ':') || (i > 0 && c >= '0' && c <= '9');
+			if (!valid) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Escapes the given help text or label value.
+	 */
+	private static String escape(String s, boolean quotes) {
+		StringBuffer sb = new StringBuffer(s.length());
+		for (int i = 0; i < s.length(); ++i) {
+			char c = s.charAt(i);
+			if (c == '\\') {
+				sb.append("\\\\");
+			} else if (c == '\n') {
+				sb.append("\\n");
+			} else if (c == '"' && quotes) {
+				sb.append("\\\"");
+			} else {
+				sb.append(c);
+			}
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Formats the given duration in seconds.
+	 */
+	private static String seconds(long nanos) {
+		return Double.toString(nanos / 1e9);
+	}
+
+	/*
+	 * This is here just to clean up the public JavaDoc.
+	 */
+	private Metrics() {
+	}
+
+
+
+	/**
+	 * Metrics of the same name, with different label values.
+	 */
+	private static class Family {
+		final String type;
+		final String name;
+		final String help;
+		// Maps the rendered labels to the metric
+		final Map children;
+
+		Family(String type, String name, String help) {
+			this.type = type;
+			this.name = name;
+			this.help = (help == null) ? "" : help;
+			this.children = new TreeMap();
+		}
+
+		void write(StringBuffer sb) {
+			sb.append("# HELP ").append(name).append(' ').append(escape(help, false)).append('\n');
+			sb.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+			for (Iterator i = children.entrySet().iterator(); i.hasNext();) {
+				Map.Entry entry = (Map.Entry) i.next();
+				String labels = (String) entry.getKey();
+				Object metric = entry.getValue();
+				if (metric instanceof Counter) {
+					writeSample(sb, name, labels, Long.toString(((Counter) metric).get()));
+				} else if (metric instanceof Gauge) {
+					writeSample(sb, name, labels, Long.toString(((Gauge) metric).get()));
+				} else {
+					writeHistogram(sb, labels, (Histogram) metric);
+				}
+			}
+		}
+
+		private void writeHistogram(StringBuffer sb, String labels, Histogram histogram) {
+			// Take the sum first, so that it is never older than the counts
+			long sum = histogram.getSum();
+			long[] counts = histogram.getCounts();
+			String prefix = (labels.length() == 0) ? "" : labels + ",";
+			long cumulative = 0;
+			for (int i = 0; i < counts.length; ++i) {
+				cumulative += counts[i];
+				String le = (i < Histogram.BOUNDS.length) ? Double.toString(Histogram.BOUNDS[i]) : "+Inf";
+				writeSample(sb, name + "_bucket", prefix + "le=\"" + le + "\"", Long.toString(cumulative));
+			}
+			writeSample(sb, name + "_sum", labels, seconds(sum));
+			writeSample(sb, name + "_count", labels, Long.toString(cumulative));
+		}
+
+		private static void writeSample(StringBuffer sb, String name, String labels, String value) {
+			sb.append(name);
+			if (labels.length() > 0) {
+				sb.append('{').append(labels).append('}');
+			}
+			sb.append(' ').append(value).append('\n');
+		}
+	}
+}
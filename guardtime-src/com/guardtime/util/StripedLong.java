@@ -0,0 +1,85 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.util;
+
+
+
+/**
+ * Striped 64-bit sum used by the metric types.
+ * <p>
+ * Updates from different threads go to different cells as far as possible,
+ * so that threads updating the same metric on the hot path do not contend
+ * for one lock or cache line. Reading the value sums up the cells.
+ */
+final class StripedLong {
+	// Cells the updates are spread over
+	private final Cell[] cells;
+
+
+
+	/**
+	 * Default constructor.
+	 */
+	StripedLong() {
+		cells = new Cell[Metrics.STRIPES];
+		for (int i = 0; i < cells.length; ++i) {
+			cells[i] = new Cell();
+		}
+	}
+
+	/**
+	 * Adds the given value to the sum.
+	 *
+	 * @param delta the value to add; may be negative.
+	 */
+	void add(long delta) {
+		Cell cell = cells[Metrics.stripe()];
+		synchronized (cell) {
+			cell.value += delta;
+		}
+	}
+
+	/**
+	 * Returns the current sum.
+	 */
+	long get() {
+		long sum = 0;
+		for (int i = 0; i < cells.length; ++i) {
+			Cell cell = cells[i];
+			synchronized (cell) {
+				sum += cell.value;
+			}
+		}
+		return sum;
+	}
+
+
+
+	/**
+	 * One cell of the sum, padded to keep neighbouring cells off its cache
+	 * line.
+	 */
+	private static final class Cell {
+		long value;
+		long p1, p2, p3, p4, p5, p6, p7;
+	}
+}
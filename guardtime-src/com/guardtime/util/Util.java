@@ -269,8 +269,8 @@ public abstract class Util {
 	/**
 	 * Copies all available data from {@code in} to {@code out}.
 	 * <p>
-	 * Allocates a temporary memory buffer of {@link #DEFAULT_BUFFER_SIZE} bytes
-	 * for this.
+	 * Uses a temporary memory buffer of {@link #DEFAULT_BUFFER_SIZE} bytes from
+	 * the {@link BufferPool} for this.
 	 *
 	 * @param in
 	 *            input stream to copy data from.
@@ -291,8 +291,8 @@ public abstract class Util {
 	 * May copy less than {@code limit} bytes if {@code in} does not have that
 	 * much data available.
 	 * <p>
-	 * Allocates a temporary memory buffer of {@link #DEFAULT_BUFFER_SIZE} bytes
-	 * for this.
+	 * Uses a temporary memory buffer of {@link #DEFAULT_BUFFER_SIZE} bytes from
+	 * the {@link BufferPool} for this.
 	 *
 	 * @param in
 	 *            input stream to copy data from.
@@ -315,7 +315,8 @@ public abstract class Util {
 	 * May copy less than {@code limit} bytes if {@code in} does not have that
 	 * much data available.
 	 * <p>
-	 * Allocates a temporary memory buffer of {@code bufSize} bytes for this.
+	 * Uses a temporary memory buffer of {@code bufSize} bytes from the
+	 * {@link BufferPool} for this.
 	 *
 	 * @param in
 	 *            input stream to copy data from.
@@ -324,8 +325,8 @@ public abstract class Util {
 	 * @param limit
 	 *            maximum number of bytes to copy ({@code -1} to copy all bytes).
 	 * @param bufSize
-	 *            size of the buffer to allocate (larger buffer may speed up
-	 *            the process).
+	 *            size of the buffer to use (larger buffer may speed up the
+	 *            process).
 	 * @return the number of bytes actually copied.
 	 * @throws IOException
 	 *             if one is thrown by either {@code in} or {@code out}.
@@ -336,18 +337,22 @@ public abstract class Util {
 			throw new IllegalArgumentException("Invalid buffer size: " + bufSize);
 		}
 
-		byte buf[] = new byte[bufSize];
-		int total = 0;
-		while (limit < 0 || total < limit) {
-			int maxRead = ((limit < 0) ? buf.length : Math.min(limit - total, buf.length));
-			int count = in.read(buf, 0, maxRead);
-			if (count < 1) {
-				break;
+		byte buf[] = BufferPool.acquire(bufSize);
+		try {
+			int total = 0;
+			while (limit < 0 || total < limit) {
+				int maxRead = ((limit < 0) ? bufSize : Math.min(limit - total, bufSize));
+				int count = in.read(buf, 0, maxRead);
+				if (count < 1) {
+					break;
+				}
+				out.write(buf, 0, count);
+				total += count;
 			}
-			out.write(buf, 0, count);
-			total += count;
+			return total;
+		} finally {
+			BufferPool.release(buf);
 		}
-		return total;
 	}
 
 	/**
@@ -366,6 +371,9 @@ public abstract class Util {
 
 	/**
 	 * Reads all data from the given input stream using a buffer of the given size.
+	 * <p>
+	 * The data is collected in a {@link ChunkedByteSink} whose first chunk is
+	 * {@code bufSize} bytes, and copied once into the result at the end.
 	 *
 	 * @param in
 	 *            the stream to read from.
@@ -381,18 +389,14 @@ public abstract class Util {
 			throw new IllegalArgumentException("Invalid buffer size: " + bufSize);
 		}
 
-		byte[] res = new byte[0];
-		byte[] buf = new byte[bufSize];
-
-		int bytesRead;
-		while ((bytesRead = in.read(buf)) != -1) {
-			byte[] tmp = new byte[res.length + bytesRead];
-			System.arraycopy(res, 0, tmp, 0, res.length);
-			System.arraycopy(buf, 0, tmp, res.length, bytesRead);
-			res = tmp;
+		ChunkedByteSink sink = new ChunkedByteSink(bufSize);
+		try {
+			sink.readFrom(in);
+			in.close();
+			return sink.toByteArray();
+		} finally {
+			sink.release();
 		}
-		in.close();
-		return res;
 	}
 
 	/**
@@ -65,21 +65,36 @@ public abstract class All {
 		// `com.guardtime.tsp.*`
 		suite.addTestSuite(GTHashAlgorithmTest.class);
 		suite.addTestSuite(GTDataHashTest.class);
+		suite.addTestSuite(MultiDataHashTest.class);
 		suite.addTestSuite(GTTimestampTest.class);
 		suite.addTestSuite(GTTimestampResponseTest.class);
 		suite.addTestSuite(GTCertTokenResponseTest.class);
 		suite.addTestSuite(GTPublicationsFileTest.class);
+		suite.addTestSuite(GTHashTreeTest.class);
+		suite.addTestSuite(GTChunkManifestTest.class);
 
 		// `com.guardtime.util.*`
 		suite.addTestSuite(UtilTest.class);
 		suite.addTestSuite(BaseTest.class);
 		suite.addTestSuite(LogTest.class);
+		suite.addTestSuite(MetricsTest.class);
 
 		// `com.guardtime.transport.*`
+		suite.addTestSuite(AddressResolverTest.class);
+		suite.addTestSuite(CalendarMirrorTest.class);
+		suite.addTestSuite(CircuitBreakerTest.class);
+		suite.addTestSuite(ExtensionSchedulerTest.class);
+		suite.addTestSuite(GatewayPoolTest.class);
+		suite.addTestSuite(com.guardtime.transport.HpackTest.class);
+		suite.addTestSuite(com.guardtime.transport.RetryExchangeTest.class);
+		suite.addTestSuite(Http2ClientTest.class);
 		suite.addTestSuite(HttpClientTest.class);
 		suite.addTestSuite(HttpStamperTest.class);
+		suite.addTestSuite(LocalGatewayTest.class);
+		suite.addTestSuite(RequestLimiterTest.class);
 		suite.addTestSuite(SimpleHttpStamperTest.class);
 		suite.addTestSuite(SocketClientTest.class);
+		suite.addTestSuite(StampJournalTest.class);
 
 		// `com.guardtime.format.*`
 		suite.addTestSuite(FormatTest.class);
@@ -0,0 +1,270 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.guardtime.util.Base16;
+
+
+
+/**
+ * {@link Hpack} tests.
+ * <p>
+ * {@code Hpack} is package-private, so this test lives in its package. The
+ * header block vectors are from RFC 7541 Appendix C.
+ */
+public class HpackTest
+extends TestCase {
+	// C.3 and C.4: requests without and with Huffman coding
+	private static final String[] REQUESTS_PLAIN = {
+		"828684410f7777772e6578616d706c652e636f6d",
+		"828684be58086e6f2d6361636865",
+		"828785bf400a637573746f6d2d6b65790c637573746f6d2d76616c7565",
+	};
+	private static final String[] REQUESTS_HUFFMAN = {
+		"828684418cf1e3c2e5f23a6ba0ab90f4ff",
+		"828684be5886a8eb10649cbf",
+		"828785bf408825a849e95ba97d7f8925a849e95bb8e8b4bf",
+	};
+	private static final String[][][] REQUESTS = {
+		{ { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, { ":authority", "www.example.com" } },
+		{ { ":method", "GET" }, { ":scheme", "http" }, { ":path", "/" }, { ":authority", "www.example.com" },
+			{ "cache-control", "no-cache" } },
+		{ { ":method", "GET" }, { ":scheme", "https" }, { ":path", "/index.html" }, { ":authority", "www.example.com" },
+			{ "custom-key", "custom-value" } },
+	};
+
+	// C.6: responses with Huffman coding and a 256-octet table, with eviction
+	private static final String[] RESPONSES_HUFFMAN = {
+		"488264025885aec3771a4b6196d07abe941054d444a8200595040b8166e082a62d1bff"
+			+ "6e919d29ad171863c78f0b97c8e9ae82ae43d3",
+		"4883640effc1c0bf",
+		"88c16196d07abe941054d444a8200595040b8166e084a62d1bffc05a839bd9ab77ad94e7"
+			+ "821dd7f2e6c7b335dfdfcd5b3960d5af27087f3672c1ab270fb5291f9587316065c003ed"
+			+ "4ee5b1063d5007",
+	};
+	private static final String[][][] RESPONSES = {
+		{ { ":status", "302" }, { "cache-control", "private" }, { "date", "Mon, 21 Oct 2013 20:13:21 GMT" },
+			{ "location", "https://www.example.com" } },
+		{ { ":status", "307" }, { "cache-control", "private" }, { "date", "Mon, 21 Oct 2013 20:13:21 GMT" },
+			{ "location", "https://www.example.com" } },
+		{ { ":status", "200" }, { "cache-control", "private" }, { "date", "Mon, 21 Oct 2013 20:13:22 GMT" },
+			{ "location", "https://www.example.com" }, { "content-encoding", "gzip" },
+			{ "set-cookie", "foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1" } },
+	};
+
+
+
+	/**
+	 * Tests integer prefix coding against the C.1 examples, and round trips
+	 * around the prefix boundaries.
+	 */
+	public void testIntegers()
+	throws IOException {
+		assertEquals("0a", encodeInt(0, 5, 10));
+		assertEquals("1f9a0a", encodeInt(0, 5, 1337));
+		assertEquals("2a", encodeInt(0, 8, 42));
+
+		int[] values = { 0, 1, 30, 31, 32, 126, 127, 128, 254, 255, 256, 1337, 16383, 16384, 1 << 20, Integer.MAX_VALUE >> 4 };
+		for (int prefix = 4; prefix <= 8; ++prefix) {
+			for (int i = 0; i < values.length; ++i) {
+				ByteArrayOutputStream out = new ByteArrayOutputStream();
+				int flags = (0xff << prefix) & 0xff;
+				Hpack.writeInt(out, flags, prefix, values[i]);
+				byte[] block = out.toByteArray();
+				assertEquals(flags, block[0] & flags);
+				int[] pos = new int[] { 0 };
+				assertEquals(values[i], Hpack.readInt(block, pos, prefix));
+				assertEquals(block.length, pos[0]);
+			}
+		}
+
+		try {
+			Hpack.readInt(Base16.decode("1f9a"), new int[] { 0 }, 5);
+			fail("truncated integer accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+		try {
+			Hpack.readInt(Base16.decode("1fffffffffff01"), new int[] { 0 }, 5);
+			fail("oversized integer accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests Huffman coding against the C.4.1 example, round trips of all
+	 * octet values and rejection of bad padding.
+	 */
+	public void testHuffman()
+	throws IOException {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Hpack.writeString(out, "www.example.com");
+		assertEquals("8cf1e3c2e5f23a6ba0ab90f4ff", Base16.encode(out.toByteArray()).toLowerCase());
+
+		Random random = new Random(28);
+		for (int n = 0; n < 200; ++n) {
+			StringBuffer sb = new StringBuffer();
+			int length = random.nextInt(40);
+			for (int i = 0; i < length; ++i) {
+				// Mostly header-like text, sometimes any octet
+				sb.append((char) (random.nextInt(4) == 0 ? random.nextInt(256) : 'a' + random.nextInt(26)));
+			}
+			out = new ByteArrayOutputStream();
+			Hpack.writeString(out, sb.toString());
+			byte[] block = out.toByteArray();
+			int[] pos = new int[] { 0 };
+			assertEquals(sb.toString(), Hpack.readString(block, pos));
+			assertEquals(block.length, pos[0]);
+		}
+
+		// 'a' is 00011; padding with zeros instead of ones is invalid
+		try {
+			Hpack.readString(new byte[] { (byte) 0x81, 0x18 }, new int[] { 0 });
+			fail("zero padding accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+		// A whole octet of padding is too long
+		try {
+			Hpack.readString(new byte[] { (byte) 0x82, 0x1f, (byte) 0xff }, new int[] { 0 });
+			fail("long padding accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests decoding of the C.3 and C.4 request sequences, which share the
+	 * dynamic table of one decoder.
+	 */
+	public void testDecodeRequests()
+	throws IOException {
+		checkDecode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), REQUESTS_PLAIN, REQUESTS);
+		checkDecode(new Hpack.Decoder(Hpack.DEFAULT_TABLE_SIZE), REQUESTS_HUFFMAN, REQUESTS);
+	}
+
+	/**
+	 * Tests that the encoder produces exactly the C.4 request sequence.
+	 */
+	public void testEncodeRequests() {
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		for (int i = 0; i < REQUESTS.length; ++i) {
+			byte[] block = encoder.encode(toList(REQUESTS[i]), null);
+			assertEquals(REQUESTS_HUFFMAN[i], Base16.encode(block).toLowerCase());
+		}
+	}
+
+	/**
+	 * Tests decoding of the C.6 response sequence, where entries are evicted
+	 * from a 256-octet dynamic table, and that an evicted entry can no longer
+	 * be referred to.
+	 */
+	public void testEviction()
+	throws IOException {
+		Hpack.Decoder decoder = new Hpack.Decoder(256);
+		checkDecode(decoder, RESPONSES_HUFFMAN, RESPONSES);
+
+		// The table now holds 3 entries (indexes 62-64), so 65 is gone
+		String[] oldest = (String[]) decoder.decode(new byte[] { (byte) 0xc0 }).get(0);
+		assertEquals("date", oldest[0]);
+		assertEquals("Mon, 21 Oct 2013 20:13:22 GMT", oldest[1]);
+		try {
+			decoder.decode(new byte[] { (byte) 0xc1 });
+			fail("evicted entry still indexed");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests round trips through an encoder and decoder with a small table, so
+	 * that entries are evicted on both sides, and the table size update.
+	 */
+	public void testRoundTrip()
+	throws IOException {
+		Hpack.Encoder encoder = new Hpack.Encoder();
+		encoder.setMaxTableSize(150);
+		Hpack.Decoder decoder = new Hpack.Decoder(150);
+		String[] sensitive = { "authorization" };
+		for (int n = 0; n < 50; ++n) {
+			List headers = new ArrayList();
+			headers.add(new String[] { ":method", "POST" });
+			headers.add(new String[] { ":path", "/gt-signingservice/" + (n % 7) });
+			headers.add(new String[] { ":authority", "stamper" + (n % 3) + ".example.com" });
+			headers.add(new String[] { "content-length", Integer.toString(n * 31) });
+			headers.add(new String[] { "authorization", "secret" + n });
+			byte[] block = encoder.encode(headers, sensitive);
+			List decoded = decoder.decode(block);
+			assertEquals(headers.size(), decoded.size());
+			for (int i = 0; i < headers.size(); ++i) {
+				assertTrue(Arrays.equals((String[]) headers.get(i), (String[]) decoded.get(i)));
+			}
+		}
+
+		// A table size update over the announced limit is an error
+		try {
+			new Hpack.Decoder(100).decode(new byte[] { 0x3f, 0x56 });
+			fail("table size update over limit accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+
+
+	private static String encodeInt(int flags, int prefix, int value) {
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		Hpack.writeInt(out, flags, prefix, value);
+		return Base16.encode(out.toByteArray()).toLowerCase();
+	}
+
+	private static List toList(String[][] headers) {
+		List list = new ArrayList();
+		for (int i = 0; i < headers.length; ++i) {
+			list.add(headers[i]);
+		}
+		return list;
+	}
+
+	private static void checkDecode(Hpack.Decoder decoder, String[] blocks, String[][][] expected)
+	throws IOException {
+		for (int i = 0; i < blocks.length; ++i) {
+			List headers = decoder.decode(Base16.decode(blocks[i]));
+			assertEquals(expected[i].length, headers.size());
+			for (int j = 0; j < expected[i].length; ++j) {
+				String[] header = (String[]) headers.get(j);
+				assertEquals(expected[i][j][0], header[0]);
+				assertEquals(expected[i][j][1], header[1]);
+			}
+		}
+	}
+}
@@ -0,0 +1,102 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package com.guardtime.transport;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+
+import junit.framework.TestCase;
+
+import com.guardtime.util.Log;
+
+
+
+/**
+ * {@link RetryExchange} tests.
+ * <p>
+ * {@code RetryExchange} is package-private, so this test lives in its
+ * package.
+ */
+public class RetryExchangeTest
+extends TestCase {
+	private static final byte[] REQUEST = "GET / HTTP/1.0\r\n\r\n".getBytes();
+
+
+
+	/**
+	 * Tests that a retry sent from the timer thread is not held up by a
+	 * saturated request limiter, but fails at once.
+	 */
+	public void testRetryNotAdmitted()
+	throws Exception {
+		// Accepts connections and never answers
+		final ServerSocket server = new ServerSocket(0);
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					while (true) {
+						server.accept();
+					}
+				} catch (IOException e) {
+					Log.debug("[DBG] " + e.getMessage());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+
+		final SocketClient socketClient = new SocketClient();
+		socketClient.setLimiter(new RequestLimiter(0, 1));
+		socketClient.setAdmissionTimeout(0);
+		socketClient.start();
+		final int port = server.getLocalPort();
+		ResponseHandler held = socketClient.addRequest("localhost", port, REQUEST, 0);
+
+		RetryPolicy policy = new RetryPolicy();
+		policy.setMaxAttempts(2);
+		policy.setDelays(1, 1);
+		policy.setBudgetRatio(1);
+		final int[] attempts = new int[1];
+		RetryExchange exchange = new RetryExchange(new RetryExchange.Sender() {
+			public ResponseHandler send(long timeout)
+			throws IOException {
+				if (++attempts[0] == 1) {
+					throw new IOException("First attempt failed");
+				}
+				return socketClient.addRequest("localhost", port, REQUEST, timeout);
+			}
+		}, "test", policy, null, true, 0);
+		ResponseHandler result = exchange.start();
+		try {
+			result.receiveResponse(5000);
+			fail("Retry admitted over the limit");
+		} catch (IOException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+			assertTrue(e.getMessage().startsWith("Too many requests"));
+		}
+		assertEquals(2, attempts[0]);
+		assertEquals(1, socketClient.getLimiter().getInFlight());
+
+		held.cancel();
+		server.close();
+	}
+}
@@ -0,0 +1,196 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+import junit.framework.TestCase;
+
+import com.guardtime.transport.AddressResolver;
+import com.guardtime.util.Log;
+
+
+
+/**
+ * {@link AddressResolver} tests.
+ */
+public class AddressResolverTest
+extends TestCase {
+	private static final String KNOWN_HOST = "localhost";
+	private static final String UNKNOWN_HOST = "unknown-host.invalid";
+
+
+
+	/**
+	 * Tests {@link AddressResolver#lookup(String)} method.
+	 */
+	public void testLookup()
+	throws UnknownHostException {
+		AddressResolver resolver = new AddressResolver();
+
+		InetAddress[] addresses = resolver.lookup(KNOWN_HOST);
+		assertTrue(addresses.length > 0);
+
+		// Cached lookups rotate the addresses
+		InetAddress[] cached = resolver.lookup(KNOWN_HOST);
+		assertEquals(addresses.length, cached.length);
+		assertEquals(addresses[1 % addresses.length], cached[0]);
+
+		// Failed lookups are cached, too
+		try {
+			resolver.lookup(UNKNOWN_HOST);
+			fail(UNKNOWN_HOST + " resolved");
+		} catch (UnknownHostException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+		long start = System.currentTimeMillis();
+		try {
+			resolver.lookup(UNKNOWN_HOST);
+			fail(UNKNOWN_HOST + " resolved");
+		} catch (UnknownHostException e) {
+			assertTrue(System.currentTimeMillis() - start < 100);
+		}
+	}
+
+	/**
+	 * Tests {@link AddressResolver#lookup(String, AddressResolver.Callback)}
+	 * method.
+	 */
+	public void testAsyncLookup()
+	throws InterruptedException {
+		AddressResolver resolver = new AddressResolver();
+		final Object[] result = new Object[1];
+
+		AddressResolver.Callback callback = new AddressResolver.Callback() {
+			public void resolved(InetAddress[] addresses) {
+				synchronized (result) {
+					result[0] = addresses;
+					result.notifyAll();
+				}
+			}
+
+			public void failed(UnknownHostException error) {
+				synchronized (result) {
+					result[0] = error;
+					result.notifyAll();
+				}
+			}
+		};
+
+		synchronized (result) {
+			resolver.lookup(KNOWN_HOST, callback);
+			while (result[0] == null) {
+				result.wait();
+			}
+			assertTrue(result[0] instanceof InetAddress[]);
+
+			result[0] = null;
+			resolver.lookup(UNKNOWN_HOST, callback);
+			while (result[0] == null) {
+				result.wait();
+			}
+			assertTrue(result[0] instanceof UnknownHostException);
+		}
+	}
+
+	/**
+	 * Tests that stale addresses are still served when the background
+	 * refresh fails, and that the refresh is tried again later.
+	 */
+	public void testFailedRefresh()
+	throws Exception {
+		final InetAddress address = InetAddress.getByName("127.0.0.1");
+		final boolean[] failing = new boolean[1];
+		final int[] queries = new int[1];
+		AddressResolver resolver = new AddressResolver(50, 300) {
+			protected InetAddress[] query(String host)
+			throws UnknownHostException {
+				synchronized (queries) {
+					++queries[0];
+					queries.notifyAll();
+					if (failing[0]) {
+						throw new UnknownHostException(host);
+					}
+				}
+				return new InetAddress[] { address };
+			}
+		};
+
+		assertEquals(address, resolver.lookup(KNOWN_HOST)[0]);
+		Thread.sleep(100);
+
+		// The refresh fails, the stale address is kept
+		synchronized (queries) {
+			failing[0] = true;
+		}
+		assertEquals(address, resolver.lookup(KNOWN_HOST)[0]);
+		waitForQueries(queries, 2);
+		Thread.sleep(50);
+		assertEquals(address, resolver.lookup(KNOWN_HOST)[0]);
+		synchronized (queries) {
+			// Not tried again before the negative TTL has passed
+			assertEquals(2, queries[0]);
+			failing[0] = false;
+		}
+
+		Thread.sleep(300);
+		assertEquals(address, resolver.lookup(KNOWN_HOST)[0]);
+		waitForQueries(queries, 3);
+	}
+
+	/**
+	 * Tests {@link AddressResolver#setTtl(long)} and
+	 * {@link AddressResolver#setNegativeTtl(long)} methods.
+	 */
+	public void testTtl() {
+		AddressResolver resolver = new AddressResolver();
+		assertEquals(AddressResolver.DEFAULT_TTL, resolver.getTtl());
+		assertEquals(AddressResolver.DEFAULT_NEGATIVE_TTL, resolver.getNegativeTtl());
+
+		resolver.setTtl(0);
+		assertEquals(0, resolver.getTtl());
+
+		try {
+			resolver.setNegativeTtl(-1);
+			fail("Negative TTL accepted");
+		} catch (IllegalArgumentException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+	}
+
+
+
+	/**
+	 * Waits until the given number of name service queries have been made.
+	 */
+	private static void waitForQueries(int[] queries, int count)
+	throws InterruptedException {
+		long end = System.currentTimeMillis() + 5000;
+		synchronized (queries) {
+			while (queries[0] < count && System.currentTimeMillis() < end) {
+				queries.wait(100);
+			}
+			assertEquals(count, queries[0]);
+		}
+	}
+}
@@ -0,0 +1,155 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1InputStream;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+
+import com.guardtime.asn1.ContentInfo;
+import com.guardtime.asn1.TimeSignature;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.transport.CalendarMirror;
+
+
+
+/**
+ * {@link CalendarMirror} tests.
+ */
+public class CalendarMirrorTest
+extends TestCase {
+	private File file;
+
+
+
+	protected void setUp()
+	throws IOException {
+		file = File.createTempFile("calendar", ".mirror");
+		file.delete();
+	}
+
+	protected void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Tests that timestamps of a calendar second seen before are extended
+	 * without the extension service, also after reopening the mirror.
+	 */
+	public void testExtend()
+	throws Exception {
+		GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer("200 OK", 0);
+		server.setBody(getExtensionResponse());
+
+		CalendarMirror mirror = new CalendarMirror(file);
+		try {
+			GTTimestamp timestamp = GTTimestamp.getInstance(HttpStamperTest.TIMESTAMP);
+			assertFalse(mirror.extendLocally(timestamp));
+			assertSame(timestamp, mirror.extend(timestamp, server.getUrl()));
+			assertTrue(timestamp.isExtended());
+			assertEquals(1, server.getRequests());
+			assertEquals(1, mirror.size());
+
+			long historyId = timestamp.getRegisteredTime().getTime() / 1000;
+			assertEquals(1266192000L, mirror.getPublicationId(historyId));
+			assertEquals(-1, mirror.getPublicationId(historyId + 1));
+
+			timestamp = GTTimestamp.getInstance(HttpStamperTest.TIMESTAMP);
+			mirror.extend(timestamp, server.getUrl());
+			assertTrue(timestamp.isExtended());
+			assertEquals(1, server.getRequests());
+			assertEquals(1, mirror.getHitCount());
+			assertEquals(2, mirror.getMissCount());
+		} finally {
+			mirror.close();
+		}
+
+		// A record cut short at the end of the file is dropped
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		long length = raf.length();
+		raf.seek(length);
+		raf.write(new byte[] { 0, 0, 0, 0, 1, 2, 3 });
+		raf.close();
+
+		mirror = new CalendarMirror(file);
+		try {
+			assertEquals(1, mirror.size());
+			assertTrue(mirror.extendLocally(GTTimestamp.getInstance(HttpStamperTest.TIMESTAMP)));
+		} finally {
+			mirror.close();
+		}
+		assertEquals(length, file.length());
+	}
+
+	/**
+	 * Tests that other files are not taken for mirror files.
+	 */
+	public void testInvalidFile()
+	throws IOException {
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		raf.writeBytes("Tere\n");
+		raf.close();
+		try {
+			new CalendarMirror(file);
+			fail("Invalid mirror file accepted");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+
+
+	/**
+	 * Builds the extension service response for the sample timestamp from
+	 * the sample extended timestamp.
+	 */
+	static byte[] getExtensionResponse()
+	throws Exception {
+		ContentInfo contentInfo = ContentInfo.getInstance(new ByteArrayInputStream(SimpleHttpStamperTest.EXTENDED_TIMESTAMP));
+		TimeSignature signature = contentInfo.getContent().getSignerInfo().getSignature();
+
+		// CertToken ::= SEQUENCE { version, history, publishedData, pubReference }
+		ASN1EncodableVector token = new ASN1EncodableVector();
+		token.add(new ASN1Integer(1));
+		token.add(new DEROctetString(signature.getHistory()));
+		token.add(new ASN1InputStream(signature.getPublishedData().getDerEncoded()).readObject());
+		token.add(new DERSet());
+
+		// CertTokenResponse ::= SEQUENCE { status, [0] IMPLICIT certToken }
+		ASN1EncodableVector response = new ASN1EncodableVector();
+		response.add(new DERSequence(new ASN1Integer(0)));
+		response.add(new DERTaggedObject(false, 0, new DERSequence(token)));
+		return new DERSequence(response).getEncoded(ASN1Encoding.DER);
+	}
+}
@@ -0,0 +1,81 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import junit.framework.TestCase;
+
+import com.guardtime.transport.CircuitBreaker;
+
+
+
+/**
+ * {@link CircuitBreaker} tests.
+ */
+public class CircuitBreakerTest
+extends TestCase {
+	/**
+	 * Tests that consecutive failures open the breaker and successes reset
+	 * the count.
+	 */
+	public void testOpen() {
+		CircuitBreaker breaker = new CircuitBreaker(3, 10000);
+		breaker.recordFailure();
+		breaker.recordFailure();
+		breaker.recordSuccess();
+		assertEquals(0, breaker.getFailureCount());
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+
+		breaker.recordFailure();
+		breaker.recordFailure();
+		assertTrue(breaker.allowRequest());
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+		assertFalse(breaker.allowRequest());
+	}
+
+	/**
+	 * Tests the half-open probe.
+	 */
+	public void testProbe()
+	throws InterruptedException {
+		CircuitBreaker breaker = new CircuitBreaker(1, 50);
+		breaker.recordFailure();
+		assertFalse(breaker.allowRequest());
+		Thread.sleep(60);
+		assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+
+		// Only one probe at a time; a failed probe opens the breaker again
+		assertTrue(breaker.allowRequest());
+		assertFalse(breaker.allowRequest());
+		breaker.recordFailure();
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+
+		// An abandoned probe lets the next one through
+		Thread.sleep(60);
+		assertTrue(breaker.allowRequest());
+		breaker.recordAbandoned();
+		assertTrue(breaker.allowRequest());
+		breaker.recordSuccess();
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+		assertTrue(breaker.allowRequest());
+	}
+}
@@ -0,0 +1,251 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTPublicationsFile;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.transport.CalendarMirror;
+import com.guardtime.transport.ExtensionScheduler;
+
+
+
+/**
+ * {@link ExtensionScheduler} tests.
+ */
+public class ExtensionSchedulerTest
+extends TestCase {
+	// Registration time of the sample timestamp is 2010-02-11 08:05:51 UTC
+	private static final long BEFORE = 1262304000L; // 2010-01-01
+	private static final long AFTER = 1268611200L; // 2010-03-15
+
+
+
+	/**
+	 * Tests that timestamps are held back until a publication covers them.
+	 */
+	public void testRelease()
+	throws Exception {
+		GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer("200 OK", 0);
+		server.setBody(getFailureResponse(2));
+		ExtensionScheduler scheduler = new ExtensionScheduler(server.getUrl(), null);
+		Results results = new Results();
+		try {
+			scheduler.schedule(GTTimestamp.getInstance(HttpStamperTest.TIMESTAMP), results);
+			Thread.sleep(100);
+			assertEquals(0, server.getRequests());
+			assertEquals(1, scheduler.getPendingCount());
+
+			scheduler.setPublicationsFile(getPublicationsFile(BEFORE));
+			Thread.sleep(100);
+			assertEquals(0, server.getRequests());
+
+			scheduler.setPublicationsFile(getPublicationsFile(AFTER));
+			Object result = results.next(10000);
+			assertTrue(result instanceof GTException);
+			assertEquals(1, server.getRequests());
+			assertEquals(0, scheduler.getPendingCount());
+			assertEquals(1, scheduler.getFailedCount());
+		} finally {
+			scheduler.close();
+		}
+	}
+
+	/**
+	 * Tests that a timestamp the service finds too new is tried again at the
+	 * next publications file poll.
+	 */
+	public void testTooNew()
+	throws Exception {
+		GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer("200 OK", 0);
+		server.setBody(getFailureResponse(100));
+		GatewayPoolTest.TestServer publications = new GatewayPoolTest.TestServer("200 OK", 0);
+		publications.setBody(getPublicationsFile(AFTER).getEncoded());
+		ExtensionScheduler scheduler = new ExtensionScheduler(server.getUrl(), publications.getUrl());
+		scheduler.setPollInterval(100);
+		Results results = new Results();
+		try {
+			scheduler.schedule(GTTimestamp.getInstance(HttpStamperTest.TIMESTAMP), results);
+			Thread.sleep(550);
+			assertEquals(AFTER * 1000, scheduler.getLastPublicationTime().getTime());
+			assertTrue(publications.getRequests() >= 3);
+			assertTrue(server.getRequests() >= 3);
+			assertTrue(server.getRequests() <= publications.getRequests());
+			assertEquals(1, scheduler.getPendingCount());
+		} finally {
+			scheduler.close();
+		}
+		assertTrue(results.next(1000) instanceof IOException);
+	}
+
+	/**
+	 * Tests that a timestamp the service finds too new is tried again when a
+	 * newer publications file is handed over, with no publications file URL
+	 * to poll.
+	 */
+	public void testTooNewWithoutPolling()
+	throws Exception {
+		GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer("200 OK", 0);
+		server.setBody(getFailureResponse(100));
+		ExtensionScheduler scheduler = new ExtensionScheduler(server.getUrl(), null);
+		Results results = new Results();
+		try {
+			scheduler.schedule(GTTimestamp.getInstance(HttpStamperTest.TIMESTAMP), results);
+			scheduler.setPublicationsFile(getPublicationsFile(AFTER));
+			Thread.sleep(300);
+			assertEquals(1, server.getRequests());
+			assertEquals(1, scheduler.getPendingCount());
+			assertNull(results.next(0));
+
+			server.setBody(CalendarMirrorTest.getExtensionResponse());
+			scheduler.setPublicationsFile(getPublicationsFile(AFTER + 86400));
+			Object result = results.next(10000);
+			assertTrue(result instanceof GTTimestamp);
+			assertTrue(((GTTimestamp) result).isExtended());
+			assertEquals(2, server.getRequests());
+			assertEquals(0, scheduler.getPendingCount());
+		} finally {
+			scheduler.close();
+		}
+	}
+
+
+
+	/**
+	 * Tests that timestamps of the same second are extended with one request
+	 * when a calendar mirror is set.
+	 */
+	public void testCalendarMirror()
+	throws Exception {
+		GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer("200 OK", 0);
+		server.setBody(CalendarMirrorTest.getExtensionResponse());
+		File file = File.createTempFile("calendar", ".mirror");
+		file.delete();
+		CalendarMirror mirror = new CalendarMirror(file);
+		ExtensionScheduler scheduler = new ExtensionScheduler(server.getUrl(), null);
+		scheduler.setCalendarMirror(mirror);
+		scheduler.setMaxInFlight(1);
+		Results results = new Results();
+		try {
+			scheduler.schedule(GTTimestamp.getInstance(HttpStamperTest.TIMESTAMP), results);
+			scheduler.schedule(GTTimestamp.getInstance(HttpStamperTest.TIMESTAMP), results);
+			scheduler.setPublicationsFile(getPublicationsFile(AFTER));
+			for (int i = 0; i < 2; i++) {
+				GTTimestamp timestamp = (GTTimestamp) results.next(10000);
+				assertTrue(timestamp.isExtended());
+			}
+			assertEquals(1, server.getRequests());
+			assertEquals(2, scheduler.getExtendedCount());
+			assertEquals(1, mirror.getHitCount());
+		} finally {
+			scheduler.close();
+			mirror.close();
+			file.delete();
+		}
+	}
+
+
+
+	/**
+	 * Builds an extension service error response with the given fail code.
+	 */
+	private static byte[] getFailureResponse(int failCode) {
+		int n = failCode / 8 + 1;
+		byte[] failInfo = new byte[n + 3];
+		failInfo[0] = 0x03; // BIT STRING
+		failInfo[1] = (byte) (n + 1);
+		failInfo[2] = (byte) (n * 8 - failCode - 1);
+		failInfo[3 + failCode / 8] = (byte) (0x80 >> (failCode % 8));
+
+		// CertTokenResponse ::= SEQUENCE { status PKIStatusInfo }
+		int statusLength = 3 + failInfo.length;
+		byte[] response = new byte[4 + statusLength];
+		response[0] = 0x30;
+		response[1] = (byte) (2 + statusLength);
+		response[2] = 0x30;
+		response[3] = (byte) statusLength;
+		response[4] = 0x02; // INTEGER 2: rejection
+		response[5] = 0x01;
+		response[6] = 0x02;
+		System.arraycopy(failInfo, 0, response, 7, failInfo.length);
+		return response;
+	}
+
+	/**
+	 * Builds an unsigned publications file whose last publication was made
+	 * at the given time.
+	 */
+	private static GTPublicationsFile getPublicationsFile(long time) {
+		byte[] b = new byte[64];
+		b[1] = 1; // version
+		b[13] = 36; // publication block offset
+		b[15] = 8; // publication cell size
+		b[19] = 1; // publication count
+		b[23] = 44; // public key block offset
+		b[31] = 44; // publication references block offset
+		b[35] = 48; // signature block offset
+		for (int i = 0; i < 8; i++) {
+			b[36 + i] = (byte) (time >>> (56 - 8 * i));
+		}
+		return GTPublicationsFile.getInstance(b);
+	}
+
+
+
+	/**
+	 * Collects the outcomes reported to the callback.
+	 */
+	private static class Results
+	implements ExtensionScheduler.Callback {
+		private final List results = new ArrayList();
+
+		public synchronized void extended(GTTimestamp timestamp) {
+			results.add(timestamp);
+			notifyAll();
+		}
+
+		public synchronized void failed(GTTimestamp timestamp, Exception error) {
+			results.add(error);
+			notifyAll();
+		}
+
+		synchronized Object next(long timeout)
+		throws InterruptedException {
+			long end = System.currentTimeMillis() + timeout;
+			while (results.isEmpty()) {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) {
+					return null;
+				}
+				wait(remaining);
+			}
+			return results.remove(0);
+		}
+	}
+}
@@ -0,0 +1,185 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import com.guardtime.transport.GatewayPool;
+import com.guardtime.transport.HttpStamper;
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTHashAlgorithm;
+
+
+
+/**
+ * {@link GatewayPool} tests, against local HTTP servers.
+ */
+public class GatewayPoolTest
+extends TestCase {
+	private static final GTDataHash DATA_HASH = new GTDataHash(GTHashAlgorithm.DEFAULT).update("Tere".getBytes()).close();
+
+	/**
+	 * Tests that requests fail over to, and then prefer, a working gateway.
+	 */
+	public void testFailover()
+	throws IOException {
+		TestServer failing = new TestServer("500 Internal Server Error", 0);
+		TestServer working = new TestServer("200 OK", 0);
+		URL failingUrl = failing.getUrl();
+		URL workingUrl = working.getUrl();
+		GatewayPool pool = new GatewayPool(new URL[] { failingUrl, workingUrl });
+
+		for (int i = 0; i < 10; i++) {
+			byte[] response = pool.addTimestampRequest(DATA_HASH, 10000).receiveResponse(0);
+			assertEquals(workingUrl.toString(), getBody(response));
+		}
+		assertEquals(1, failing.getRequests());
+		assertEquals(10, working.getRequests());
+		assertEquals(0.0, pool.getErrorRate(workingUrl), 0.0);
+		assertTrue(pool.getErrorRate(failingUrl) > 0);
+		assertTrue(pool.getLatency(workingUrl) >= 0);
+		assertEquals(-1.0, pool.getLatency(failingUrl), 0.0);
+	}
+
+	/**
+	 * Tests that a hedged request to another gateway beats a slow one.
+	 */
+	public void testHedging()
+	throws IOException {
+		TestServer slow = new TestServer("200 OK", 5000);
+		TestServer fast = new TestServer("200 OK", 0);
+		GatewayPool pool = new GatewayPool(new URL[] { slow.getUrl(), fast.getUrl() });
+		pool.setHedgingEnabled(true);
+
+		long start = System.currentTimeMillis();
+		byte[] response = pool.addTimestampRequest(DATA_HASH, 10000).receiveResponse(0);
+		assertTrue(System.currentTimeMillis() - start < 5000);
+		assertEquals(fast.getUrl().toString(), getBody(response));
+		assertEquals(1, slow.getRequests());
+		assertEquals(1, fast.getRequests());
+	}
+
+	private static String getBody(byte[] response) {
+		String s = new String(response);
+		return s.substring(s.indexOf("\r\n\r\n") + 4);
+	}
+
+
+
+	/**
+	 * HTTP server that answers requests with the given statuses in turn,
+	 * repeating the last one, after the given delay. The body of the
+	 * responses is the server URL, unless set with {@link #setBody(byte[])}.
+	 */
+	static class TestServer
+	extends Thread {
+		private final ServerSocket serverSocket;
+		private final String[] statuses;
+		private final long delay;
+		private int requests;
+		private byte[] body;
+
+		TestServer(String status, long delay)
+		throws IOException {
+			this(new String[] { status }, delay);
+		}
+
+		TestServer(String[] statuses, long delay)
+		throws IOException {
+			this.serverSocket = new ServerSocket(0);
+			this.statuses = statuses;
+			this.delay = delay;
+			setDaemon(true);
+			start();
+		}
+
+		URL getUrl()
+		throws IOException {
+			return new URL("http://localhost:" + serverSocket.getLocalPort() + "/");
+		}
+
+		synchronized int getRequests() {
+			return requests;
+		}
+
+		synchronized void setBody(byte[] body) {
+			this.body = body;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					final String status;
+					synchronized (this) {
+						status = statuses[Math.min(requests, statuses.length - 1)];
+						++requests;
+					}
+					Thread t = new Thread() {
+						public void run() {
+							try {
+								serve(socket, status);
+							} catch (Exception e) {
+								// Client went away
+							}
+						}
+					};
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch (IOException e) {
+				// Server closed
+			}
+		}
+
+		private void serve(Socket socket, String status)
+		throws Exception {
+			// Read up to the end of request headers; the body is ignored
+			InputStream in = socket.getInputStream();
+			int state = 0;
+			while (state < 4) {
+				int c = in.read();
+				if (c < 0) {
+					return;
+				}
+				state = ((c == '\r' || c == '\n') ? state + 1 : 0);
+			}
+			Thread.sleep(delay);
+			OutputStream out = socket.getOutputStream();
+			byte[] content;
+			synchronized (this) {
+				content = ((body == null) ? getUrl().toString().getBytes() : body);
+			}
+			out.write(("HTTP/1.0 " + status + "\r\n\r\n").getBytes());
+			out.write(content);
+			out.flush();
+			socket.close();
+		}
+	}
+}
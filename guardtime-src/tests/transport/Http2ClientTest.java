@@ -0,0 +1,227 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import com.guardtime.transport.Http2Client;
+import com.guardtime.transport.HttpClient;
+import com.guardtime.transport.ResponseHandler;
+import com.guardtime.util.Log;
+import com.guardtime.util.Util;
+
+
+
+/**
+ * {@link Http2Client} tests, against a minimal local cleartext HTTP/2
+ * server.
+ */
+public class Http2ClientTest
+extends TestCase {
+	private static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes();
+
+	/**
+	 * Tests multiple parallel requests multiplexed over one connection.
+	 */
+	public void testMultipleRequests()
+	throws IOException {
+		TestServer server = new TestServer(false, false);
+		Http2Client client = new Http2Client();
+		client.setMaxConnections(1);
+		client.start();
+
+		int n = 20;
+		ResponseHandler[] responseHandlers = new ResponseHandler[n];
+		for (int i = 0; i < n; i++) {
+			URL url = new URL("http://localhost:" + server.getPort() + "/" + i);
+			responseHandlers[i] = client.addHttpRequest(url, ("Tere " + i).getBytes(), 10000);
+		}
+		for (int i = n - 1; i >= 0; i--) {
+			byte[] response = responseHandlers[i].receiveResponse(0);
+			assertTrue(new String(response).startsWith("HTTP/2.0 200\r\n"));
+			assertEquals("Tere " + i, new String(Util.readAll(HttpClient.getResponseContents(response))));
+		}
+		assertEquals(1, server.getConnections());
+	}
+
+	/**
+	 * Tests that a stream refused by the server is sent again.
+	 */
+	public void testRefusedStream()
+	throws IOException {
+		TestServer server = new TestServer(true, false);
+		Http2Client client = new Http2Client();
+		client.start();
+
+		URL url = new URL("http://localhost:" + server.getPort() + "/");
+		byte[] response = client.addHttpRequest(url, "Tere".getBytes(), 10000).receiveResponse(0);
+		assertEquals("Tere", new String(Util.readAll(HttpClient.getResponseContents(response))));
+	}
+
+	/**
+	 * Tests transaction timeout.
+	 */
+	public void testTimeout()
+	throws IOException {
+		TestServer server = new TestServer(false, true);
+		Http2Client client = new Http2Client();
+		client.start();
+
+		URL url = new URL("http://localhost:" + server.getPort() + "/");
+		try {
+			client.addHttpRequest(url, 100).receiveResponse(0);
+			fail("Transaction timeout not respected");
+		} catch (SocketTimeoutException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+	}
+
+
+
+	/**
+	 * Cleartext HTTP/2 server that answers every request with status 200 and
+	 * the request body. Request headers are not decoded.
+	 */
+	private static class TestServer
+	extends Thread {
+		private final ServerSocket serverSocket;
+		private final boolean refuseFirst;
+		private final boolean silent;
+		private int connections;
+
+		TestServer(boolean refuseFirst, boolean silent)
+		throws IOException {
+			this.serverSocket = new ServerSocket(0);
+			this.refuseFirst = refuseFirst;
+			this.silent = silent;
+			this.connections = 0;
+			setDaemon(true);
+			start();
+		}
+
+		int getPort() {
+			return serverSocket.getLocalPort();
+		}
+
+		synchronized int getConnections() {
+			return connections;
+		}
+
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					synchronized (this) {
+						++connections;
+					}
+					Thread t = new Thread() {
+						public void run() {
+							try {
+								serve(socket);
+							} catch (IOException e) {
+								// Client went away
+							}
+						}
+					};
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch (IOException e) {
+				// Server closed
+			}
+		}
+
+		private void serve(Socket socket)
+		throws IOException {
+			DataInputStream in = new DataInputStream(socket.getInputStream());
+			OutputStream out = socket.getOutputStream();
+			byte[] preface = new byte[PREFACE.length];
+			in.readFully(preface);
+			assertEquals(new String(PREFACE), new String(preface));
+
+			// SETTINGS_MAX_CONCURRENT_STREAMS = 4
+			writeFrame(out, 0x4, 0, 0, new byte[] { 0, 3, 0, 0, 0, 4 });
+
+			Map bodies = new HashMap();
+			boolean refused = false;
+			while (true) {
+				int length = (in.readUnsignedShort() << 8) | in.readUnsignedByte();
+				int type = in.readUnsignedByte();
+				int flags = in.readUnsignedByte();
+				int streamId = in.readInt() & 0x7fffffff;
+				byte[] payload = new byte[length];
+				in.readFully(payload);
+
+				Integer id = new Integer(streamId);
+				if (type == 0x4 && (flags & 0x1) == 0) {
+					// SETTINGS ack
+					writeFrame(out, 0x4, 0x1, 0, new byte[0]);
+					continue;
+				} else if (type == 0x1) {
+					// HEADERS
+					bodies.put(id, new ByteArrayOutputStream());
+				} else if (type == 0x0) {
+					// DATA
+					((ByteArrayOutputStream) bodies.get(id)).write(payload);
+				} else {
+					continue;
+				}
+				if ((flags & 0x1) == 0 || silent) {
+					continue;
+				}
+
+				byte[] body = ((ByteArrayOutputStream) bodies.remove(id)).toByteArray();
+				if (refuseFirst && !refused) {
+					// RST_STREAM, REFUSED_STREAM
+					refused = true;
+					writeFrame(out, 0x3, 0, streamId, new byte[] { 0, 0, 0, 7 });
+					continue;
+				}
+				// HEADERS with `:status: 200` from the static table
+				writeFrame(out, 0x1, 0x4, streamId, new byte[] { (byte) 0x88 });
+				writeFrame(out, 0x0, 0x1, streamId, body);
+			}
+		}
+
+		private static void writeFrame(OutputStream out, int type, int flags, int streamId, byte[] payload)
+		throws IOException {
+			byte[] header = new byte[] {
+					(byte) (payload.length >>> 16), (byte) (payload.length >>> 8), (byte) payload.length,
+					(byte) type, (byte) flags,
+					(byte) (streamId >>> 24), (byte) (streamId >>> 16), (byte) (streamId >>> 8), (byte) streamId };
+			out.write(header);
+			out.write(payload);
+			out.flush();
+		}
+	}
+}
@@ -27,8 +27,10 @@ import java.net.URL;
 
 import junit.framework.TestCase;
 
+import com.guardtime.transport.CircuitBreaker;
 import com.guardtime.transport.HttpStamper;
 import com.guardtime.transport.ResponseHandler;
+import com.guardtime.transport.RetryPolicy;
 import com.guardtime.tsp.GTCertTokenResponse;
 import com.guardtime.tsp.GTDataHash;
 import com.guardtime.tsp.GTException;
@@ -147,4 +149,73 @@ extends TestCase {
 			assertEquals(0, response.getStatusCode());
 		}
 	}
+
+	/**
+	 * Tests retries of idempotent requests.
+	 */
+	public void testRetry()
+	throws IOException {
+		HttpStamper stamper = HttpStamper.getInstance();
+		RetryPolicy original = stamper.getRetryPolicy();
+		try {
+			RetryPolicy policy = new RetryPolicy();
+			policy.setDelays(10, 50);
+			stamper.setRetryPolicy(policy);
+
+			// Publications file downloads are retried
+			GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer(
+					new String[] { "503 Service Unavailable", "502 Bad Gateway", "200 OK" }, 0);
+			byte[] response = stamper.addPublicationFileRequest(server.getUrl(), 10000).receiveResponse(0);
+			assertTrue(new String(response).startsWith("HTTP/1.0 200 OK"));
+			assertEquals(3, server.getRequests());
+			assertEquals(2, policy.getRetryCount());
+
+			// Timestamping requests are not, unless enabled
+			server = new GatewayPoolTest.TestServer(new String[] { "503 Service Unavailable", "200 OK" }, 0);
+			response = stamper.addTimestampRequest(DATA_HASH, server.getUrl(), 10000).receiveResponse(0);
+			assertTrue(new String(response).startsWith("HTTP/1.0 503"));
+			policy.setRetryStamping(true);
+			response = stamper.addTimestampRequest(DATA_HASH, server.getUrl(), 10000).receiveResponse(0);
+			assertTrue(new String(response).startsWith("HTTP/1.0 200 OK"));
+		} finally {
+			stamper.setRetryPolicy(original);
+		}
+	}
+
+	/**
+	 * Tests that the circuit breaker stops requests to a failing service.
+	 */
+	public void testCircuitBreaker()
+	throws IOException {
+		HttpStamper stamper = HttpStamper.getInstance();
+		GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer(
+				new String[] { "500 Internal Server Error", "500 Internal Server Error", "200 OK" }, 0);
+		URL url = server.getUrl();
+		CircuitBreaker breaker = new CircuitBreaker(2, 200);
+		stamper.setCircuitBreaker(url, breaker);
+		assertSame(breaker, stamper.getCircuitBreaker(url));
+
+		// Two failures open the breaker
+		stamper.addTimestampRequest(DATA_HASH, url, 10000).receiveResponse(0);
+		stamper.addTimestampRequest(DATA_HASH, url, 10000).receiveResponse(0);
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+		try {
+			stamper.addTimestampRequest(DATA_HASH, url, 10000).receiveResponse(0);
+			fail("Circuit breaker did not stop the request");
+		} catch (IOException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+		assertEquals(2, server.getRequests());
+
+		// A successful probe closes it again
+		try {
+			Thread.sleep(250);
+		} catch (InterruptedException e) {
+			// Nothing here
+		}
+		assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+		byte[] response = stamper.addTimestampRequest(DATA_HASH, url, 10000).receiveResponse(0);
+		assertTrue(new String(response).startsWith("HTTP/1.0 200 OK"));
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+	}
 }
@@ -0,0 +1,1292 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.math.BigInteger;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.KeyStore;
+import java.security.Security;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.bouncycastle.asn1.ASN1EncodableVector;
+import org.bouncycastle.asn1.ASN1Encoding;
+import org.bouncycastle.asn1.ASN1Integer;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.ASN1Primitive;
+import org.bouncycastle.asn1.ASN1Sequence;
+import org.bouncycastle.asn1.DERBitString;
+import org.bouncycastle.asn1.ASN1GeneralizedTime;
+import org.bouncycastle.asn1.DERNull;
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.DERSequence;
+import org.bouncycastle.asn1.DERSet;
+import org.bouncycastle.asn1.DERTaggedObject;
+import org.bouncycastle.asn1.cms.Attribute;
+import org.bouncycastle.asn1.cms.ContentInfo;
+import org.bouncycastle.asn1.cms.IssuerAndSerialNumber;
+import org.bouncycastle.asn1.cms.SignedData;
+import org.bouncycastle.asn1.cms.SignerIdentifier;
+import org.bouncycastle.asn1.cms.SignerInfo;
+import org.bouncycastle.asn1.tsp.Accuracy;
+import org.bouncycastle.asn1.tsp.TSTInfo;
+import org.bouncycastle.asn1.tsp.TimeStampReq;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.AlgorithmIdentifier;
+import org.bouncycastle.jce.provider.BouncyCastleProvider;
+import org.bouncycastle.x509.X509V1CertificateGenerator;
+
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTHashAlgorithm;
+
+
+
+/**
+ * Local stand-in for the GuardTime gateway, for offline end-to-end and load
+ * testing.
+ * <p>
+ * The gateway serves the signing, extending and publications file endpoints
+ * over HTTP/1.x on a local port, and keeps a calendar of its own so that the
+ * timestamps it issues are structurally complete and pass full verification:
+ * <ul>
+ * <li>signing requests are aggregated in rounds of {@link #getRoundTime()}
+ * milliseconds; every round is registered in one calendar second, and each of
+ * its timestamps gets a location chain to the round root, a history chain to
+ * the calendar root of that second, and a PK signature on the published data
+ * made with the gateway's test key;
+ * <li>extension requests get a history chain to the newest publication made
+ * by {@link #publish()}; timestamps newer than that are refused as too new;
+ * <li>the publications file lists all publications and the hash of the test
+ * key, and is signed with the same key; {@link #writeTrustStore(File)} gives
+ * a key store to verify it against.
+ * </ul>
+ * The calendar has a leaf for every second since the epoch. Seconds before the
+ * gateway was started and seconds without rounds are empty leaves with a fixed
+ * value, so only the seconds that had rounds take up memory.
+ * <p>
+ * When rounds are shorter than a second and requests keep coming, the rounds
+ * are registered in consecutive seconds and the registration times run ahead
+ * of the wall clock.
+ * <p>
+ * For load testing, the answers to signing and extension requests can be
+ * delayed by {@link #setLatency(long, long)}, and a share of those requests
+ * can be answered with an HTTP error or dropped without an answer. The random
+ * choices come from a generator seeded by {@link #setSeed(long)}, so that a
+ * run can be repeated.
+ * <p>
+ * The gateway can also be run on its own:
+ * <pre>
+ * java tests.transport.LocalGateway [port [publication interval [trust store]]]
+ * </pre>
+ */
+public class LocalGateway {
+	/**
+	 * Path of the signing endpoint.
+	 */
+	public static final String SIGNING_PATH = "/gt-signingservice";
+
+	/**
+	 * Path of the extending endpoint.
+	 */
+	public static final String EXTENDING_PATH = "/gt-extendingservice";
+
+	/**
+	 * Path of the publications file endpoint.
+	 */
+	public static final String PUBLICATIONS_PATH = "/gt-controlpublications.bin";
+
+	/**
+	 * The default aggregation round length, in milliseconds.
+	 */
+	public static final long DEFAULT_ROUND_TIME = 1000;
+
+	/**
+	 * The default HTTP status of injected errors.
+	 */
+	public static final String DEFAULT_ERROR_STATUS = "503 Service Unavailable";
+
+	private static final String SIGNED_DATA_OID = "1.2.840.113549.1.7.2";
+	private static final String DATA_OID = "1.2.840.113549.1.7.1";
+	private static final String POLICY_OID = "1.3.6.1.4.1.27868.2.1.1";
+	private static final String RSA_OID = "1.2.840.113549.1.1.1";
+	private static final String SHA256_WITH_RSA_OID = "1.2.840.113549.1.1.11";
+	private static final String SUBJECT = "CN=Local Gateway, O=GuardTime AS, EMAILADDRESS=publications@guardtime.com";
+
+	// Level byte of the calendar hash steps
+	private static final int CALENDAR_LEVEL = 0xFF;
+
+	// Failure code for extension requests newer than the last publication
+	private static final int FAIL_TOO_NEW = 100;
+
+	private static final GTHashAlgorithm HASH_ALGORITHM = GTHashAlgorithm.SHA256;
+
+	// Imprint of an empty calendar leaf or a missing aggregation tree node
+	private static final byte[] EMPTY = new byte[1 + HASH_ALGORITHM.getHashLength()];
+	static {
+		EMPTY[0] = (byte) HASH_ALGORITHM.getGtid();
+	}
+
+	private final ServerSocket serverSocket;
+	private final KeyPair keyPair;
+	private final X509Certificate certificate;
+	private final long startTime;
+
+	// Imprints of the roots of all-empty calendar subtrees, by height
+	private final byte[][] emptyNodes;
+	// Maps a second to the imprint of its calendar leaf, for seconds with rounds
+	private final TreeMap leaves;
+	// Imprints of the calendar subtrees computed so far
+	private final Map nodes;
+	// Last second of the calendar that is final
+	private long lastSecond;
+	// Whether a round has taken a second but not added its leaf yet
+	private boolean sealing;
+	// Publication times, in seconds, and the matching calendar root imprints
+	private final List publicationTimes;
+	private final List publicationImprints;
+	private byte[] publicationsFile;
+
+	// The round collecting requests
+	private Round round;
+	private long serialNumber;
+	private boolean closed;
+
+	private long roundTime;
+	private long minLatency;
+	private long maxLatency;
+	private double errorRate;
+	private double dropRate;
+	private String errorStatus;
+	private final Random random;
+
+	private long signedCount;
+	private long extendedCount;
+	private long errorCount;
+
+
+
+	/**
+	 * Default constructor.
+	 * <p>
+	 * Starts a gateway on an ephemeral port.
+	 *
+	 * @throws IOException if the port can not be opened.
+	 * @throws GeneralSecurityException if the test key can not be generated.
+	 */
+	public LocalGateway()
+	throws IOException, GeneralSecurityException {
+		this(0);
+	}
+
+	/**
+	 * Class constructor.
+	 * <p>
+	 * Generates a test key, makes the first publication and starts serving.
+	 *
+	 * @param port the port to listen on; {@code 0} for an ephemeral port.
+	 *
+	 * @throws IOException if the port can not be opened.
+	 * @throws GeneralSecurityException if the test key can not be generated.
+	 */
+	public LocalGateway(int port)
+	throws IOException, GeneralSecurityException {
+		if (Security.getProvider(BouncyCastleProvider.PROVIDER_NAME) == null) {
+			Security.addProvider(new BouncyCastleProvider());
+		}
+
+		startTime = System.currentTimeMillis();
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		keyPair = generator.generateKeyPair();
+
+		certificate = createCertificate(keyPair, startTime);
+
+		emptyNodes = new byte[64][];
+		emptyNodes[0] = EMPTY;
+		for (int i = 1; i < emptyNodes.length; ++i) {
+			emptyNodes[i] = combine(emptyNodes[i - 1], emptyNodes[i - 1], CALENDAR_LEVEL);
+		}
+		leaves = new TreeMap();
+		nodes = new HashMap();
+		lastSecond = startTime / 1000 - 1;
+		sealing = false;
+		publicationTimes = new ArrayList();
+		publicationImprints = new ArrayList();
+		publish();
+
+		round = new Round();
+		serialNumber = 0;
+		closed = false;
+		roundTime = DEFAULT_ROUND_TIME;
+		minLatency = 0;
+		maxLatency = 0;
+		errorRate = 0;
+		dropRate = 0;
+		errorStatus = DEFAULT_ERROR_STATUS;
+		random = new Random();
+
+		serverSocket = new ServerSocket(port);
+		Thread acceptor = new Thread(new Acceptor(), "LocalGateway");
+		acceptor.setDaemon(true);
+		acceptor.start();
+		Thread sealer = new Thread(new Sealer(), "LocalGateway-rounds");
+		sealer.setDaemon(true);
+		sealer.start();
+	}
+
+	/**
+	 * Creates a self-signed certificate for the given key pair, valid from a
+	 * day before the given time for a year.
+	 */
+	// X509V1CertificateGenerator is deprecated in favour of the certificate
+	// builders in the bcpkix library, which the SDK does not depend on
+	@SuppressWarnings("deprecation")
+	private static X509Certificate createCertificate(KeyPair keyPair, long time)
+	throws GeneralSecurityException {
+		X509V1CertificateGenerator certGenerator = new X509V1CertificateGenerator();
+		certGenerator.setSerialNumber(BigInteger.valueOf(time));
+		certGenerator.setIssuerDN(new X500Principal(SUBJECT));
+		certGenerator.setSubjectDN(new X500Principal(SUBJECT));
+		certGenerator.setNotBefore(new Date(time - 86400000L));
+		certGenerator.setNotAfter(new Date(time + 365 * 86400000L));
+		certGenerator.setPublicKey(keyPair.getPublic());
+		certGenerator.setSignatureAlgorithm("SHA256WithRSAEncryption");
+		return certGenerator.generate(keyPair.getPrivate());
+	}
+
+	/**
+	 * Runs the gateway until the process is killed.
+	 * <pre>
+	 * java tests.transport.LocalGateway [port [publication interval [trust store]]]
+	 * </pre>
+	 *
+	 * @param args the port to listen on, an ephemeral port if not given or
+	 * 			{@code 0}; the interval between publications, in seconds,
+	 * 			{@code 60} if not given; the file to write a trust store for
+	 * 			the publications file to, if given.
+	 */
+	public static void main(String[] args)
+	throws Exception {
+		LocalGateway gateway = new LocalGateway(args.length > 0 ? Integer.parseInt(args[0]) : 0);
+		long interval = (args.length > 1 ? Long.parseLong(args[1]) : 60) * 1000;
+		if (args.length > 2) {
+			gateway.writeTrustStore(new File(args[2]));
+		}
+		System.out.println("Signing:      " + gateway.getSigningUrl());
+		System.out.println("Extending:    " + gateway.getExtendingUrl());
+		System.out.println("Publications: " + gateway.getPublicationsUrl());
+		while (true) {
+			Thread.sleep(interval);
+			gateway.publish();
+		}
+	}
+
+
+
+	/**
+	 * Returns the URL of the signing endpoint.
+	 */
+	public URL getSigningUrl()
+	throws IOException {
+		return getUrl(SIGNING_PATH);
+	}
+
+	/**
+	 * Returns the URL of the extending endpoint.
+	 */
+	public URL getExtendingUrl()
+	throws IOException {
+		return getUrl(EXTENDING_PATH);
+	}
+
+	/**
+	 * Returns the URL of the publications file endpoint.
+	 */
+	public URL getPublicationsUrl()
+	throws IOException {
+		return getUrl(PUBLICATIONS_PATH);
+	}
+
+	/**
+	 * Returns the certificate of the test key.
+	 */
+	public X509Certificate getCertificate() {
+		return certificate;
+	}
+
+	/**
+	 * Writes a JKS key store that trusts the certificate of the test key, for
+	 * verifying the publications file signature with
+	 * {@code GTPublicationsFile.verifySignature(String)}.
+	 *
+	 * @param file the key store file to write.
+	 */
+	public void writeTrustStore(File file)
+	throws IOException, GeneralSecurityException {
+		KeyStore keyStore = KeyStore.getInstance("JKS");
+		keyStore.load(null, null);
+		keyStore.setCertificateEntry("localgateway", certificate);
+		OutputStream out = new FileOutputStream(file);
+		try {
+			keyStore.store(out, new char[0]);
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Stops serving. Requests waiting for their round are answered by closing
+	 * the connection.
+	 */
+	public void close()
+	throws IOException {
+		Round r;
+		synchronized (this) {
+			closed = true;
+			r = round;
+			notifyAll();
+		}
+		r.seal();
+		serverSocket.close();
+	}
+
+
+
+	/**
+	 * Returns the aggregation round length.
+	 *
+	 * @return round length, in milliseconds.
+	 */
+	public synchronized long getRoundTime() {
+		return roundTime;
+	}
+
+	/**
+	 * Sets the aggregation round length. A round starts with its first request,
+	 * so an idle gateway has no rounds.
+	 *
+	 * @param roundTime round length, in milliseconds.
+	 */
+	public synchronized void setRoundTime(long roundTime) {
+		if (roundTime < 0) {
+			throw new IllegalArgumentException("invalid round time: " + roundTime);
+		}
+		this.roundTime = roundTime;
+		notifyAll();
+	}
+
+	/**
+	 * Sets the delay added to the answers of signing and extension requests.
+	 * Each delay is drawn uniformly from the given range; signing requests
+	 * are delayed on top of the wait for the end of their round.
+	 *
+	 * @param minLatency minimum delay, in milliseconds.
+	 * @param maxLatency maximum delay, in milliseconds.
+	 */
+	public synchronized void setLatency(long minLatency, long maxLatency) {
+		if (minLatency < 0 || maxLatency < minLatency) {
+			throw new IllegalArgumentException("invalid latency: " + minLatency + ".." + maxLatency);
+		}
+		this.minLatency = minLatency;
+		this.maxLatency = maxLatency;
+	}
+
+	/**
+	 * Sets the share of signing and extension requests that are answered with
+	 * an HTTP error.
+	 *
+	 * @param errorRate share of requests, between {@code 0} and {@code 1}.
+	 */
+	public synchronized void setErrorRate(double errorRate) {
+		if (!(errorRate >= 0 && errorRate <= 1)) {
+			throw new IllegalArgumentException("invalid error rate: " + errorRate);
+		}
+		this.errorRate = errorRate;
+	}
+
+	/**
+	 * Sets the HTTP status of the injected errors.
+	 *
+	 * @param errorStatus status code and reason phrase, e.g.
+	 * 			{@code "500 Internal Server Error"}.
+	 */
+	public synchronized void setErrorStatus(String errorStatus) {
+		if (errorStatus == null) {
+			throw new IllegalArgumentException("invalid error status: null");
+		}
+		this.errorStatus = errorStatus;
+	}
+
+	/**
+	 * Sets the share of signing and extension requests whose connection is
+	 * closed without an answer.
+	 *
+	 * @param dropRate share of requests, between {@code 0} and {@code 1}.
+	 */
+	public synchronized void setDropRate(double dropRate) {
+		if (!(dropRate >= 0 && dropRate <= 1)) {
+			throw new IllegalArgumentException("invalid drop rate: " + dropRate);
+		}
+		this.dropRate = dropRate;
+	}
+
+	/**
+	 * Seeds the generator of the latencies and injected faults.
+	 *
+	 * @param seed the seed.
+	 */
+	public synchronized void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+
+	/**
+	 * Returns the number of timestamps issued.
+	 */
+	public synchronized long getSignedCount() {
+		return signedCount;
+	}
+
+	/**
+	 * Returns the number of timestamps extended.
+	 */
+	public synchronized long getExtendedCount() {
+		return extendedCount;
+	}
+
+	/**
+	 * Returns the number of requests answered with an injected error or
+	 * dropped.
+	 */
+	public synchronized long getErrorCount() {
+		return errorCount;
+	}
+
+
+
+	/**
+	 * Makes a publication of the calendar as of the previous second, or as of
+	 * the last round if that is later.
+	 *
+	 * @return the publication time.
+	 */
+	public synchronized Date publish() {
+		while (sealing) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				// Nothing here
+			}
+		}
+		lastSecond = Math.max(lastSecond, System.currentTimeMillis() / 1000 - 1);
+		int n = publicationTimes.size();
+		if (n == 0 || ((Long) publicationTimes.get(n - 1)).longValue() != lastSecond) {
+			publicationTimes.add(new Long(lastSecond));
+			publicationImprints.add(getCalendarRoot(lastSecond));
+			publicationsFile = null;
+		}
+		return new Date(lastSecond * 1000);
+	}
+
+	/**
+	 * Returns the publications file with all publications made so far.
+	 *
+	 * @return the signed publications file.
+	 */
+	public synchronized byte[] getPublicationsFile()
+	throws IOException, GeneralSecurityException {
+		if (publicationsFile != null) {
+			return publicationsFile;
+		}
+
+		int cellSize = 8 + EMPTY.length;
+		int count = publicationTimes.size();
+		int keyBlockBegin = 36 + cellSize * count;
+		int referencesBegin = keyBlockBegin + cellSize;
+		int signatureBegin = referencesBegin + 2;
+
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		writeShort(out, 1); // version
+		writeLong(out, startTime / 1000); // creation time
+		writeInt(out, 36);
+		writeShort(out, cellSize);
+		writeInt(out, count);
+		writeInt(out, keyBlockBegin);
+		writeShort(out, cellSize);
+		writeShort(out, 1);
+		writeInt(out, referencesBegin);
+		writeInt(out, signatureBegin);
+		for (int i = 0; i < count; ++i) {
+			writeLong(out, ((Long) publicationTimes.get(i)).longValue());
+			out.write((byte[]) publicationImprints.get(i));
+		}
+		writeLong(out, startTime / 1000);
+		out.write(imprint(keyPair.getPublic().getEncoded()));
+		writeShort(out, 0); // no publication references
+
+		// Detached PKCS#7 signature on everything above
+		byte[] data = out.toByteArray();
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(keyPair.getPrivate());
+		signature.update(data);
+		SignerInfo signerInfo = new SignerInfo(
+				getSignerIdentifier(),
+				getAlgorithm(HASH_ALGORITHM.getOid()),
+				null,
+				getAlgorithm(RSA_OID),
+				new DEROctetString(signature.sign()),
+				null);
+		SignedData signedData = new SignedData(
+				new DERSet(getAlgorithm(HASH_ALGORITHM.getOid())),
+				new ContentInfo(new ASN1ObjectIdentifier(DATA_OID), null),
+				new DERSet(ASN1Primitive.fromByteArray(certificate.getEncoded())),
+				null,
+				new DERSet(signerInfo));
+		out.write(new ContentInfo(new ASN1ObjectIdentifier(SIGNED_DATA_OID), signedData).getEncoded(ASN1Encoding.DER));
+
+		publicationsFile = out.toByteArray();
+		return publicationsFile;
+	}
+
+
+
+	/**
+	 * Answers a signing request once its round has been sealed.
+	 *
+	 * @param body the DER-encoded {@code TimeStampReq}.
+	 *
+	 * @return the DER-encoded {@code TimeStampResp}.
+	 *
+	 * @throws IOException if the gateway was closed before the round ended.
+	 */
+	private byte[] sign(byte[] body)
+	throws IOException {
+		Request request = new Request(TimeStampReq.getInstance(ASN1Primitive.fromByteArray(body)));
+		Round r;
+		synchronized (this) {
+			if (closed) {
+				throw new EOFException("gateway closed");
+			}
+			r = round;
+			r.add(request);
+			notifyAll();
+		}
+		r.waitSealed();
+		if (request.response == null) {
+			throw new EOFException("gateway closed");
+		}
+		return request.response;
+	}
+
+	/**
+	 * Answers an extension request with a history chain to the newest
+	 * publication.
+	 *
+	 * @param body the DER-encoded {@code CertTokenRequest}.
+	 *
+	 * @return the DER-encoded {@code CertTokenResponse}.
+	 */
+	private byte[] extend(byte[] body)
+	throws IOException {
+		ASN1Sequence request = ASN1Sequence.getInstance(ASN1Primitive.fromByteArray(body));
+		long historyId = ASN1Integer.getInstance(request.getObjectAt(1)).getValue().longValue();
+
+		byte[] history;
+		long publicationId;
+		byte[] publicationImprint;
+		synchronized (this) {
+			int n = publicationTimes.size();
+			publicationId = ((Long) publicationTimes.get(n - 1)).longValue();
+			if (historyId < 0 || historyId > publicationId) {
+				return getFailureResponse(FAIL_TOO_NEW);
+			}
+			publicationImprint = (byte[]) publicationImprints.get(n - 1);
+			history = getHistoryChain(historyId, publicationId);
+			++extendedCount;
+		}
+
+		// CertToken ::= SEQUENCE { version, history, publishedData, pubReference }
+		ASN1EncodableVector token = new ASN1EncodableVector();
+		token.add(new ASN1Integer(1));
+		token.add(new DEROctetString(history));
+		token.add(getPublishedData(publicationId, publicationImprint));
+		token.add(new DERSet());
+
+		// CertTokenResponse ::= SEQUENCE { status, [0] IMPLICIT certToken }
+		ASN1EncodableVector response = new ASN1EncodableVector();
+		response.add(new DERSequence(new ASN1Integer(0)));
+		response.add(new DERTaggedObject(false, 0, new DERSequence(token)));
+		return new DERSequence(response).getEncoded(ASN1Encoding.DER);
+	}
+
+	/**
+	 * Registers the given round in the next free calendar second and makes
+	 * the timestamps of its requests.
+	 */
+	private void seal(Round r)
+	throws IOException, GeneralSecurityException {
+		List requests = r.getRequests();
+		int n = requests.size();
+		long second;
+		long firstSerial;
+		synchronized (this) {
+			second = Math.max(lastSecond + 1, System.currentTimeMillis() / 1000);
+			lastSecond = second;
+			sealing = true;
+			firstSerial = serialNumber;
+			serialNumber += n;
+		}
+
+		// Signed attributes of the timestamps, and the aggregation tree leaves
+		ASN1GeneralizedTime genTime = new ASN1GeneralizedTime(new Date(second * 1000));
+		byte[][] tstInfos = new byte[n][];
+		DERSet[] signedAttrs = new DERSet[n];
+		byte[][] tree = new byte[n][];
+		for (int i = 0; i < n; ++i) {
+			Request request = (Request) requests.get(i);
+			TSTInfo tstInfo = new TSTInfo(
+					new ASN1ObjectIdentifier(POLICY_OID),
+					request.messageImprint,
+					new ASN1Integer(BigInteger.valueOf(firstSerial + i)),
+					genTime,
+					new Accuracy(new ASN1Integer(1), null, null),
+					null,
+					request.nonce,
+					null,
+					null);
+			tstInfos[i] = tstInfo.getEncoded(ASN1Encoding.DER);
+			ASN1EncodableVector attrs = new ASN1EncodableVector();
+			attrs.add(new Attribute(
+					new ASN1ObjectIdentifier(com.guardtime.asn1.SignerInfo.CONTENT_TYPE_ID),
+					new DERSet(new ASN1ObjectIdentifier(com.guardtime.asn1.SignerInfo.CONTENT_TYPE))));
+			attrs.add(new Attribute(
+					new ASN1ObjectIdentifier(com.guardtime.asn1.SignerInfo.MESSAGE_DIGEST_ID),
+					new DERSet(new DEROctetString(new GTDataHash(HASH_ALGORITHM).update(tstInfos[i]).getHashedMessage()))));
+			signedAttrs[i] = new DERSet(attrs);
+			byte[] input = imprint(signedAttrs[i].getEncoded(ASN1Encoding.DER));
+			tree[i] = imprint(input);
+		}
+
+		// Aggregation tree, built up level by level while collecting the
+		// location chains; a missing right sibling is taken to be empty
+		ByteArrayOutputStream[] locations = new ByteArrayOutputStream[n];
+		for (int i = 0; i < n; ++i) {
+			locations[i] = new ByteArrayOutputStream();
+		}
+		int level = 0;
+		while (tree.length > 1 || level == 0) {
+			++level;
+			byte[][] parents = new byte[(tree.length + 1) / 2][];
+			for (int j = 0; j < parents.length; ++j) {
+				byte[] right = (2 * j + 1 < tree.length ? tree[2 * j + 1] : EMPTY);
+				parents[j] = combine(tree[2 * j], right, level);
+			}
+			for (int i = 0; i < n; ++i) {
+				int index = (i >> (level - 1));
+				if ((index & 1) == 0) {
+					byte[] sibling = (index + 1 < tree.length ? tree[index + 1] : EMPTY);
+					writeStep(locations[i], 1, sibling, level);
+				} else {
+					writeStep(locations[i], 0, tree[index - 1], level);
+				}
+			}
+			tree = parents;
+		}
+
+		// Calendar
+		byte[] history;
+		byte[] publicationImprint;
+		synchronized (this) {
+			leaves.put(new Long(second), tree[0]);
+			history = getHistoryChain(second, second);
+			publicationImprint = getCalendarRoot(second);
+			sealing = false;
+			notifyAll();
+		}
+
+		// PK signature on the published data, shared by the whole round
+		ASN1Primitive publishedData = getPublishedData(second, publicationImprint);
+		Signature signature = Signature.getInstance("SHA256withRSA");
+		signature.initSign(keyPair.getPrivate());
+		signature.update(publishedData.getEncoded(ASN1Encoding.DER));
+		ASN1EncodableVector pkSignature = new ASN1EncodableVector();
+		pkSignature.add(getAlgorithm(SHA256_WITH_RSA_OID));
+		pkSignature.add(new DEROctetString(signature.sign()));
+
+		for (int i = 0; i < n; ++i) {
+			// TimeSignature ::= SEQUENCE { location, history, publishedData,
+			//     [0] IMPLICIT pkSignature }
+			ASN1EncodableVector timeSignature = new ASN1EncodableVector();
+			timeSignature.add(new DEROctetString(locations[i].toByteArray()));
+			timeSignature.add(new DEROctetString(history));
+			timeSignature.add(publishedData);
+			timeSignature.add(new DERTaggedObject(false, 0, new DERSequence(pkSignature)));
+
+			SignerInfo signerInfo = new SignerInfo(
+					getSignerIdentifier(),
+					getAlgorithm(HASH_ALGORITHM.getOid()),
+					signedAttrs[i],
+					getAlgorithm(com.guardtime.asn1.SignerInfo.SIGNATURE_ALGORITHM),
+					new DEROctetString(new DERSequence(timeSignature).getEncoded(ASN1Encoding.DER)),
+					null);
+			SignedData signedData = new SignedData(
+					new DERSet(getAlgorithm(HASH_ALGORITHM.getOid())),
+					new ContentInfo(
+							new ASN1ObjectIdentifier(com.guardtime.asn1.SignedData.E_CONTENT_TYPE),
+							new DEROctetString(tstInfos[i])),
+					new DERSet(ASN1Primitive.fromByteArray(certificate.getEncoded())),
+					null,
+					new DERSet(signerInfo));
+
+			// TimeStampResp ::= SEQUENCE { status, timeStampToken }
+			ASN1EncodableVector response = new ASN1EncodableVector();
+			response.add(new DERSequence(new ASN1Integer(0)));
+			response.add(new ContentInfo(new ASN1ObjectIdentifier(SIGNED_DATA_OID), signedData));
+			((Request) requests.get(i)).response = new DERSequence(response).getEncoded(ASN1Encoding.DER);
+		}
+
+		synchronized (this) {
+			signedCount += n;
+		}
+		r.seal();
+	}
+
+
+
+	/*
+	 * Calendar
+	 *
+	 * The calendar as of second P is a hash tree over the leaves of seconds
+	 * 0..P. The leaves are split into perfect subtrees R1..Rm as per the binary
+	 * representation of P + 1, largest first, and the root is
+	 * R1 + (R2 + (... + Rm)). This is the shape that the verification code
+	 * uses to compute the registration time from the chain directions.
+	 */
+
+
+
+	/**
+	 * Returns the imprint of the calendar root as of the given second.
+	 */
+	private byte[] getCalendarRoot(long publicationId) {
+		long[] blocks = getBlocks(publicationId);
+		return getSpine(blocks, 0);
+	}
+
+	/**
+	 * Returns the history chain from the leaf of the given second to the
+	 * calendar root as of the given publication time.
+	 */
+	private byte[] getHistoryChain(long historyId, long publicationId) {
+		ByteArrayOutputStream chain = new ByteArrayOutputStream();
+		long[] blocks = getBlocks(publicationId);
+		int k = 0;
+		while (historyId >= blocks[k] + (1L << blocks[k + 1])) {
+			k += 2;
+		}
+
+		// Up to the root of the perfect subtree
+		int height = (int) blocks[k + 1];
+		for (int j = 0; j < height; ++j) {
+			long start = (historyId >> j) << j;
+			if (((historyId >> j) & 1) == 0) {
+				writeStep(chain, 1, getNode(j, start + (1L << j)), CALENDAR_LEVEL);
+			} else {
+				writeStep(chain, 0, getNode(j, start - (1L << j)), CALENDAR_LEVEL);
+			}
+		}
+
+		// Up the spine
+		if (k + 2 < blocks.length) {
+			writeStep(chain, 1, getSpine(blocks, k + 2), CALENDAR_LEVEL);
+		}
+		for (int i = k - 2; i >= 0; i -= 2) {
+			writeStep(chain, 0, getNode((int) blocks[i + 1], blocks[i]), CALENDAR_LEVEL);
+		}
+		return chain.toByteArray();
+	}
+
+	/**
+	 * Returns the perfect subtrees of the calendar as of the given second,
+	 * as pairs of first second and height.
+	 */
+	private static long[] getBlocks(long publicationId) {
+		long size = publicationId + 1;
+		long[] blocks = new long[2 * Long.bitCount(size)];
+		long start = 0;
+		int i = 0;
+		for (int height = 63; height >= 0; --height) {
+			if (((size >> height) & 1) != 0) {
+				blocks[i++] = start;
+				blocks[i++] = height;
+				start += (1L << height);
+			}
+		}
+		return blocks;
+	}
+
+	/**
+	 * Returns the imprint of Rk + (... + Rm) for the given subtrees.
+	 */
+	private byte[] getSpine(long[] blocks, int k) {
+		int i = blocks.length - 2;
+		byte[] res = getNode((int) blocks[i + 1], blocks[i]);
+		for (i -= 2; i >= k; i -= 2) {
+			res = combine(getNode((int) blocks[i + 1], blocks[i]), res, CALENDAR_LEVEL);
+		}
+		return res;
+	}
+
+	/**
+	 * Returns the imprint of the perfect calendar subtree of the given height
+	 * starting at the given second. All the seconds in it must be final.
+	 */
+	private byte[] getNode(int height, long start) {
+		long end = start + (1L << height);
+		SortedMap tail = leaves.tailMap(new Long(start));
+		if (tail.isEmpty() || ((Long) tail.firstKey()).longValue() >= end) {
+			return emptyNodes[height];
+		}
+		if (height == 0) {
+			return (byte[]) tail.get(tail.firstKey());
+		}
+
+		Long key = new Long(start * 64 + height);
+		byte[] res = (byte[]) nodes.get(key);
+		if (res == null) {
+			long half = (1L << (height - 1));
+			res = combine(getNode(height - 1, start), getNode(height - 1, start + half), CALENDAR_LEVEL);
+			nodes.put(key, res);
+		}
+		return res;
+	}
+
+
+
+	/*
+	 * Encoding helpers
+	 */
+
+
+
+	/**
+	 * Returns the imprint of the node whose children have the given imprints,
+	 * as the next step of a hash chain computes it.
+	 */
+	private static byte[] combine(byte[] left, byte[] right, int level) {
+		GTDataHash hash = new GTDataHash(HASH_ALGORITHM);
+		hash.update(left);
+		hash.update(right);
+		hash.update(new byte[] { (byte) level });
+		return hash.toDataImprint();
+	}
+
+	private static byte[] imprint(byte[] data) {
+		return new GTDataHash(HASH_ALGORITHM).update(data).toDataImprint();
+	}
+
+	/**
+	 * Writes a hash chain step: hash algorithm, direction, sibling imprint and
+	 * level byte. Direction {@code 1} means the sibling is on the right.
+	 */
+	private static void writeStep(ByteArrayOutputStream out, int direction, byte[] sibling, int level) {
+		out.write(HASH_ALGORITHM.getGtid());
+		out.write(direction);
+		out.write(sibling, 0, sibling.length);
+		out.write(level);
+	}
+
+	private static ASN1Primitive getPublishedData(long publicationId, byte[] publicationImprint) {
+		ASN1EncodableVector v = new ASN1EncodableVector();
+		v.add(new ASN1Integer(BigInteger.valueOf(publicationId)));
+		v.add(new DEROctetString(publicationImprint));
+		return new DERSequence(v);
+	}
+
+	private static AlgorithmIdentifier getAlgorithm(String oid) {
+		return new AlgorithmIdentifier(new ASN1ObjectIdentifier(oid), DERNull.INSTANCE);
+	}
+
+	private SignerIdentifier getSignerIdentifier() {
+		X500Name issuer = X500Name.getInstance(certificate.getIssuerX500Principal().getEncoded());
+		return new SignerIdentifier(new IssuerAndSerialNumber(issuer, certificate.getSerialNumber()));
+	}
+
+	/**
+	 * Returns a rejection response with the given failure code.
+	 */
+	private static byte[] getFailureResponse(int failCode)
+	throws IOException {
+		// The named bits of PKIFailureInfo are numbered from the first bit
+		int n = failCode / 8 + 1;
+		byte[] bits = new byte[n];
+		bits[failCode / 8] = (byte) (0x80 >> (failCode % 8));
+
+		ASN1EncodableVector status = new ASN1EncodableVector();
+		status.add(new ASN1Integer(2)); // rejection
+		status.add(new DERBitString(bits, n * 8 - failCode - 1));
+		return new DERSequence(new DERSequence(status)).getEncoded(ASN1Encoding.DER);
+	}
+
+	private static void writeShort(OutputStream out, int value)
+	throws IOException {
+		out.write(value >>> 8);
+		out.write(value);
+	}
+
+	private static void writeInt(OutputStream out, int value)
+	throws IOException {
+		writeShort(out, value >>> 16);
+		writeShort(out, value);
+	}
+
+	private static void writeLong(OutputStream out, long value)
+	throws IOException {
+		writeInt(out, (int) (value >>> 32));
+		writeInt(out, (int) value);
+	}
+
+
+
+	/*
+	 * HTTP
+	 */
+
+
+
+	private URL getUrl(String path)
+	throws IOException {
+		return new URL("http://localhost:" + serverSocket.getLocalPort() + path);
+	}
+
+	/**
+	 * Serves the requests of one connection until it is closed.
+	 */
+	private void serve(Socket socket)
+	throws IOException {
+		InputStream in = new BufferedInputStream(socket.getInputStream());
+		OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+		while (true) {
+			String requestLine = readLine(in);
+			if (requestLine == null) {
+				return;
+			}
+			String[] parts = requestLine.split(" ");
+			if (parts.length != 3) {
+				respond(out, "400 Bad Request", null, false);
+				return;
+			}
+			boolean keepAlive = parts[2].equals("HTTP/1.1");
+			int length = 0;
+			String line;
+			while ((line = readLine(in)) != null && line.length() > 0) {
+				int i = line.indexOf(':');
+				if (i < 0) {
+					continue;
+				}
+				String name = line.substring(0, i).trim();
+				String value = line.substring(i + 1).trim();
+				if (name.equalsIgnoreCase("Content-Length")) {
+					length = Integer.parseInt(value);
+				} else if (name.equalsIgnoreCase("Connection")) {
+					keepAlive = value.equalsIgnoreCase("keep-alive");
+				}
+			}
+			if (line == null) {
+				return;
+			}
+			byte[] body = new byte[length];
+			for (int pos = 0; pos < length; ) {
+				int count = in.read(body, pos, length - pos);
+				if (count < 0) {
+					return;
+				}
+				pos += count;
+			}
+
+			// Request target can be an absolute URL
+			String path = parts[1];
+			int i = path.indexOf("://");
+			if (i >= 0) {
+				i = path.indexOf('/', i + 3);
+				path = (i < 0 ? "/" : path.substring(i));
+			}
+			i = path.indexOf('?');
+			if (i >= 0) {
+				path = path.substring(0, i);
+			}
+
+			if (path.equals(PUBLICATIONS_PATH)) {
+				byte[] content;
+				try {
+					content = getPublicationsFile();
+				} catch (GeneralSecurityException e) {
+					respond(out, "500 Internal Server Error", null, false);
+					return;
+				}
+				keepAlive = respond(out, "200 OK", content, keepAlive);
+			} else if (path.equals(SIGNING_PATH) || path.equals(EXTENDING_PATH)) {
+				// Faults are decided first, so failed requests cost no signature
+				long delay;
+				boolean drop;
+				String error = null;
+				synchronized (this) {
+					delay = minLatency + (long) (random.nextDouble() * (maxLatency - minLatency));
+					double fault = random.nextDouble();
+					drop = (fault < dropRate);
+					if (!drop && fault < dropRate + errorRate) {
+						error = errorStatus;
+					}
+					if (drop || error != null) {
+						++errorCount;
+					}
+				}
+				byte[] content = null;
+				if (!drop && error == null) {
+					try {
+						content = (path.equals(SIGNING_PATH) ? sign(body) : extend(body));
+					} catch (IllegalArgumentException e) {
+						// Thrown by the ASN.1 parsers
+						error = "400 Bad Request";
+					}
+				}
+				if (delay > 0) {
+					try {
+						Thread.sleep(delay);
+					} catch (InterruptedException e) {
+						throw new InterruptedIOException();
+					}
+				}
+				if (drop) {
+					return;
+				} else if (error != null) {
+					keepAlive = respond(out, error, null, keepAlive);
+				} else {
+					keepAlive = respond(out, "200 OK", content, keepAlive);
+				}
+			} else {
+				keepAlive = respond(out, "404 Not Found", null, keepAlive);
+			}
+			if (!keepAlive) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Writes an HTTP response.
+	 *
+	 * @return {@code keepAlive}.
+	 */
+	private static boolean respond(OutputStream out, String status, byte[] content, boolean keepAlive)
+	throws IOException {
+		if (content == null) {
+			content = new byte[0];
+		}
+		StringBuffer sb = new StringBuffer();
+		sb.append("HTTP/1.1 ").append(status).append("\r\n");
+		sb.append("Content-Type: application/octet-stream\r\n");
+		sb.append("Content-Length: ").append(content.length).append("\r\n");
+		if (!keepAlive) {
+			sb.append("Connection: close\r\n");
+		}
+		sb.append("\r\n");
+		out.write(sb.toString().getBytes("ISO-8859-1"));
+		out.write(content);
+		out.flush();
+		return keepAlive;
+	}
+
+	/**
+	 * Reads a CRLF- or LF-terminated line.
+	 *
+	 * @return the line, or {@code null} at the end of the stream.
+	 */
+	private static String readLine(InputStream in)
+	throws IOException {
+		StringBuffer sb = new StringBuffer();
+		while (true) {
+			int c = in.read();
+			if (c < 0) {
+				return null;
+			} else if (c == '\n') {
+				int n = sb.length();
+				if (n > 0 && sb.charAt(n - 1) == '\r') {
+					sb.setLength(n - 1);
+				}
+				return sb.toString();
+			}
+			sb.append((char) c);
+		}
+	}
+
+
+
+	/**
+	 * Accepts connections and serves each on a thread of its own.
+	 */
+	private class Acceptor
+	implements Runnable {
+		public void run() {
+			try {
+				while (true) {
+					final Socket socket = serverSocket.accept();
+					Thread t = new Thread("LocalGateway-connection") {
+						public void run() {
+							try {
+								serve(socket);
+							} catch (IOException e) {
+								// Client went away
+							} finally {
+								try {
+									socket.close();
+								} catch (IOException e) {
+									// Nothing here
+								}
+							}
+						}
+					};
+					t.setDaemon(true);
+					t.start();
+				}
+			} catch (IOException e) {
+				// Server closed
+			}
+		}
+	}
+
+	/**
+	 * Seals each round when its time is up.
+	 */
+	private class Sealer
+	implements Runnable {
+		public void run() {
+			while (true) {
+				Round r;
+				synchronized (LocalGateway.this) {
+					while (true) {
+						if (closed) {
+							return;
+						}
+						long wait = 0;
+						if (round.opened > 0) {
+							wait = round.opened + roundTime - System.currentTimeMillis();
+							if (wait <= 0) {
+								break;
+							}
+						}
+						try {
+							LocalGateway.this.wait(wait);
+						} catch (InterruptedException e) {
+							// Nothing here
+						}
+					}
+					r = round;
+					round = new Round();
+				}
+				try {
+					seal(r);
+				} catch (Exception e) {
+					// We don't have anyone to report this to...
+					e.printStackTrace();
+					r.seal();
+				}
+			}
+		}
+	}
+
+
+
+	/**
+	 * Signing request waiting for its round.
+	 */
+	private static class Request {
+		final org.bouncycastle.asn1.tsp.MessageImprint messageImprint;
+		final ASN1Integer nonce;
+		byte[] response;
+
+		Request(TimeStampReq request) {
+			messageImprint = request.getMessageImprint();
+			nonce = request.getNonce();
+		}
+	}
+
+	/**
+	 * Aggregation round.
+	 */
+	private static class Round {
+		private final List requests = new ArrayList();
+		// Time of the first request; 0 while the round is empty
+		long opened;
+		private boolean sealed;
+
+		synchronized void add(Request request) {
+			if (requests.isEmpty()) {
+				opened = System.currentTimeMillis();
+			}
+			requests.add(request);
+		}
+
+		synchronized List getRequests() {
+			return requests;
+		}
+
+		synchronized void seal() {
+			sealed = true;
+			notifyAll();
+		}
+
+		synchronized void waitSealed() {
+			while (!sealed) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					// Nothing here
+				}
+			}
+		}
+	}
+}
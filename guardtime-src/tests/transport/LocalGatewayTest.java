@@ -0,0 +1,166 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.GTPublicationsFile;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.transport.HttpStamper;
+import com.guardtime.transport.ResponseHandler;
+import com.guardtime.transport.SimpleHttpStamper;
+
+
+
+/**
+ * {@link LocalGateway} tests.
+ */
+public class LocalGatewayTest
+extends TestCase {
+	private static final GTDataHash DATA_HASH = new GTDataHash(GTHashAlgorithm.SHA256).update("Tere\n".getBytes()).close();
+
+	private LocalGateway gateway;
+	private File trustStore;
+
+
+
+	protected void setUp()
+	throws Exception {
+		gateway = new LocalGateway();
+		gateway.setRoundTime(10);
+		trustStore = File.createTempFile("gateway", ".jks");
+		gateway.writeTrustStore(trustStore);
+	}
+
+	protected void tearDown()
+	throws IOException {
+		gateway.close();
+		trustStore.delete();
+	}
+
+
+
+	/**
+	 * Tests that the issued timestamps pass full verification against the
+	 * publications file.
+	 */
+	public void testSign()
+	throws Exception {
+		GTTimestamp timestamp = SimpleHttpStamper.create(DATA_HASH, gateway.getSigningUrl());
+		assertFalse(timestamp.isExtended());
+		assertTrue(Math.abs(timestamp.getRegisteredTime().getTime() - System.currentTimeMillis()) < 5000);
+
+		GTPublicationsFile publicationsFile = getPublicationsFile();
+		assertTrue(publicationsFile.contains(gateway.getCertificate().getPublicKey()));
+		assertTrue(timestamp.verify(DATA_HASH, publicationsFile).isValid());
+		assertFalse(timestamp.verify(new GTDataHash(GTHashAlgorithm.SHA256).update(new byte[1]).close(), publicationsFile).isValid());
+		assertEquals(1, gateway.getSignedCount());
+	}
+
+	/**
+	 * Tests that requests arriving together are aggregated in one round.
+	 */
+	public void testAggregation()
+	throws Exception {
+		gateway.setRoundTime(200);
+		HttpStamper stamper = HttpStamper.getInstance();
+		GTDataHash[] hashes = new GTDataHash[5];
+		ResponseHandler[] handlers = new ResponseHandler[hashes.length];
+		for (int i = 0; i < hashes.length; ++i) {
+			hashes[i] = new GTDataHash(GTHashAlgorithm.SHA256).update(new byte[i]).close();
+			handlers[i] = stamper.addTimestampRequest(hashes[i], gateway.getSigningUrl(), 10000);
+		}
+
+		GTPublicationsFile publicationsFile = null;
+		long registeredTime = 0;
+		for (int i = 0; i < hashes.length; ++i) {
+			GTTimestamp timestamp = HttpStamper.receiveTimestampResponse(handlers[i], 10000).getTimestamp();
+			if (i == 0) {
+				publicationsFile = getPublicationsFile();
+				registeredTime = timestamp.getRegisteredTime().getTime();
+			}
+			assertEquals(registeredTime, timestamp.getRegisteredTime().getTime());
+			assertTrue(timestamp.verify(hashes[i], publicationsFile).isValid());
+		}
+	}
+
+	/**
+	 * Tests extension up to the newest publication.
+	 */
+	public void testExtend()
+	throws Exception {
+		GTTimestamp timestamp = SimpleHttpStamper.create(DATA_HASH, gateway.getSigningUrl());
+		try {
+			SimpleHttpStamper.extend(timestamp, gateway.getExtendingUrl());
+			fail("timestamp newer than the last publication extended");
+		} catch (GTException e) {
+			// Too new
+		}
+
+		gateway.publish();
+		GTTimestamp extended = SimpleHttpStamper.extend(timestamp, gateway.getExtendingUrl());
+		assertTrue(extended.isExtended());
+		assertEquals(timestamp.getRegisteredTime(), extended.getRegisteredTime());
+		assertTrue(extended.verify(DATA_HASH, getPublicationsFile()).isValid());
+		assertEquals(1, gateway.getExtendedCount());
+	}
+
+	/**
+	 * Tests error injection.
+	 */
+	public void testErrors()
+	throws Exception {
+		gateway.setErrorRate(1);
+		try {
+			SimpleHttpStamper.create(DATA_HASH, gateway.getSigningUrl());
+			fail("injected error not reported");
+		} catch (GTException e) {
+			// No timestamp response in the body
+		}
+		assertEquals(1, gateway.getErrorCount());
+
+		gateway.setErrorRate(0);
+		gateway.setDropRate(1);
+		try {
+			SimpleHttpStamper.create(DATA_HASH, gateway.getSigningUrl());
+			fail("dropped request not reported");
+		} catch (IOException e) {
+			// Expected
+		}
+		assertEquals(2, gateway.getErrorCount());
+	}
+
+
+
+	private GTPublicationsFile getPublicationsFile()
+	throws Exception {
+		GTPublicationsFile publicationsFile = SimpleHttpStamper.getPublicationsFile(gateway.getPublicationsUrl());
+		assertTrue(publicationsFile.verifySignature(trustStore.getPath()).isValid());
+		return publicationsFile;
+	}
+}
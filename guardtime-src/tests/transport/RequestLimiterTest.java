@@ -0,0 +1,128 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import com.guardtime.transport.RequestLimiter;
+
+
+
+/**
+ * {@link RequestLimiter} tests.
+ */
+public class RequestLimiterTest
+extends TestCase {
+	/**
+	 * Tests the total and per-host limits with fail-fast admission.
+	 */
+	public void testLimits() {
+		RequestLimiter limiter = new RequestLimiter(3, 2);
+		assertTrue(limiter.tryAcquire("a"));
+		assertTrue(limiter.tryAcquire("a"));
+		assertFalse(limiter.tryAcquire("a"));
+		assertTrue(limiter.tryAcquire("b"));
+		assertFalse(limiter.tryAcquire("b"));
+		assertEquals(3, limiter.getInFlight());
+		assertEquals(2, limiter.getInFlight("a"));
+
+		limiter.release("a");
+		assertTrue(limiter.tryAcquire("b"));
+		assertEquals(2, limiter.getRejectedCount());
+		assertEquals(4, limiter.getAdmittedCount());
+
+		try {
+			limiter.release("c");
+			fail("Release without acquire accepted");
+		} catch (IllegalStateException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests timed admission.
+	 */
+	public void testTimedAcquire()
+	throws IOException {
+		RequestLimiter limiter = new RequestLimiter(1, 0);
+		assertTrue(limiter.tryAcquire("a", 100));
+		long start = System.currentTimeMillis();
+		assertFalse(limiter.tryAcquire("b", 100));
+		assertTrue(System.currentTimeMillis() - start >= 100);
+		assertEquals(0, limiter.getQueueLength());
+	}
+
+	/**
+	 * Tests that waiting requests are admitted in arrival order, and that a
+	 * request to a busy host does not hold up others.
+	 */
+	public void testFairQueue()
+	throws Exception {
+		final RequestLimiter limiter = new RequestLimiter(1, 1);
+		limiter.acquire("a");
+
+		final List order = Collections.synchronizedList(new ArrayList());
+		String[] hosts = { "a", "b", "c" };
+		Thread[] threads = new Thread[hosts.length];
+		for (int i = 0; i < hosts.length; i++) {
+			final String host = hosts[i];
+			threads[i] = new Thread() {
+				public void run() {
+					try {
+						limiter.acquire(host);
+						order.add(host);
+						if (!host.equals("a")) {
+							limiter.release(host);
+						}
+					} catch (IOException e) {
+						order.add(e);
+					}
+				}
+			};
+			threads[i].setDaemon(true);
+			threads[i].start();
+			while (limiter.getQueueLength() < i + 1) {
+				Thread.sleep(10);
+			}
+		}
+
+		// Raising the total limit lets "b" and "c" pass the waiting "a"
+		limiter.setMaxRequests(2);
+		threads[1].join(10000);
+		threads[2].join(10000);
+		assertEquals(2, order.size());
+		assertEquals("b", order.get(0));
+		assertEquals("c", order.get(1));
+		assertEquals(1, limiter.getQueueLength());
+
+		limiter.release("a");
+		threads[0].join(10000);
+		assertEquals("a", order.get(2));
+		assertEquals(3, limiter.getWaitedCount());
+		assertTrue(limiter.getMaxWaitTime() <= limiter.getTotalWaitTime());
+	}
+}
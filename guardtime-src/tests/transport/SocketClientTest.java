@@ -21,14 +21,39 @@
  */
 package tests.transport;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.security.GeneralSecurityException;
+import java.security.KeyStore;
+import java.security.Principal;
+import java.security.PrivateKey;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLServerSocket;
+import javax.net.ssl.TrustManagerFactory;
+import javax.net.ssl.X509ExtendedKeyManager;
 
 import junit.framework.TestCase;
 
+import com.guardtime.transport.RequestLimiter;
 import com.guardtime.transport.ResponseHandler;
 import com.guardtime.transport.SocketClient;
+import com.guardtime.transport.TransactionListener;
+import com.guardtime.util.Base64;
 import com.guardtime.util.Log;
 
 
@@ -42,6 +67,10 @@ extends TestCase {
 	static final int PORT = 80;
 	static final byte[] REQUEST = ("GET /gt-controlpublications.bin HTTP/1.0\r\nHost: " + PUBFILE_ADDR + "\r\n\r\n").getBytes();
 
+	// Self-signed certificate for `localhost`, PKCS#12, password `changeit`
+	static final byte[] TLS_KEYSTORE = Base64.decode("MIIEFgIBAzCCA8AGCSqGSIb3DQEHAaCCA7EEggOtMIIDqTCCATAGCSqGSIb3DQEHAaCCASEEggEdMIIBGTCCARUGCyqGSIb3DQEMCgECoIG9MIG6MGYGCSqGSIb3DQEFDTBZMDgGCSqGSIb3DQEFDDArBBQyVmvpaH2X4vA0gnxjJeM9kV4gKAICJxACASAwDAYIKoZIhvcNAgkFADAdBglghkgBZQMEASoEEKqiqkOScRBhlTSIeYL8nU8EUOBrIywKk2QnWkZ6pFgIUtd07ufyCamKVoHnl3M/f54ClaZd81R1aSjWTMFadi9J5ITgtYGRF9Zdo40d6yYBfUslf62BzS+xy9ludv9CNFr4MUYwIQYJKoZIhvcNAQkUMRQeEgBsAG8AYwBhAGwAaABvAHMAdDAhBgkqhkiG9w0BCRUxFAQSVGltZSAxNzkyMzU0MTM5MzY4MIICcQYJKoZIhvcNAQcGoIICYjCCAl4CAQAwggJXBgkqhkiG9w0BBwEwZgYJKoZIhvcNAQUNMFkwOAYJKoZIhvcNAQUMMCsEFKXHlUI2oWZhiNyA1iV0The3wAGnAgInEAIBIDAMBggqhkiG9w0CCQUAMB0GCWCGSAFlAwQBKgQQkYSJkaZ6u7bKZZ8qc6SaMYCCAeC+S4hHtMrbgSmchbDbJdtkhAFORgpVt6o7KgTgyKWOYvS5icGainjqOtTo9AtV2UIWtlV1IiP5lwOi8dpJ+ge94fJgb7AjRCXFiXaLw8G1aCuChTd3lfTVeX6TMS6DWyft1GTuTy0r2kSctpp93S1x/FG3mM60dsqwlQCf12BDsI9CR2a2jb/Z++z+NRMuCuxUhIjo5JHWweM8LK5iaSThmBdZBupxGrsuHLOtiI4E1YtxZb3mG2V/7/b0+Dku1CDLX7CswSjLwXUVinIookf2iHFLsUFG7ZazRTyPbMCljOFqY0oFTaN7iT/oEyM30GaQd8jLdGrRDDBY2VRsgR1+KlKty//A26bHjjyKcJxPkJfLw81nBpsCOmc4aAN6V1C90eRA7RCBfoC8A6ZJyHUxoQuNu69R4i/r4inSBU9PHCpDZa4Odz7B/qv3Iw6RdNzhLOohWPQZhZFDrvKEC2dgORJr/7LtTOCPgMNBrbfIDcWaLdb1Wrj/X6Rvja5QR9BVvXhkH3dz6B/9nXpzda49HC5aPtWdVDjLTmCD4EcHnsrm/YDagmtWmRuMCtEquHJkmgckFvYu+5x9BSsHJHvfCNbLg8KZbqLK6Lcceyg9aBRgfHoV2AsVkY3MRNZAqwgwTTAxMA0GCWCGSAFlAwQCAQUABCBEYB2+MIv21KvtWJvB6BmrOMKiqPO2lYiL0IY1B6FtBQQU7/iyuS9WWIgesOdZCB2vA2x5BtkCAicQ");
+	static final char[] TLS_PASSWORD = "changeit".toCharArray();
+
 
 
 	/**
@@ -147,4 +176,386 @@ extends TestCase {
 			fail(e.getMessage());
 		}
 	}
+
+	/**
+	 * Tests {@link SocketClient#addSecureRequest(String, int, byte[], long)}
+	 * against a local TLS server.
+	 */
+	public void testSecureRequest()
+	throws GeneralSecurityException, IOException {
+		KeyStore keyStore = KeyStore.getInstance("PKCS12");
+		keyStore.load(new ByteArrayInputStream(TLS_KEYSTORE), TLS_PASSWORD);
+		KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+		kmf.init(keyStore, TLS_PASSWORD);
+		TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+		tmf.init(keyStore);
+
+		CountingKeyManager keyManager = new CountingKeyManager((X509ExtendedKeyManager) kmf.getKeyManagers()[0]);
+		SSLContext serverContext = SSLContext.getInstance("TLS");
+		serverContext.init(new KeyManager[] { keyManager }, null, null);
+		final SSLServerSocket server = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0);
+		final int n = 3;
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					for (int i = 0; i < n; i++) {
+						Socket socket = server.accept();
+						InputStream in = socket.getInputStream();
+						// Read up to the end of request headers
+						int state = 0;
+						while (state < 4) {
+							int c = in.read();
+							if (c < 0) {
+								break;
+							}
+							state = ((c == '\r' || c == '\n') ? state + 1 : 0);
+						}
+						OutputStream out = socket.getOutputStream();
+						out.write("HTTP/1.0 200 OK\r\n\r\nTere\n".getBytes());
+						out.flush();
+						socket.close();
+					}
+				} catch (IOException e) {
+					Log.debug("[DBG] " + e.getMessage());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+
+		SSLContext clientContext = SSLContext.getInstance("TLS");
+		clientContext.init(null, tmf.getTrustManagers(), null);
+		SocketClient socketClient = new SocketClient();
+		socketClient.setSslContext(clientContext);
+		socketClient.start();
+
+		// Later requests resume the cached TLS session
+		for (int i = 0; i < n; i++) {
+			ResponseHandler responseHandler = socketClient.addSecureRequest("localhost", server.getLocalPort(), REQUEST, 10000);
+			byte[] response = responseHandler.receiveResponse(0);
+			assertEquals("HTTP/1.0 200 OK\r\n\r\nTere\n", new String(response));
+		}
+		server.close();
+		assertEquals(1, keyManager.getFullHandshakes());
+
+		// Certificate not trusted by the default context
+		SocketClient defaultClient = new SocketClient();
+		defaultClient.start();
+		final SSLServerSocket untrusted = (SSLServerSocket) serverContext.getServerSocketFactory().createServerSocket(0);
+		Thread u = new Thread() {
+			public void run() {
+				try {
+					untrusted.accept().getInputStream().read();
+				} catch (IOException e) {
+					// Handshake fails as expected
+				}
+			}
+		};
+		u.setDaemon(true);
+		u.start();
+		try {
+			ResponseHandler responseHandler = defaultClient.addSecureRequest("localhost", untrusted.getLocalPort(), REQUEST, 10000);
+			responseHandler.receiveResponse(0);
+			fail("Untrusted certificate accepted");
+		} catch (IOException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		} finally {
+			untrusted.close();
+		}
+	}
+
+	/**
+	 * Tests request admission through {@link SocketClient#getLimiter()}.
+	 */
+	public void testAdmission()
+	throws IOException {
+		final ServerSocket server = new ServerSocket(0);
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					// Hold the first connection open, answer the rest
+					Socket held = server.accept();
+					while (true) {
+						Socket socket = server.accept();
+						socket.getOutputStream().write("HTTP/1.0 200 OK\r\n\r\n".getBytes());
+						socket.close();
+					}
+				} catch (IOException e) {
+					Log.debug("[DBG] " + e.getMessage());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+
+		SocketClient socketClient = new SocketClient();
+		// Not limited unless asked for
+		assertNull(socketClient.getLimiter());
+		socketClient.setLimiter(new RequestLimiter(0, 1));
+		socketClient.start();
+
+		// The first request holds the only slot until it times out
+		socketClient.setAdmissionTimeout(-1);
+		ResponseHandler first = socketClient.addRequest("localhost", server.getLocalPort(), REQUEST, 500);
+		assertEquals(1, socketClient.getLimiter().getInFlight("localhost"));
+		try {
+			socketClient.addRequest("localhost", server.getLocalPort(), REQUEST, 0).receiveResponse(0);
+			fail("Request limit not respected");
+		} catch (IOException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+
+		// A blocking request waits for the slot
+		socketClient.setAdmissionTimeout(0);
+		ResponseHandler second = socketClient.addRequest("localhost", server.getLocalPort(), REQUEST, 10000);
+		try {
+			first.receiveResponse(0);
+			fail("Transaction timeout not respected");
+		} catch (SocketTimeoutException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+		assertEquals("HTTP/1.0 200 OK\r\n\r\n", new String(second.receiveResponse(0)));
+		assertEquals(0, socketClient.getLimiter().getInFlight());
+		assertEquals(1, socketClient.getLimiter().getWaitedCount());
+		server.close();
+	}
+
+	/**
+	 * Tests the transaction phase times recorded in {@link ResponseHandler}.
+	 */
+	public void testPhaseTimes()
+	throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					// Answer after a pause, in two parts
+					Socket socket = server.accept();
+					socket.getInputStream().read();
+					Thread.sleep(100);
+					socket.getOutputStream().write("HTTP/1.0 200 OK\r\n".getBytes());
+					socket.getOutputStream().flush();
+					Thread.sleep(100);
+					socket.getOutputStream().write("\r\n".getBytes());
+					socket.close();
+				} catch (Exception e) {
+					Log.debug("[DBG] " + e.getMessage());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+
+		SocketClient socketClient = new SocketClient();
+		socketClient.start();
+		ResponseHandler handler = socketClient.addRequest("localhost", server.getLocalPort(), REQUEST, 10000);
+		assertEquals(-1, handler.getEndTime());
+		assertEquals("HTTP/1.0 200 OK\r\n\r\n", new String(handler.receiveResponse(0)));
+		server.close();
+
+		// Each call returns a copy of its own
+		handler.receiveResponse(0)[0] = 0;
+		assertEquals("HTTP/1.0 200 OK\r\n\r\n", new String(handler.receiveResponse(0)));
+
+		assertTrue(handler.getStartTime() <= handler.getConnectTime());
+		assertTrue(handler.getConnectTime() <= handler.getSendTime());
+		assertTrue(handler.getSendTime() + 100000000L <= handler.getFirstByteTime());
+		assertTrue(handler.getFirstByteTime() + 100000000L <= handler.getEndTime());
+	}
+
+	/**
+	 * Tests that the listener is told about the steps of a request in order.
+	 */
+	public void testListener()
+	throws Exception {
+		final ServerSocket server = new ServerSocket(0);
+		Thread t = new Thread() {
+			public void run() {
+				try {
+					Socket socket = server.accept();
+					socket.getInputStream().read();
+					socket.getOutputStream().write("HTTP/1.0 200 OK\r\n\r\n".getBytes());
+					socket.close();
+				} catch (Exception e) {
+					Log.debug("[DBG] " + e.getMessage());
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+
+		RecordingListener listener = new RecordingListener();
+		SocketClient socketClient = new SocketClient();
+		socketClient.setListener(listener);
+		assertSame(listener, socketClient.getListener());
+		socketClient.start();
+		ResponseHandler handler = socketClient.addRequest("localhost", server.getLocalPort(), REQUEST, 10000);
+		assertEquals("HTTP/1.0 200 OK\r\n\r\n", new String(handler.receiveResponse(0)));
+		server.close();
+
+		List events = listener.getEvents(handler);
+		assertEquals("queued", events.get(0));
+		assertEquals("registered", events.get(1));
+		assertEquals("connected", events.get(2));
+		assertEquals("written " + REQUEST.length, events.get(3));
+		assertEquals("firstByte", events.get(4));
+		assertEquals("completed", events.get(5));
+		assertEquals(6, events.size());
+		assertEquals(server.getLocalPort(), listener.address.getPort());
+		assertEquals(handler.getEndTime(), listener.time);
+	}
+
+	/**
+	 * Tests that a request to a closed port is reported as failed.
+	 */
+	public void testListenerFailed()
+	throws Exception {
+		ServerSocket server = new ServerSocket(0);
+		int port = server.getLocalPort();
+		server.close();
+
+		RecordingListener listener = new RecordingListener();
+		SocketClient socketClient = new SocketClient();
+		socketClient.setListener(listener);
+		socketClient.start();
+		ResponseHandler handler = socketClient.addRequest("localhost", port, REQUEST, 10000);
+		try {
+			handler.receiveResponse(0);
+			fail("IOException expected");
+		} catch (IOException e) {
+			// Expected
+		}
+
+		List events = listener.getEvents(handler);
+		assertEquals("queued", events.get(0));
+		assertEquals("failed", events.get(events.size() - 1));
+		assertFalse(events.contains("connected"));
+	}
+
+
+
+	/**
+	 * Listener recording the events of the requests.
+	 */
+	private static class RecordingListener
+	implements TransactionListener {
+		private final List events = new ArrayList();
+		private ResponseHandler handler;
+		InetSocketAddress address;
+		long time;
+
+		synchronized List getEvents(ResponseHandler handler)
+		throws InterruptedException {
+			// The last event may come right after the response is handed over
+			long end = System.currentTimeMillis() + 5000;
+			while (this.handler != handler || !isOver()) {
+				long remaining = end - System.currentTimeMillis();
+				if (remaining <= 0) {
+					break;
+				}
+				wait(remaining);
+			}
+			return new ArrayList(events);
+		}
+
+		private boolean isOver() {
+			if (events.isEmpty()) {
+				return false;
+			}
+			Object last = events.get(events.size() - 1);
+			return last.equals("completed") || last.equals("timedOut") || last.equals("failed");
+		}
+
+		private synchronized void add(ResponseHandler handler, InetSocketAddress address, String event, long time) {
+			this.handler = handler;
+			this.address = address;
+			this.time = time;
+			events.add(event);
+			notifyAll();
+		}
+
+		public void queued(ResponseHandler handler, InetSocketAddress address, long time) {
+			add(handler, address, "queued", time);
+		}
+
+		public void registered(ResponseHandler handler, InetSocketAddress address, long time) {
+			add(handler, address, "registered", time);
+		}
+
+		public void connected(ResponseHandler handler, InetSocketAddress address, long time) {
+			add(handler, address, "connected", time);
+		}
+
+		public void written(ResponseHandler handler, InetSocketAddress address, int bytes, long time) {
+			add(handler, address, "written " + bytes, time);
+		}
+
+		public void firstByte(ResponseHandler handler, InetSocketAddress address, long time) {
+			add(handler, address, "firstByte", time);
+		}
+
+		public void completed(ResponseHandler handler, InetSocketAddress address, long time) {
+			add(handler, address, "completed", time);
+		}
+
+		public void timedOut(ResponseHandler handler, InetSocketAddress address, long time) {
+			add(handler, address, "timedOut", time);
+		}
+
+		public void failed(ResponseHandler handler, InetSocketAddress address, IOException error, long time) {
+			add(handler, address, "failed", time);
+		}
+	}
+
+
+
+	/**
+	 * Server key manager counting full TLS handshakes: the server
+	 * certificate is only chosen when a session is not resumed.
+	 */
+	private static class CountingKeyManager
+	extends X509ExtendedKeyManager {
+		private final X509ExtendedKeyManager keyManager;
+		// Connections the certificate was chosen for; one handshake may try
+		// several key types
+		private final Set sockets = new HashSet();
+
+		public CountingKeyManager(X509ExtendedKeyManager keyManager) {
+			this.keyManager = keyManager;
+		}
+
+		public synchronized int getFullHandshakes() {
+			return sockets.size();
+		}
+
+		public synchronized String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
+			sockets.add(socket);
+			return keyManager.chooseServerAlias(keyType, issuers, socket);
+		}
+
+		public synchronized String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			sockets.add(engine);
+			return keyManager.chooseEngineServerAlias(keyType, issuers, engine);
+		}
+
+		public String chooseClientAlias(String[] keyTypes, Principal[] issuers, Socket socket) {
+			return keyManager.chooseClientAlias(keyTypes, issuers, socket);
+		}
+
+		public String[] getClientAliases(String keyType, Principal[] issuers) {
+			return keyManager.getClientAliases(keyType, issuers);
+		}
+
+		public String[] getServerAliases(String keyType, Principal[] issuers) {
+			return keyManager.getServerAliases(keyType, issuers);
+		}
+
+		public X509Certificate[] getCertificateChain(String alias) {
+			return keyManager.getCertificateChain(alias);
+		}
+
+		public PrivateKey getPrivateKey(String alias) {
+			return keyManager.getPrivateKey(alias);
+		}
+	}
 }
@@ -0,0 +1,213 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.transport;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.ServerSocket;
+import java.net.URL;
+
+import junit.framework.TestCase;
+
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTException;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.GTTimestamp;
+import com.guardtime.transport.StampJournal;
+import com.guardtime.util.Log;
+
+
+
+/**
+ * {@link StampJournal} tests.
+ */
+public class StampJournalTest
+extends TestCase {
+	private static final GTDataHash DATA_HASH = new GTDataHash(GTHashAlgorithm.SHA256).update("Tere\n".getBytes()).close();
+
+	private File directory;
+
+
+
+	protected void setUp()
+	throws IOException {
+		directory = File.createTempFile("journal", "");
+		directory.delete();
+		directory.mkdir();
+	}
+
+	protected void tearDown() {
+		File[] files = directory.listFiles();
+		for (int i = 0; i < files.length; i++) {
+			files[i].delete();
+		}
+		directory.delete();
+	}
+
+	/**
+	 * Tests that requests are stamped in the background, also after the
+	 * service has failed.
+	 */
+	public void testStamp()
+	throws Exception {
+		GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer(
+				new String[] { "503 Service Unavailable", "200 OK" }, 0);
+		server.setBody(getTimestampResponse());
+		StampJournal journal = new StampJournal(directory, server.getUrl());
+		try {
+			long ticket = journal.submit(DATA_HASH);
+			GTTimestamp timestamp = journal.waitForTimestamp(ticket, 10000);
+			assertNotNull(timestamp);
+			assertEquals(StampJournal.STAMPED, journal.getStatus(ticket));
+			assertEquals(0, journal.getPendingCount());
+			assertTrue(server.getRequests() >= 2);
+
+			journal.acknowledge(ticket);
+			try {
+				journal.getStatus(ticket);
+				fail("Acknowledged ticket still known");
+			} catch (IllegalArgumentException e) {
+				Log.debug("[DBG] (OK) " + e.getMessage());
+			}
+		} finally {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Tests that a request the service refuses fails.
+	 */
+	public void testFailure()
+	throws Exception {
+		GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer("400 Bad Request", 0);
+		StampJournal journal = new StampJournal(directory, server.getUrl());
+		try {
+			long ticket = journal.submit(DATA_HASH);
+			try {
+				journal.waitForTimestamp(ticket, 10000);
+				fail("Refused request stamped");
+			} catch (GTException e) {
+				Log.debug("[DBG] (OK) " + e.getMessage());
+			}
+			assertEquals(StampJournal.FAILED, journal.getStatus(ticket));
+		} finally {
+			journal.close();
+		}
+	}
+
+	/**
+	 * Tests that pending requests and unacknowledged results survive
+	 * reopening the journal, also with a torn record at the end, and that
+	 * full segments are deleted once acknowledged.
+	 */
+	public void testReplay()
+	throws Exception {
+		// Nobody listens on this port
+		ServerSocket socket = new ServerSocket(0);
+		URL downUrl = new URL("http://localhost:" + socket.getLocalPort() + "/");
+		socket.close();
+
+		StampJournal journal = new StampJournal(directory, downUrl, 4096);
+		long[] tickets = new long[100];
+		for (int i = 0; i < tickets.length; i++) {
+			tickets[i] = journal.submit(DATA_HASH);
+		}
+		journal.close();
+		File[] files = directory.listFiles();
+		assertTrue(files.length > 1);
+
+		// Garbage after the last record, as if the process died mid-write
+		File last = files[0];
+		for (int i = 1; i < files.length; i++) {
+			if (files[i].getName().compareTo(last.getName()) > 0) {
+				last = files[i];
+			}
+		}
+		RandomAccessFile raf = new RandomAccessFile(last, "rw");
+		raf.seek(raf.length() - 100);
+		raf.write(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+		raf.close();
+
+		GatewayPoolTest.TestServer server = new GatewayPoolTest.TestServer("200 OK", 0);
+		server.setBody(getTimestampResponse());
+		journal = new StampJournal(directory, server.getUrl(), 4096);
+		try {
+			for (int i = 0; i < tickets.length; i++) {
+				assertNotNull(journal.waitForTimestamp(tickets[i], 10000));
+			}
+			long ticket = journal.submit(DATA_HASH);
+			assertTrue(ticket > tickets[tickets.length - 1]);
+			assertNotNull(journal.waitForTimestamp(ticket, 10000));
+			journal.acknowledge(ticket);
+			for (int i = 0; i < tickets.length / 2; i++) {
+				journal.acknowledge(tickets[i]);
+			}
+		} finally {
+			journal.close();
+		}
+
+		journal = new StampJournal(directory, server.getUrl(), 4096);
+		try {
+			assertEquals(0, journal.getPendingCount());
+			for (int i = 0; i < tickets.length; i++) {
+				if (i < tickets.length / 2) {
+					try {
+						journal.getStatus(tickets[i]);
+						fail("Acknowledged ticket still known");
+					} catch (IllegalArgumentException e) {
+						// Expected
+					}
+				} else {
+					assertEquals(StampJournal.STAMPED, journal.getStatus(tickets[i]));
+					journal.acknowledge(tickets[i]);
+				}
+			}
+			// Only the segment being written to is left, and possibly the
+			// spare segment created ahead of time
+			assertTrue(directory.listFiles().length <= 2);
+		} finally {
+			journal.close();
+		}
+	}
+
+
+
+	/**
+	 * Builds a stamping service response holding the sample timestamp.
+	 */
+	private static byte[] getTimestampResponse() {
+		// TimeStampResp ::= SEQUENCE { status PKIStatusInfo, timeStampToken }
+		byte[] status = { 0x30, 0x03, 0x02, 0x01, 0x00 };
+		byte[] token = HttpStamperTest.TIMESTAMP;
+		int length = status.length + token.length;
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		out.write(0x30);
+		out.write(0x82);
+		out.write(length >> 8);
+		out.write(length);
+		out.write(status, 0, status.length);
+		out.write(token, 0, token.length);
+		return out.toByteArray();
+	}
+}
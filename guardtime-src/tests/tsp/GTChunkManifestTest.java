@@ -0,0 +1,185 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.tsp;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.guardtime.tsp.GTChunkManifest;
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.GTHashTree;
+
+
+
+/**
+ * {@code com.guardtime.tsp.GTChunkManifest} tests.
+ */
+public class GTChunkManifestTest
+extends TestCase {
+	private static final GTHashAlgorithm HASH_ALG = GTHashAlgorithm.SHA256;
+	private static final int CHUNK_SIZE = 1000;
+
+	private File file;
+	private byte[] data;
+
+	protected void setUp()
+	throws Exception {
+		data = new byte[10500];
+		new Random(50).nextBytes(data);
+		file = File.createTempFile("manifest", ".bin");
+		write(data);
+	}
+
+	protected void tearDown() {
+		file.delete();
+	}
+
+	/**
+	 * Tests that the chunk hashes and the root hash are those of the chunks
+	 * hashed one by one, with any number of threads.
+	 */
+	public void testCreate()
+	throws IOException {
+		GTDataHash[] expected = new GTDataHash[11];
+		for (int i = 0; i < expected.length; ++i) {
+			int length = Math.min(CHUNK_SIZE, data.length - i * CHUNK_SIZE);
+			expected[i] = new GTDataHash(HASH_ALG).update(data, i * CHUNK_SIZE, length).close();
+		}
+		GTDataHash root = new GTHashTree(HASH_ALG, expected).getRootHash();
+
+		for (int threads = 0; threads <= 4; ++threads) {
+			GTChunkManifest manifest = GTChunkManifest.create(file, HASH_ALG, CHUNK_SIZE, threads);
+			assertEquals(data.length, manifest.getLength());
+			assertEquals(expected.length, manifest.getChunkCount());
+			for (int i = 0; i < expected.length; ++i) {
+				assertEquals(expected[i], manifest.getChunkHash(i));
+			}
+			assertEquals(root, manifest.getRootHash());
+		}
+	}
+
+	/**
+	 * Tests the encoding and decoding of manifests.
+	 */
+	public void testEncoding()
+	throws IOException {
+		GTChunkManifest manifest = GTChunkManifest.create(file, HASH_ALG, CHUNK_SIZE, 0);
+		GTChunkManifest restored = GTChunkManifest.getInstance(manifest.getEncoded());
+		assertEquals(HASH_ALG, restored.getHashAlgorithm());
+		assertEquals(CHUNK_SIZE, restored.getChunkSize());
+		assertEquals(data.length, restored.getLength());
+		assertEquals(manifest.getRootHash(), restored.getRootHash());
+
+		byte[] encoded = manifest.getEncoded();
+		byte[] truncated = new byte[encoded.length - 1];
+		System.arraycopy(encoded, 0, truncated, 0, truncated.length);
+		try {
+			GTChunkManifest.getInstance(truncated);
+			fail("truncated manifest accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests the verification of the whole file and of ranges in it.
+	 */
+	public void testVerify()
+	throws IOException {
+		GTChunkManifest manifest = GTChunkManifest.create(file, HASH_ALG, CHUNK_SIZE, 0);
+		assertTrue(manifest.verify(file, 2));
+		assertTrue(manifest.verify(file, 0, data.length, 2));
+		assertTrue(manifest.verify(file, data.length, 0, 2));
+
+		// Change a byte in chunk 5
+		data[5432] ^= 1;
+		write(data);
+		assertFalse(manifest.verify(file, 2));
+		assertTrue(manifest.verify(file, 0, 5000, 2));
+		assertTrue(manifest.verify(file, 6000, 4500, 2));
+		assertFalse(manifest.verify(file, 4999, 2, 2));
+		assertFalse(manifest.verify(file, 5999, 1, 1));
+		data[5432] ^= 1;
+
+		// Truncated file
+		byte[] truncated = new byte[data.length - 100];
+		System.arraycopy(data, 0, truncated, 0, truncated.length);
+		write(truncated);
+		assertFalse(manifest.verify(file, 0));
+		assertTrue(manifest.verify(file, 0, 10000, 0));
+		assertFalse(manifest.verify(file, 10000, 500, 0));
+
+		try {
+			manifest.verify(file, 10000, 501, 0);
+			fail("range past the end accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests the verification of single chunks with their hash chains.
+	 */
+	public void testChains()
+	throws IOException {
+		GTChunkManifest manifest = GTChunkManifest.create(file, HASH_ALG, CHUNK_SIZE, 0);
+		for (int i = 0; i < manifest.getChunkCount(); ++i) {
+			GTDataHash root = GTChunkManifest.getRootHash(file, CHUNK_SIZE, i, manifest.getChain(i), HASH_ALG);
+			assertEquals(manifest.getRootHash(), root);
+		}
+		GTDataHash root = GTChunkManifest.getRootHash(file, CHUNK_SIZE, 1, manifest.getChain(2), HASH_ALG);
+		assertFalse(manifest.getRootHash().equals(root));
+	}
+
+	/**
+	 * Tests the manifest of an empty file.
+	 */
+	public void testEmpty()
+	throws IOException {
+		write(new byte[0]);
+		GTChunkManifest manifest = GTChunkManifest.create(file, HASH_ALG, CHUNK_SIZE, 0);
+		assertEquals(1, manifest.getChunkCount());
+		assertEquals(new GTDataHash(HASH_ALG).close(), manifest.getChunkHash(0));
+		assertTrue(manifest.verify(file, 0));
+		assertEquals(manifest.getRootHash(), GTChunkManifest.getRootHash(file, CHUNK_SIZE, 0, manifest.getChain(0), HASH_ALG));
+	}
+
+
+
+	/**
+	 * Replaces the contents of the test file.
+	 */
+	private void write(byte[] contents)
+	throws IOException {
+		FileOutputStream out = new FileOutputStream(file);
+		try {
+			out.write(contents);
+		} finally {
+			out.close();
+		}
+	}
+}
@@ -22,9 +22,16 @@
 package tests.tsp;
 
 import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.Arrays;
+import java.util.Random;
 
 import junit.framework.TestCase;
 
@@ -90,6 +97,110 @@ extends TestCase {
 
 
 
+	/**
+	 * Tests saving and resuming the hash calculator state.
+	 */
+	public void testCheckpoint() {
+		byte[] data = new byte[10000];
+		new Random(2).nextBytes(data);
+		for (int i = 0; i < HASH_ALGS.length; i++) {
+			GTDataHash expected = new GTDataHash(HASH_ALGS[i]).update(data).close();
+
+			// Checkpoint in the middle of a block, and at the very start
+			int[] splits = { 0, 1234 };
+			for (int j = 0; j < splits.length; j++) {
+				GTDataHash dataHash = new GTDataHash(HASH_ALGS[i]).update(data, 0, splits[j]);
+				byte[] checkpoint = dataHash.getCheckpoint();
+
+				GTDataHash resumed = GTDataHash.resume(checkpoint);
+				assertEquals(HASH_ALGS[i], resumed.getHashAlgorithm());
+				assertEquals(splits[j], resumed.getByteCount());
+				resumed.update(data, splits[j], data.length - splits[j]);
+				assertEquals(data.length, resumed.getByteCount());
+				assertTrue(expected.equals(resumed.close()));
+
+				// The original stays usable
+				dataHash.update(data, splits[j], data.length - splits[j]);
+				assertTrue(expected.equals(dataHash.close()));
+			}
+		}
+
+		try {
+			new GTDataHash(GTHashAlgorithm.SHA256).close().getCheckpoint();
+			fail("checkpoint of closed hash calculator created");
+		} catch (IllegalStateException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+
+		byte[] checkpoint = new GTDataHash(GTHashAlgorithm.SHA256).update(DATA).getCheckpoint();
+		byte[] truncated = new byte[checkpoint.length - 1];
+		System.arraycopy(checkpoint, 0, truncated, 0, truncated.length);
+		byte[] garbage = new byte[checkpoint.length];
+		byte[][] invalid = { truncated, garbage, new byte[0] };
+		for (int i = 0; i < invalid.length; i++) {
+			try {
+				GTDataHash.resume(invalid[i]);
+				fail("invalid checkpoint accepted");
+			} catch (IllegalArgumentException e) {
+				Log.debug("[DBG] (OK) " + e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Tests updating from files, file channels and byte buffers.
+	 */
+	public void testFileUpdate()
+	throws IOException {
+		// Large enough to be mapped in three windows
+		byte[] data = new byte[(64 << 20) + 12345];
+		new Random(1).nextBytes(data);
+		File file = File.createTempFile("gtdatahash", ".bin");
+		try {
+			FileOutputStream out = new FileOutputStream(file);
+			out.write(data);
+			out.close();
+
+			GTHashAlgorithm hashAlg = GTHashAlgorithm.SHA256;
+			GTDataHash expected = new GTDataHash(hashAlg).update(data).close();
+			assertTrue(new GTDataHash(hashAlg).update(file).close().equals(expected));
+
+			RandomAccessFile raf = new RandomAccessFile(file, "r");
+			try {
+				FileChannel channel = raf.getChannel();
+
+				// Small region, read rather than mapped
+				expected = new GTDataHash(hashAlg).update(data, 1000, 5000).close();
+				assertTrue(new GTDataHash(hashAlg).update(channel, 1000, 5000).close().equals(expected));
+
+				// Mapped region not starting at a window boundary
+				int off = 777;
+				int len = data.length - off - 1;
+				expected = new GTDataHash(hashAlg).update(data, off, len).close();
+				assertTrue(new GTDataHash(hashAlg).update(channel, off, len).close().equals(expected));
+				assertEquals(0, channel.position());
+
+				try {
+					new GTDataHash(hashAlg).update(channel, 1, data.length);
+					fail("region past the end of the file accepted");
+				} catch (EOFException e) {
+					Log.debug("[DBG] (OK) " + e.getMessage());
+				}
+			} finally {
+				raf.close();
+			}
+
+			// Direct byte buffer
+			ByteBuffer buffer = ByteBuffer.allocateDirect(DATA.length);
+			buffer.put(DATA).flip();
+			GTDataHash dataHash = new GTDataHash(hashAlg).update(buffer);
+			assertEquals(0, buffer.remaining());
+			assertTrue(dataHash.close().equals(new GTDataHash(hashAlg).update(DATA).close()));
+		} finally {
+			file.delete();
+		}
+	}
+
 	/**
 	 * Tests {@code getInstance()} methods and class constructors.
 	 *
@@ -0,0 +1,120 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.tsp;
+
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.GTHashTree;
+
+
+
+/**
+ * {@code com.guardtime.tsp.GTHashTree} tests.
+ */
+public class GTHashTreeTest
+extends TestCase {
+	private static final GTHashAlgorithm HASH_ALG = GTHashAlgorithm.SHA256;
+
+	/**
+	 * Tests that every leaf chain leads to the root, for trees of various
+	 * shapes.
+	 */
+	public void testChains() {
+		for (int n = 1; n <= 17; ++n) {
+			GTDataHash[] dataHashes = getDataHashes(n);
+			GTHashTree tree = new GTHashTree(HASH_ALG, dataHashes);
+			assertEquals(n, tree.size());
+			for (int i = 0; i < n; ++i) {
+				GTDataHash root = GTHashTree.getRootHash(dataHashes[i], tree.getChain(i), HASH_ALG);
+				assertEquals(tree.getRootHash(), root);
+			}
+		}
+	}
+
+	/**
+	 * Tests the tree of a single leaf.
+	 */
+	public void testSingleLeaf() {
+		GTDataHash[] dataHashes = getDataHashes(1);
+		GTHashTree tree = new GTHashTree(HASH_ALG, dataHashes);
+		assertEquals(0, tree.getChain(0).length);
+		GTDataHash root = new GTDataHash(HASH_ALG).update(dataHashes[0].toDataImprint()).close();
+		assertEquals(root, tree.getRootHash());
+	}
+
+	/**
+	 * Tests that chains do not lead to the root from other leaves or from
+	 * other positions.
+	 */
+	public void testMismatch() {
+		GTDataHash[] dataHashes = getDataHashes(5);
+		GTHashTree tree = new GTHashTree(HASH_ALG, dataHashes);
+		assertFalse(tree.getRootHash().equals(GTHashTree.getRootHash(dataHashes[1], tree.getChain(0), HASH_ALG)));
+		assertFalse(tree.getRootHash().equals(GTHashTree.getRootHash(getDataHashes(6)[5], tree.getChain(4), HASH_ALG)));
+
+		// Swapping two leaves changes the root
+		GTDataHash[] swapped = (GTDataHash[]) dataHashes.clone();
+		swapped[0] = dataHashes[1];
+		swapped[1] = dataHashes[0];
+		assertFalse(tree.getRootHash().equals(new GTHashTree(HASH_ALG, swapped).getRootHash()));
+		assertFalse(Arrays.equals(tree.getChain(0), new GTHashTree(HASH_ALG, swapped).getChain(1)));
+	}
+
+	/**
+	 * Tests invalid arguments.
+	 */
+	public void testInvalid() {
+		try {
+			new GTHashTree(HASH_ALG, new GTDataHash[0]);
+			fail("empty tree created");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		GTHashTree tree = new GTHashTree(HASH_ALG, getDataHashes(3));
+		try {
+			tree.getChain(3);
+			fail("chain of missing leaf returned");
+		} catch (IndexOutOfBoundsException e) {
+			// Expected
+		}
+		try {
+			GTHashTree.getRootHash(getDataHashes(1)[0], new byte[] { 1, 1, 1 }, HASH_ALG);
+			fail("truncated chain accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+
+
+	private static GTDataHash[] getDataHashes(int n) {
+		GTDataHash[] res = new GTDataHash[n];
+		for (int i = 0; i < n; ++i) {
+			res[i] = new GTDataHash(HASH_ALG).update(("leaf " + i).getBytes()).close();
+		}
+		return res;
+	}
+}
@@ -0,0 +1,173 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.tsp;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import com.guardtime.tsp.GTDataHash;
+import com.guardtime.tsp.GTHashAlgorithm;
+import com.guardtime.tsp.MultiDataHash;
+import com.guardtime.util.Log;
+
+
+
+/**
+ * {@code com.guardtime.tsp.MultiDataHash} tests.
+ */
+public class MultiDataHashTest
+extends TestCase {
+	private static final GTHashAlgorithm[] HASH_ALGS = {
+		GTHashAlgorithm.SHA256,
+		GTHashAlgorithm.RIPEMD160,
+		GTHashAlgorithm.SHA512,
+		GTHashAlgorithm.SHA256
+	};
+
+
+
+	/**
+	 * Tests hashing on the calling thread.
+	 */
+	public void testSequential()
+	throws IOException {
+		testHashing(false);
+	}
+
+	/**
+	 * Tests hashing on parallel threads.
+	 */
+	public void testParallel()
+	throws IOException {
+		testHashing(true);
+	}
+
+	/**
+	 * Tests that the worker threads are stopped when reading fails.
+	 */
+	public void testReadFailure()
+	throws Exception {
+		MultiDataHash multiHash = new MultiDataHash(HASH_ALGS, true);
+		InputStream in = new ByteArrayInputStream(new byte[300000]) {
+			public synchronized int read(byte[] b, int off, int len) {
+				if (available() < 100000) {
+					throw new IllegalStateException("read failed");
+				}
+				return super.read(b, off, len);
+			}
+		};
+		try {
+			multiHash.update(in);
+			fail("read failure ignored");
+		} catch (IllegalStateException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+
+		// The object is dropped without closing it
+		multiHash = null;
+		for (int i = 0; i < 50 && countWorkers() > 0; i++) {
+			Thread.sleep(20);
+		}
+		assertEquals(0, countWorkers());
+	}
+
+	/**
+	 * Tests handling of illegal arguments and state.
+	 */
+	public void testArguments() {
+		try {
+			new MultiDataHash(new GTHashAlgorithm[0]);
+			fail("empty algorithm list accepted");
+		} catch (IllegalArgumentException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+
+		try {
+			new MultiDataHash(new GTHashAlgorithm[] { GTHashAlgorithm.SHA1, null });
+			fail("null accepted as hash algorithm");
+		} catch (IllegalArgumentException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+
+		MultiDataHash multiHash = new MultiDataHash(HASH_ALGS, true);
+		try {
+			multiHash.getDataHash(GTHashAlgorithm.SHA1);
+			fail("unused hash algorithm accepted");
+		} catch (IllegalArgumentException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+
+		multiHash.close();
+		assertTrue(multiHash.isClosed());
+		try {
+			multiHash.update(new byte[1]);
+			fail("closed hash calculator updated");
+		} catch (IllegalStateException e) {
+			Log.debug("[DBG] (OK) " + e.getMessage());
+		}
+	}
+
+
+
+	/**
+	 * Checks the results against separately calculated hashes.
+	 */
+	private void testHashing(boolean parallel)
+	throws IOException {
+		byte[] data = new byte[1000000];
+		new Random(1).nextBytes(data);
+
+		MultiDataHash multiHash = new MultiDataHash(HASH_ALGS, parallel);
+		assertEquals(3, multiHash.getHashAlgorithms().length);
+		multiHash.update(data, 0, 1000);
+		multiHash.update(data, 1000, 199000);
+		multiHash.update(new ByteArrayInputStream(data, 200000, data.length - 200000));
+
+		GTDataHash[] dataHashes = multiHash.getDataHashes();
+		assertEquals(3, dataHashes.length);
+		for (int i = 0; i < dataHashes.length; i++) {
+			GTHashAlgorithm hashAlg = dataHashes[i].getHashAlgorithm();
+			GTDataHash expected = new GTDataHash(hashAlg).update(data).close();
+			assertTrue(expected.equals(dataHashes[i]));
+			assertSame(dataHashes[i], multiHash.getDataHash(hashAlg));
+		}
+	}
+
+	/**
+	 * Returns the number of live worker threads.
+	 */
+	private static int countWorkers() {
+		Thread[] threads = new Thread[Thread.activeCount() + 10];
+		int n = Thread.enumerate(threads);
+		int count = 0;
+		for (int i = 0; i < n; i++) {
+			if (threads[i].getName().startsWith("MultiDataHash ")) {
+				count++;
+			}
+		}
+		return count;
+	}
+}
@@ -21,11 +21,17 @@
  */
 package tests.util;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Arrays;
+import java.util.Random;
 
 import com.guardtime.util.Base16;
 import com.guardtime.util.Base32;
 import com.guardtime.util.Base64;
+import com.guardtime.util.BaseX;
 
 import junit.framework.TestCase;
 
@@ -133,4 +139,81 @@ public class BaseTest extends TestCase {
 		}
 	}
 
+	/**
+	 * Tests that the encoders produce the same output as the generic
+	 * {@link BaseX} implementation.
+	 */
+	public void testCompatibility() {
+		BaseX x16 = new BaseX("0123456789ABCDEF", false, ' ');
+		BaseX x32 = new BaseX("ABCDEFGHIJKLMNOPQRSTUVWXYZ234567", false, '=');
+		BaseX x64 = new BaseX("ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/", true, '=');
+		Random random = new Random(1);
+		for (int len = 0; len < 100; len++) {
+			byte[] data = new byte[len + 3];
+			random.nextBytes(data);
+			assertEquals(x16.encode(data, 1, len, null, 0).toString(), Base16.encode(data, 1, len));
+			assertEquals(x16.encode(data, 1, len, ":", 2).toString(), Base16.encodeWithColons(data, 1, len));
+			assertEquals(x32.encode(data, 1, len, null, 0).toString(), Base32.encode(data, 1, len));
+			assertEquals(x32.encode(data, 1, len, "-", 6).toString(), Base32.encodeWithDashes(data, 1, len));
+			assertEquals(x64.encode(data, 1, len, null, 0).toString(), Base64.encode(data, 1, len));
+
+			// Decoding with stray characters and a truncated end
+			String s = Base32.encodeWithDashes(data, 1, len).toLowerCase() + " \u00e4\nM";
+			assertTrue(Arrays.equals(x32.decode(s), Base32.decode(s)));
+			s = Base64.encode(data, 1, len) + "\r\n*Zm9";
+			assertTrue(Arrays.equals(x64.decode(s), Base64.decode(s)));
+			assertTrue(Arrays.equals(x64.decode(s), Base64.decode(s.getBytes(), 0, s.length())));
+			s = Base16.encodeWithColons(data, 1, len) + "a";
+			assertTrue(Arrays.equals(x16.decode(s), Base16.decode(s)));
+		}
+	}
+
+	/**
+	 * Tests the streaming encoders and decoders.
+	 */
+	public void testStreams()
+	throws Exception {
+		Random random = new Random(2);
+		byte[] data = new byte[100000];
+		random.nextBytes(data);
+
+		for (int k = 0; k < 3; k++) {
+			ByteArrayOutputStream buf = new ByteArrayOutputStream();
+			OutputStream out = (k == 0) ? (OutputStream) Base16.newEncoder(buf)
+					: (k == 1) ? (OutputStream) Base32.newEncoder(buf)
+					: (OutputStream) Base64.newEncoder(buf);
+			// Write in chunks of varying size, including single bytes
+			int pos = 0;
+			for (int i = 0; pos < data.length; i++) {
+				if (i % 7 == 0) {
+					out.write(data[pos++]);
+				} else {
+					int n = Math.min(random.nextInt(20000), data.length - pos);
+					out.write(data, pos, n);
+					pos += n;
+				}
+			}
+			out.close();
+			String encoded = new String(buf.toByteArray(), "US-ASCII");
+			String expected = (k == 0) ? Base16.encode(data)
+					: (k == 1) ? Base32.encode(data) : Base64.encode(data);
+			assertEquals(expected, encoded);
+
+			InputStream in = new ByteArrayInputStream(buf.toByteArray());
+			in = (k == 0) ? (InputStream) Base16.newDecoder(in)
+					: (k == 1) ? (InputStream) Base32.newDecoder(in)
+					: (InputStream) Base64.newDecoder(in);
+			ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+			decoded.write(in.read());
+			assertEquals(1, in.skip(1));
+			decoded.write(data[1]);
+			byte[] chunk = new byte[999];
+			int n;
+			while ((n = in.read(chunk)) >= 0) {
+				decoded.write(chunk, 0, n);
+			}
+			assertTrue(Arrays.equals(data, decoded.toByteArray()));
+		}
+	}
+
 }
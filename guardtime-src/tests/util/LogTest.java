@@ -22,6 +22,9 @@
 
 package tests.util;
 
+import java.util.ArrayList;
+import java.util.List;
+
 import com.guardtime.util.Log;
 import com.guardtime.util.LogLevel;
 import com.guardtime.util.LogListener;
@@ -88,6 +91,202 @@ public class LogTest extends TestCase {
 		Log.removeListener(lc);
 	}
 
+	/**
+	 * Tests the level guard.
+	 */
+	public void testIsEnabled() {
+		LogCounter lc = new LogCounter();
+		assertFalse(Log.isEnabled(LogLevel.Fatal));
+		Log.addListener(lc, LogLevel.Warning);
+		assertTrue(Log.isEnabled(LogLevel.Fatal));
+		assertTrue(Log.isEnabled(LogLevel.Warning));
+		assertFalse(Log.isDebugEnabled());
+		Log.setLevel(LogLevel.Error);
+		assertFalse(Log.isEnabled(LogLevel.Warning));
+		Log.setLevel(LogLevel.All);
+		Log.removeListener(lc);
+		assertFalse(Log.isEnabled(LogLevel.Fatal));
+	}
+
+	/**
+	 * Tests parameterized messages.
+	 */
+	public void testParameters() {
+		LogCollector lc = new LogCollector();
+		Log.addListener(lc, LogLevel.All);
+		Log.debug("Released {} timestamps", new Integer(3));
+		Log.warning("{} + {}", "a", null);
+		Log.log(LogLevel.Error, "{}, {} and {}", new Object[] { "x", "y" });
+		Log.removeListener(lc);
+		List messages = lc.getMessages();
+		assertEquals("Released 3 timestamps", messages.get(0));
+		assertEquals("a + null", messages.get(1));
+		assertEquals("x, y and {}", messages.get(2));
+	}
+
+	/**
+	 * Tests that nothing is formatted when no logger wants the message.
+	 */
+	public void testLazyFormatting() {
+		Object param = new Object() {
+			public String toString() {
+				fail("Message formatted");
+				return null;
+			}
+		};
+		Log.debug("Ignored {}", param);
+		LogCounter lc = new LogCounter();
+		Log.addListener(lc, LogLevel.Debug);
+		Log.debug("Not formatted by the counter {}", param);
+		Log.removeListener(lc);
+		assertEquals(1, lc.count);
+	}
+
+	/**
+	 * Tests that messages are passed on in order in the asynchronous mode.
+	 */
+	public void testAsync()
+	throws Exception {
+		final LogCollector lc = new LogCollector();
+		Log.addListener(lc, LogLevel.All);
+		Log.startAsync(16, true);
+		try {
+			Thread[] threads = new Thread[4];
+			for (int i = 0; i < threads.length; ++i) {
+				final String name = "t" + i;
+				threads[i] = new Thread() {
+					public void run() {
+						for (int j = 0; j < 1000; ++j) {
+							Log.debug("{} {}", name, new Integer(j));
+						}
+					}
+				};
+				threads[i].start();
+			}
+			for (int i = 0; i < threads.length; ++i) {
+				threads[i].join();
+			}
+			Log.flush();
+			List messages = lc.getMessages();
+			assertEquals(4000, messages.size());
+			// Messages of each thread keep their order
+			int[] next = new int[threads.length];
+			for (int i = 0; i < messages.size(); ++i) {
+				String[] parts = ((String) messages.get(i)).split(" ");
+				int t = Integer.parseInt(parts[0].substring(1));
+				assertEquals(next[t]++, Integer.parseInt(parts[1]));
+			}
+		} finally {
+			Log.stopAsync();
+			Log.removeListener(lc);
+		}
+	}
+
+	/**
+	 * Tests that messages are dropped when the buffer is full.
+	 */
+	public void testAsyncDrop()
+	throws Exception {
+		final Object gate = new Object();
+		final boolean[] open = new boolean[1];
+		LogCollector lc = new LogCollector() {
+			public void log(LogLevel level, Object message) {
+				synchronized (gate) {
+					while (!open[0]) {
+						try {
+							gate.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+				}
+				super.log(level, message);
+			}
+		};
+		Log.addListener(lc, LogLevel.All);
+		long dropped = Log.getDropped();
+		Log.startAsync(4, false);
+		try {
+			// The dispatcher holds one message, the buffer four more
+			for (int i = 0; i < 10; ++i) {
+				Log.debug("Message {}", new Integer(i));
+			}
+			synchronized (gate) {
+				open[0] = true;
+				gate.notifyAll();
+			}
+			Log.flush();
+			int count = lc.getMessages().size();
+			assertTrue(count >= 4 && count < 10);
+			assertEquals(10 - count, Log.getDropped() - dropped);
+		} finally {
+			Log.stopAsync();
+			Log.removeListener(lc);
+		}
+	}
+
+	/**
+	 * Tests that the asynchronous mode can be restarted and stopped while
+	 * messages are still queued, and that the queued messages are passed on.
+	 */
+	public void testStopAsyncQueued()
+	throws Exception {
+		LogCollector lc = new LogCollector() {
+			public void log(LogLevel level, Object message) {
+				try {
+					Thread.sleep(1);
+				} catch (InterruptedException e) {
+					// Nothing here
+				}
+				super.log(level, message);
+			}
+		};
+		Log.addListener(lc, LogLevel.All);
+		try {
+			Thread stopper = new Thread() {
+				public void run() {
+					Log.startAsync(1024, false);
+					for (int i = 0; i < 100; ++i) {
+						Log.debug("Message {}", new Integer(i));
+					}
+					Log.startAsync(1024, false);
+					for (int i = 100; i < 200; ++i) {
+						Log.debug("Message {}", new Integer(i));
+					}
+					Log.stopAsync();
+				}
+			};
+			stopper.start();
+			stopper.join(10000);
+			assertFalse("stopAsync() blocked", stopper.isAlive());
+			List messages = lc.getMessages();
+			assertEquals(200, messages.size());
+			for (int i = 0; i < messages.size(); ++i) {
+				assertEquals("Message " + i, messages.get(i));
+			}
+		} finally {
+			Log.stopAsync();
+			Log.removeListener(lc);
+		}
+	}
+
+	/**
+	 * Internal helper to collect the messages passed on by the logging system.
+	 */
+	private static class LogCollector implements LogListener {
+
+		private final List messages = new ArrayList();
+
+		public synchronized void log(LogLevel level, Object message) {
+			messages.add(String.valueOf(message));
+		}
+
+		public synchronized List getMessages() {
+			return new ArrayList(messages);
+		}
+
+	}
+
 	/**
 	 * Internal helper to count the messages passed on by the logging system.
 	 */
@@ -0,0 +1,156 @@
+/*
+ * $Id$
+ *
+ *
+ *
+ * Copyright 2008-2011 GuardTime AS
+ *
+ * This file is part of the GuardTime client SDK.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package tests.util;
+
+import java.io.IOException;
+import java.io.StringWriter;
+
+import com.guardtime.util.Counter;
+import com.guardtime.util.Gauge;
+import com.guardtime.util.Histogram;
+import com.guardtime.util.Metrics;
+
+import junit.framework.TestCase;
+
+/**
+ * JUnit test cases for the metrics registry.
+ */
+public class MetricsTest extends TestCase {
+
+	/**
+	 * Tests that the registry returns the same metric for the same name and
+	 * label.
+	 */
+	public void testRegistration() {
+		Counter c1 = Metrics.counter("test_registration_total", "Test counter.");
+		Counter c2 = Metrics.counter("test_registration_total", "Test counter.");
+		assertSame(c1, c2);
+		Counter l1 = Metrics.counter("test_labeled_total", "Test counter.", "kind", "a");
+		Counter l2 = Metrics.counter("test_labeled_total", "Test counter.", "kind", "b");
+		assertNotSame(l1, l2);
+		assertSame(l1, Metrics.counter("test_labeled_total", "Test counter.", "kind", "a"));
+	}
+
+	/**
+	 * Tests that invalid names and type conflicts are rejected.
+	 */
+	public void testInvalid() {
+		try {
+			Metrics.counter("1st_total", "Invalid name.");
+			fail("Invalid name accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			Metrics.counter("test_label_total", "Invalid label.", "bad-label", "x");
+			fail("Invalid label name accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		Metrics.counter("test_conflict", "Counter.");
+		try {
+			Metrics.gauge("test_conflict", "Gauge.");
+			fail("Type conflict accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+		try {
+			Metrics.counter("test_negative_total", "Counter.").add(-1);
+			fail("Negative increment accepted");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	/**
+	 * Tests that updates from concurrent threads are all counted.
+	 */
+	public void testConcurrentUpdates()
+	throws InterruptedException {
+		final Counter counter = Metrics.counter("test_concurrent_total", "Test counter.");
+		final Gauge gauge = Metrics.gauge("test_concurrent", "Test gauge.");
+		final int threads = 8;
+		final int count = 10000;
+		Thread[] t = new Thread[threads];
+		for (int i = 0; i < threads; ++i) {
+			t[i] = new Thread() {
+				public void run() {
+					for (int j = 0; j < count; ++j) {
+						counter.increment();
+						gauge.increment();
+						gauge.decrement();
+					}
+					gauge.increment();
+				}
+			};
+			t[i].start();
+		}
+		for (int i = 0; i < threads; ++i) {
+			t[i].join();
+		}
+		assertEquals(threads * count, counter.get());
+		assertEquals(threads, gauge.get());
+	}
+
+	/**
+	 * Tests the histogram buckets, sum and count.
+	 */
+	public void testHistogram()
+	throws IOException {
+		Histogram histogram = Metrics.histogram("test_latency_seconds", "Test histogram.", "op", "x");
+		histogram.observe(200000L);       // 0.2 ms
+		histogram.observe(3000000L);      // 3 ms
+		histogram.observe(5000000L);      // 5 ms, on the bound
+		histogram.observe(120000000000L); // 2 min, above the last bound
+		assertEquals(4, histogram.getCount());
+		assertEquals(120008200000L, histogram.getSum());
+
+		String text = export();
+		assertTrue(text.indexOf("# TYPE test_latency_seconds histogram\n") >= 0);
+		assertTrue(text.indexOf("test_latency_seconds_bucket{op=\"x\",le=\"5.0E-4\"} 1\n") >= 0);
+		assertTrue(text.indexOf("test_latency_seconds_bucket{op=\"x\",le=\"0.0025\"} 1\n") >= 0);
+		assertTrue(text.indexOf("test_latency_seconds_bucket{op=\"x\",le=\"0.005\"} 3\n") >= 0);
+		assertTrue(text.indexOf("test_latency_seconds_bucket{op=\"x\",le=\"60.0\"} 3\n") >= 0);
+		assertTrue(text.indexOf("test_latency_seconds_bucket{op=\"x\",le=\"+Inf\"} 4\n") >= 0);
+		assertTrue(text.indexOf("test_latency_seconds_sum{op=\"x\"} 120.0082\n") >= 0);
+		assertTrue(text.indexOf("test_latency_seconds_count{op=\"x\"} 4\n") >= 0);
+	}
+
+	/**
+	 * Tests the text format of counters, including escaping.
+	 */
+	public void testExport()
+	throws IOException {
+		Metrics.counter("test_export_total", "Line one\nline \\two.", "path", "a\"b\\c").add(42);
+		String text = export();
+		assertTrue(text.indexOf("# HELP test_export_total Line one\\nline \\\\two.\n") >= 0);
+		assertTrue(text.indexOf("# TYPE test_export_total counter\n") >= 0);
+		assertTrue(text.indexOf("test_export_total{path=\"a\\\"b\\\\c\"} 42\n") >= 0);
+	}
+
+	private static String export()
+	throws IOException {
+		StringWriter out = new StringWriter();
+		Metrics.write(out);
+		return out.toString();
+	}
+}
@@ -21,6 +21,8 @@
  */
 package tests.util;
 
+import com.guardtime.util.BufferPool;
+import com.guardtime.util.ChunkedByteSink;
 import com.guardtime.util.Util;
 
 import junit.framework.TestCase;
@@ -29,6 +31,7 @@ import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.Arrays;
+import java.util.Random;
 
 /**
  * JUnit test cases for the utility functions.
@@ -242,6 +245,86 @@ public class UtilTest extends TestCase {
 		}
 	}
 
+	/**
+	 * Tests {@code readAll} with data spanning many chunks.
+	 */
+	public void testReadAllLarge()
+	throws IOException {
+		byte[] data = new byte[1000003];
+		new Random(1).nextBytes(data);
+		assertTrue(Arrays.equals(data, Util.readAll(new ByteArrayInputStream(data))));
+		assertTrue(Arrays.equals(data, Util.readAll(new ByteArrayInputStream(data), 7)));
+	}
+
+	/**
+	 * Tests {@link BufferPool}.
+	 */
+	public void testBufferPool() {
+		byte[] buf = BufferPool.acquire(1000);
+		assertEquals(1024, buf.length);
+		BufferPool.release(buf);
+		assertSame(buf, BufferPool.acquire(513));
+		assertEquals(BufferPool.MIN_SIZE, BufferPool.acquire(0).length);
+		assertEquals(BufferPool.MAX_SIZE, BufferPool.acquire(BufferPool.MAX_SIZE).length);
+		assertEquals(BufferPool.MAX_SIZE + 1, BufferPool.acquire(BufferPool.MAX_SIZE + 1).length);
+		// Arrays of other sizes are ignored
+		BufferPool.release(new byte[1000]);
+		assertEquals(1024, BufferPool.acquire(1000).length);
+		try {
+			BufferPool.acquire(-1);
+			fail("Negative buffer size accepted");
+		} catch (IllegalArgumentException e) {
+			// Exception thrown -- OK
+		}
+	}
+
+	/**
+	 * Tests that buffers released on one thread are reused on another.
+	 */
+	public void testBufferPoolShared()
+	throws InterruptedException {
+		final byte[][] bufs = new byte[3][];
+		for (int i = 0; i < bufs.length; ++i) {
+			bufs[i] = BufferPool.acquire(300000);
+		}
+		Thread t = new Thread() {
+			public void run() {
+				for (int i = 0; i < bufs.length; ++i) {
+					BufferPool.release(bufs[i]);
+				}
+			}
+		};
+		t.start();
+		t.join();
+		// Two stay with the other thread, the third one goes to the depot
+		assertSame(bufs[2], BufferPool.acquire(300000));
+	}
+
+	/**
+	 * Tests {@link ChunkedByteSink}.
+	 */
+	public void testChunkedByteSink()
+	throws IOException {
+		byte[] data = new byte[200000];
+		new Random(2).nextBytes(data);
+		ChunkedByteSink sink = new ChunkedByteSink(10);
+		sink.write(data[0]);
+		sink.write(data, 1, 99999);
+		assertEquals(100000, sink.size());
+		assertEquals(100000, sink.readFrom(new ByteArrayInputStream(data, 100000, 100000)));
+		assertEquals(data.length, sink.size());
+		assertTrue(Arrays.equals(data, sink.toByteArray()));
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		sink.writeTo(out);
+		assertTrue(Arrays.equals(data, out.toByteArray()));
+		sink.release();
+		assertEquals(0, sink.size());
+		assertEquals(0, sink.toByteArray().length);
+		sink.write(data, 0, 5);
+		assertTrue(Arrays.equals(Util.copyOf(data, 0, 5), sink.toByteArray()));
+		sink.close();
+	}
+
 	/**
 	 * Tests {@link Util#gcd(int, int)}.
 	 */